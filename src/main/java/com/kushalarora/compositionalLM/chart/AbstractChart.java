@@ -0,0 +1,107 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.util.BitSet;
+
+/**
+ * Keeps, for every (start, end) or (start, end, split) cell, the set of
+ * states whose score is non zero so the chart passes can walk only those
+ * instead of all numStates. Implementations call {@link #updateActive}
+ * after every write. Cells are numbered by a SpanIndex, so only the
+ * start < end cells and start <= split < end splits take a slot.
+ */
+public abstract class AbstractChart implements IChart {
+    private static final BitSet EMPTY = new BitSet();
+
+    protected final int numStates;
+    protected final int numCells;
+    protected final SpanIndex index;
+    private final BitSet[] active;
+
+    /**
+     * @param numStates size of the state dimension
+     * @param length    number of tokens the chart spans
+     * @param splits    whether cells are (start, end, split)
+     *                  rather than (start, end)
+     */
+    public AbstractChart(int numStates, int length, boolean splits) {
+        this.numStates = numStates;
+        index = new SpanIndex(length);
+        numCells = splits ? index.getNumSplits() : index.getNumCells();
+        active = new BitSet[numCells];
+    }
+
+    protected int cellIndex(int start, int end) {
+        return index.cell(start, end);
+    }
+
+    protected int cellIndex(int start, int end, int split) {
+        return index.split(start, end, split);
+    }
+
+    /**
+     * Record whether state of cell cellIdx holds a non zero value.
+     */
+    protected void updateActive(int cellIdx, int state, double value) {
+        BitSet states = active[cellIdx];
+        if (states == null) {
+            if (value == 0) {
+                return;
+            }
+            synchronized (active) {
+                states = active[cellIdx];
+                if (states == null) {
+                    states = new BitSet(numStates);
+                    active[cellIdx] = states;
+                }
+            }
+        }
+        states.set(state, value != 0);
+    }
+
+    /**
+     * States with non zero score in cell cellIdx.
+     */
+    protected BitSet activeStates(int cellIdx) {
+        BitSet states = active[cellIdx];
+        return states == null ? EMPTY : states;
+    }
+
+    public BitSet getActiveStates(int start, int end) {
+        BitSet states = active[cellIndex(start, end)];
+        return states == null ? EMPTY : states;
+    }
+
+    public BitSet getActiveStates(int start, int end, int split) {
+        BitSet states = active[cellIndex(start, end, split)];
+        return states == null ? EMPTY : states;
+    }
+
+    public void scaleCell(double factor, int start, int end) {
+        BitSet states = getActiveStates(start, end);
+        for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+            setScore(factor * getScore(start, end, state), start, end, state);
+        }
+    }
+
+    public void scaleCell(double factor, int start, int end, int split) {
+        BitSet states = getActiveStates(start, end, split);
+        for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+            setScore(factor * getScore(start, end, split, state), start, end, split, state);
+        }
+    }
+
+    /**
+     * Drop the active set of cell cellIdx, its scores must be zero.
+     */
+    protected void clearActive(int cellIdx) {
+        active[cellIdx] = null;
+    }
+
+    protected void clearActive() {
+        for (BitSet states : active) {
+            if (states != null) {
+                states.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Accumulates the contributions to one chart cell without locking.
+ * Every thread adds into its own partial state array and running total;
+ * {@link #reduce()} sums the partials once all the workers are done
+ * (i.e. after the parallelizer returns) and the merged values are then
+ * written to the charts by a single thread.
+ *
+ * The same accumulator is reused for every cell of a pass: reduce resets
+ * the partials, so only the threads that took part in the pass pay for
+ * an array of size numStates.
+ */
+public class CellAccumulator {
+    private final int numStates;
+    private final List<Partial> partials;
+    private final ThreadLocal<Partial> localPartial;
+
+    private final double[] merged;
+    private double total;
+
+    private static class Partial {
+        final double[] scores;
+        double total;
+        boolean dirty;
+
+        Partial(int numStates) {
+            scores = new double[numStates];
+        }
+    }
+
+    public CellAccumulator(final int numStates) {
+        this.numStates = numStates;
+        partials = new ArrayList<Partial>();
+        merged = new double[numStates];
+        localPartial = new ThreadLocal<Partial>() {
+            @Override
+            protected Partial initialValue() {
+                Partial partial = new Partial(numStates);
+                // Registration happens once per thread,
+                // never on the hot path.
+                synchronized (partials) {
+                    partials.add(partial);
+                }
+                return partial;
+            }
+        };
+    }
+
+    /**
+     * Add value to state and to the cell total.
+     */
+    public void add(int state, double value) {
+        Partial partial = localPartial.get();
+        partial.scores[state] += value;
+        partial.total += value;
+        partial.dirty = true;
+    }
+
+    /**
+     * Add value to the cell total only.
+     */
+    public void add(double value) {
+        Partial partial = localPartial.get();
+        partial.total += value;
+        partial.dirty = true;
+    }
+
+    /**
+     * Merge the per thread partials and reset them for the next cell.
+     * Must not be called while workers are still adding.
+     */
+    public void reduce() {
+        Arrays.fill(merged, 0);
+        total = 0;
+        synchronized (partials) {
+            for (Partial partial : partials) {
+                if (!partial.dirty) {
+                    continue;
+                }
+                for (int state = 0; state < numStates; state++) {
+                    merged[state] += partial.scores[state];
+                }
+                total += partial.total;
+                Arrays.fill(partial.scores, 0);
+                partial.total = 0;
+                partial.dirty = false;
+            }
+        }
+    }
+
+    public double getScore(int state) {
+        return merged[state];
+    }
+
+    public double getTotal() {
+        return total;
+    }
+
+    /**
+     * Add the merged scores to cell (start, end) of chart.
+     */
+    public void addTo(IChart chart, int start, int end) {
+        for (int state = 0; state < numStates; state++) {
+            if (merged[state] != 0) {
+                chart.addToScore(merged[state], start, end, state);
+            }
+        }
+    }
+
+    /**
+     * Add the merged scores to cell (start, end, split) of chart.
+     */
+    public void addTo(IChart chart, int start, int end, int split) {
+        for (int state = 0; state < numStates; state++) {
+            if (merged[state] != 0) {
+                chart.addToScore(merged[state], start, end, split, state);
+            }
+        }
+    }
+}
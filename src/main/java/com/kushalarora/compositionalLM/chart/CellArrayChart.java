@@ -0,0 +1,140 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.util.BitSet;
+
+/**
+ * Chart whose cells are primitive arrays of numStates scores. All the
+ * indexes but the last one identify a chart cell, packed by a SpanIndex,
+ * so a lookup is an offset computation and two array reads.
+ * The per cell array is allocated on first write, as most
+ * (start, end, split) cells never see a non zero score.
+ * Subclasses only say how a cell array is made, read and written.
+ *
+ * @param <A> type of a cell array
+ */
+public abstract class CellArrayChart<A> extends AbstractChart {
+    private final Object[] cells;
+
+    /**
+     * @param numStates size of the state dimension
+     * @param length    number of tokens the chart spans
+     * @param splits    whether cells are (start, end, split)
+     *                  rather than (start, end)
+     */
+    public CellArrayChart(int numStates, int length, boolean splits) {
+        super(numStates, length, splits);
+        cells = new Object[numCells];
+    }
+
+    /**
+     * A zeroed cell of numStates scores.
+     */
+    protected abstract A newCell(int numStates);
+
+    protected abstract double get(A cell, int state);
+
+    /**
+     * Store value in the cell.
+     *
+     * @return the value as stored
+     */
+    protected abstract double put(A cell, int state, double value);
+
+    /**
+     * Add value to the score in the cell.
+     *
+     * @return the sum as stored
+     */
+    protected abstract double add(A cell, int state, double value);
+
+    @SuppressWarnings("unchecked")
+    private A getCell(int cellIdx) {
+        return (A) cells[cellIdx];
+    }
+
+    private A getOrCreateCell(int cellIdx) {
+        A cell = getCell(cellIdx);
+        if (cell == null) {
+            // Two threads writing different states of the
+            // same cell must end up with the same array.
+            synchronized (cells) {
+                cell = getCell(cellIdx);
+                if (cell == null) {
+                    cell = newCell(numStates);
+                    cells[cellIdx] = cell;
+                }
+            }
+        }
+        return cell;
+    }
+
+    private double getScore(int cellIdx, int state) {
+        A cell = getCell(cellIdx);
+        return cell == null ? 0 : get(cell, state);
+    }
+
+    public double getScore(int start, int end, int state) {
+        return getScore(cellIndex(start, end), state);
+    }
+
+    public double getScore(int start, int end, int split, int state) {
+        return getScore(cellIndex(start, end, split), state);
+    }
+
+    private void set(int cellIdx, int state, double value) {
+        double stored = put(getOrCreateCell(cellIdx), state, value);
+        updateActive(cellIdx, state, stored);
+    }
+
+    private void add(int cellIdx, int state, double value) {
+        double stored = add(getOrCreateCell(cellIdx), state, value);
+        updateActive(cellIdx, state, stored);
+    }
+
+    public void setScore(double value, int start, int end, int state) {
+        set(cellIndex(start, end), state, value);
+    }
+
+    public void setScore(double value, int start, int end, int split, int state) {
+        set(cellIndex(start, end, split), state, value);
+    }
+
+    public void addToScore(double value, int start, int end, int state) {
+        add(cellIndex(start, end), state, value);
+    }
+
+    public void addToScore(double value, int start, int end, int split, int state) {
+        add(cellIndex(start, end, split), state, value);
+    }
+
+    private void clearCell(int cellIdx) {
+        cells[cellIdx] = null;
+        clearActive(cellIdx);
+    }
+
+    public void clearCell(int start, int end) {
+        clearCell(cellIndex(start, end));
+    }
+
+    public void clearCell(int start, int end, int split) {
+        clearCell(cellIndex(start, end, split));
+    }
+
+    /**
+     * Only the active states of a cell can be non zero, so only those
+     * are zeroed and the cell arrays are kept for the next sentence.
+     */
+    public void clear() {
+        for (int cellIdx = 0; cellIdx < numCells; cellIdx++) {
+            A cell = getCell(cellIdx);
+            if (cell == null) {
+                continue;
+            }
+            BitSet states = activeStates(cellIdx);
+            for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+                put(cell, state, 0);
+            }
+        }
+        clearActive();
+    }
+}
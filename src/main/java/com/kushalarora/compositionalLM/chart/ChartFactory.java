@@ -0,0 +1,90 @@
+package com.kushalarora.compositionalLM.chart;
+
+/**
+ * Creates state charts of the type selected by grammar options.
+ */
+public class ChartFactory {
+    public enum ChartType {
+        SPARSE("sparse"),
+        DENSE("dense");
+
+        private String text;
+
+        ChartType(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return this.text;
+        }
+
+        /**
+         * @throws IllegalArgumentException if text names no chart type
+         */
+        public static ChartType fromString(String text) {
+            if (text != null) {
+                for (ChartType b : ChartType.values()) {
+                    if (text.equalsIgnoreCase(b.text)) {
+                        return b;
+                    }
+                }
+            }
+            StringBuilder valid = new StringBuilder();
+            for (ChartType b : ChartType.values()) {
+                valid.append(valid.length() == 0 ? "" : ", ").append(b.text);
+            }
+            throw new IllegalArgumentException(String.format(
+                    "Invalid chartType: %s. Valid values are: %s", text, valid));
+        }
+    }
+
+    /**
+     * Chart indexed by (start, end, state)
+     */
+    public static IChart getSpanChart(ChartType chartType, int length, int numStates) {
+        return getSpanChart(chartType, length, numStates, false);
+    }
+
+    /**
+     * Chart indexed by (start, end, state), a dense one of
+     * floats if singlePrecision. Sparse charts are unaffected.
+     */
+    public static IChart getSpanChart(ChartType chartType, int length, int numStates,
+                                      boolean singlePrecision) {
+        switch (chartType) {
+            case SPARSE:
+                return new SparseChart(numStates, length, false);
+            case DENSE:
+                return singlePrecision ?
+                        new FloatChart(numStates, length, false) :
+                        new DenseChart(numStates, length, false);
+            default:
+                throw new RuntimeException("Invalid Chart Type: " + chartType);
+        }
+    }
+
+    /**
+     * Chart indexed by (start, end, split, state)
+     */
+    public static IChart getSplitSpanChart(ChartType chartType, int length, int numStates) {
+        return getSplitSpanChart(chartType, length, numStates, false);
+    }
+
+    /**
+     * Chart indexed by (start, end, split, state), a dense
+     * one of floats if singlePrecision.
+     */
+    public static IChart getSplitSpanChart(ChartType chartType, int length, int numStates,
+                                           boolean singlePrecision) {
+        switch (chartType) {
+            case SPARSE:
+                return new SparseChart(numStates, length, true);
+            case DENSE:
+                return singlePrecision ?
+                        new FloatChart(numStates, length, true) :
+                        new DenseChart(numStates, length, true);
+            default:
+                throw new RuntimeException("Invalid Chart Type: " + chartType);
+        }
+    }
+}
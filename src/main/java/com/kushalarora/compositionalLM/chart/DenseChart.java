@@ -0,0 +1,35 @@
+package com.kushalarora.compositionalLM.chart;
+
+/**
+ * Chart backed by flat double arrays, one per cell.
+ */
+public class DenseChart extends CellArrayChart<double[]> {
+
+    /**
+     * @param numStates size of the state dimension
+     * @param length    number of tokens the chart spans
+     * @param splits    whether cells are (start, end, split)
+     *                  rather than (start, end)
+     */
+    public DenseChart(int numStates, int length, boolean splits) {
+        super(numStates, length, splits);
+    }
+
+    protected double[] newCell(int numStates) {
+        return new double[numStates];
+    }
+
+    protected double get(double[] cell, int state) {
+        return cell[state];
+    }
+
+    protected double put(double[] cell, int state, double value) {
+        cell[state] = value;
+        return value;
+    }
+
+    protected double add(double[] cell, int state, double value) {
+        cell[state] += value;
+        return cell[state];
+    }
+}
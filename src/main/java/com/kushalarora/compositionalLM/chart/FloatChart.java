@@ -0,0 +1,39 @@
+package com.kushalarora.compositionalLM.chart;
+
+/**
+ * DenseChart with float rather than double cells, half the memory and
+ * bandwidth of it. Scores are rounded to single precision as they are
+ * stored, so a sum built up with addToScore rounds at every step; the
+ * lock free inside pass sums a cell in double with a CellAccumulator
+ * and stores it once.
+ */
+public class FloatChart extends CellArrayChart<float[]> {
+
+    /**
+     * @param numStates size of the state dimension
+     * @param length    number of tokens the chart spans
+     * @param splits    whether cells are (start, end, split)
+     *                  rather than (start, end)
+     */
+    public FloatChart(int numStates, int length, boolean splits) {
+        super(numStates, length, splits);
+    }
+
+    protected float[] newCell(int numStates) {
+        return new float[numStates];
+    }
+
+    protected double get(float[] cell, int state) {
+        return cell[state];
+    }
+
+    protected double put(float[] cell, int state, double value) {
+        cell[state] = (float) value;
+        return cell[state];
+    }
+
+    protected double add(float[] cell, int state, double value) {
+        cell[state] += (float) value;
+        return cell[state];
+    }
+}
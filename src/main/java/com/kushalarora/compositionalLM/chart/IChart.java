@@ -0,0 +1,65 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+/**
+ * Storage for the state level charts (iScore, oScore,
+ * iSplitSpanStateScore) filled by the inside outside passes.
+ * A chart is either indexed by (start, end, state) or by
+ * (start, end, split, state), last index always being the state.
+ * Entries not written yet read as zero.
+ */
+public interface IChart extends Serializable {
+
+    public double getScore(int start, int end, int state);
+
+    public double getScore(int start, int end, int split, int state);
+
+    public void setScore(double value, int start, int end, int state);
+
+    public void setScore(double value, int start, int end, int split, int state);
+
+    public void addToScore(double value, int start, int end, int state);
+
+    public void addToScore(double value, int start, int end, int split, int state);
+
+    /**
+     * States with non zero score in cell (start, end). The returned
+     * set is live, it reflects writes made after the call.
+     */
+    public BitSet getActiveStates(int start, int end);
+
+    /**
+     * States with non zero score in cell (start, end, split).
+     */
+    public BitSet getActiveStates(int start, int end, int split);
+
+    /**
+     * Multiply every entry of cell (start, end) by factor.
+     */
+    public void scaleCell(double factor, int start, int end);
+
+    /**
+     * Multiply every entry of cell (start, end, split) by factor.
+     */
+    public void scaleCell(double factor, int start, int end, int split);
+
+    /**
+     * Zero out cell (start, end) and drop
+     * whatever storage it holds.
+     */
+    public void clearCell(int start, int end);
+
+    /**
+     * Zero out cell (start, end, split) and drop
+     * whatever storage it holds.
+     */
+    public void clearCell(int start, int end, int split);
+
+    /**
+     * Zero out all the entries so that chart
+     * can be reused for another sentence.
+     */
+    public void clear();
+}
@@ -0,0 +1,32 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.io.Serializable;
+
+/**
+ * Rule for combining chart scores: plus merges alternative derivations
+ * of a state, times chains the weights of one derivation. Specialized to
+ * primitive doubles so the chart loops never box.
+ *
+ * Rule scores and energies are log weights, fromLog maps them into the
+ * semiring's own representation and toLog maps a chart value back.
+ */
+public interface ISemiring extends Serializable {
+
+    public double zero();
+
+    public double one();
+
+    public double plus(double a, double b);
+
+    public double times(double a, double b);
+
+    public double fromLog(double logWeight);
+
+    public double toLog(double value);
+
+    /**
+     * True if plus(a, b) is always either a or b, so a cell can keep
+     * a backpointer to the derivation its value came from.
+     */
+    public boolean isSelective();
+}
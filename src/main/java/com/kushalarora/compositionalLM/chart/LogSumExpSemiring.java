@@ -0,0 +1,45 @@
+package com.kushalarora.compositionalLM.chart;
+
+import static java.lang.Math.exp;
+import static java.lang.Math.log1p;
+
+/**
+ * Sum-product carried in log space: plus is log(e^a + e^b),
+ * times is a + b. Slower than sum-product but never underflows.
+ */
+public class LogSumExpSemiring implements ISemiring {
+
+    public double zero() {
+        return Double.NEGATIVE_INFINITY;
+    }
+
+    public double one() {
+        return 0;
+    }
+
+    public double plus(double a, double b) {
+        if (a == Double.NEGATIVE_INFINITY) {
+            return b;
+        }
+        if (b == Double.NEGATIVE_INFINITY) {
+            return a;
+        }
+        return a >= b ? a + log1p(exp(b - a)) : b + log1p(exp(a - b));
+    }
+
+    public double times(double a, double b) {
+        return a + b;
+    }
+
+    public double fromLog(double logWeight) {
+        return logWeight;
+    }
+
+    public double toLog(double value) {
+        return value;
+    }
+
+    public boolean isSelective() {
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+package com.kushalarora.compositionalLM.chart;
+
+/**
+ * (max, *) over probabilities, the Viterbi semiring. Values are
+ * kept as log probabilities, where it becomes (max, +), so it
+ * does not underflow.
+ */
+public class MaxProductSemiring implements ISemiring {
+
+    public double zero() {
+        return Double.NEGATIVE_INFINITY;
+    }
+
+    public double one() {
+        return 0;
+    }
+
+    public double plus(double a, double b) {
+        return a >= b ? a : b;
+    }
+
+    public double times(double a, double b) {
+        return a + b;
+    }
+
+    public double fromLog(double logWeight) {
+        return logWeight;
+    }
+
+    public double toLog(double value) {
+        return value;
+    }
+
+    public boolean isSelective() {
+        return true;
+    }
+}
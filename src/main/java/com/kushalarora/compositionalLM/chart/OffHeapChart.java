@@ -0,0 +1,145 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * DenseChart whose per cell state arrays live outside the Java heap, in
+ * slots of numStates doubles of an OffHeapDoubles. A cell takes a slot on
+ * its first write, a cleared cell hands its slot on to the next new one,
+ * so the slots in use follow the cells that are live, as the arrays of a
+ * DenseChart do. Only the slot numbers and the active state sets stay on
+ * the heap.
+ */
+public class OffHeapChart extends AbstractChart {
+    private static final int NONE = -1;
+
+    private final OffHeapDoubles store;
+    private final int[] slots;
+    private int numSlots;
+    private int[] freeSlots = new int[16];
+    private int numFree;
+
+    /**
+     * @param numStates size of the state dimension
+     * @param length    number of tokens the chart spans
+     * @param splits    whether cells are (start, end, split)
+     *                  rather than (start, end)
+     * @param store     off heap array the slots are taken from
+     */
+    public OffHeapChart(int numStates, int length, boolean splits, OffHeapDoubles store) {
+        super(numStates, length, splits);
+        this.store = store;
+        slots = new int[numCells];
+        Arrays.fill(slots, NONE);
+    }
+
+    private int getOrCreateSlot(int cellIdx) {
+        int slot = slots[cellIdx];
+        if (slot == NONE) {
+            synchronized (slots) {
+                slot = slots[cellIdx];
+                if (slot == NONE) {
+                    if (numFree > 0) {
+                        slot = freeSlots[--numFree];
+                    } else {
+                        slot = numSlots++;
+                        store.ensureCapacity((long) numSlots * numStates);
+                    }
+                    slots[cellIdx] = slot;
+                }
+            }
+        }
+        return slot;
+    }
+
+    private long offset(int slot, int state) {
+        return (long) slot * numStates + state;
+    }
+
+    private double get(int cellIdx, int state) {
+        int slot = slots[cellIdx];
+        return slot == NONE ? 0 : store.get(offset(slot, state));
+    }
+
+    private void set(int cellIdx, int state, double value) {
+        store.set(offset(getOrCreateSlot(cellIdx), state), value);
+        updateActive(cellIdx, state, value);
+    }
+
+    private void add(int cellIdx, int state, double value) {
+        long offset = offset(getOrCreateSlot(cellIdx), state);
+        double sum = store.get(offset) + value;
+        store.set(offset, sum);
+        updateActive(cellIdx, state, sum);
+    }
+
+    public double getScore(int start, int end, int state) {
+        return get(cellIndex(start, end), state);
+    }
+
+    public double getScore(int start, int end, int split, int state) {
+        return get(cellIndex(start, end, split), state);
+    }
+
+    public void setScore(double value, int start, int end, int state) {
+        set(cellIndex(start, end), state, value);
+    }
+
+    public void setScore(double value, int start, int end, int split, int state) {
+        set(cellIndex(start, end, split), state, value);
+    }
+
+    public void addToScore(double value, int start, int end, int state) {
+        add(cellIndex(start, end), state, value);
+    }
+
+    public void addToScore(double value, int start, int end, int split, int state) {
+        add(cellIndex(start, end, split), state, value);
+    }
+
+    private void zeroActive(int cellIdx) {
+        int slot = slots[cellIdx];
+        BitSet states = activeStates(cellIdx);
+        for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+            store.set(offset(slot, state), 0);
+        }
+    }
+
+    private void clearCell(int cellIdx) {
+        synchronized (slots) {
+            int slot = slots[cellIdx];
+            if (slot != NONE) {
+                // a free slot must read all zero
+                zeroActive(cellIdx);
+                if (numFree == freeSlots.length) {
+                    freeSlots = Arrays.copyOf(freeSlots, 2 * numFree);
+                }
+                freeSlots[numFree++] = slot;
+                slots[cellIdx] = NONE;
+            }
+        }
+        clearActive(cellIdx);
+    }
+
+    public void clearCell(int start, int end) {
+        clearCell(cellIndex(start, end));
+    }
+
+    public void clearCell(int start, int end, int split) {
+        clearCell(cellIndex(start, end, split));
+    }
+
+    /**
+     * As DenseChart, only the active states are zeroed
+     * and every cell keeps its slot.
+     */
+    public void clear() {
+        for (int cellIdx = 0; cellIdx < numCells; cellIdx++) {
+            if (slots[cellIdx] != NONE) {
+                zeroActive(cellIdx);
+            }
+        }
+        clearActive();
+    }
+}
@@ -0,0 +1,182 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Growable array of doubles outside the Java heap, in slabs of
+ * 2^SLAB_SHIFT doubles that are either direct ByteBuffers or pages of a
+ * memory mapped scratch file. New slabs read as zero.
+ *
+ * Direct buffers count against -XX:MaxDirectMemorySize, by default the
+ * maximum heap size, a mapped file only against disk and the page cache.
+ * A store is meant to be reset and reused, see OffHeapSpace, and closed
+ * once it is not: close frees the buffers or unmaps the pages and closes
+ * the scratch file right away rather than when the collector gets to
+ * them. The scratch file is deleted as soon as it is mapped (on exit
+ * where a mapped file cannot be deleted).
+ *
+ * Reads and writes of different indexes may run concurrently, growing
+ * is synchronized. A serialized copy, e.g. of a cached score, carries the
+ * values and is read back into new slabs.
+ */
+public class OffHeapDoubles implements Serializable {
+    private static final int SLAB_SHIFT = 20;
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final int SLAB_MASK = SLAB_SIZE - 1;
+
+    // directory of the scratch file, null for direct buffers
+    private final File scratchDir;
+    private transient FileChannel channel;
+
+    private transient volatile DoubleBuffer[] slabs = new DoubleBuffer[0];
+    // the direct or mapped buffers the slabs view, to free them
+    private transient ByteBuffer[] buffers = new ByteBuffer[0];
+    // largest size asked for since the last reset, what
+    // may have been written
+    private transient long used;
+
+    public OffHeapDoubles(File scratchDir) {
+        this.scratchDir = scratchDir;
+    }
+
+    public OffHeapDoubles(File scratchDir, long size) {
+        this(scratchDir);
+        ensureCapacity(size);
+    }
+
+    public long capacity() {
+        return (long) slabs.length << SLAB_SHIFT;
+    }
+
+    /**
+     * Grow to hold at least size doubles.
+     */
+    public synchronized void ensureCapacity(long size) {
+        used = Math.max(used, size);
+        int numSlabs = (int) ((size + SLAB_MASK) >>> SLAB_SHIFT);
+        if (numSlabs <= slabs.length) {
+            return;
+        }
+        DoubleBuffer[] grown = Arrays.copyOf(slabs, numSlabs);
+        buffers = Arrays.copyOf(buffers, numSlabs);
+        for (int slab = slabs.length; slab < numSlabs; slab++) {
+            buffers[slab] = allocateSlab(slab);
+            grown[slab] = buffers[slab].order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        slabs = grown;
+    }
+
+    private ByteBuffer allocateSlab(int slab) {
+        long bytes = (long) SLAB_SIZE * 8;
+        if (scratchDir == null) {
+            return ByteBuffer.allocateDirect((int) bytes);
+        }
+        try {
+            if (channel == null) {
+                File file = File.createTempFile("chart", ".scratch", scratchDir);
+                file.deleteOnExit();
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                file.delete();
+            }
+            // Mapping past the end extends the file with zeros
+            return channel.map(FileChannel.MapMode.READ_WRITE, slab * bytes, bytes);
+        } catch (IOException e) {
+            throw new RuntimeException("Can not map chart scratch file in " + scratchDir, e);
+        }
+    }
+
+    public double get(long idx) {
+        return slabs[(int) (idx >>> SLAB_SHIFT)].get((int) (idx & SLAB_MASK));
+    }
+
+    public void set(long idx, double value) {
+        slabs[(int) (idx >>> SLAB_SHIFT)].put((int) (idx & SLAB_MASK), value);
+    }
+
+    /**
+     * Zero [from, to).
+     */
+    public void clear(long from, long to) {
+        for (long idx = from; idx < to; idx++) {
+            set(idx, 0);
+        }
+    }
+
+    /**
+     * Zero what was written since the last reset, so the store
+     * reads as new and keeps its slabs for the next user.
+     */
+    public synchronized void reset() {
+        clear(0, Math.min(used, capacity()));
+        used = 0;
+    }
+
+    /**
+     * Free the slabs and close the scratch file. The store
+     * is empty afterwards and grows anew if it is used again.
+     */
+    public synchronized void close() {
+        for (ByteBuffer buffer : buffers) {
+            free(buffer);
+        }
+        slabs = new DoubleBuffer[0];
+        buffers = new ByteBuffer[0];
+        used = 0;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Can not close chart scratch file in " + scratchDir, e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Release a direct or mapped buffer now through its cleaner. Where
+     * the JDK does not let us reach it the collector frees it later.
+     */
+    private static void free(ByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // left to the collector
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        long capacity = capacity();
+        out.writeLong(capacity);
+        for (long idx = 0; idx < capacity; idx++) {
+            out.writeDouble(get(idx));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        slabs = new DoubleBuffer[0];
+        buffers = new ByteBuffer[0];
+        long capacity = in.readLong();
+        ensureCapacity(capacity);
+        for (long idx = 0; idx < capacity; idx++) {
+            set(idx, in.readDouble());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+
+/**
+ * Where the off heap stores of a score are allocated, direct
+ * buffers or a memory mapped scratch file per store.
+ *
+ * Stores handed back with release are reset and kept for the next
+ * sentence of the same thread, as the chart arenas are, so a long
+ * sentence does not map or allocate its stores anew. A thread keeps
+ * as many as a score takes, stores beyond that are closed.
+ */
+public class OffHeapSpace implements Serializable {
+    // compositionMatrix and iSplitSpanStateScore
+    private static final int STORES_PER_THREAD = 2;
+
+    // null for direct buffers
+    private final File scratchDir;
+
+    private final transient ThreadLocal<ArrayDeque<OffHeapDoubles>> pool =
+            new ThreadLocal<ArrayDeque<OffHeapDoubles>>() {
+                @Override
+                protected ArrayDeque<OffHeapDoubles> initialValue() {
+                    return new ArrayDeque<OffHeapDoubles>();
+                }
+            };
+
+    public OffHeapSpace(File scratchDir) {
+        this.scratchDir = scratchDir;
+    }
+
+    /**
+     * A store that reads all zero, reused if the calling thread has one.
+     */
+    public OffHeapDoubles allocate() {
+        OffHeapDoubles store = pool.get().poll();
+        return store != null ? store : new OffHeapDoubles(scratchDir);
+    }
+
+    /**
+     * Hand back a store nothing reads any more.
+     */
+    public void release(OffHeapDoubles store) {
+        ArrayDeque<OffHeapDoubles> stores = pool.get();
+        if (stores.size() < STORES_PER_THREAD) {
+            store.reset();
+            stores.push(store);
+        } else {
+            store.close();
+        }
+    }
+
+    /**
+     * Stores kept by the calling thread.
+     */
+    public int getNumPooled() {
+        return pool.get().size();
+    }
+
+    // The pool does not travel
+    private Object readResolve() {
+        return new OffHeapSpace(scratchDir);
+    }
+}
@@ -0,0 +1,53 @@
+package com.kushalarora.compositionalLM.chart;
+
+/**
+ * Semirings a ChartCore, and so a SemiringChart, can be run with.
+ */
+public class SemiringFactory {
+    public enum SemiringType {
+        SUM_PRODUCT("sum"),
+        MAX_PRODUCT("max"),
+        LOG_SUM_EXP("logsum");
+
+        private String text;
+
+        SemiringType(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return this.text;
+        }
+
+        public static SemiringType fromString(String text) {
+            if (text != null) {
+                for (SemiringType b : SemiringType.values()) {
+                    if (text.equalsIgnoreCase(b.text)) {
+                        return b;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final ISemiring SUM_PRODUCT = new SumProductSemiring();
+    private static final ISemiring MAX_PRODUCT = new MaxProductSemiring();
+    private static final ISemiring LOG_SUM_EXP = new LogSumExpSemiring();
+
+    /**
+     * Semirings are stateless, so one instance of each is shared.
+     */
+    public static ISemiring getSemiring(SemiringType semiringType) {
+        switch (semiringType) {
+            case SUM_PRODUCT:
+                return SUM_PRODUCT;
+            case MAX_PRODUCT:
+                return MAX_PRODUCT;
+            case LOG_SUM_EXP:
+                return LOG_SUM_EXP;
+            default:
+                throw new RuntimeException("Invalid Semiring Type: " + semiringType);
+        }
+    }
+}
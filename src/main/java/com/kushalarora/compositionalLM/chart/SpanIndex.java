@@ -0,0 +1,75 @@
+package com.kushalarora.compositionalLM.chart;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+
+/**
+ * Packed positions of the cells (start, end), 0 <= start < end <= length,
+ * and of their splits (start, end, split), start <= split < end, of a
+ * chart over length tokens. The split of a leaf cell (start, start + 1)
+ * is start.
+ *
+ * Cells are laid out row by row on start, so the length (length + 1) / 2
+ * of them take a triangle rather than the length x (length + 1) square
+ * of a [start][end] array. The splits of a cell are contiguous and
+ * follow the cell order, a tetrahedron of length (length + 1) (length + 2) / 6
+ * entries rather than a length^3 cube.
+ *
+ * A diagonal index only has room for the splits of one cell per start,
+ * length^2 entries, which is all an inside only pass needs: the cells
+ * of a diagonal all start apart and a cell's splits are dropped once the
+ * cell is done. A cell reusing the splits of its start must clear them.
+ */
+public class SpanIndex implements Serializable {
+    @Getter
+    private final int length;
+    @Getter
+    private final boolean diagonal;
+    @Getter
+    private final int numCells;
+    @Getter
+    private final int numSplits;
+
+    // packed position of cell (start, start + 1)
+    private final int[] rowOffset;
+    // packed position of split (start, end, start)
+    private final int[] splitOffset;
+
+    public SpanIndex(int length, boolean diagonal) {
+        this.length = length;
+        this.diagonal = diagonal;
+
+        rowOffset = new int[length + 1];
+        for (int start = 0; start < length; start++) {
+            rowOffset[start + 1] = rowOffset[start] + length - start;
+        }
+        numCells = rowOffset[length];
+
+        splitOffset = new int[numCells];
+        int splits = 0;
+        for (int start = 0; start < length; start++) {
+            for (int end = start + 1; end <= length; end++) {
+                if (diagonal) {
+                    splitOffset[cell(start, end)] = start * length;
+                } else {
+                    splitOffset[cell(start, end)] = splits;
+                    splits += end - start;
+                }
+            }
+        }
+        numSplits = diagonal ? length * length : splits;
+    }
+
+    public SpanIndex(int length) {
+        this(length, false);
+    }
+
+    public int cell(int start, int end) {
+        return rowOffset[start] + end - start - 1;
+    }
+
+    public int split(int start, int end, int split) {
+        return splitOffset[cell(start, end)] + split - start;
+    }
+}
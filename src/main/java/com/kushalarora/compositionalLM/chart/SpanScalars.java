@@ -0,0 +1,76 @@
+package com.kushalarora.compositionalLM.chart;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A double per cell (start, end) or per split (start, end, split) of
+ * a chart, packed into one array by a SpanIndex. A cell store is read
+ * and written with (start, end), a split store with (start, end, split).
+ */
+public class SpanScalars implements Serializable {
+    @Getter
+    private final SpanIndex index;
+    @Getter
+    private final boolean splits;
+    private final double[] values;
+
+    public SpanScalars(SpanIndex index, boolean splits) {
+        this.index = index;
+        this.splits = splits;
+        values = new double[splits ? index.getNumSplits() : index.getNumCells()];
+    }
+
+    public double get(int start, int end) {
+        return values[index.cell(start, end)];
+    }
+
+    public void set(double value, int start, int end) {
+        values[index.cell(start, end)] = value;
+    }
+
+    public void add(double value, int start, int end) {
+        values[index.cell(start, end)] += value;
+    }
+
+    public double get(int start, int end, int split) {
+        return values[index.split(start, end, split)];
+    }
+
+    public void set(double value, int start, int end, int split) {
+        values[index.split(start, end, split)] = value;
+    }
+
+    public void add(double value, int start, int end, int split) {
+        values[index.split(start, end, split)] += value;
+    }
+
+    /**
+     * Multiply every split of cell (start, end) by factor.
+     */
+    public void scaleCell(double factor, int start, int end) {
+        int from = index.split(start, end, start);
+        for (int idx = from; idx < from + end - start; idx++) {
+            values[idx] *= factor;
+        }
+    }
+
+    /**
+     * Zero every split of cell (start, end) of a split
+     * store, or the cell itself of a cell store.
+     */
+    public void clearCell(int start, int end) {
+        if (splits) {
+            int from = index.split(start, end, start);
+            Arrays.fill(values, from, from + end - start, 0);
+        } else {
+            values[index.cell(start, end)] = 0;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0);
+    }
+}
@@ -0,0 +1,233 @@
+package com.kushalarora.compositionalLM.chart;
+
+import lombok.Getter;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A dim wide vector per cell (start, end) or per split (start, end, split)
+ * of a chart, packed back to back into one array by a SpanIndex instead
+ * of an INDArray object per entry. Vectors start at zero. They are read
+ * out as fresh dim x 1 INDArrays and updated in place.
+ *
+ * A single precision store keeps floats, half the memory of doubles,
+ * an off heap one keeps doubles in an OffHeapDoubles. Either way a
+ * vector is read out in the precision nd4j is set to, so it can be
+ * multiplied with the model parameters.
+ */
+public class SpanVectors implements Serializable {
+    @Getter
+    private final SpanIndex index;
+    @Getter
+    private final int dim;
+    @Getter
+    private final boolean splits;
+    @Getter
+    private final boolean singlePrecision;
+    // one of the three is not null
+    private final double[] values;
+    private final float[] floatValues;
+    @Getter
+    private final OffHeapDoubles offHeapValues;
+
+    public SpanVectors(SpanIndex index, int dim, boolean splits, boolean singlePrecision) {
+        this.index = index;
+        this.dim = dim;
+        this.splits = splits;
+        this.singlePrecision = singlePrecision;
+        int size = (splits ? index.getNumSplits() : index.getNumCells()) * dim;
+        values = singlePrecision ? null : new double[size];
+        floatValues = singlePrecision ? new float[size] : null;
+        offHeapValues = null;
+    }
+
+    /**
+     * Store of doubles kept in offHeapValues, grown to fit.
+     */
+    public SpanVectors(SpanIndex index, int dim, boolean splits, OffHeapDoubles offHeapValues) {
+        this.index = index;
+        this.dim = dim;
+        this.splits = splits;
+        singlePrecision = false;
+        values = null;
+        floatValues = null;
+        this.offHeapValues = offHeapValues;
+        offHeapValues.ensureCapacity(
+                (long) (splits ? index.getNumSplits() : index.getNumCells()) * dim);
+    }
+
+    public SpanVectors(SpanIndex index, int dim, boolean splits) {
+        this(index, dim, splits, false);
+    }
+
+    private INDArray get(int offset) {
+        int[] shape = new int[]{dim, 1};
+        if (Nd4j.dtype == DataBuffer.FLOAT) {
+            float[] vector = new float[dim];
+            for (int i = 0; i < dim; i++) {
+                vector[i] = (float) value(offset + i);
+            }
+            return Nd4j.create(vector, shape);
+        }
+        if (values != null) {
+            return Nd4j.create(Arrays.copyOfRange(values, offset, offset + dim), shape);
+        }
+        double[] vector = new double[dim];
+        for (int i = 0; i < dim; i++) {
+            vector[i] = value(offset + i);
+        }
+        return Nd4j.create(vector, shape);
+    }
+
+    private double value(int idx) {
+        if (values != null) {
+            return values[idx];
+        }
+        return floatValues != null ? floatValues[idx] : offHeapValues.get(idx);
+    }
+
+    private void put(int idx, double value) {
+        if (values != null) {
+            values[idx] = value;
+        } else if (floatValues != null) {
+            floatValues[idx] = (float) value;
+        } else {
+            offHeapValues.set(idx, value);
+        }
+    }
+
+    private void set(int offset, INDArray vector) {
+        for (int i = 0; i < dim; i++) {
+            put(offset + i, vector.getDouble(i));
+        }
+    }
+
+    private void add(int offset, INDArray vector, double scale) {
+        for (int i = 0; i < dim; i++) {
+            put(offset + i, value(offset + i) + vector.getDouble(i) * scale);
+        }
+    }
+
+    private void get(int offset, double[] out) {
+        for (int i = 0; i < dim; i++) {
+            out[i] = value(offset + i);
+        }
+    }
+
+    private void set(int offset, double[] vector) {
+        for (int i = 0; i < dim; i++) {
+            put(offset + i, vector[i]);
+        }
+    }
+
+    private int offset(int start, int end) {
+        return index.cell(start, end) * dim;
+    }
+
+    private int offset(int start, int end, int split) {
+        return index.split(start, end, split) * dim;
+    }
+
+    public INDArray get(int start, int end) {
+        return get(offset(start, end));
+    }
+
+    public void set(INDArray vector, int start, int end) {
+        set(offset(start, end), vector);
+    }
+
+    public void add(INDArray vector, int start, int end) {
+        add(offset(start, end), vector, 1);
+    }
+
+    /**
+     * X(start, end) += scale * vector
+     */
+    public void addScaled(INDArray vector, double scale, int start, int end) {
+        add(offset(start, end), vector, scale);
+    }
+
+    /**
+     * Copy X(start, end) into out.
+     */
+    public void get(int start, int end, double[] out) {
+        get(offset(start, end), out);
+    }
+
+    public void set(double[] vector, int start, int end) {
+        set(offset(start, end), vector);
+    }
+
+    /**
+     * X(start, end) += scale * vector
+     */
+    public void addScaled(double[] vector, double scale, int start, int end) {
+        int offset = offset(start, end);
+        for (int i = 0; i < dim; i++) {
+            put(offset + i, value(offset + i) + vector[i] * scale);
+        }
+    }
+
+    /**
+     * X(start, end) /= divisor
+     */
+    public void divide(double divisor, int start, int end) {
+        int offset = offset(start, end);
+        for (int i = 0; i < dim; i++) {
+            put(offset + i, value(offset + i) / divisor);
+        }
+    }
+
+    public INDArray get(int start, int end, int split) {
+        return get(offset(start, end, split));
+    }
+
+    public void set(INDArray vector, int start, int end, int split) {
+        set(offset(start, end, split), vector);
+    }
+
+    /**
+     * Copy X(start, end, split) into out.
+     */
+    public void get(int start, int end, int split, double[] out) {
+        get(offset(start, end, split), out);
+    }
+
+    public void set(double[] vector, int start, int end, int split) {
+        set(offset(start, end, split), vector);
+    }
+
+    public void add(INDArray vector, int start, int end, int split) {
+        add(offset(start, end, split), vector, 1);
+    }
+
+    /**
+     * Zero every split of cell (start, end) of a split
+     * store, or the cell itself of a cell store.
+     */
+    public void clearCell(int start, int end) {
+        int from = splits ? offset(start, end, start) : offset(start, end);
+        int to = from + (splits ? end - start : 1) * dim;
+        if (values != null) {
+            Arrays.fill(values, from, to, 0);
+        } else if (floatValues != null) {
+            Arrays.fill(floatValues, from, to, 0);
+        } else {
+            offHeapValues.clear(from, to);
+        }
+    }
+
+    public void clear() {
+        if (values != null) {
+            Arrays.fill(values, 0);
+        } else if (floatValues != null) {
+            Arrays.fill(floatValues, 0);
+        } else {
+            offHeapValues.clear(0, offHeapValues.capacity());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.kushalarora.compositionalLM.chart;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chart keeping a map from state to score per cell, cells packed by a
+ * SpanIndex. Only non zero entries are stored, every lookup is a map
+ * lookup. The map of a cell is created on its first write.
+ */
+public class SparseChart extends AbstractChart {
+    private final Map<Integer, Double>[] cells;
+
+    /**
+     * @param numStates size of the state dimension
+     * @param length    number of tokens the chart spans
+     * @param splits    whether cells are (start, end, split)
+     *                  rather than (start, end)
+     */
+    @SuppressWarnings("unchecked")
+    public SparseChart(int numStates, int length, boolean splits) {
+        super(numStates, length, splits);
+        cells = new Map[numCells];
+    }
+
+    private Map<Integer, Double> getOrCreateCell(int cellIdx) {
+        Map<Integer, Double> cell = cells[cellIdx];
+        if (cell == null) {
+            synchronized (cells) {
+                cell = cells[cellIdx];
+                if (cell == null) {
+                    cell = new HashMap<Integer, Double>();
+                    cells[cellIdx] = cell;
+                }
+            }
+        }
+        return cell;
+    }
+
+    private double get(int cellIdx, int state) {
+        Map<Integer, Double> cell = cells[cellIdx];
+        if (cell == null) {
+            return 0;
+        }
+        Double value = cell.get(state);
+        return value == null ? 0 : value;
+    }
+
+    private void set(int cellIdx, int state, double value) {
+        if (value == 0) {
+            Map<Integer, Double> cell = cells[cellIdx];
+            if (cell != null) {
+                cell.remove(state);
+            }
+        } else {
+            getOrCreateCell(cellIdx).put(state, value);
+        }
+        updateActive(cellIdx, state, value);
+    }
+
+    public double getScore(int start, int end, int state) {
+        return get(cellIndex(start, end), state);
+    }
+
+    public double getScore(int start, int end, int split, int state) {
+        return get(cellIndex(start, end, split), state);
+    }
+
+    public void setScore(double value, int start, int end, int state) {
+        set(cellIndex(start, end), state, value);
+    }
+
+    public void setScore(double value, int start, int end, int split, int state) {
+        set(cellIndex(start, end, split), state, value);
+    }
+
+    public void addToScore(double value, int start, int end, int state) {
+        setScore(value + getScore(start, end, state), start, end, state);
+    }
+
+    public void addToScore(double value, int start, int end, int split, int state) {
+        setScore(value + getScore(start, end, split, state), start, end, split, state);
+    }
+
+    private void clearCell(int cellIdx) {
+        cells[cellIdx] = null;
+        clearActive(cellIdx);
+    }
+
+    public void clearCell(int start, int end) {
+        clearCell(cellIndex(start, end));
+    }
+
+    public void clearCell(int start, int end, int split) {
+        clearCell(cellIndex(start, end, split));
+    }
+
+    public void clear() {
+        for (int cellIdx = 0; cellIdx < numCells; cellIdx++) {
+            cells[cellIdx] = null;
+        }
+        clearActive();
+    }
+}
@@ -0,0 +1,39 @@
+package com.kushalarora.compositionalLM.chart;
+
+import static java.lang.Math.exp;
+import static java.lang.Math.log;
+
+/**
+ * (+, *) over probabilities, the semiring of the inside pass.
+ * Underflows on long sentences unless the cells are rescaled.
+ */
+public class SumProductSemiring implements ISemiring {
+
+    public double zero() {
+        return 0;
+    }
+
+    public double one() {
+        return 1;
+    }
+
+    public double plus(double a, double b) {
+        return a + b;
+    }
+
+    public double times(double a, double b) {
+        return a * b;
+    }
+
+    public double fromLog(double logWeight) {
+        return exp(logWeight);
+    }
+
+    public double toLog(double value) {
+        return log(value);
+    }
+
+    public boolean isSelective() {
+        return false;
+    }
+}
@@ -1,5 +1,9 @@
 package com.kushalarora.compositionalLM.derivatives;
 
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.model.Model;
 import com.kushalarora.compositionalLM.optimizer.IIndexed;
 import com.kushalarora.compositionalLM.optimizer.IIndexedSized;
 import lombok.extern.slf4j.Slf4j;
@@ -45,4 +49,37 @@ public abstract class AbstractBaseDerivativeClass<T extends IIndexedSized> imple
         }
         return arr;
     }
+
+    /**
+     * g'(u * p) of the phrase p of every leaf (start, start + 1, start)
+     * and of the composition p of every chart split, computed once per
+     * sentence rather than once per gradient entry.
+     */
+    protected static SpanScalars energyDerivatives(Model model,
+                                                   StanfordCompositionalInsideOutsideScore scorer,
+                                                   int length) {
+        SpanVectors phraseMatrix = scorer.getPhraseMatrix();
+        SpanVectors compositionMatrix = scorer.getCompositionMatrix();
+        boolean bounded = scorer.getMaxSpanWidth() > 0;
+        SpanScalars energyDerivatives = new SpanScalars(compositionMatrix.getIndex(), true);
+        double[] vector = new double[model.getDimensions()];
+
+        for (int start = 0; start < length; start++) {
+            phraseMatrix.get(start, start + 1, vector);
+            energyDerivatives.set(model.energyDerivative(vector), start, start + 1, start);
+        }
+        for (int diff = 2; diff <= length; diff++) {
+            for (int start = 0; start + diff <= length; start++) {
+                int end = start + diff;
+                for (int split = start + 1; split < end; split++) {
+                    if (bounded && !scorer.isChartSplit(start, end, split)) {
+                        continue;
+                    }
+                    compositionMatrix.get(start, end, split, vector);
+                    energyDerivatives.set(model.energyDerivative(vector), start, end, split);
+                }
+            }
+        }
+        return energyDerivatives;
+    }
 }
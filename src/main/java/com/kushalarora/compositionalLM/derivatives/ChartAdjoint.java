@@ -0,0 +1,130 @@
+package com.kushalarora.compositionalLM.derivatives;
+
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.ProjectionCache;
+import com.kushalarora.compositionalLM.model.VectorKernels;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Gradients of \sum{start}{end}{split} \mu(start, end, split) * E(start, end, split)
+ * wrt W, u and the embeddings of the words of a sentence, in one reverse pass
+ * over the chart instead of carrying dX/dW and dX/dX_w up every span.
+ * As in dXdW and dXdXw the inside weights and \mu are held constant.
+ *
+ * With a(start, end) = dQ/dX(start, end), spans taken widest first, and
+ * C = f(W_L X(start, split) + W_R X(split, end)) the composition of a split
+ * weighted by w = \pi(start, end, split)/\pi(start, end) into its phrase,
+ * every split of (start, end) contributes
+ *      a_C    = w * a(start, end) + \mu * g'(u.C) * u
+ *      \delta = a_C .* f'(W_L X(start, split) + W_R X(split, end))
+ *      dQdu  += \mu * g'(u.C) * C
+ *      dQdW  += \delta * [X(start, split); X(split, end)]^T
+ *      a(start, split) += W_L^T \delta,  a(split, end) += W_R^T \delta
+ * after which a leaf's embedding has a(start, start + 1) + \mu * g'(u.x_w) * u.
+ *
+ * That is O(n^3 d^2) time and one d vector per cell of memory.
+ * Nothing is divided by Z here, the derivative classes do that.
+ */
+public class ChartAdjoint {
+    @Getter
+    private final int dim;
+    // d x 2d, row major
+    @Getter
+    private final double[] dQdW;
+    @Getter
+    private final double[] dQdu;
+    // by leaf position, a word seen twice has two entries
+    @Getter
+    private final double[][] dQdX;
+
+    public ChartAdjoint(Model model, StanfordCompositionalInsideOutsideScore scorer) {
+        dim = model.getDimensions();
+        int length = scorer.getSize();
+        dQdW = new double[2 * dim * dim];
+        dQdu = new double[dim];
+        dQdX = new double[length][dim];
+
+        SpanVectors compositionMatrix = scorer.getCompositionMatrix();
+        SpanVectors phraseMatrix = scorer.getPhraseMatrix();
+        SpanScalars compositionalMu = scorer.getCompMuScores();
+        SpanScalars compositionalIScore = scorer.getCompIScores();
+        SpanScalars compositionalISplitScore = scorer.getCompISplitScore();
+        boolean bounded = scorer.getMaxSpanWidth() > 0;
+        SpanScalars energyDerivatives =
+                AbstractBaseDerivativeClass.energyDerivatives(model, scorer, length);
+        ProjectionCache projections = scorer.getProjectionCache(model);
+        SpanVectors adjoints = new SpanVectors(phraseMatrix.getIndex(), dim, false);
+
+        double[] adjoint = new double[dim];
+        double[] composition = new double[dim];
+        double[] derivative = new double[dim];
+        double[] delta = new double[dim];
+        double[] left = new double[dim];
+        double[] right = new double[dim];
+        double[] pulledBack = new double[dim];
+
+        for (int diff = length; diff >= 2; diff--) {
+            for (int start = 0; start + diff <= length; start++) {
+                int end = start + diff;
+                adjoints.get(start, end, adjoint);
+
+                // the grammar leaves X(start, end) undivided when \pi(start, end) is 0
+                double norm = compositionalIScore.get(start, end);
+                double scale = norm != 0 ? 1 / norm : 1;
+
+                for (int split = start + 1; split < end; split++) {
+                    if (bounded && !scorer.isChartSplit(start, end, split)) {
+                        continue;
+                    }
+                    double weight = compositionalISplitScore.get(start, end, split) * scale;
+                    double energyWeight = compositionalMu.get(start, end, split)
+                            * energyDerivatives.get(start, end, split);
+
+                    compositionMatrix.get(start, end, split, composition);
+                    VectorKernels.addScaled(composition, 0, energyWeight, dQdu, 0, dim);
+
+                    projections.composeDerivative(start, end, split, derivative);
+                    for (int i = 0; i < dim; i++) {
+                        delta[i] = weight * adjoint[i];
+                    }
+                    model.addScaledU(energyWeight, delta);
+                    for (int i = 0; i < dim; i++) {
+                        delta[i] *= derivative[i];
+                    }
+
+                    phraseMatrix.get(start, split, left);
+                    phraseMatrix.get(split, end, right);
+                    for (int row = 0; row < dim; row++) {
+                        VectorKernels.addScaled(left, 0, delta[row], dQdW, 2 * dim * row, dim);
+                        VectorKernels.addScaled(right, 0, delta[row], dQdW, 2 * dim * row + dim, dim);
+                    }
+
+                    Arrays.fill(pulledBack, 0);
+                    model.backProjectLeft(delta, pulledBack);
+                    adjoints.addScaled(pulledBack, 1, start, split);
+
+                    Arrays.fill(pulledBack, 0);
+                    model.backProjectRight(delta, pulledBack);
+                    adjoints.addScaled(pulledBack, 1, split, end);
+                }
+            }
+        }
+
+        for (int start = 0; start < length; start++) {
+            int end = start + 1;
+            double energyWeight = compositionalMu.get(start, end, start)
+                    * energyDerivatives.get(start, end, start);
+
+            phraseMatrix.get(start, end, left);
+            VectorKernels.addScaled(left, 0, energyWeight, dQdu, 0, dim);
+
+            adjoints.get(start, end, dQdX[start]);
+            model.addScaledU(energyWeight, dQdX[start]);
+        }
+    }
+}
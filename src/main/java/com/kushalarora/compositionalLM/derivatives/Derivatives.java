@@ -90,9 +90,16 @@ public class Derivatives extends AbstractDerivatives<Sentence> {
     calcDerivative() {
         int idx = data.getIndex();
         int sz = data.size();
-        dqdu.calcDerivative(model, score);
-        dqdw.calcDerivative(model, score);
-        dqdxw.calcDerivative(model, score);
+        if (op.trainOp.adjointGradients) {
+            ChartAdjoint adjoint = new ChartAdjoint(model, score);
+            dqdu.calcDerivative(adjoint, score);
+            dqdw.calcDerivative(adjoint, score);
+            dqdxw.calcDerivative(adjoint, score);
+        } else {
+            dqdu.calcDerivative(model, score);
+            dqdw.calcDerivative(model, score);
+            dqdxw.calcDerivative(model, score);
+        }
 
         if (op.debug) {
             log.info("dQdu Norm2:{}(len={}) = {}", idx, sz, dqdu.norm());
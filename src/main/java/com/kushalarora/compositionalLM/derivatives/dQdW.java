@@ -4,6 +4,7 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
+import com.kushalarora.compositionalLM.chart.SpanScalars;
 import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.optimizer.IIndexedSized;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -63,10 +64,10 @@ public class dQdW<T extends IIndexedSized> extends AbstractBaseDerivativeClass<T
     public void calcDerivative(final Model model, final StanfordCompositionalInsideOutsideScore scorer)
     {
         final INDArray[][][][][] dxdwArr = new dXdW(dim, data, op).calcDerivative(model, scorer);
-        final INDArray[][][] compositionMatrix = scorer.getCompositionMatrix();
-        final double[][][] compositionalMu = scorer.getCompMuScores();
-        final double[][] compositionalIScore = scorer.getCompIScores();
-        final INDArray[][] phraseMatrix = scorer.getPhraseMatrix();
+        final SpanScalars compositionalMu = scorer.getCompMuScores();
+        final SpanScalars compositionalIScore = scorer.getCompIScores();
+        final boolean bounded = scorer.getMaxSpanWidth() > 0;
+        final SpanScalars energyDerivatives = energyDerivatives(model, scorer, length);
 
         for (int i = 0; i < dim; i++)
         {
@@ -81,10 +82,10 @@ public class dQdW<T extends IIndexedSized> extends AbstractBaseDerivativeClass<T
                     for (int start = 0; start < length; start++) {
                         for (int end = start + 1; end <= length; end++) {
                             for (int split = start + 1; split < end; split++) {
-                                double dE = model.energyDerivative(
-                                        compositionMatrix[start][end][split],
-                                        phraseMatrix[start][split],
-                                        phraseMatrix[split][end]);
+                                if (bounded && !scorer.isChartSplit(start, end, split)) {
+                                    continue;
+                                }
+                                double dE = energyDerivatives.get(start, end, split);
 
                                 INDArray udXdWArr = model.getParams().getU().mmul(
                                         dxdwArr[iF][j][start][end][split]);
@@ -96,7 +97,7 @@ public class dQdW<T extends IIndexedSized> extends AbstractBaseDerivativeClass<T
                                 }
 
                                 double udXdW = udXdWArr.getDouble(0);
-                                dEdW_ij += dE * udXdW * compositionalMu[start][end][split];
+                                dEdW_ij += dE * udXdW * compositionalMu.get(start, end, split);
                             }
                         }
                     }
@@ -114,12 +115,30 @@ public class dQdW<T extends IIndexedSized> extends AbstractBaseDerivativeClass<T
                 }
             }
         }
+        normalize(compositionalIScore);
+    }
+
+    /**
+     * dQdW from the sums of a reverse pass over the chart of scorer.
+     */
+    public void calcDerivative(ChartAdjoint adjoint, StanfordCompositionalInsideOutsideScore scorer)
+    {
+        double[] dQdWSum = adjoint.getDQdW();
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j < 2 * dim; j++) {
+                dQdW.putScalar(new int[]{i, j}, dQdWSum[2 * dim * i + j]);
+            }
+        }
+        normalize(scorer.getCompIScores());
+    }
 
-        if (compositionalIScore[0][length] == 0) {
+    private void normalize(SpanScalars compositionalIScore)
+    {
+        if (compositionalIScore.get(0, length) == 0) {
             throw new RuntimeException("Z is zero for sentence " + data);
         }
 
-        dQdW = dQdW.div(compositionalIScore[0][length]);
+        dQdW = dQdW.div(compositionalIScore.get(0, length));
 
         if (containsNanOrInf()) {
             log.error("dQdW contains Nan Or Inf. for data {}::{}. Norm::{}", data.getIndex(), data.getSize(), norm());
@@ -1,11 +1,13 @@
 package com.kushalarora.compositionalLM.derivatives;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
+import com.kushalarora.compositionalLM.chart.SpanScalars;
 import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.optimizer.IIndexedSized;
 import org.apache.commons.math3.random.JDKRandomGenerator;
@@ -78,10 +80,10 @@ public class dQdXw<T extends IIndexedSized> extends AbstractBaseDerivativeClass<
         }
 
         final INDArray[][][][] dxdxwArr = new dXdXw(dim, V, data, op).calcDerivative(model, scorer);
-        final INDArray[][][] compositionMatrix = scorer.getCompositionMatrix();
-        final double[][][] compositionalMu = scorer.getCompMuScores();
-        final INDArray[][] phraseMatrix = scorer.getPhraseMatrix();
-        final double[][] compositionalIScore = scorer.getCompIScores();
+        final SpanScalars compositionalMu = scorer.getCompMuScores();
+        final SpanScalars compositionalIScore = scorer.getCompIScores();
+        final boolean bounded = scorer.getMaxSpanWidth() > 0;
+        final SpanScalars energyDerivatives = energyDerivatives(model, scorer, length);
 
 
         final INDArray dcdc = Nd4j.eye(dim);
@@ -91,8 +93,7 @@ public class dQdXw<T extends IIndexedSized> extends AbstractBaseDerivativeClass<
                 INDArray dQdXw_i = Nd4j.zeros(dim);
 
                 // handle leaf node
-                INDArray vector = phraseMatrix[i][i + 1];
-                double dE = model.energyDerivative(vector);
+                double dE = energyDerivatives.get(i, i + 1, i);
 
                 // diff wrt to self returns eye
                 INDArray udXdXwArr =
@@ -106,7 +107,7 @@ public class dQdXw<T extends IIndexedSized> extends AbstractBaseDerivativeClass<
                 }
 
                 dQdXw_i = dQdXw_i.add(udXdXwArr
-                        .mul(compositionalMu[i][i + 1][i]))
+                        .mul(compositionalMu.get(i, i + 1, i)))
                         .mul(dE);
 
                 // handle the composition case
@@ -114,8 +115,10 @@ public class dQdXw<T extends IIndexedSized> extends AbstractBaseDerivativeClass<
                     for (int start = 0; start + diff <= length; start++) {
                         int end = start + diff;
                         for (int split = start + 1; split < end; split++) {
-                            dE = model.energyDerivative(compositionMatrix[start][end][split],
-                                    phraseMatrix[start][split], phraseMatrix[split][end]);
+                            if (bounded && !scorer.isChartSplit(start, end, split)) {
+                                continue;
+                            }
+                            dE = energyDerivatives.get(start, end, split);
 
                             udXdXwArr =
                                     model
@@ -130,16 +133,16 @@ public class dQdXw<T extends IIndexedSized> extends AbstractBaseDerivativeClass<
                                 throw new RuntimeException("udXdXwArr was expected to be a matrix of shape dim X 1");
                             }
 
-                            dQdXw_i = dQdXw_i.add(udXdXwArr.mul(compositionalMu[start][end][split]).mul(dE));
+                            dQdXw_i = dQdXw_i.add(udXdXwArr.mul(compositionalMu.get(start, end, split)).mul(dE));
                         }
                     }
                 }
 
-                if (compositionalIScore[0][length] == 0) {
+                if (compositionalIScore.get(0, length) == 0) {
                     throw new RuntimeException("Z is zero for sentence " + data);
                 }
 
-                dQdXw_i = dQdXw_i.div(compositionalIScore[0][length]);
+                dQdXw_i = dQdXw_i.div(compositionalIScore.get(0, length));
                 if (containsNanOrInf(dQdXw_i)) {
                     log.error("dQdXw contains Nan Or Inf for index: {} data {}::{}. Norm::{}",
                             i, data.getIndex(), data.getSize(), Nd4j.norm2(dQdXw_i));
@@ -160,6 +163,41 @@ public class dQdXw<T extends IIndexedSized> extends AbstractBaseDerivativeClass<
         }
     }
 
+    /**
+     * dQdXw from the sums of a reverse pass over the chart of scorer,
+     * the occurrences of a word adding up to its derivative.
+     */
+    public void calcDerivative(ChartAdjoint adjoint, StanfordCompositionalInsideOutsideScore scorer) {
+        double[][] dQdX = adjoint.getDQdX();
+        Map<Integer, INDArray> sums = new LinkedHashMap<Integer, INDArray>();
+        for (int i = 0; i < length; i++) {
+            int index = data.get(i).getIndex();
+            INDArray dQdXw_i = sums.get(index);
+            if (dQdXw_i == null) {
+                dQdXw_i = Nd4j.zeros(dim);
+                sums.put(index, dQdXw_i);
+            }
+            for (int k = 0; k < dim; k++) {
+                dQdXw_i.putScalar(k, dQdXw_i.getDouble(k) + dQdX[i][k]);
+            }
+        }
+
+        double Z = scorer.getCompIScores().get(0, length);
+        if (Z == 0) {
+            throw new RuntimeException("Z is zero for sentence " + data);
+        }
+
+        for (Map.Entry<Integer, INDArray> entry : sums.entrySet()) {
+            INDArray dQdXw_i = entry.getValue().div(Z);
+            if (containsNanOrInf(dQdXw_i)) {
+                log.error("dQdXw contains Nan Or Inf for index: {} data {}::{}. Norm::{}",
+                        entry.getKey(), data.getIndex(), data.getSize(), Nd4j.norm2(dQdXw_i));
+                dQdXw_i = Nd4j.zeros(dim);
+            }
+            indexToxMap.put(entry.getKey(), clampDerivativeIfNeeded(dQdXw_i));
+        }
+    }
+
     public void clear() {
        indexToxMap.clear();
     }
@@ -1,6 +1,8 @@
 package com.kushalarora.compositionalLM.derivatives;
 
 import com.google.common.base.Function;
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
 import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.model.Model;
 import com.kushalarora.compositionalLM.optimizer.IIndexedSized;
@@ -88,12 +90,23 @@ public class dQdu<T extends IIndexedSized> extends AbstractBaseDerivativeClass<T
         return Nd4j.norm2(dQdu).sum(Integer.MAX_VALUE).getDouble(0);
     }
 
-    public void calcDerivative(final Model model, final StanfordCompositionalInsideOutsideScore scorer) {
-        final INDArray[][][] compositionMatrix = scorer.getCompositionMatrix();
-        final INDArray[][] phraseMatrix = scorer.getPhraseMatrix();
-        final double[][][] compositionMu = scorer.getCompMuScores();
-        final double[][] compositionalIScore = scorer.getCompIScores();
+    private static void addScaled(double[] sum, double[] vector, double dE, double mu) {
+        synchronized (sum) {
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] += vector[i] * dE * mu;
+            }
+        }
+    }
 
+    public void calcDerivative(final Model model, final StanfordCompositionalInsideOutsideScore scorer) {
+        final SpanVectors compositionMatrix = scorer.getCompositionMatrix();
+        final SpanVectors phraseMatrix = scorer.getPhraseMatrix();
+        final SpanScalars compositionMu = scorer.getCompMuScores();
+        final SpanScalars compositionalIScore = scorer.getCompIScores();
+        final boolean bounded = scorer.getMaxSpanWidth() > 0;
+        final SpanScalars energyDerivatives = energyDerivatives(model, scorer, length);
+        // dQdu * p(w), summed without INDArray temporaries
+        final double[] dQduSum = new double[dimensions];
 
         Function<Integer, Void> unaryFunc = new Function<Integer, Void>()
         {
@@ -102,19 +115,14 @@ public class dQdu<T extends IIndexedSized> extends AbstractBaseDerivativeClass<T
                 int split = start;
 
                 // For leaf nodes we consider the phrase
-                INDArray phraseVector = phraseMatrix[start][end];
+                double[] phraseVector = new double[dimensions];
+                phraseMatrix.get(start, end, phraseVector);
 
                 // dE = g'(u.t().dot(p))
-                double dE = model.energyDerivative(phraseVector);
-
-                // dEdu = dE * p = g'(u.t().dot(p)) * p
-                INDArray dEdu = phraseVector.mul(dE);
-                synchronized (dQdu) {
-                    // dQdu * p(w) += dEdu * \mu[start][end][split]
-                    dQdu = dQdu.add(
-                            dEdu.mul(
-                                    compositionMu[start][end][split]));
-                }
+                double dE = energyDerivatives.get(start, end, split);
+
+                // dQdu * p(w) += dE * p * \mu[start][end][split]
+                addScaled(dQduSum, phraseVector, dE, compositionMu.get(start, end, split));
                 return null;
             }
         };
@@ -138,22 +146,21 @@ public class dQdu<T extends IIndexedSized> extends AbstractBaseDerivativeClass<T
                 Function<Integer, Void> binaryFunc = new Function<Integer, Void>() {
                     @Nullable
                     public Void apply(final Integer split) {
+                        if (bounded && !scorer.isChartSplit(start, end, split)) {
+                            return null;
+                        }
 
                         // Composition vector is parent's(start, end) embedding generated by
                         // child1 (start, split) and child2 (split, end)
-                        INDArray compositionVector = compositionMatrix[start][end][split];
+                        double[] compositionVector = new double[dimensions];
+                        compositionMatrix.get(start, end, split, compositionVector);
 
                         // dE = g'(u.t().dot(p))
-                        double dE = model.energyDerivative(compositionVector);
-
-                        // dEdu = dE * p = g'(u.t().dot(p)) * p
-                        INDArray dEdu = compositionVector.mul(dE);
-                        synchronized (dQdu) {
-                            // dQdu * p(w) += dEdu * \mu[start][end][split]
-                            dQdu = dQdu.add(
-                                    dEdu.mul(
-                                            compositionMu[start][end][split]));
-                        }
+                        double dE = energyDerivatives.get(start, end, split);
+
+                        // dQdu * p(w) += dE * p * \mu[start][end][split]
+                        addScaled(dQduSum, compositionVector, dE,
+                                compositionMu.get(start, end, split));
                         return null;
                     }
                 };
@@ -167,12 +174,30 @@ public class dQdu<T extends IIndexedSized> extends AbstractBaseDerivativeClass<T
                 }
             }
         }
-        if (compositionalIScore[0][length] == 0) {
+        for (int i = 0; i < dimensions; i++) {
+            dQdu.putScalar(i, dQdu.getDouble(i) + dQduSum[i]);
+        }
+        normalize(compositionalIScore);
+    }
+
+    /**
+     * dQdu from the sums of a reverse pass over the chart of scorer.
+     */
+    public void calcDerivative(ChartAdjoint adjoint, StanfordCompositionalInsideOutsideScore scorer) {
+        double[] dQduSum = adjoint.getDQdu();
+        for (int i = 0; i < dimensions; i++) {
+            dQdu.putScalar(i, dQdu.getDouble(i) + dQduSum[i]);
+        }
+        normalize(scorer.getCompIScores());
+    }
+
+    private void normalize(SpanScalars compositionalIScore) {
+        if (compositionalIScore.get(0, length) == 0) {
             throw new RuntimeException("Z is zero for sentence " + data);
         }
 
         // dQdu = dQdu * p(w)/p(w)
-        dQdu = dQdu.div(compositionalIScore[0][length]);
+        dQdu = dQdu.div(compositionalIScore.get(0, length));
 
         if (containsNanOrInf()) {
             log.error("dQdu contains Nan Or Inf. data {}::{}. Norm::{}",
@@ -1,9 +1,12 @@
 package com.kushalarora.compositionalLM.derivatives;
 
 import com.google.common.base.Function;
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
 import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.model.CompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.ProjectionCache;
 import com.kushalarora.compositionalLM.optimizer.IIndexed;
 import com.kushalarora.compositionalLM.optimizer.IIndexedSized;
 import com.kushalarora.compositionalLM.options.Options;
@@ -54,9 +57,13 @@ public class dXdW<T extends IIndexedSized> {
     public INDArray[][][][][] calcDerivative(final Model model,
                                              final StanfordCompositionalInsideOutsideScore scorer) {
 
-        final INDArray[][] phraseMatrix = scorer.getPhraseMatrix();
-        final double[][][] compositionISplitScore = scorer.getCompISplitScore();
-        final double[][] compositionIScore = scorer.getCompIScores();
+        final SpanVectors phraseMatrix = scorer.getPhraseMatrix();
+        final SpanScalars compositionISplitScore = scorer.getCompISplitScore();
+        final SpanScalars compositionIScore = scorer.getCompIScores();
+        final ProjectionCache projections = scorer.getProjectionCache(model);
+        // Splits outside a bounded width chart were never composed,
+        // their entries are left null
+        final boolean bounded = scorer.getMaxSpanWidth() > 0;
 
 
         for (int i = 0; i < dim; i++) {
@@ -83,11 +90,14 @@ public class dXdW<T extends IIndexedSized> {
                                 int end = start + diff;
 
                                 for (int split = start + 1; split < end; split++) {
+                                    if (bounded && !scorer.isChartSplit(start, end, split)) {
+                                        continue;
+                                    }
 
                                     // Calculate f'(c_1, c_2)
-                                    INDArray child1 = phraseMatrix[start][split];
-                                    INDArray child2 = phraseMatrix[split][end];
-                                    INDArray dC = model.composeDerivative(child1, child2);
+                                    INDArray child1 = phraseMatrix.get(start, split);
+                                    INDArray child2 = phraseMatrix.get(split, end);
+                                    INDArray dC = projections.composeDerivative(start, end, split);
 
                                     // 1_j \dot c_12
                                     INDArray vec = Nd4j.zeros(dim, 1);
@@ -122,12 +132,12 @@ public class dXdW<T extends IIndexedSized> {
                                             dXdWij[start][end].add(
                                                     dXdW[iFinal][j][start][end][split].mul(
                                                             // \pi[start][end][split]
-                                                            compositionISplitScore[start][end][split]));
+                                                            compositionISplitScore.get(start, end, split)));
                                 }
-                                if (compositionIScore[start][end] != 0){
+                                if (compositionIScore.get(start, end) != 0){
                                     // dXdW_ij /= \pi(start,end)
                                     dXdWij[start][end] = dXdWij[start][end].div(
-                                            compositionIScore[start][end]);
+                                            compositionIScore.get(start, end));
                                 }
                             }
                         }
@@ -4,6 +4,8 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
 import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.optimizer.IIndexedSized;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -12,6 +14,7 @@ import org.nd4j.linalg.factory.Nd4j;
 import com.google.common.base.Function;
 import com.kushalarora.compositionalLM.model.CompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.ProjectionCache;
 import com.kushalarora.compositionalLM.optimizer.IIndexed;
 import com.kushalarora.compositionalLM.options.Options;
 import com.kushalarora.compositionalLM.utils.Parallelizer;
@@ -59,9 +62,11 @@ public class dXdXw<T extends IIndexedSized> {
     public INDArray[][][][] calcDerivative(final Model model,
                                            final StanfordCompositionalInsideOutsideScore scorer) {
 
-        final INDArray[][] phraseMatrix = scorer.getPhraseMatrix();
-        final double[][][] compositionISplitScore = scorer.getCompISplitScore();
-        final double[][] compositionIScore = scorer.getCompIScores();
+        final SpanVectors phraseMatrix = scorer.getPhraseMatrix();
+        final SpanScalars compositionISplitScore = scorer.getCompISplitScore();
+        final SpanScalars compositionIScore = scorer.getCompIScores();
+        final ProjectionCache projections = scorer.getProjectionCache(model);
+        final boolean bounded = scorer.getMaxSpanWidth() > 0;
 
         Function<Integer, Void> func = new Function<Integer, Void>() {
             @Nullable
@@ -83,11 +88,14 @@ public class dXdXw<T extends IIndexedSized> {
                     for (int start = 0; start + diff <= length; start++) {
                         int end = start + diff;
                         for (int split = start + 1; split < end; split++) {
+                            if (bounded && !scorer.isChartSplit(start, end, split)) {
+                                continue;
+                            }
 
                             // Calculate f'(c_1, c_2)
-                            INDArray child1 = phraseMatrix[start][split];
-                            INDArray child2 = phraseMatrix[split][end];
-                            INDArray dC = model.composeDerivative(child1, child2);
+                            INDArray child1 = phraseMatrix.get(start, split);
+                            INDArray child2 = phraseMatrix.get(split, end);
+                            INDArray dC = projections.composeDerivative(start, end, split);
                             dC = dC.broadcast(new int[] {dim, dim});
 
                             // [dc_1dW_ij dc_2dW_ij].transpose()
@@ -107,12 +115,12 @@ public class dXdXw<T extends IIndexedSized> {
                             dXdXwi[start][end] = dXdXwi[start][end].add(
                                     dXdXw[i][start][end][split].mul(
                                             // \pi[start][end][split]
-                                            compositionISplitScore[start][end][split]));
+                                            compositionISplitScore.get(start, end, split)));
                         }
-                        if (compositionIScore[start][end] != 0) {
+                        if (compositionIScore.get(start, end) != 0) {
                             // dXdXwi /= \pi[start][end]
                             dXdXwi[start][end] = dXdXwi[start][end].div(
-                                    compositionIScore[start][end]);
+                                    compositionIScore.get(start, end));
 
                         }
                     }
@@ -82,7 +82,10 @@ public class StanfordDocumentProcessor extends DocumentProcessorWrapper<Sentence
         }, new Predicate() {
             public boolean evaluate(Object o) {
                 Sentence sent = (Sentence) o;
-                return (sent.size() <= op.grammarOp.maxLength);
+                // With a bounded span width long sentences
+                // cost O(n K^2), so they are kept.
+                return (op.grammarOp.maxSpanWidth > 0 ||
+                        sent.size() <= op.grammarOp.maxLength);
             }
         });
     }
@@ -32,8 +32,19 @@ public abstract class AbstractInsideOutsideScore implements IInsideOutsideScore
     protected int numStates;
 
     public AbstractInsideOutsideScore(int length, int numStates) {
+        this(length, numStates, true);
+    }
+
+    /**
+     * @param allocate whether to allocate the SparseMatrix charts,
+     *                 subclasses keeping their own charts pass false.
+     */
+    protected AbstractInsideOutsideScore(int length, int numStates, boolean allocate) {
         this.length = length;
         this.numStates = numStates;
+        if (!allocate) {
+            return;
+        }
 
         // zero out some stuff first in case we recently
         // ran out of memory and are reallocating
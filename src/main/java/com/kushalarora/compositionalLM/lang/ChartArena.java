@@ -0,0 +1,115 @@
+package com.kushalarora.compositionalLM.lang;
+
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.chart.IChart;
+import com.kushalarora.compositionalLM.chart.SpanIndex;
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+
+import java.util.Arrays;
+
+/**
+ * Working storage of the chart passes, sized once for sentences of up
+ * to capacity tokens (boundary symbol included) and reset rather than
+ * reallocated between sentences. Only the charts a score drops in
+ * postProcess live here, the scores kept for the derivatives
+ * (compIScore, compISplitScore, compositionalMu, phraseMatrix, ...)
+ * are still owned by the score.
+ *
+ * An arena is lent to one score at a time and is not thread safe,
+ * the grammar keeps one per worker thread.
+ */
+public class ChartArena {
+    private final int capacity;
+
+    final IChart iScore;
+    final IChart oScore;
+    final IChart iSplitSpanStateScore;
+
+    final SpanScalars compositionEnergy;
+
+    final int[][] narrowRExtent;
+    final int[][] wideRExtent;
+    final int[][] narrowLExtent;
+    final int[][] wideLExtent;
+
+    // whether the state charts are of floats, a score
+    // of the other precision does not borrow them
+    private final boolean singlePrecision;
+
+    private boolean inUse;
+
+    public ChartArena(ChartFactory.ChartType chartType, int capacity, int numStates,
+                      boolean singlePrecision) {
+        this.capacity = capacity;
+        this.singlePrecision = singlePrecision;
+
+        iScore = ChartFactory.getSpanChart(chartType, capacity, numStates, singlePrecision);
+        oScore = ChartFactory.getSpanChart(chartType, capacity, numStates, singlePrecision);
+        iSplitSpanStateScore = ChartFactory.getSplitSpanChart(
+                chartType, capacity, numStates, singlePrecision);
+
+        // Laid out for capacity, a shorter sentence
+        // uses the cells it spans
+        compositionEnergy = new SpanScalars(new SpanIndex(capacity), true);
+
+        narrowRExtent = new int[capacity + 1][numStates];
+        wideRExtent = new int[capacity + 1][numStates];
+        narrowLExtent = new int[capacity + 1][numStates];
+        wideLExtent = new int[capacity + 1][numStates];
+    }
+
+    public ChartArena(ChartFactory.ChartType chartType, int capacity, int numStates) {
+        this(chartType, capacity, numStates, false);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    public boolean isInUse() {
+        return inUse;
+    }
+
+    /**
+     * Reset the arena for a sentence of the given length and mark it
+     * in use. Returns false, leaving the arena untouched, if it is
+     * already lent out or too small, in which case the caller
+     * allocates its own charts.
+     */
+    public boolean acquire(int length) {
+        if (inUse || length > capacity) {
+            return false;
+        }
+
+        iScore.clear();
+        oScore.clear();
+        iSplitSpanStateScore.clear();
+
+        for (int start = 0; start < length; start++) {
+            for (int end = start + 1; end <= length; end++) {
+                compositionEnergy.clearCell(start, end);
+            }
+        }
+
+        // Extents of the sentence are relative to its own length.
+        for (int loc = 0; loc <= length; loc++) {
+            Arrays.fill(narrowRExtent[loc], length + 1);
+            Arrays.fill(wideRExtent[loc], -1);
+            Arrays.fill(narrowLExtent[loc], -1);
+            Arrays.fill(wideLExtent[loc], length + 1);
+        }
+        inUse = true;
+        return true;
+    }
+
+    /**
+     * Give the arena back once the score no longer refers to it.
+     */
+    public void release() {
+        inUse = false;
+    }
+}
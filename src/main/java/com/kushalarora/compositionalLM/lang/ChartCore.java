@@ -0,0 +1,251 @@
+package com.kushalarora.compositionalLM.lang;
+
+import com.kushalarora.compositionalLM.chart.ISemiring;
+
+import java.io.Serializable;
+
+/**
+ * Rule loops of every chart over the compiled grammar, with scores
+ * combined by a semiring. The inside, outside and mu passes of both
+ * grammars run on the sum-product core and the semiring chart runs on
+ * whichever core it is given, so the passes only decide which cells,
+ * splits and states to visit and where the results go; how a rule
+ * combines scores is written once, here.
+ *
+ * Each loop takes the state it is keyed by and hands every combined
+ * score to a Sink, along with the index of the rule in the table the
+ * loop walks, so callers can still split the states across workers and
+ * keep backpointers. A Cell returns semiring zero for the states it
+ * does not hold, and is where a pass puts checks like the extents that
+ * rule a child out without reading its chart.
+ */
+public class ChartCore implements Serializable {
+
+    /**
+     * Scores of the states of one chart cell.
+     */
+    public interface Cell {
+        double get(int state);
+    }
+
+    /**
+     * Receiver of the scores a loop combines.
+     */
+    public interface Sink {
+        void add(int state, double value, int rule);
+    }
+
+    private final CompiledGrammar cg;
+    private final ISemiring semiring;
+    private final double zero;
+
+    // rule weights in the semiring, in the order of the table
+    private final double[] byLeft;
+    private final double[] byRight;
+    private final double[] byParent;
+    private final double[] unaryByChild;
+    private final double[] unaryByParent;
+
+    ChartCore(CompiledGrammar cg, ISemiring semiring) {
+        this.cg = cg;
+        this.semiring = semiring;
+        zero = semiring.zero();
+        byLeft = weights(cg.binaryByLeft.score);
+        byRight = weights(cg.binaryByRight.score);
+        byParent = weights(cg.binaryByParent.score);
+        unaryByChild = weights(cg.unaryByChild.score);
+        unaryByParent = weights(cg.unaryByParent.score);
+    }
+
+    private double[] weights(double[] scores) {
+        double[] weights = new double[scores.length];
+        for (int r = 0; r < scores.length; r++) {
+            weights[r] = semiring.fromLog(scores[r]);
+        }
+        return weights;
+    }
+
+    public ISemiring getSemiring() {
+        return semiring;
+    }
+
+    /**
+     * Inside scores of the parents of the binary rules with left child
+     * leftState, of inside score leftScore, and right child in right,
+     * every one times weight, the weight of the split. Rules are those
+     * of binaryByLeft.
+     */
+    public void insideBinary(int leftState, double leftScore, Cell right,
+                             double weight, Sink sink) {
+        final CompiledGrammar.BinaryTable rules = cg.binaryByLeft;
+        for (int r = rules.offsets[leftState]; r < rules.offsets[leftState + 1]; r++) {
+            double rightScore = right.get(rules.rightChild[r]);
+            if (rightScore == zero) {
+                continue;
+            }
+            sink.add(rules.parent[r],
+                    semiring.times(semiring.times(semiring.times(
+                            weight, byLeft[r]), leftScore), rightScore), r);
+        }
+    }
+
+    /**
+     * Inside scores of the parents of the closed unary rules over state,
+     * of inside score score, times the rule weights if weighted. Rules
+     * are those of unaryByChild.
+     */
+    public void insideUnary(int state, double score, boolean weighted, Sink sink) {
+        final CompiledGrammar.UnaryTable rules = cg.unaryByChild;
+        for (int r = rules.offsets[state]; r < rules.offsets[state + 1]; r++) {
+            sink.add(rules.parent[r],
+                    weighted ? semiring.times(score, unaryByChild[r]) : score, r);
+        }
+    }
+
+    /**
+     * Outside scores of the children of the closed unary rules of
+     * parentState, of outside score outside. Rules are those of
+     * unaryByParent.
+     */
+    public void outsideUnary(int parentState, double outside, Sink sink) {
+        final CompiledGrammar.UnaryTable rules = cg.unaryByParent;
+        for (int r = rules.offsets[parentState]; r < rules.offsets[parentState + 1]; r++) {
+            sink.add(rules.child[r], semiring.times(outside, unaryByParent[r]), r);
+        }
+    }
+
+    /**
+     * Outside score of leftState as the left child of the parents in
+     * parents next to the right children in right, every term times
+     * weight. Rules are those of binaryByLeft.
+     */
+    public void outsideToLeft(int leftState, Cell parents, Cell right,
+                              double weight, Sink sink) {
+        final CompiledGrammar.BinaryTable rules = cg.binaryByLeft;
+        for (int r = rules.offsets[leftState]; r < rules.offsets[leftState + 1]; r++) {
+            double outside = parents.get(rules.parent[r]);
+            if (outside == zero) {
+                continue;
+            }
+            double rightScore = right.get(rules.rightChild[r]);
+            if (rightScore == zero) {
+                continue;
+            }
+            sink.add(leftState,
+                    semiring.times(semiring.times(semiring.times(
+                            weight, byLeft[r]), rightScore), outside), r);
+        }
+    }
+
+    /**
+     * Outside score of rightState as the right child of the parents in
+     * parents next to the left children in left, every term times
+     * weight. Rules are those of binaryByRight.
+     */
+    public void outsideToRight(int rightState, Cell parents, Cell left,
+                               double weight, Sink sink) {
+        final CompiledGrammar.BinaryTable rules = cg.binaryByRight;
+        for (int r = rules.offsets[rightState]; r < rules.offsets[rightState + 1]; r++) {
+            double outside = parents.get(rules.parent[r]);
+            if (outside == zero) {
+                continue;
+            }
+            double leftScore = left.get(rules.leftChild[r]);
+            if (leftScore == zero) {
+                continue;
+            }
+            sink.add(rightState,
+                    semiring.times(semiring.times(semiring.times(
+                            weight, byRight[r]), leftScore), outside), r);
+        }
+    }
+
+    /**
+     * Outside scores of both children of the binary rules of
+     * parentState, of outside score outside, the left children given
+     * to leftSink and the right ones to rightSink, every term times
+     * weight. Rules are those of binaryByParent.
+     */
+    public void outsideBinary(int parentState, double outside, Cell left, Cell right,
+                              double weight, Sink leftSink, Sink rightSink) {
+        final CompiledGrammar.BinaryTable rules = cg.binaryByParent;
+        for (int r = rules.offsets[parentState]; r < rules.offsets[parentState + 1]; r++) {
+            double ruleWeight = semiring.times(weight, byParent[r]);
+            double rightScore = right.get(rules.rightChild[r]);
+            if (rightScore != zero) {
+                leftSink.add(rules.leftChild[r],
+                        semiring.times(semiring.times(ruleWeight, rightScore), outside), r);
+            }
+            double leftScore = left.get(rules.leftChild[r]);
+            if (leftScore != zero) {
+                rightSink.add(rules.rightChild[r],
+                        semiring.times(semiring.times(ruleWeight, leftScore), outside), r);
+            }
+        }
+    }
+
+    /**
+     * Splits of span (start, end) at which leftState can be the left
+     * child of one of its binary rules, bounded by the extents as in
+     * Stanford's ExhaustivePCFGParser: it must be able to end at the
+     * split and the rule's right child to start there. narrowR and
+     * wideR are the right extents at start, narrowL and wideL the left
+     * extents at end. Sets minSplit[leftState] and maxSplit[leftState],
+     * the former the larger if there is no such split.
+     */
+    public void leftSplitRange(int leftState, int end,
+                               int[] narrowR, int[] wideR, int[] narrowL, int[] wideL,
+                               int[] minSplit, int[] maxSplit) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        int narrowSplit = narrowR[leftState];
+        if (narrowSplit < end) {
+            final CompiledGrammar.BinaryTable rules = cg.binaryByLeft;
+            for (int r = rules.offsets[leftState]; r < rules.offsets[leftState + 1]; r++) {
+                int rightState = rules.rightChild[r];
+                int lo = Math.max(narrowSplit, wideL[rightState]);
+                int hi = Math.min(wideR[leftState], narrowL[rightState]);
+                if (lo <= hi) {
+                    min = Math.min(min, lo);
+                    max = Math.max(max, hi);
+                }
+            }
+        }
+        minSplit[leftState] = min;
+        maxSplit[leftState] = max;
+    }
+
+    /**
+     * Splits of span (start, end) at which rightState can be the right
+     * child of one of its binary rules, the mirror of leftSplitRange.
+     */
+    public void rightSplitRange(int rightState, int start,
+                                int[] narrowR, int[] wideR, int[] narrowL, int[] wideL,
+                                int[] minSplit, int[] maxSplit) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        int narrowSplit = narrowL[rightState];
+        if (narrowSplit > start) {
+            final CompiledGrammar.BinaryTable rules = cg.binaryByRight;
+            for (int r = rules.offsets[rightState]; r < rules.offsets[rightState + 1]; r++) {
+                int leftState = rules.leftChild[r];
+                int lo = Math.max(narrowR[leftState], wideL[rightState]);
+                int hi = Math.min(wideR[leftState], narrowSplit);
+                if (lo <= hi) {
+                    min = Math.min(min, lo);
+                    max = Math.max(max, hi);
+                }
+            }
+        }
+        minSplit[rightState] = min;
+        maxSplit[rightState] = max;
+    }
+
+    /**
+     * Mu score of a state, or of a state with a given split or parent,
+     * from its inside and outside scores.
+     */
+    public double mu(double inside, double outside) {
+        return semiring.times(inside, outside);
+    }
+}
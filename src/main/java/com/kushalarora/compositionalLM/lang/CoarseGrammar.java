@@ -0,0 +1,302 @@
+package com.kushalarora.compositionalLM.lang;
+
+import com.kushalarora.compositionalLM.chart.ISemiring;
+import com.kushalarora.compositionalLM.chart.SemiringFactory;
+import edu.stanford.nlp.trees.TreebankLanguagePack;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.Math.log;
+
+/**
+ * The compiled grammar projected onto base categories, every split and
+ * annotated state (NP^S-B, @NP^VP| ...) collapsed to its basic category
+ * (NP, @NP). A coarse rule a -> b c weighs
+ * max over A in a of the sum over B in b, C in c of P(A -> B C),
+ * so a coarse inside score bounds the inside scores of the fine states
+ * it covers. Unary rules are projected the same way.
+ *
+ * A log space inside outside pass over the coarse grammar gives the
+ * posterior of each coarse state in each cell, and the fine states whose
+ * coarse state falls below a posterior threshold are pruned from the
+ * full compositional pass.
+ */
+public class CoarseGrammar implements Serializable {
+    private final ISemiring semiring =
+            SemiringFactory.getSemiring(SemiringFactory.SemiringType.LOG_SUM_EXP);
+
+    private final int numCoarseStates;
+
+    // fine state -> coarse state
+    private final int[] coarseOf;
+    // coarse state -> fine states
+    private final BitSet[] fineOf;
+
+    // Coarse rules as parallel arrays, scores are log weights.
+    // The binary rules of left child b sit at positions
+    // binaryOffsets[b] until binaryOffsets[b + 1].
+    private final int[] binaryOffsets;
+    private final int[] binaryParent;
+    private final int[] binaryRight;
+    private final double[] binaryScore;
+    private final int[] unaryParent;
+    private final int[] unaryChild;
+    private final double[] unaryScore;
+
+    public CoarseGrammar(CompiledGrammar cg, Index<String> stateIndex,
+                         TreebankLanguagePack tlp) {
+        int numStates = cg.numStates;
+        Index<String> coarseIndex = new HashIndex<String>();
+        coarseOf = new int[numStates];
+        for (int state = 0; state < numStates; state++) {
+            coarseOf[state] = coarseIndex.addToIndex(
+                    tlp.basicCategory(stateIndex.get(state)));
+        }
+        numCoarseStates = coarseIndex.size();
+        fineOf = new BitSet[numCoarseStates];
+        for (int coarse = 0; coarse < numCoarseStates; coarse++) {
+            fineOf[coarse] = new BitSet(numStates);
+        }
+        for (int state = 0; state < numStates; state++) {
+            fineOf[coarseOf[state]].set(state);
+        }
+
+        // Sum the rules of each fine parent by coarse children,
+        // then keep the largest sum among the fine parents.
+        final long nc = numCoarseStates;
+        Map<Long, Double> binaries = new HashMap<Long, Double>();
+        CompiledGrammar.BinaryTable byParent = cg.binaryByParent;
+        for (int parent = 0; parent < numStates; parent++) {
+            Map<Long, Double> sums = new HashMap<Long, Double>();
+            for (int r = byParent.offsets[parent]; r < byParent.offsets[parent + 1]; r++) {
+                long key = coarseOf[byParent.leftChild[r]] * nc + coarseOf[byParent.rightChild[r]];
+                Double sum = sums.get(key);
+                sums.put(key, (sum == null ? 0 : sum) + byParent.prob[r]);
+            }
+            for (Map.Entry<Long, Double> entry : sums.entrySet()) {
+                long key = coarseOf[parent] * nc * nc + entry.getKey();
+                Double max = binaries.get(key);
+                if (max == null || entry.getValue() > max) {
+                    binaries.put(key, entry.getValue());
+                }
+            }
+        }
+
+        binaryOffsets = new int[numCoarseStates + 1];
+        binaryParent = new int[binaries.size()];
+        binaryRight = new int[binaries.size()];
+        binaryScore = new double[binaries.size()];
+        for (long key : binaries.keySet()) {
+            binaryOffsets[(int) (key / nc % nc) + 1]++;
+        }
+        for (int coarse = 0; coarse < numCoarseStates; coarse++) {
+            binaryOffsets[coarse + 1] += binaryOffsets[coarse];
+        }
+        int[] next = Arrays.copyOf(binaryOffsets, numCoarseStates);
+        for (Map.Entry<Long, Double> entry : binaries.entrySet()) {
+            long key = entry.getKey();
+            int idx = next[(int) (key / nc % nc)]++;
+            binaryParent[idx] = (int) (key / (nc * nc));
+            binaryRight[idx] = (int) (key % nc);
+            binaryScore[idx] = log(entry.getValue());
+        }
+
+        Map<Long, Double> unaries = new HashMap<Long, Double>();
+        CompiledGrammar.UnaryTable unaryByParent = cg.unaryByParent;
+        for (int parent = 0; parent < numStates; parent++) {
+            Map<Integer, Double> sums = new HashMap<Integer, Double>();
+            for (int r = unaryByParent.offsets[parent]; r < unaryByParent.offsets[parent + 1]; r++) {
+                int key = coarseOf[unaryByParent.child[r]];
+                Double sum = sums.get(key);
+                sums.put(key, (sum == null ? 0 : sum) + unaryByParent.prob[r]);
+            }
+            for (Map.Entry<Integer, Double> entry : sums.entrySet()) {
+                long key = coarseOf[parent] * nc + entry.getKey();
+                Double max = unaries.get(key);
+                if (max == null || entry.getValue() > max) {
+                    unaries.put(key, entry.getValue());
+                }
+            }
+        }
+
+        unaryParent = new int[unaries.size()];
+        unaryChild = new int[unaries.size()];
+        unaryScore = new double[unaries.size()];
+        int idx = 0;
+        for (Map.Entry<Long, Double> entry : unaries.entrySet()) {
+            unaryParent[idx] = (int) (entry.getKey() / nc);
+            unaryChild[idx] = (int) (entry.getKey() % nc);
+            unaryScore[idx] = log(entry.getValue());
+            idx++;
+        }
+    }
+
+    public int getNumCoarseStates() {
+        return numCoarseStates;
+    }
+
+    public int getCoarseState(int state) {
+        return coarseOf[state];
+    }
+
+    /**
+     * Fine states allowed in each cell of a sentence of the given length,
+     * those whose coarse state has posterior at least threshold.
+     * leaves[start] holds the fine states of leaf cell (start, start + 1),
+     * which are not pruned. Cells are the ones the inside pass fills: all
+     * the spans short of the boundary symbol at length - 1, and
+     * (0, length). Returns null if the coarse grammar does not parse
+     * the sentence, in which case nothing should be pruned.
+     */
+    public BitSet[][] getAllowedStates(BitSet[] leaves, int goal, double threshold) {
+        final int length = leaves.length;
+        final double zero = semiring.zero();
+
+        // binary and unary layer of each cell, inside and outside
+        double[][][] iBinary = new double[length][length + 1][];
+        double[][][] iUnary = new double[length][length + 1][];
+        double[][][] oBinary = new double[length][length + 1][];
+        double[][][] oUnary = new double[length][length + 1][];
+
+        // Leaves already carry their fine unaries
+        for (int start = 0; start < length; start++) {
+            double[] leaf = newCell();
+            BitSet states = leaves[start];
+            for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+                leaf[coarseOf[state]] = semiring.one();
+            }
+            iBinary[start][start + 1] = leaf;
+            iUnary[start][start + 1] = leaf;
+        }
+
+        for (int diff = 2; diff <= length; diff++) {
+            for (int start = 0; start < ((diff == length) ? 1 : length - diff); start++) {
+                int end = start + diff;
+                double[] binary = newCell();
+                for (int split = start + 1; split < end; split++) {
+                    double[] left = iUnary[start][split];
+                    double[] right = iUnary[split][end];
+                    if (left == null || right == null) {
+                        continue;
+                    }
+                    for (int leftState = 0; leftState < numCoarseStates; leftState++) {
+                        double lS = left[leftState];
+                        if (lS == zero) {
+                            continue;
+                        }
+                        for (int r = binaryOffsets[leftState]; r < binaryOffsets[leftState + 1]; r++) {
+                            double rS = right[binaryRight[r]];
+                            if (rS == zero) {
+                                continue;
+                            }
+                            binary[binaryParent[r]] = semiring.plus(binary[binaryParent[r]],
+                                    semiring.times(semiring.times(binaryScore[r], lS), rS));
+                        }
+                    }
+                }
+
+                double[] unary = Arrays.copyOf(binary, numCoarseStates);
+                for (int r = 0; r < unaryParent.length; r++) {
+                    double cS = binary[unaryChild[r]];
+                    if (cS == zero) {
+                        continue;
+                    }
+                    unary[unaryParent[r]] = semiring.plus(unary[unaryParent[r]],
+                            semiring.times(unaryScore[r], cS));
+                }
+                iBinary[start][end] = binary;
+                iUnary[start][end] = unary;
+            }
+        }
+
+        final int goalCoarse = coarseOf[goal];
+        final double logZ = iUnary[0][length][goalCoarse];
+        if (logZ == zero) {
+            return null;
+        }
+
+        for (int start = 0; start < length; start++) {
+            for (int end = start + 1; end <= length; end++) {
+                if (iUnary[start][end] != null) {
+                    oUnary[start][end] = newCell();
+                }
+            }
+        }
+        oUnary[0][length][goalCoarse] = semiring.one();
+
+        BitSet[][] allowed = new BitSet[length][length + 1];
+        final double logThreshold = log(threshold);
+        for (int diff = length; diff >= 2; diff--) {
+            for (int start = 0; start + diff <= length; start++) {
+                int end = start + diff;
+                if (iUnary[start][end] == null) {
+                    continue;
+                }
+
+                double[] outside = oUnary[start][end];
+                double[] binary = Arrays.copyOf(outside, numCoarseStates);
+                for (int r = 0; r < unaryParent.length; r++) {
+                    double pS = outside[unaryParent[r]];
+                    if (pS == zero) {
+                        continue;
+                    }
+                    binary[unaryChild[r]] = semiring.plus(binary[unaryChild[r]],
+                            semiring.times(unaryScore[r], pS));
+                }
+                oBinary[start][end] = binary;
+
+                for (int split = start + 1; split < end; split++) {
+                    double[] left = iUnary[start][split];
+                    double[] right = iUnary[split][end];
+                    if (left == null || right == null) {
+                        continue;
+                    }
+                    double[] oLeft = oUnary[start][split];
+                    double[] oRight = oUnary[split][end];
+                    for (int leftState = 0; leftState < numCoarseStates; leftState++) {
+                        double lS = left[leftState];
+                        if (lS == zero) {
+                            continue;
+                        }
+                        for (int r = binaryOffsets[leftState]; r < binaryOffsets[leftState + 1]; r++) {
+                            double pS = binary[binaryParent[r]];
+                            double rS = right[binaryRight[r]];
+                            if (pS == zero || rS == zero) {
+                                continue;
+                            }
+                            double rule = semiring.times(binaryScore[r], pS);
+                            oLeft[leftState] = semiring.plus(oLeft[leftState],
+                                    semiring.times(rule, rS));
+                            oRight[binaryRight[r]] = semiring.plus(oRight[binaryRight[r]],
+                                    semiring.times(rule, lS));
+                        }
+                    }
+                }
+
+                BitSet cell = new BitSet();
+                for (int coarse = 0; coarse < numCoarseStates; coarse++) {
+                    double posterior = Math.max(
+                            semiring.times(iUnary[start][end][coarse], outside[coarse]),
+                            semiring.times(iBinary[start][end][coarse], binary[coarse]));
+                    if (posterior - logZ >= logThreshold) {
+                        cell.or(fineOf[coarse]);
+                    }
+                }
+                allowed[start][end] = cell;
+            }
+        }
+        return allowed;
+    }
+
+    private double[] newCell() {
+        double[] cell = new double[numCoarseStates];
+        Arrays.fill(cell, semiring.zero());
+        return cell;
+    }
+}
@@ -0,0 +1,189 @@
+package com.kushalarora.compositionalLM.lang;
+
+import com.kushalarora.compositionalLM.chart.ISemiring;
+import edu.stanford.nlp.parser.lexparser.BinaryGrammar;
+import edu.stanford.nlp.parser.lexparser.BinaryRule;
+import edu.stanford.nlp.parser.lexparser.UnaryGrammar;
+import edu.stanford.nlp.parser.lexparser.UnaryRule;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.Math.exp;
+
+/**
+ * Flattened copy of the Stanford binary and closed unary rules.
+ *
+ * Every table is in CSR layout: the rules of key state s sit at
+ * positions offsets[s] until offsets[s + 1] of the parallel
+ * child/parent/score arrays. Each distinct binary rule appears exactly
+ * once in each of the left child, right child and parent tables, so the
+ * chart loops need not dedupe rules the way they did with
+ * splitRulesWithLC and splitRulesWithRC, which overlap.
+ * prob holds exp(score), computed once here instead of per chart cell,
+ * and the rule weights of any other semiring are likewise computed once,
+ * in the ChartCore of that semiring.
+ */
+public class CompiledGrammar implements Serializable {
+    public static class BinaryTable implements Serializable {
+        public final int[] offsets;
+        public final int[] parent;
+        public final int[] leftChild;
+        public final int[] rightChild;
+        public final double[] score;
+        public final double[] prob;
+
+        private BinaryTable(int numStates, List<BinaryRule> rules, Key key) {
+            int numRules = rules.size();
+            offsets = new int[numStates + 1];
+            parent = new int[numRules];
+            leftChild = new int[numRules];
+            rightChild = new int[numRules];
+            score = new double[numRules];
+            prob = new double[numRules];
+
+            for (BinaryRule rule : rules) {
+                offsets[key.of(rule) + 1]++;
+            }
+            for (int state = 0; state < numStates; state++) {
+                offsets[state + 1] += offsets[state];
+            }
+
+            // Stable counting sort by key.
+            int[] next = new int[numStates];
+            System.arraycopy(offsets, 0, next, 0, numStates);
+            for (BinaryRule rule : rules) {
+                int idx = next[key.of(rule)]++;
+                parent[idx] = rule.parent;
+                leftChild[idx] = rule.leftChild;
+                rightChild[idx] = rule.rightChild;
+                score[idx] = rule.score;
+                prob[idx] = exp(rule.score);
+            }
+        }
+
+        public int size() {
+            return parent.length;
+        }
+    }
+
+    public static class UnaryTable implements Serializable {
+        public final int[] offsets;
+        public final int[] parent;
+        public final int[] child;
+        public final double[] score;
+        public final double[] prob;
+
+        private UnaryTable(int numStates, List<UnaryRule> rules, boolean byParent) {
+            int numRules = rules.size();
+            offsets = new int[numStates + 1];
+            parent = new int[numRules];
+            child = new int[numRules];
+            score = new double[numRules];
+            prob = new double[numRules];
+
+            for (UnaryRule rule : rules) {
+                offsets[(byParent ? rule.parent : rule.child) + 1]++;
+            }
+            for (int state = 0; state < numStates; state++) {
+                offsets[state + 1] += offsets[state];
+            }
+
+            int[] next = new int[numStates];
+            System.arraycopy(offsets, 0, next, 0, numStates);
+            for (UnaryRule rule : rules) {
+                int idx = next[byParent ? rule.parent : rule.child]++;
+                parent[idx] = rule.parent;
+                child[idx] = rule.child;
+                score[idx] = rule.score;
+                prob[idx] = exp(rule.score);
+            }
+        }
+
+        public int size() {
+            return parent.length;
+        }
+    }
+
+    private enum Key {
+        LEFT, RIGHT, PARENT;
+
+        int of(BinaryRule rule) {
+            switch (this) {
+                case LEFT:
+                    return rule.leftChild;
+                case RIGHT:
+                    return rule.rightChild;
+                default:
+                    return rule.parent;
+            }
+        }
+    }
+
+    public final int numStates;
+
+    // binary rules keyed by left child, right child and parent
+    public final BinaryTable binaryByLeft;
+    public final BinaryTable binaryByRight;
+    public final BinaryTable binaryByParent;
+
+    // closed unary rules keyed by child and parent
+    public final UnaryTable unaryByChild;
+    public final UnaryTable unaryByParent;
+
+    // semiring -> chart core with the rule weights in it
+    private transient Map<ISemiring, ChartCore> chartCores;
+
+    public CompiledGrammar(BinaryGrammar bg, UnaryGrammar ug, int numStates) {
+        this.numStates = numStates;
+
+        // Dedupe on (parent, left, right) rather than on BinaryRule
+        // itself, whose hash code is cached and serialized with the grammar.
+        Set<Long> seen = new HashSet<Long>();
+        List<BinaryRule> binaryList = new ArrayList<BinaryRule>();
+        for (int state = 0; state < numStates; state++) {
+            for (BinaryRule[] rules : new BinaryRule[][]{
+                    bg.splitRulesWithLC(state), bg.splitRulesWithRC(state)}) {
+                for (BinaryRule rule : rules) {
+                    long key = ((long) rule.parent * numStates + rule.leftChild)
+                            * numStates + rule.rightChild;
+                    if (seen.add(key)) {
+                        binaryList.add(rule);
+                    }
+                }
+            }
+        }
+        binaryByLeft = new BinaryTable(numStates, binaryList, Key.LEFT);
+        binaryByRight = new BinaryTable(numStates, binaryList, Key.RIGHT);
+        binaryByParent = new BinaryTable(numStates, binaryList, Key.PARENT);
+
+        List<UnaryRule> unaryList = new ArrayList<UnaryRule>();
+        for (int state = 0; state < numStates; state++) {
+            for (UnaryRule rule : ug.closedRulesByChild(state)) {
+                unaryList.add(rule);
+            }
+        }
+        unaryByChild = new UnaryTable(numStates, unaryList, false);
+        unaryByParent = new UnaryTable(numStates, unaryList, true);
+    }
+
+    /**
+     * Chart core of semiring, its rule weights computed on first use.
+     */
+    public synchronized ChartCore getChartCore(ISemiring semiring) {
+        if (chartCores == null) {
+            chartCores = new HashMap<ISemiring, ChartCore>();
+        }
+        ChartCore core = chartCores.get(semiring);
+        if (core == null) {
+            core = new ChartCore(this, semiring);
+            chartCores.put(semiring, core);
+        }
+        return core;
+    }
+}
@@ -0,0 +1,268 @@
+package com.kushalarora.compositionalLM.lang;
+
+import lombok.Getter;
+
+/**
+ * Analytical estimate of the heap a sentence takes while it is scored
+ * or differentiated, in bytes, from its length, the dimensions, the
+ * number of grammar states and the vocabulary size. It follows the
+ * allocations of StanfordCompositionalInsideOutsideScore and of the
+ * derivatives rather than measuring them, so it can be checked before
+ * anything is allocated.
+ *
+ * State charts are counted as if every filled cell held all numStates
+ * states, which is what a dense chart allocates and bounds a sparse one,
+ * so the estimate errs on the large side.
+ *
+ * In single precision the phrase and composition vectors, the dense
+ * state charts and the nd4j arrays take 4 bytes a value, the scalar
+ * span stores stay double.
+ *
+ * Sentences of at least offHeapLength words keep their composition
+ * vectors and split level state chart off the heap, only the chart's
+ * slot numbers and active state sets are counted for them.
+ *
+ * Derivatives are counted for the gradient pass training runs, the
+ * reverse pass of ChartAdjoint or the forward dXdW and dXdXw tables.
+ */
+public class MemoryEstimator {
+    private static final long REF = 8;
+    private static final long DOUBLE = 8;
+    private static final long FLOAT = 4;
+    private static final long INT = 4;
+    private static final long ARRAY_HEADER = 16;
+    // INDArray, its data buffer and its shape and stride arrays
+    private static final long NDARRAY_HEADER = 256;
+
+    @Getter
+    private final int dimensions;
+    @Getter
+    private final int numStates;
+    @Getter
+    private final int vocabSize;
+    @Getter
+    private final int maxSpanWidth;
+    @Getter
+    private final boolean singlePrecision;
+    @Getter
+    private final int offHeapLength;
+    @Getter
+    private final boolean adjointGradients;
+    // bytes of a vector or state chart value
+    private final long real;
+
+    public MemoryEstimator(int dimensions, int numStates, int vocabSize, int maxSpanWidth,
+                           boolean singlePrecision, int offHeapLength,
+                           boolean adjointGradients) {
+        this.dimensions = dimensions;
+        this.numStates = numStates;
+        this.vocabSize = vocabSize;
+        this.maxSpanWidth = maxSpanWidth;
+        this.singlePrecision = singlePrecision;
+        this.offHeapLength = offHeapLength;
+        this.adjointGradients = adjointGradients;
+        real = singlePrecision ? FLOAT : DOUBLE;
+    }
+
+    /**
+     * Derivatives by the reverse pass, as training does by default.
+     */
+    public MemoryEstimator(int dimensions, int numStates, int vocabSize, int maxSpanWidth,
+                           boolean singlePrecision, int offHeapLength) {
+        this(dimensions, numStates, vocabSize, maxSpanWidth, singlePrecision, offHeapLength, true);
+    }
+
+    public MemoryEstimator(int dimensions, int numStates, int vocabSize, int maxSpanWidth,
+                           boolean singlePrecision) {
+        this(dimensions, numStates, vocabSize, maxSpanWidth, singlePrecision, 0);
+    }
+
+    public MemoryEstimator(int dimensions, int numStates, int vocabSize, int maxSpanWidth) {
+        this(dimensions, numStates, vocabSize, maxSpanWidth, false);
+    }
+
+    /**
+     * Bytes of the score of a sentence of numWords words, with the
+     * boundary symbol. The packed span stores are allocated whole, a
+     * full score's split level ones over every split, an inside only
+     * one's over a diagonal's worth. State charts only hold the cells
+     * and splits the inside pass fills.
+     */
+    public long getScoreBytes(int numWords, boolean insideOnly) {
+        final long length = numWords + 1;
+        final long spans = length * (length + 1) / 2;
+        final long allSplits = length * (length + 1) * (length + 2) / 6;
+        // the full span with the boundary symbol on top of the words'
+        final long cells = numWordCells(numWords) + 1;
+        final long splits = numWordSplits(numWords) + (bounded(numWords + 1) ? 1 : numWords);
+
+        long bytes = 0;
+        // phraseMatrix, and the two projections of ProjectionCache
+        bytes += realArray(spans * dimensions)
+                + 2 * (refArray(length * (length + 1)) + cells * ndArray(dimensions));
+        // compIScore, iScale, prunedMass, numPruned
+        bytes += doubleArray(spans) + 3 * length * (length + 1) * DOUBLE;
+        // narrow and wide extents
+        bytes += 4 * (length + 1) * (ARRAY_HEADER + numStates * INT);
+
+        // inside, and for a full score outside, state charts
+        bytes += (insideOnly ? 1 : 2) * spanChart(spans, cells);
+
+        long rows = insideOnly ? length * length : allSplits;
+        long rowSplits = insideOnly ? Math.min(splits, length * length) : splits;
+        // compositionEnergy and compISplitScore,
+        // compositionalMu of a full score
+        bytes += (insideOnly ? 2 : 3) * doubleArray(rows);
+        if (isOffHeap(numWords)) {
+            // slots and active state sets of the split level state chart
+            bytes += refArray(allSplits) + ARRAY_HEADER + allSplits * INT
+                    + rowSplits * activeSet();
+        } else {
+            // compositionMatrix
+            bytes += realArray(rows * dimensions);
+            // split level state chart
+            bytes += spanChart(allSplits, rowSplits);
+        }
+        return bytes;
+    }
+
+    /**
+     * Bytes of the derivatives of a sentence of numWords words over and
+     * above its full score, with the gradients and AdaGrad histories.
+     */
+    public long getDerivativeBytes(int numWords) {
+        final long d = dimensions;
+        // gradients of u, W and X and their AdaGrad histories
+        long gradients = 2 * ndArray(d) + 2 * ndArray(2 * d * d)
+                + 2 * ndArray(d * vocabSize);
+        return (adjointGradients ? getAdjointBytes(numWords) : getForwardBytes(numWords))
+                + gradients;
+    }
+
+    /**
+     * ChartAdjoint keeps an adjoint vector per cell and the energy
+     * derivative of every split, on the chart of the score with the
+     * boundary symbol, and dQdX by leaf. dQdXw then sums the leaves
+     * into a vector per word and divides it by Z.
+     */
+    private long getAdjointBytes(int numWords) {
+        final long n = numWords;
+        final long d = dimensions;
+        final long length = n + 1;
+        final long spans = length * (length + 1) / 2;
+        final long allSplits = length * (length + 1) * (length + 2) / 6;
+
+        // adjoints and energyDerivatives
+        long bytes = doubleArray(spans * d) + doubleArray(allSplits);
+        // dQdW, dQdu, dQdX and the working vectors
+        bytes += doubleArray(2 * d * d) + refArray(n) + (n + 8) * doubleArray(d);
+        // dQdXw's sums and their quotients
+        bytes += 2 * n * ndArray(d);
+        return bytes;
+    }
+
+    /**
+     * dQdW and dQdXw run one after the other and each drops its split
+     * level table when done, so the peak is the larger of the two tables.
+     */
+    private long getForwardBytes(int numWords) {
+        final long n = numWords;
+        final long d = dimensions;
+        final long spans = n * (n + 1) / 2;
+        final long splits = numWordSplits(numWords);
+        // dXdXw allocates every split, bounded or not
+        final long allSplits = (n - 1) * n * (n + 1) / 6;
+
+        // dXdW: a dim x 2 dim table of per span split rows of vectors
+        long dXdW = 2 * d * d * (refArray(n * (n + 1)) + spans * refArray(n)
+                + splits * ndArray(d))
+                + spans * ndArray(d);
+        // dXdXw: a table of per span split rows of dim x dim matrices
+        // for each word
+        long dXdXw = n * (refArray(n * (n + 1)) + spans * refArray(n)
+                + allSplits * ndArray(d * d))
+                + spans * ndArray(d * d);
+        return Math.max(dXdW, dXdXw);
+    }
+
+    /**
+     * Bytes a training sentence takes, its full score and derivatives.
+     */
+    public long getTrainingBytes(int numWords) {
+        return getScoreBytes(numWords, false) + getDerivativeBytes(numWords);
+    }
+
+    /**
+     * Cells (start, end) over the numWords words the inside pass
+     * fills, see StanfordCompositionalInsideOutsideScore.isChartCell.
+     */
+    public long numWordCells(int numWords) {
+        long cells = 0;
+        for (int start = 0; start < numWords; start++) {
+            for (int end = start + 1; end <= numWords; end++) {
+                if (isChartCell(numWords, start, end)) {
+                    cells++;
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Splits (start, end, split) over the numWords words the inside
+     * pass composes, see StanfordCompositionalInsideOutsideScore.isChartSplit.
+     */
+    public long numWordSplits(int numWords) {
+        long splits = 0;
+        for (int start = 0; start < numWords; start++) {
+            for (int end = start + 2; end <= numWords; end++) {
+                if (isChartCell(numWords, start, end)) {
+                    splits += bounded(end - start) ? maxSpanWidth : end - start - 1;
+                }
+            }
+        }
+        return splits;
+    }
+
+    public boolean isOffHeap(int numWords) {
+        return offHeapLength > 0 && numWords >= offHeapLength;
+    }
+
+    private boolean bounded(int width) {
+        return maxSpanWidth > 0 && width > maxSpanWidth;
+    }
+
+    private boolean isChartCell(int numWords, int start, int end) {
+        return !bounded(end - start) || end == numWords;
+    }
+
+    private long spanChart(long slots, long cells) {
+        // cell arrays and active state sets of every packed slot
+        return 2 * refArray(slots) + cells * denseCell();
+    }
+
+    private long denseCell() {
+        // scores and the active state BitSet
+        return realArray(numStates) + activeSet();
+    }
+
+    private long activeSet() {
+        return ARRAY_HEADER + 32 + numStates / 8;
+    }
+
+    private static long refArray(long size) {
+        return ARRAY_HEADER + size * REF;
+    }
+
+    private static long doubleArray(long size) {
+        return ARRAY_HEADER + size * DOUBLE;
+    }
+
+    private long realArray(long size) {
+        return ARRAY_HEADER + size * real;
+    }
+
+    private long ndArray(long size) {
+        return NDARRAY_HEADER + size * real;
+    }
+}
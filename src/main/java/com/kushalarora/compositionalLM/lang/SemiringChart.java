@@ -0,0 +1,309 @@
+package com.kushalarora.compositionalLM.lang;
+
+import com.kushalarora.compositionalLM.chart.ISemiring;
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeFactory;
+import edu.stanford.nlp.util.Index;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * State chart over the compiled grammar in which scores combine by a
+ * semiring, for parsing and scoring: max-product gives the Viterbi
+ * parse, sum-product and log-sum-exp the inside score. Cells are filled
+ * bottom up from the lexical scores and, optionally, a weight per split,
+ * which is how the compositional grammar brings in its composition
+ * energies for parse().
+ *
+ * The rule loops are those of the ChartCore of the semiring, the same
+ * ones the inside, outside and mu passes of both grammars run on; this
+ * chart only differs in what it stores. The compositional grammar fills
+ * it alongside its inside pass, so the cells the width bounds leave out
+ * are never filled and a cell only keeps the states beam pruning left
+ * in the inside chart.
+ *
+ * Like Stanford's ExhaustivePCFGParser every cell has two layers: the
+ * binary layer, built from a split and a binary rule (or from the word,
+ * for leaves), and the unary layer over it, each state of which is either
+ * carried over from the binary layer or built from it by one closed unary
+ * rule. A layer only holds the states it reaches, sorted, with their
+ * score and, for a selective semiring, an int backpointer to the best
+ * derivation, so no split level chart is kept.
+ */
+public class SemiringChart {
+    private static final int NONE = -1;
+
+    private static class Layer {
+        final int[] states;
+        final double[] scores;
+        // split and rule of the binary layer,
+        // closed unary rule or NONE of the unary layer
+        final int[] splits;
+        final int[] rules;
+
+        Layer(int size) {
+            states = new int[size];
+            scores = new double[size];
+            splits = new int[size];
+            rules = new int[size];
+        }
+
+        int size() {
+            return states.length;
+        }
+
+        int find(int state) {
+            return Arrays.binarySearch(states, state);
+        }
+    }
+
+    /**
+     * Per thread working arrays of size numStates. Scratch is the
+     * sink of the core's loops, offering what they combine at the
+     * current split, and the cell of the right child being combined.
+     */
+    private static class Scratch implements ChartCore.Sink, ChartCore.Cell {
+        final ISemiring semiring;
+        final double[] best;
+        final int[] split;
+        final int[] rule;
+        final BitSet touched;
+        final double[] right;
+        int currentSplit = NONE;
+
+        Scratch(ISemiring semiring, int numStates) {
+            this.semiring = semiring;
+            best = new double[numStates];
+            split = new int[numStates];
+            rule = new int[numStates];
+            touched = new BitSet(numStates);
+            right = new double[numStates];
+            Arrays.fill(best, semiring.zero());
+            Arrays.fill(split, NONE);
+            Arrays.fill(rule, NONE);
+            Arrays.fill(right, semiring.zero());
+        }
+
+        public void add(int state, double value, int rule) {
+            offer(state, value, currentSplit, rule);
+        }
+
+        public double get(int state) {
+            return right[state];
+        }
+
+        void offer(int state, double score, int split, int rule) {
+            if (score == semiring.zero()) {
+                return;
+            }
+            double old = best[state];
+            best[state] = semiring.plus(old, score);
+            // A selective semiring took the new derivation
+            // only if the value moved.
+            if (semiring.isSelective() && best[state] != old) {
+                this.split[state] = split;
+                this.rule[state] = rule;
+            }
+            touched.set(state);
+        }
+
+        /**
+         * Layer of the states offered so far that are in allowed,
+         * or all of them if allowed is null, scratch is reset.
+         */
+        Layer collect(BitSet allowed) {
+            int size = 0;
+            for (int state = touched.nextSetBit(0); state >= 0; state = touched.nextSetBit(state + 1)) {
+                if (allowed == null || allowed.get(state)) {
+                    size++;
+                }
+            }
+            Layer layer = new Layer(size);
+            int idx = 0;
+            for (int state = touched.nextSetBit(0); state >= 0; state = touched.nextSetBit(state + 1)) {
+                if (allowed == null || allowed.get(state)) {
+                    layer.states[idx] = state;
+                    layer.scores[idx] = best[state];
+                    layer.splits[idx] = split[state];
+                    layer.rules[idx] = rule[state];
+                    idx++;
+                }
+                best[state] = semiring.zero();
+                split[state] = NONE;
+                rule[state] = NONE;
+            }
+            touched.clear();
+            return layer;
+        }
+    }
+
+    private final CompiledGrammar cg;
+    private final ChartCore core;
+    private final ISemiring semiring;
+    private final int length;
+    private final Layer[][] binary;
+    private final Layer[][] unary;
+    private final ThreadLocal<Scratch> scratch;
+
+    public SemiringChart(final CompiledGrammar cg, final ISemiring semiring, int length) {
+        this.cg = cg;
+        this.semiring = semiring;
+        this.length = length;
+        core = cg.getChartCore(semiring);
+        binary = new Layer[length][length + 1];
+        unary = new Layer[length][length + 1];
+        scratch = new ThreadLocal<Scratch>() {
+            @Override
+            protected Scratch initialValue() {
+                return new Scratch(semiring, cg.numStates);
+            }
+        };
+    }
+
+    /**
+     * Fill leaf cell (start, start + 1) of a word with the given tags,
+     * all with log score logScore. As in the compositional inside pass
+     * the unary rules over the tags are not weighted.
+     */
+    public void doLexCell(int start, BitSet tags, double logScore) {
+        Scratch sc = scratch.get();
+        double score = semiring.fromLog(logScore);
+        for (int tag = tags.nextSetBit(0); tag >= 0; tag = tags.nextSetBit(tag + 1)) {
+            sc.offer(tag, score, NONE, NONE);
+        }
+        binary[start][start + 1] = sc.collect(null);
+        unary[start][start + 1] = doUnaries(sc, binary[start][start + 1], false, null);
+    }
+
+    /**
+     * Fill leaf cell (start, start + 1) of a word with tags[i] scored
+     * logScores[i], the unary rules over them weighted as in a PCFG.
+     */
+    public void doLexCell(int start, int[] tags, double[] logScores) {
+        Scratch sc = scratch.get();
+        for (int i = 0; i < tags.length; i++) {
+            sc.offer(tags[i], semiring.fromLog(logScores[i]), NONE, NONE);
+        }
+        binary[start][start + 1] = sc.collect(null);
+        unary[start][start + 1] = doUnaries(sc, binary[start][start + 1], true, null);
+    }
+
+    /**
+     * Fill cell (start, end) from its children by the grammar
+     * rules alone. All the shorter cells must be filled.
+     */
+    public void doCell(int start, int end) {
+        doCell(start, end, null, null);
+    }
+
+    /**
+     * Fill cell (start, end) from its children, -energies of
+     * (start, end, split) being the log weight of composing (start, end)
+     * from (start, split) and (split, end), or no weight if energies is
+     * null. Only the states in allowed are kept for the longer spans,
+     * all of them if it is null. The shorter cells must be filled, a
+     * split over a cell that is not is skipped.
+     */
+    public void doCell(int start, int end, SpanScalars energies, BitSet allowed) {
+        Scratch sc = scratch.get();
+        final double zero = semiring.zero();
+        for (int split = start + 1; split < end; split++) {
+            Layer left = unary[start][split];
+            Layer right = unary[split][end];
+            if (left == null || right == null) {
+                continue;
+            }
+
+            for (int idx = 0; idx < right.size(); idx++) {
+                sc.right[right.states[idx]] = right.scores[idx];
+            }
+
+            double zeta = energies == null ?
+                    semiring.one() : semiring.fromLog(-energies.get(start, end, split));
+            sc.currentSplit = split;
+            for (int idx = 0; idx < left.size(); idx++) {
+                core.insideBinary(left.states[idx], left.scores[idx], sc, zeta, sc);
+            }
+
+            for (int idx = 0; idx < right.size(); idx++) {
+                sc.right[right.states[idx]] = zero;
+            }
+        }
+        sc.currentSplit = NONE;
+        binary[start][end] = sc.collect(null);
+        unary[start][end] = doUnaries(sc, binary[start][end], true, allowed);
+    }
+
+    private Layer doUnaries(Scratch sc, Layer layer, boolean weighted, BitSet allowed) {
+        for (int idx = 0; idx < layer.size(); idx++) {
+            sc.offer(layer.states[idx], layer.scores[idx], NONE, NONE);
+        }
+
+        for (int idx = 0; idx < layer.size(); idx++) {
+            core.insideUnary(layer.states[idx], layer.scores[idx], weighted, sc);
+        }
+        return sc.collect(allowed);
+    }
+
+    /**
+     * Score of state over the whole sentence mapped back to a log score,
+     * the best derivation's for max-product, the inside score for
+     * the others, negative infinity if there is no derivation.
+     */
+    public double getLogScore(int state) {
+        Layer top = unary[0][length];
+        int idx = top == null ? -1 : top.find(state);
+        return idx < 0 ? Double.NEGATIVE_INFINITY : semiring.toLog(top.scores[idx]);
+    }
+
+    /**
+     * Best tree rooted at state over the whole sentence, labelled
+     * with states and words, null if there is none. Only defined
+     * for a selective semiring.
+     */
+    public Tree getBestTree(int state, List<Word> sentence, Index<String> stateIndex) {
+        if (!semiring.isSelective()) {
+            throw new RuntimeException("No best tree in a non selective semiring");
+        }
+        if (getLogScore(state) == Double.NEGATIVE_INFINITY) {
+            return null;
+        }
+        TreeFactory tf = new LabeledScoredTreeFactory();
+        return unaryTree(tf, 0, length, state, sentence, stateIndex);
+    }
+
+    private Tree unaryTree(TreeFactory tf, int start, int end, int state,
+                           List<Word> sentence, Index<String> stateIndex) {
+        Layer layer = unary[start][end];
+        int rule = layer.rules[layer.find(state)];
+        if (rule == NONE) {
+            return binaryTree(tf, start, end, state, sentence, stateIndex);
+        }
+        Tree child = binaryTree(tf, start, end,
+                cg.unaryByChild.child[rule], sentence, stateIndex);
+        return tf.newTreeNode(stateIndex.get(state), Collections.singletonList(child));
+    }
+
+    private Tree binaryTree(TreeFactory tf, int start, int end, int state,
+                            List<Word> sentence, Index<String> stateIndex) {
+        if (end - start == 1) {
+            Tree leaf = tf.newLeaf(sentence.get(start).word());
+            return tf.newTreeNode(stateIndex.get(state), Collections.singletonList(leaf));
+        }
+
+        Layer layer = binary[start][end];
+        int idx = layer.find(state);
+        int split = layer.splits[idx];
+        int rule = layer.rules[idx];
+        Tree left = unaryTree(tf, start, split,
+                cg.binaryByLeft.leftChild[rule], sentence, stateIndex);
+        Tree right = unaryTree(tf, split, end,
+                cg.binaryByLeft.rightChild[rule], sentence, stateIndex);
+        return tf.newTreeNode(stateIndex.get(state), Arrays.asList(left, right));
+    }
+}
@@ -35,4 +35,15 @@ public class Sentence extends ArrayList<Word> implements IIndexedSized
         return size();
     }
 
+    /**
+     * Model index of every word, in order.
+     */
+    public int[] getWordIndexes() {
+        int[] indexes = new int[size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = get(i).getIndex();
+        }
+        return indexes;
+    }
+
 }
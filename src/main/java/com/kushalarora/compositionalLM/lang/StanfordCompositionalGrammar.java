@@ -1,24 +1,31 @@
 package com.kushalarora.compositionalLM.lang;
 
 import com.google.common.base.Function;
+import com.kushalarora.compositionalLM.chart.CellAccumulator;
+import com.kushalarora.compositionalLM.chart.IChart;
+import com.kushalarora.compositionalLM.chart.OffHeapSpace;
+import com.kushalarora.compositionalLM.chart.SemiringFactory;
+import com.kushalarora.compositionalLM.chart.SpanIndex;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
 import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.ProjectionCache;
+import com.kushalarora.compositionalLM.model.VocabularyTables;
 import com.kushalarora.compositionalLM.options.Options;
 import com.kushalarora.compositionalLM.utils.Parallelizer;
 import edu.stanford.nlp.parser.lexparser.*;
+import edu.stanford.nlp.trees.Tree;
 import edu.stanford.nlp.util.Index;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.factory.Nd4j;
 
 import javax.annotation.Nullable;
+import java.io.File;
+import java.util.BitSet;
 import java.util.Iterator;
-import java.util.List;
 
 import static com.kushalarora.compositionalLM.utils.ObjectSizeFetcher.getSize;
 import static java.lang.Math.exp;
-import static java.lang.Math.log;
 
 /**
  * Most of this code is copied from Stanford ExhaustiveParser.java
@@ -49,11 +56,29 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
     protected final BinaryGrammar bg;
     protected final UnaryGrammar ug;
     protected final Lexicon lex;
+    protected final CompiledGrammar cg;
+    protected final ChartCore core;
+    protected final CoarseGrammar coarseGrammar;
 
     protected final int numStates;
 
     protected final int blockSize;
 
+    // Accumulator of each worker thread for cell level parallelism
+    private final ThreadLocal<CellAccumulator> cellAccumulator;
+
+    // Split ranges of each worker thread, indexed by state: the least
+    // and the largest split of a cell each state can be a left child
+    // at, then the same for a right child
+    private final ThreadLocal<int[][]> splitRanges;
+
+    // Chart arena of each worker thread, reused across its sentences
+    private final ThreadLocal<ChartArena> chartArena;
+
+    // Off heap storage of the sentences of at least
+    // offHeapLength words, null if there are none
+    private final OffHeapSpace offHeapSpace;
+
     private Object lock;
 
 
@@ -73,9 +98,43 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
         ug = lexicalizedParser.ug;
         lex = lexicalizedParser.lex;
         numStates = lexicalizedParser.stateIndex.size();
+        cg = new CompiledGrammar(bg, ug, numStates);
+        core = cg.getChartCore(
+                SemiringFactory.getSemiring(SemiringFactory.SemiringType.SUM_PRODUCT));
+        coarseGrammar = new CoarseGrammar(cg, stateIndex,
+                lexicalizedParser.treebankLanguagePack());
         blockSize = (getVocabSize() + 1)/op.trainOp.blockNum;
         this.parallelizer = parallelizer;
         lock = new Object();
+        cellAccumulator = new ThreadLocal<CellAccumulator>() {
+            @Override
+            protected CellAccumulator initialValue() {
+                return new CellAccumulator(numStates);
+            }
+        };
+        splitRanges = new ThreadLocal<int[][]>() {
+            @Override
+            protected int[][] initialValue() {
+                return new int[4][numStates];
+            }
+        };
+        final int offHeapLength = op.grammarOp.offHeapLength;
+        offHeapSpace = offHeapLength > 0 ?
+                new OffHeapSpace(op.grammarOp.offHeapDir == null ?
+                        null : new File(op.grammarOp.offHeapDir)) : null;
+        chartArena = new ThreadLocal<ChartArena>() {
+            @Override
+            protected ChartArena initialValue() {
+                // off heap sentences do not borrow the arena
+                int maxLength = offHeapLength > 0 ?
+                        Math.min(op.grammarOp.maxLength, offHeapLength - 1) :
+                        op.grammarOp.maxLength;
+                // one more for the boundary symbol
+                return new ChartArena(op.grammarOp.chartType,
+                        maxLength + 1, numStates,
+                        op.modelOp.singlePrecision);
+            }
+        };
     }
 
     public StanfordCompositionalGrammar(Options op,
@@ -100,110 +159,105 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
             words[i] = wordIndex.indexOf(word);
         }
 
-        for (int st = 0; st < length; st++) {
-            final int start = st;
-            final int end = start + 1;
-            final int split = start;
-
-            // Set phrase for word sentence[start]
-            s.phraseMatrix[start][end] =
-                        s.phraseMatrix[start][end]
-                                .add(model.word2vec(s.sentence.get(start)));
-
-                s.compositionMatrix[start][end][split] =
-                        s.compositionMatrix[start][end][split].add(
-                                s.phraseMatrix[start][end]);
-
-                // For leaf nodes, the energy of the node is
-                // a function of phrase representation
-                final double energy = model.energy(s.phraseMatrix[start][end]);
+        final CellAccumulator acc = new CellAccumulator(numStates);
 
-                log.debug("Doing lex score lookup for index {}", start);
-
-                // For each word, figure out the corresponding tag,
-                final int word = words[start];
-                Iterator<IntTaggedWord> taggingI;
-                for (taggingI = lex.ruleIteratorByWord(word, start, null);
-                     taggingI.hasNext(); ) {
-
-                    IntTaggedWord tagging = taggingI.next();
-                    int state = stateIndex.indexOf(tagIndex.get(tagging.tag));
-                    // score the cell according to P(word|tag) in the lexicon
-                    // this is equivalent to log(\theta_r)
-                    double lexScore = lex.score(tagging, start,
-                            wordIndex.get(tagging.word), null);
-
-                    if (lexScore > Double.NEGATIVE_INFINITY) {
-
-                        // \zeta_{A->w_i}
-                        final double zeta_w_i = exp(-energy);
-                        //                                 + lexScore);
-
-                        // \pi(A, w_i) = \zeta_{A->w_i}
-                        s.addToScore(s.iSplitSpanStateScore, zeta_w_i, start, end, split, state);
-                        // \pi (w_i^j) += = \zeta_{A->w_i}
-                        s.addToScore(s.iScore, zeta_w_i, start, end, state);
-
-                        synchronized (s.compISplitScore) {
-                            s.compISplitScore[start][end][split] += zeta_w_i;
-                        }
+        forEachCellOfDiagonal(length, new Function<Integer, Void>() {
+            @Nullable
+            public Void apply(@Nullable Integer start) {
+                doLexChartCell(s, parallelCells() ? cellAccumulator.get() : acc,
+                        words, start);
+                return null;
+            }
+        });
+    } // end doLexScores(List sentence)
 
-                        synchronized (s.compIScore) {
-                            s.compIScore[start][end] += zeta_w_i;
-                        }
-                    }
+    /**
+     * Compute inside scores of the leaf cell (start, start + 1).
+     */
+    private void doLexChartCell(final StanfordCompositionalInsideOutsideScore s,
+                                final CellAccumulator acc,
+                                final int[] words,
+                                final int start) {
+        final int end = start + 1;
+        final int split = start;
+        s.beginCell(start, end);
+
+        // Set phrase for word sentence[start], its values
+        // are shared by all occurrences of the word
+        final VocabularyTables.Entry leaf =
+                model.getVocabularyTables().get(s.sentence.get(start).getIndex());
+        s.phraseMatrix.set(leaf.getEmbedding(), start, end);
+        s.compositionMatrix.set(leaf.getEmbedding(), start, end, split);
+
+        // For leaf nodes, the energy of the node is
+        // a function of phrase representation
+        final double energy = leaf.getEnergy();
+        // \zeta_{A->w_i} = exp(-energy)
+        final double zeta_w_i = leaf.getZeta();
+
+        log.debug("Doing lex score lookup for index {}", start);
+
+        // For each word, figure out the corresponding tag,
+        final int word = words[start];
+        final BitSet tags = new BitSet(numStates);
+        Iterator<IntTaggedWord> taggingI;
+        for (taggingI = lex.ruleIteratorByWord(word, start, null);
+             taggingI.hasNext(); ) {
+
+            IntTaggedWord tagging = taggingI.next();
+            int state = stateIndex.indexOf(tagIndex.get(tagging.tag));
+            // score the cell according to P(word|tag) in the lexicon
+            // this is equivalent to log(\theta_r)
+            double lexScore = lex.score(tagging, start,
+                    wordIndex.get(tagging.word), null);
+
+            if (lexScore > Double.NEGATIVE_INFINITY) {
+                tags.set(state);
+
+                // \pi(A, w_i) = \zeta_{A->w_i}
+                s.addToScore(s.iSplitSpanStateScore, zeta_w_i, start, end, split, state);
+                // \pi (w_i^j) += = \zeta_{A->w_i}
+                s.addToScore(s.iScore, zeta_w_i, start, end, state);
+
+                synchronized (s.compISplitScore) {
+                    s.compISplitScore.add(zeta_w_i, start, end, split);
                 }
 
-                Function<Integer, Void> unaryFunc = new Function<Integer, Void>() {
-                    @Nullable
-                    public Void apply(final @Nullable Integer state) {
-                        double iS = s.iScore.getAsDouble(start, end, state);
-                        if (iS == 0) {
-                            return null;
-                        }
-                        iS = log(iS);
-
-                        UnaryRule[] unaries = ug.closedRulesByChild(state);
-                        for (UnaryRule ur : unaries) {
-                            int parentState = ur.parent;
-                            //double pS = ur.score;
-
-                            // \zeta_{A->w_i^j}
-                            double zeta_A_w_i_j = exp(iS);
-                            //                          + pS);
-
-                            // \pi(A, w_i^j) = \zeta_{A->w_i}
-                            s.addToScore(s.iSplitSpanStateScore,
-                                         zeta_A_w_i_j, start,
-                                         end, split, parentState);
+                synchronized (s.compIScore) {
+                    s.compIScore.add(zeta_w_i, start, end);
+                }
+            }
+        }
 
-                            // \pi (w_i^j) += \zeta_{A->w_i}
-                            s.addToScore(s.iScore,
-                                         zeta_A_w_i_j,
-                                         start, end, parentState);
+        // Unary parents are buffered in acc until the pass is done, so
+        // the closed unary rules are applied once to the tags alone.
+        final ChartCore.Sink unarySink = sinkOf(acc);
 
+        Function<Integer, Void> unaryFunc = new Function<Integer, Void>() {
+            @Nullable
+            public Void apply(final @Nullable Integer state) {
+                double iS = s.getScore(s.iScore, start, end, state);
+                if (iS == 0) {
+                    return null;
+                }
 
-                            synchronized (s.compISplitScore) {
-                                s.compISplitScore[start][end][split] += zeta_A_w_i_j;
-                            }
+                // \zeta_{A->w_i^j} is that of the tag,
+                // the unary rule is not weighted
+                core.insideUnary(state, iS, false, unarySink);
+                return null;
+            }
+        };
 
-                            synchronized (s.compIScore) {
-                                s.compIScore[start][end] += zeta_A_w_i_j;
-                            }
-                        }
-                        return null;
-                    }
-                };
+        forEachActiveState(s.iScore.getActiveStates(start, end), unaryFunc);
+        flushInsideCell(s, acc, start, end, split);
 
-                if (op.trainOp.parallel) {
-                    parallelizer.parallelizer(0, numStates, unaryFunc, blockSize);
-                } else {
-                    for (int state = 0; state < numStates; state++) {
-                        unaryFunc.apply(state);
-                    }
-                }
-            }
-    } // end doLexScores(List sentence)
+        s.rescaleInsideCell(start, end);
+        updateExtents(s, start, end);
+        if (s.semiringChart != null) {
+            s.semiringChart.doLexCell(start, tags, -energy);
+        }
+        s.endCell(start, end);
+    }
 
     /**
      * Fills in the iScore array of each category over each span
@@ -212,34 +266,85 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
     public void doInsideScores(final AbstractInsideOutsideScore score) {
         final StanfordCompositionalInsideOutsideScore s =
                 (StanfordCompositionalInsideOutsideScore) score;
-        for (int diff = 2; diff <= s.length; diff++) {
+        final CellAccumulator acc = new CellAccumulator(numStates);
+        s.usableSplits = new BitSet[s.length][s.length + 1];
+        if (op.grammarOp.coarseThreshold > 0) {
+            BitSet[] leaves = new BitSet[s.length];
+            for (int start = 0; start < s.length; start++) {
+                leaves[start] = s.iScore.getActiveStates(start, start + 1);
+            }
+            s.allowedStates = coarseGrammar.getAllowedStates(leaves,
+                    stateIndex.indexOf(goalStr), op.grammarOp.coarseThreshold);
+            if (s.allowedStates == null) {
+                log.error("No coarse parse for sentence#{}, not pruning", s.getIndex());
+            }
+        }
+        for (int df = 2; df <= s.length; df++) {
+            final int diff = df;
             // usually stop one short because boundary symbol only combines
             // with whole sentence span. So for 3 word sentence + boundary = 4,
             // length == 4, and do [0,2], [1,3]; [0,3]; [0,4]
-            for (int start = 0; start < ((diff == s.length) ? 1 : s.length - diff); start++) {
-                doInsideChartCell(s, start, start + diff);
-            } // for start
+            int numCells = (diff == s.length) ? 1 : s.length - diff;
+            forEachCellOfDiagonal(numCells, new Function<Integer, Void>() {
+                @Nullable
+                public Void apply(@Nullable Integer start) {
+                    if (!s.isChartCell(start, start + diff)) {
+                        return null;
+                    }
+                    doInsideChartCell(s, parallelCells() ? cellAccumulator.get() : acc,
+                            start, start + diff);
+                    return null;
+                }
+            });
+            if (s.isInsideOnly()) {
+                releaseConsumedCells(s, diff);
+            }
         } // for diff (i.e., span)
+
+        if (op.grammarOp.beamThreshold > 0 || s.allowedStates != null) {
+            log.info("Pruned {} cell states of sentence#{}, at most {} of a cell's mass",
+                    s.getTotalPruned(), s.getIndex(), s.getMaxPrunedMass());
+        }
     } // end doInsideScores()
 
+    /**
+     * Drop the cells of an inside only score whose last parent is on
+     * diagonal diff, once that diagonal is done. Of the spans ending at
+     * length only (0, length) is filled, so a cell (start, end) with
+     * start > 0 is a right child up to (0, end) and a left child up to
+     * (start, length - 1). Cells at start 0 and the boundary symbol are
+     * children of (0, length) and are kept to the end.
+     */
+    private void releaseConsumedCells(StanfordCompositionalInsideOutsideScore s,
+                                      int diff) {
+        final int length = s.length;
+        for (int start = 1; start < length; start++) {
+            for (int end = start + 1; end < length; end++) {
+                int lastParent = end < length - 1 ?
+                        Math.max(end, length - 1 - start) : end;
+                if (lastParent == diff) {
+                    s.releaseCell(start, end);
+                }
+            }
+        }
+    }
 
     /**
      * Compute inside, inside span, inside span split Score for span (start,end).
      *
+     * @param acc   accumulator used in lock free mode
      * @param start start index of span
      * @param end   end index of span
      */
     private void doInsideChartCell(final AbstractInsideOutsideScore score,
+                                   final CellAccumulator acc,
                                    final int start, final int end) {
 
         final StanfordCompositionalInsideOutsideScore s =
                 (StanfordCompositionalInsideOutsideScore) score;
 
-        synchronized (s.binaryRuleSet) {
-            s.binaryRuleSet.clear();
-        }
-
         log.debug("Doing iScore for span {} - {}", start, end);
+        s.beginCell(start, end);
 
         // calculate iScore for state by summing over split
         // and iSpanSplitScore by summing over states
@@ -249,172 +354,96 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
             @Nullable
             public Void apply(@Nullable final Integer split) {*/
 
-        for (int sp = start + 1; sp < end; sp++) {
+        // Provisional scale of the cell, the largest scale among the
+        // child pairs. Each split's products are brought to it through
+        // zeta, and the cell is renormalized once it is complete.
+        int cellScale = Integer.MIN_VALUE;
+        for (int split = start + 1; split < end; split++) {
+            if (!s.isChartSplit(start, end, split)) {
+                continue;
+            }
+            cellScale = Math.max(cellScale,
+                    s.iScale[start][split] + s.iScale[split][end]);
+        }
+        s.iScale[start][end] = cellScale;
+
+        final ProjectionCache projections = s.getProjectionCache(model);
+        final double[] composition = new double[model.getDimensions()];
+        final ChartCore.Sink accSink = sinkOf(acc);
+
+        // Splits each left state can combine at by the extents, and the
+        // splits some state can. The others are neither composed nor
+        // combined, their inside scores are zero.
+        final int[][] ranges = splitRanges.get();
+        final int[] minSplit = ranges[0];
+        final int[] maxSplit = ranges[1];
+        final BitSet usable = leftSplitRanges(s, start, end, minSplit, maxSplit);
+        s.usableSplits[start][end] = usable;
+
+        for (int sp = usable.nextSetBit(0); sp >= 0; sp = usable.nextSetBit(sp + 1)) {
             final int split = sp;
-            final INDArray child1 = s.phraseMatrix[start][split];
-            final INDArray child2 = s.phraseMatrix[split][end];
-
             // Compose parent (start, end) from children
             // (start, split), (split, end)
-            synchronized (s.compositionMatrix) {
-                s.compositionMatrix[start][end][split] =
-                        s.compositionMatrix[start][end][split].add(
-                                model.compose(child1, child2));
-            }
-
-            Function<Integer, Void> leftStatFunc = new Function<Integer, Void>() {
-                @Nullable
-                public Void apply(@Nullable Integer leftState) {
-                    BinaryRule[] leftRules = bg.splitRulesWithLC(leftState);
-                    // Composition energy of parent (start,end)
-                    // by children (start, split), (split, end)
-                    double energy = model.energy(
-                            s.compositionMatrix[start][end][split],
-                            child1, child2);
-
-                    for (BinaryRule rule : leftRules) {
-
-                        int rightState = rule.rightChild;
-                        int parentState = rule.parent;
-
-                        // This binary split might be able to cover the span depending upon children's coverage.
-                        double pS = -energy + rule.score;
-
-                        // \pi(B, w_i^k)
-                        double lS = s.getScore(s.iScore, start, split, leftState);
-                        if (lS == 0f) {
-                            continue;
-                        }
-                        lS = log(lS);
-
-                        // \pi(C, w_{k+1}^j)
-                        double rS = s.getScore(s.iScore, split, end, rightState);
-                        if (rS == 0f) {
-                            continue;
-                        }
-                        rS = log(rS);
-
-                        synchronized (s.binaryRuleSet) {
-                            s.binaryRuleSet.add(rule);
-                        }
-
-                        // \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j) =
-                        //          \zeta_{A,w_i^j -> BC, w_i^k w_{k+1}^j} *
-                        //                  \pi(B, w_i^k) * \pi(C, w_{k+1}^j)
-                        double compScore = exp(pS + lS + rS);
-
-                        // in left child
-                        // \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
-                        s.addToScore(s.iSplitSpanStateScore, compScore, start, end, split, parentState);
-
-                        // \pi(A,w_i^j) += \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
-                        s.addToScore(s.iScore, compScore, start, end, parentState);
-
-                        // \pi(w_i^j <- w_i^k w_{k+1}^j) +=  \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
-                        synchronized (s.compISplitScore) {
-                            s.compISplitScore[start][end][split] += compScore;
-                        }
-
-                        // pi(w_i^j) += \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
-                        synchronized (s.compIScore) {
-                            s.compIScore[start][end] += compScore;
-                        }
-
+            projections.compose(start, end, split, composition);
+            s.compositionMatrix.set(composition, start, end, split);
+
+            // Composition energy of parent (start,end)
+            // by children (start, split), (split, end)
+            s.compositionEnergy.set(model.energy(composition), start, end, split);
+            final double zeta = compositionZeta(s, start, end, split);
+
+            // Right children must be able to start at split and end at end
+            final ChartCore.Cell right = insideRightChild(s, split, end);
+            final ChartCore.Sink sink = accumulateLocally() ? accSink : new ChartCore.Sink() {
+                public void add(int parentState, double compScore, int rule) {
+                    // \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
+                    s.addToScore(s.iSplitSpanStateScore, compScore, start, end, split, parentState);
+
+                    // \pi(A,w_i^j) += \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
+                    s.addToScore(s.iScore, compScore, start, end, parentState);
+
+                    // \pi(w_i^j <- w_i^k w_{k+1}^j) +=  \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
+                    synchronized (s.compISplitScore) {
+                        s.compISplitScore.add(compScore, start, end, split);
+                    }
 
-                    } // end for leftRules
-                    return null;
+                    // pi(w_i^j) += \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
+                    synchronized (s.compIScore) {
+                        s.compIScore.add(compScore, start, end);
+                    }
                 }
             };
-            if (op.trainOp.parallel) {
-                parallelizer.parallelizer(0, numStates, leftStatFunc, blockSize);
-            } else {
-                for (int leftState = 0; leftState < numStates; leftState++) {
-                    leftStatFunc.apply(leftState);
-                }
-            }
 
-
-            Function<Integer, Void> rightStateFunc = new Function<Integer, Void>() {
+            // Every binary rule is keyed by its left child
+            // exactly once, so no rule is counted twice.
+            Function<Integer, Void> leftStatFunc = new Function<Integer, Void>() {
                 @Nullable
-                public Void apply(@Nullable Integer rightState) {
-                    BinaryRule[] rightRules = bg.splitRulesWithRC(rightState);
-                    // Composition energy of parent (start,end)
-                    // by children (start, split), (split, end)
-                    double energy = model.energy(
-                            s.compositionMatrix[start][end][split],
-                            child1, child2);
-
-                    for (BinaryRule rule : rightRules) {
-
-                        // Rule already processed by left state loop
-                        if (s.binaryRuleSet.contains(rule)) {
-                            log.debug("Rule {} already processed by left child loop.Skipping", rule);
-                            continue;
-                        }
-
-
-                        int leftState = rule.leftChild;
-                        int parentState = rule.parent;
-
-                        // This binary split might be able to cover the span depending upon children's coverage.
-                        double pS = -energy + rule.score;
-
-
-                        double lS = s.getScore(s.iScore, start, split, leftState);
-                        if (lS == 0f) {
-                            continue;
-                        }
-                        lS = log(lS);
-
-                        double rS = s.getScore(s.iScore, split, end, rightState);
-                        if (rS == 0f) {
-                            continue;
-                        }
-                        rS = log(rS);
-
-                        synchronized (s.binaryRuleSet) {
-                            s.binaryRuleSet.add(rule);
-                        }
-
-                        // \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j) =
-                        //          \zeta_{A,w_i^j -> BC, w_i^k w_{k+1}^j} *
-                        //                  \pi(B, w_i^k) * \pi(C, w_{k+1}^j)
-                        double compScore = exp(pS + lS + rS);
-
-                        // right child
-                        // \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
-                        s.addToScore(s.iSplitSpanStateScore, compScore, start, end, split, parentState);
-
-                        // \pi(A,w_i^j) += \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
-                        s.addToScore(s.iScore, compScore, start, end, parentState);
-
-                        // \pi(w_i^j <- w_i^k w_{k+1}^j) +=  \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
-                        synchronized (s.compISplitScore) {
-                            s.compISplitScore[start][end][split] += compScore;
-                        }
-
-                        // pi(w_i^j) += \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j)
-                        synchronized (s.compIScore) {
-                            s.compIScore[start][end] += compScore;
-                        }
+                public Void apply(@Nullable Integer leftState) {
+                    if (split < minSplit[leftState] || split > maxSplit[leftState]) {
+                        return null;
+                    }
 
+                    // \pi(B, w_i^k)
+                    double lS = s.getScore(s.iScore, start, split, leftState);
+                    if (lS == 0f) {
+                        return null;
+                    }
 
-                    } // end for rightRules
+                    // \pi(A,w_i^j -> BC, w_i^k w_{k+1}^j) =
+                    //          \zeta_{A,w_i^j -> BC, w_i^k w_{k+1}^j} *
+                    //                  \pi(B, w_i^k) * \pi(C, w_{k+1}^j)
+                    core.insideBinary(leftState, lS, right, zeta, sink);
                     return null;
                 }
             };
+            forEachActiveState(s.iScore.getActiveStates(start, split), leftStatFunc);
 
-
-            if (op.trainOp.parallel) {
-                parallelizer.parallelizer(0, numStates, rightStateFunc, blockSize);
-            } else {
-                for (int rightState = 0; rightState < numStates; rightState++) {
-                    rightStateFunc.apply(rightState);
-                }
+            if (accumulateLocally()) {
+                flushInsideCell(s, acc, start, end, split);
             }
         }
 
-        for (int sp = start + 1; sp < end; sp++) {
+        for (int sp = usable.nextSetBit(0); sp >= 0; sp = usable.nextSetBit(sp + 1)) {
             final int split = sp;
             Function<Integer, Void> unaryFuncSplit = new Function<Integer, Void>() {
                 @Nullable
@@ -424,36 +453,17 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
                     if (iSS == 0d) {
                         return null;
                     }
-                    iSS = log(iSS);
-                    UnaryRule[] unaries = ug.closedRulesByChild(state);
-                    for (UnaryRule ur : unaries) {
-                        int parentState = ur.parent;
-                        double pS = ur.score;
-                        double tot = exp(iSS + pS);
-                        s.addToScore(s.iSplitSpanStateScore,
-                                     tot, start, end,
-                                     split, parentState);
-
-                        synchronized (s.compISplitScore) {
-                            s.compISplitScore[start][end][split] += tot;
-                        }
-
-                    }
-
+                    core.insideUnary(state, iSS, true, accSink);
                     return null;
                 }
             };
 
-            if (op.trainOp.parallel) {
-                parallelizer.parallelizer(0, numStates, unaryFuncSplit, blockSize);
-            } else {
-                // do unary rules -- one could promote this loop and put start inside
-                for (int state = 0; state < numStates; state++) {
-                    unaryFuncSplit.apply(state);
-                } // for unary rules
-            }
-        }
+            forEachActiveState(s.iSplitSpanStateScore.getActiveStates(start, end, split), unaryFuncSplit);
 
+            acc.reduce();
+            acc.addTo(s.iSplitSpanStateScore, start, end, split);
+            s.compISplitScore.add(acc.getTotal(), start, end, split);
+        }
 
         Function<Integer, Void> unaryFunc = new Function<Integer, Void>() {
             @Nullable
@@ -462,32 +472,25 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
                 if (iS == 0f) {
                     return null;
                 }
-                iS = log(iS);
-
-                UnaryRule[] unaries = ug.closedRulesByChild(state);
-                for (UnaryRule ur : unaries) {
-                    int parentState = ur.parent;
-                    double pS = ur.score;
-                    double tot = exp(iS + pS);
-                    s.addToScore(s.iScore, tot,
-                                 start, end, parentState);
-
-                    synchronized (s.compIScore) {
-                        s.compIScore[start][end] += tot;
-                    }
-                } // for UnaryRule r
+                core.insideUnary(state, iS, true, accSink);
                 return null;
             }
         };
 
-        if (op.trainOp.parallel) {
-            parallelizer.parallelizer(0, numStates, unaryFunc, blockSize);
-        } else {
-            // do unary rules -- one could promote this loop and put start inside
-            for (int state = 0; state < numStates; state++) {
-                unaryFunc.apply(state);
-            } // for unary rules
+        forEachActiveState(s.iScore.getActiveStates(start, end), unaryFunc);
+
+        acc.reduce();
+        acc.addTo(s.iScore, start, end);
+        s.compIScore.add(acc.getTotal(), start, end);
+
+        // Only the goal state of the full span is ever read.
+        if ((op.grammarOp.beamThreshold > 0 || s.allowedStates != null)
+                && !(start == 0 && end == s.length)) {
+            s.pruneInsideCell(start, end, op.grammarOp.beamThreshold,
+                    s.allowedStates == null ? null : s.allowedStates[start][end]);
         }
+        s.rescaleInsideCell(start, end);
+        updateExtents(s, start, end);
 
 /*
         for (int state = 0; state < numStates; state++) {
@@ -500,21 +503,26 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
         }
 
 */
-        for (int split = start + 1; split < end; split++) {
+        final double[] splitPhrase = new double[model.getDimensions()];
+        for (int split = usable.nextSetBit(0); split >= 0; split = usable.nextSetBit(split + 1)) {
             // X(i,j) * \pi(i,j) = X(i,k,j) * \pi(i,j,k)
-            s.phraseMatrix[start][end] =
-                    s.phraseMatrix[start][end]
-                            .add(s.compositionMatrix[start][end][split]
-                                    .mul(s.compISplitScore[start][end][split]));
+            s.compositionMatrix.get(start, end, split, splitPhrase);
+            s.phraseMatrix.addScaled(splitPhrase,
+                    s.compISplitScore.get(start, end, split), start, end);
         }
 
         // normalize weights to get them to sum to 1.
         // X(i,j) = X(i,k) * \pi(i,j)/\pi(i,j)
-        if (s.compIScore[start][end] != 0) {
-            s.phraseMatrix[start][end] =
-                    s.phraseMatrix[start][end]
-                            .div(s.compIScore[start][end]);
+        if (s.compIScore.get(start, end) != 0) {
+            s.phraseMatrix.divide(s.compIScore.get(start, end), start, end);
         }
+        if (s.semiringChart != null) {
+            // The parse only keeps what beam pruning left in the cell
+            s.semiringChart.doCell(start, end, s.compositionEnergy,
+                    op.grammarOp.beamThreshold > 0 || s.allowedStates != null ?
+                            s.iScore.getActiveStates(start, end) : null);
+        }
+        s.endCell(start, end);
     }
 
 
@@ -529,59 +537,33 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
         s.setScore(s.oScore, 1.0f,
                 initialStart, initialEnd, startSymbol);
 
+        final CellAccumulator acc = new CellAccumulator(numStates);
+
         for (int diff = s.length; diff >= 1; diff--) {
             for (int st = 0; st + diff <= s.length; st++) {
                 final int start = st;
                 final int end = st + diff;
-
-                Function<Integer, Void> unaryFunc = new Function<Integer, Void>() {
-                    @Nullable
-                    public Void apply(@Nullable Integer parentState) {
-                        // if current parentState's outside score is zero,
-                        // child's would be zero as well
-                        double oS = s.getScore(s.oScore, start, end, parentState);
-                        if (oS == 0f) {
-                            return null;
-                        }
-                        oS = log(oS);
-
-                        UnaryRule[] rules = ug.closedRulesByParent(parentState);
-                        for (UnaryRule ur : rules) {
-                            double pS = ur.score;
-                            int childState = ur.child;
-                            double tot = exp(oS + pS);
-                            log.debug("Adding unary rule {} to outside score for Start: {}, End: {}"
-                                    , ur, start, end);
-
-                            s.addToScore(s.oScore, tot, start, end, childState);
-                        }   // end for unary rule iter
-                        return null;
-                    }
-                };
+                if (!s.isChartCell(start, end)) {
+                    continue;
+                }
 
                 log.debug("Doing oScore for span ({}, {})", start, end);
 
-                if (op.trainOp.parallel) {
-                    parallelizer.parallelizer(0, numStates, unaryFunc, blockSize);
-                } else {
-                    // do unaries
-                    for (int parentState = 0; parentState < numStates; parentState++) {
-                        unaryFunc.apply(parentState);
-                    }   // end for parentState
-                }
+                doOutsideUnary(s, acc, start, end);
 
 
                 for (int sp = start + 1; sp < end; sp++) {
                         final int split = sp;
-                        INDArray child1 = s.phraseMatrix[start][split];
-                        INDArray child2 = s.phraseMatrix[split][end];
-
-                        // Composition energy of parent (start,end)
-                        // by children (start, split), (split, end)
-                        final double energy = model.energy(
-                                s.compositionMatrix[start][end][split],
-                                child1, child2);
+                        if (!s.isChartSplit(start, end, split)
+                                || !s.isUsableSplit(start, end, split)) {
+                            continue;
+                        }
+                        final double zeta = compositionZeta(s, start, end, split);
 
+                        final ChartCore.Cell left = insideLeftChild(s, start, split);
+                        final ChartCore.Cell right = insideRightChild(s, split, end);
+                        final ChartCore.Sink leftSink = outsideSink(s, start, split);
+                        final ChartCore.Sink rightSink = outsideSink(s, split, end);
 
                         Function<Integer, Void> binaryFunc = new Function<Integer, Void>() {
                             @Nullable
@@ -592,50 +574,40 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
                                 if (oS == 0f) {
                                     return null;
                                 }
-                                oS = log(oS);
-
-                                List<BinaryRule> rules = bg.ruleListByParent(parentState);
-                                for (BinaryRule br : rules) {
-                                    int leftState = br.leftChild;
-                                    int rightState = br.rightChild;
-
-                                    double pS = -energy + br.score;
-
-                                    int lStart = start, lEnd = split;
-                                    double rS = s.getScore(s.iScore, split, end, rightState);
-                                    if (rS > 0f) {
-                                        rS = log(rS);
-                                        s.addToScore(s.oScore, exp(pS + rS + oS), lStart, lEnd, leftState);
-                                    } // end if rs > 0
-
-
-                                    // If iScore of the left span is zero, so is the
-                                    // oScore of left span
-                                    int rStart = split, rEnd = end;
-                                    double lS = s.getScore(s.iScore, start, split, leftState);
-                                    if (lS > 0f) {
-                                        lS = log(lS);
-                                        s.addToScore(s.oScore, exp(pS + lS + oS), rStart, rEnd, rightState);
-                                    }   // end if ls > 0
-                                }
+
+                                core.outsideBinary(parentState, oS, left, right,
+                                        zeta, leftSink, rightSink);
                                 return null;
                             }
                         };
 
-                        if (op.trainOp.parallel) {
-                            parallelizer.parallelizer(0, numStates, binaryFunc, blockSize);
-                        } else {
-                            // do binaries
-                            for (int parentState = 0; parentState < numStates; parentState++) {
-                                binaryFunc.apply(parentState);
-                            }   // end for parent state
-                        }
+                        forEachActiveState(s.oScore.getActiveStates(start, end), binaryFunc);
                     }
             }   // end for start
         }   // end for end
     }   // end doOutsideScores
 
     public void doOutsideScores2(final AbstractInsideOutsideScore score) {
+        doOutsideScores2(score, false);
+    }
+
+    /**
+     * Outside pass with the mu scores of each cell computed as soon as
+     * its outside score is final, saving the separate sweep of doMuScore
+     * over every span, split and state.
+     */
+    public void doOutsideAndMuScores(final AbstractInsideOutsideScore score) {
+        doOutsideScores2(score, true);
+    }
+
+    /**
+     * Outside scores of every cell, walking the diagonals from the
+     * longest down. The outside score of a cell is final once the
+     * unary rules have been applied to it, as all of its parents are
+     * on longer diagonals; with withMu its mu scores are filled in then.
+     */
+    private void doOutsideScores2(final AbstractInsideOutsideScore score,
+                                  final boolean withMu) {
         final StanfordCompositionalInsideOutsideScore s =
                 (StanfordCompositionalInsideOutsideScore) score;
 
@@ -646,142 +618,215 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
         s.setScore(s.oScore, 1.0f,
                 initialStart, initialEnd, startSymbol);
 
-        for (int diff = s.length; diff >= 1; diff--) {
-            for (int st = 0; st + diff <= s.length; st++) {
-                final int start = st;
-                final int end = st + diff;
+        final CellAccumulator acc = new CellAccumulator(numStates);
 
-                Function<Integer, Void> unaryFunc = new Function<Integer, Void>() {
+        for (int df = s.length; df >= 1; df--) {
+            final int diff = df;
+            if (parallelCells()) {
+                // Each cell pulls its outside score from the parents on
+                // the longer diagonals, which are complete, so the cells
+                // of a diagonal write disjoint chart cells.
+                forEachCellOfDiagonal(s.length - diff + 1, new Function<Integer, Void>() {
                     @Nullable
-                    public Void apply(@Nullable Integer parentState) {
-                        // if current parentState's outside score is zero,
-                        // child's would be zero as well
-                        double oS = s.getScore(s.oScore, start, end, parentState);
-                        if (oS == 0f) {
+                    public Void apply(@Nullable Integer start) {
+                        if (!s.isChartCell(start, start + diff)) {
                             return null;
                         }
-                        oS = log(oS);
-
-                        UnaryRule[] rules = ug.closedRulesByParent(parentState);
-                        for (UnaryRule ur : rules) {
-                            double pS = ur.score;
-                            int childState = ur.child;
-                            double tot = exp(oS + pS);
-                            log.debug("Adding unary rule {} to outside score for Start: {}, End: {}"
-                                    , ur, start, end);
-
-                            s.addToScore(s.oScore, tot, start, end, childState);
-                        }   // end for unary rule iter
+                        CellAccumulator acc = cellAccumulator.get();
+                        doOutsideChartCellPull(s, acc, start, start + diff);
+                        if (withMu) {
+                            doMuChartCell(s, acc, start, start + diff);
+                        }
                         return null;
                     }
-                };
+                });
+                continue;
+            }
+
+            for (int st = 0; st + diff <= s.length; st++) {
+                final int start = st;
+                final int end = st + diff;
+                if (!s.isChartCell(start, end)) {
+                    continue;
+                }
 
                 log.debug("Doing oScore for span ({}, {})", start, end);
 
-                if (op.trainOp.parallel) {
-                    parallelizer.parallelizer(0, numStates, unaryFunc, blockSize);
-                } else {
-                    // do unaries
-                    for (int parentState = 0; parentState < numStates; parentState++) {
-                        unaryFunc.apply(parentState);
-                    }   // end for parentState
+                doOutsideUnary(s, acc, start, end);
+
+                if (withMu) {
+                    doMuChartCell(s, acc, start, end);
                 }
 
-                for (int sp = start + 1; sp < end; sp++) {
-                    final int split = sp;
-                    INDArray child1 = s.phraseMatrix[start][split];
-                    INDArray child2 = s.phraseMatrix[split][end];
+                // Splits each child state can combine at by the extents
+                final int[][] ranges = splitRanges.get();
+                leftSplitRanges(s, start, end, ranges[0], ranges[1]);
+                rightSplitRanges(s, start, end, ranges[2], ranges[3]);
 
-                        // Composition energy of parent (start,end)
-                        // by children (start, split), (split, end)
-                        final double energy = model.energy(
-                                s.compositionMatrix[start][end][split],
-                                child1, child2);
+                for (int split = start + 1; split < end; split++) {
+                    if (!s.isChartSplit(start, end, split)
+                            || !s.isUsableSplit(start, end, split)) {
+                        continue;
+                    }
+                    final double zeta = compositionZeta(s, start, end, split);
 
+                    doOutsideLeftChild(s, acc, start, end, split, zeta,
+                            ranges[0], ranges[1]);
 
-                        Function<Integer, Void> binaryFuncLeft = new Function<Integer, Void>() {
-                            @Nullable
-                            public Void apply(@Nullable Integer leftState) {
-                                BinaryRule[] rules = bg.splitRulesWithLC(leftState);
-                                for (BinaryRule br : rules) {
-                                    int parentState = br.parent;
-                                    int rightState = br.rightChild;
-
-                                    // if current parentState's outside score is zero,
-                                    // child's would be zero as well
-                                    double oS = s.getScore(s.oScore, start, end, parentState);
-                                    if (oS == 0f) {
-                                        continue;
-                                    }
-                                    oS = log(oS);
-
-                                    double pS = -energy + br.score;
-
-                                    int lStart = start, lEnd = split;
-                                    double rS = s.getScore(s.iScore, split, end, rightState);
-                                    if (rS > 0f) {
-                                        rS = log(rS);
-                                        s.addToScore(s.oScore, exp(pS + rS + oS), lStart, lEnd, leftState);
-                                    } // end if rs > 0
-                                }
-                                return null;
-                            }
-                        };
+                    if (accumulateLocally()) {
+                        acc.reduce();
+                        acc.addTo(s.oScore, start, split);
+                    }
 
-                        if (op.trainOp.parallel) {
-                            parallelizer.parallelizer(0, numStates, binaryFuncLeft, blockSize);
-                        } else {
-                            // do binaries
-                            for (int leftState = 0; leftState < numStates; leftState++) {
-                                binaryFuncLeft.apply(leftState);
-                            }   // end for parent state
-                        }
+                    doOutsideRightChild(s, acc, start, end, split, zeta,
+                            ranges[2], ranges[3]);
 
-                        Function<Integer, Void> binaryFuncRight = new Function<Integer, Void>() {
-                            @Nullable
-                            public Void apply(@Nullable Integer rightState) {
-                                // if current parentState's outside score is zero,
-                                // child's would be zero as well
+                    if (accumulateLocally()) {
+                        acc.reduce();
+                        acc.addTo(s.oScore, split, end);
+                    }
+                }
+            }   // end for start
+        }   // end for end
+    }   // end doOutsideScores
 
+    /**
+     * Compute outside score of cell (start, end) from the cells it is a
+     * left child or right child of and then apply the unary rules to it.
+     * Assumes the outside scores of all the longer spans are final.
+     */
+    private void doOutsideChartCellPull(final StanfordCompositionalInsideOutsideScore s,
+                                        final CellAccumulator acc,
+                                        final int start, final int end) {
+        log.debug("Doing oScore for span ({}, {})", start, end);
+
+        // (start, end) as left child of (start, parentEnd)
+        for (int parentEnd = end + 1; parentEnd <= s.length; parentEnd++) {
+            if (!s.isChartSplit(start, parentEnd, end)
+                    || !s.isUsableSplit(start, parentEnd, end)) {
+                continue;
+            }
+            doOutsideLeftChild(s, acc, start, parentEnd, end,
+                    compositionZeta(s, start, parentEnd, end), null, null);
+        }
 
-                                BinaryRule[] rules = bg.splitRulesWithRC(rightState);
-                                for (BinaryRule br : rules) {
-                                    int leftState = br.leftChild;
-                                    int parentState = br.parent;
+        // (start, end) as right child of (parentStart, end)
+        for (int parentStart = 0; parentStart < start; parentStart++) {
+            if (!s.isChartSplit(parentStart, end, start)
+                    || !s.isUsableSplit(parentStart, end, start)) {
+                continue;
+            }
+            doOutsideRightChild(s, acc, parentStart, end, start,
+                    compositionZeta(s, parentStart, end, start), null, null);
+        }
 
-                                    double pS = -energy + br.score;
+        acc.reduce();
+        acc.addTo(s.oScore, start, end);
 
-                                    double oS = s.getScore(s.oScore, start, end, parentState);
-                                    if (oS == 0f) {
-                                        continue;
-                                    }
-                                    oS = log(oS);
+        doOutsideUnary(s, acc, start, end);
+    }
 
-                                    // If iScore of the left span is zero, so is the
-                                    // oScore of left span
-                                    int rStart = split, rEnd = end;
-                                    double lS = s.getScore(s.iScore, start, split, leftState);
-                                    if (lS > 0f) {
-                                        lS = log(lS);
-                                        s.addToScore(s.oScore, exp(pS + lS + oS), rStart, rEnd, rightState);
-                                    }   // end if ls > 0
-                                }
-                                return null;
-                            }
-                        };
+    /**
+     * exp(-energy) of composing (start, end) from (start, split) and
+     * (split, end), brought to the scale of cell (start, end).
+     */
+    private double compositionZeta(StanfordCompositionalInsideOutsideScore s,
+                                   int start, int end, int split) {
+        return exp(-s.compositionEnergy.get(start, end, split))
+                * s.scaleFactor(start, end, split);
+    }
 
-                        if (op.trainOp.parallel) {
-                            parallelizer.parallelizer(0, numStates, binaryFuncRight, blockSize);
-                        } else {
-                            // do binaries
-                            for (int rightState = 0; rightState < numStates; rightState++) {
-                                binaryFuncRight.apply(rightState);
-                            }   // end for parent state
-                        }
+    /**
+     * Apply unary rules to the outside score of cell (start, end).
+     * The children are buffered in acc until every parent is done, as
+     * the unary rules are closed and must be applied once.
+     */
+    private void doOutsideUnary(final StanfordCompositionalInsideOutsideScore s,
+                                final CellAccumulator acc,
+                                final int start, final int end) {
+        final ChartCore.Sink sink = sinkOf(acc);
+        Function<Integer, Void> unaryFunc = new Function<Integer, Void>() {
+            @Nullable
+            public Void apply(@Nullable Integer parentState) {
+                // if current parentState's outside score is zero,
+                // child's would be zero as well
+                double oS = s.getScore(s.oScore, start, end, parentState);
+                if (oS == 0f) {
+                    return null;
                 }
-            }   // end for start
-        }   // end for end
-    }   // end doOutsideScores
+
+                core.outsideUnary(parentState, oS, sink);
+                return null;
+            }
+        };
+
+        forEachActiveState(s.oScore.getActiveStates(start, end), unaryFunc);
+
+        acc.reduce();
+        acc.addTo(s.oScore, start, end);
+    }
+
+    /**
+     * Outside contributions of parent (start, end) to its left child
+     * (start, split). In local accumulation mode they are left in acc.
+     * Left states whose split range for (start, end), if given, leaves
+     * out split are skipped.
+     */
+    private void doOutsideLeftChild(final StanfordCompositionalInsideOutsideScore s,
+                                    final CellAccumulator acc,
+                                    final int start, final int end, final int split,
+                                    final double zeta,
+                                    final int[] minSplit, final int[] maxSplit) {
+        final ChartCore.Cell parents = new ChartCell(s.oScore, start, end);
+        final ChartCore.Cell right = insideRightChild(s, split, end);
+        final ChartCore.Sink sink = accumulateLocally() ?
+                sinkOf(acc) : outsideSink(s, start, split);
+
+        Function<Integer, Void> binaryFuncLeft = new Function<Integer, Void>() {
+            @Nullable
+            public Void apply(@Nullable Integer leftState) {
+                if (minSplit != null
+                        && (split < minSplit[leftState] || split > maxSplit[leftState])) {
+                    return null;
+                }
+                core.outsideToLeft(leftState, parents, right, zeta, sink);
+                return null;
+            }
+        };
+
+        forEachActiveState(s.iScore.getActiveStates(start, split), binaryFuncLeft);
+    }
+
+    /**
+     * Outside contributions of parent (start, end) to its right child
+     * (split, end). In local accumulation mode they are left in acc.
+     * Right states whose split range for (start, end), if given, leaves
+     * out split are skipped.
+     */
+    private void doOutsideRightChild(final StanfordCompositionalInsideOutsideScore s,
+                                     final CellAccumulator acc,
+                                     final int start, final int end, final int split,
+                                     final double zeta,
+                                     final int[] minSplit, final int[] maxSplit) {
+        final ChartCore.Cell parents = new ChartCell(s.oScore, start, end);
+        final ChartCore.Cell left = insideLeftChild(s, start, split);
+        final ChartCore.Sink sink = accumulateLocally() ?
+                sinkOf(acc) : outsideSink(s, split, end);
+
+        Function<Integer, Void> binaryFuncRight = new Function<Integer, Void>() {
+            @Nullable
+            public Void apply(@Nullable Integer rightState) {
+                if (minSplit != null
+                        && (split < minSplit[rightState] || split > maxSplit[rightState])) {
+                    return null;
+                }
+                core.outsideToRight(rightState, parents, left, zeta, sink);
+                return null;
+            }
+        };
+
+        forEachActiveState(s.iScore.getActiveStates(split, end), binaryFuncRight);
+    }
 
 
     /**
@@ -791,95 +836,328 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
         final StanfordCompositionalInsideOutsideScore s =
                 (StanfordCompositionalInsideOutsideScore) score;
 
-        // Handle lead node case.
-        // There is no split here and span value
-        // is stored at start
-        for (int st = 0; st < s.length; st++) {
-            final int start = st;
-            final int end = st + 1;
-            final int split = st;
-            log.debug("Doing muScore for span {} - {}", start, end);
+        final CellAccumulator acc = new CellAccumulator(numStates);
+
+        // Mu scores of a cell only read the final inside
+        // and outside scores, so all the cells are independent.
+        for (int df = 1; df <= s.length; df++) {
+            final int diff = df;
+            if (parallelCells()) {
+                forEachCellOfDiagonal(s.length - diff + 1, new Function<Integer, Void>() {
+                    @Nullable
+                    public Void apply(@Nullable Integer start) {
+                        doMuChartCell(s, cellAccumulator.get(), start, start + diff);
+                        return null;
+                    }
+                });
+                continue;
+            }
+
+            for (int start = 0; start + diff <= s.length; start++) {
+                doMuChartCell(s, acc, start, start + diff);
+            }
+        }
+    }
+
+    /**
+     * Compute mu score of every split of cell (start, end).
+     * For leaf nodes there is no split and span value is
+     * stored at start.
+     */
+    private void doMuChartCell(final StanfordCompositionalInsideOutsideScore s,
+                               final CellAccumulator acc,
+                               final int start, final int end) {
+        if (!s.isChartCell(start, end)) {
+            return;
+        }
+        log.debug("Doing muScore for span {} - {}", start, end);
 
-            Function<Integer, Void> unaryFunc = new Function<Integer, Void>() {
+        final int firstSplit = (end - start == 1) ? start : start + 1;
+        for (int sp = firstSplit; sp < end; sp++) {
+            final int split = sp;
+            if (!s.isChartSplit(start, end, split)) {
+                continue;
+            }
+            Function<Integer, Void> muFunc = new Function<Integer, Void>() {
                 @Nullable
                 public Void apply(@Nullable Integer state) {
-                    // If iScore or oScore is zero, the mu score is zero
                     double iS = s.getScore(s.iSplitSpanStateScore, start, end, split, state);
                     if (iS == 0) {
                         return null;
                     }
-                    iS = log(iS);
 
+                    // If iScore or oScore is zero, the mu score is zero
                     double oS = s.getScore(s.oScore, start, end, state);
-                    if (oS == 0f) {
+                    if (oS == 0) {
                         return null;
                     }
-                    oS = log(oS);
 
-                    synchronized (s.compositionalMu) {
-                        s.compositionalMu[start][end][split] += exp(iS + oS);
+                    if (accumulateLocally()) {
+                        acc.add(core.mu(iS, oS));
+                        return null;
                     }
 
+                    synchronized (s.compositionalMu) {
+                        s.compositionalMu.add(core.mu(iS, oS), start, end, split);
+                    }
                     return null;
                 }
             };
 
-            if (op.trainOp.parallel) {
-                parallelizer.parallelizer(0, numStates, unaryFunc, blockSize);
-            } else {
-                for (int state = 0; state < numStates; state++)
-                {
-                    unaryFunc.apply(state);
-                }
+            forEachActiveState(s.iSplitSpanStateScore.getActiveStates(start, end, split), muFunc);
+
+            if (accumulateLocally()) {
+                acc.reduce();
+                s.compositionalMu.add(acc.getTotal(), start, end, split);
             }
         }
+    }
 
-        // Handle cases for diff = 2 and above
-        for (int df = 2; df <= s.length; df++) {
-            final int diff = df;
-            for (int st = 0; st + df <= s.length; st++) {
-                final int start = st;
-                final int end = st + diff;
+    /**
+     * Cell level parallelism: the cells of a diagonal are handed to the
+     * parallelizer one per task and the state loops within a cell run
+     * serially on the worker.
+     */
+    private boolean parallelCells() {
+        return op.trainOp.parallel && op.trainOp.parallelCells;
+    }
 
-                log.debug("Doing muScore for span {} - {}", start, end);
-                for (int sp = start + 1; sp < end; sp++) {
-                    final int split = sp;
-                    Function<Integer, Void> binaryFunc = new Function<Integer, Void>() {
-                        @Nullable
-                        public Void apply(@Nullable Integer state) {
+    /**
+     * State level parallelism: cells are visited in order and
+     * the state loop of each cell is split across the workers.
+     */
+    private boolean parallelStates() {
+        return op.trainOp.parallel && !op.trainOp.parallelCells;
+    }
 
-                            double iS = s.getScore(s.iSplitSpanStateScore, start, end, split, state);
-                            if (iS == 0) {
-                                return null;
-                            }
-                            iS = log(iS);
+    /**
+     * Whether contributions to a cell are gathered in a CellAccumulator
+     * and flushed to the charts, rather than added under the score lock.
+     * Always the case with cell level parallelism, where every worker
+     * has an accumulator of its own.
+     */
+    private boolean accumulateLocally() {
+        return op.trainOp.lockFree || parallelCells();
+    }
 
-                            // If iScore or oScore is zero, the mu score is zero
-                            double oS = s.getScore(s.oScore, start, end, state);
-                            if (oS == 0) {
-                                return null;
-                            }
-                            oS = log(oS);
+    /**
+     * Apply func to start index of each of the numCells cells
+     * of a diagonal, one cell per task with cell level parallelism.
+     */
+    private void forEachCellOfDiagonal(int numCells, Function<Integer, Void> func) {
+        if (parallelCells()) {
+            parallelizer.parallelizer(0, numCells, func, 1);
+        } else {
+            for (int start = 0; start < numCells; start++) {
+                func.apply(start);
+            }
+        }
+    }
 
-                            synchronized (s.compositionalMu) {
-                                s.compositionalMu[start][end][split] += exp(oS + iS);
-                            }
-                            return null;
-                        }
-                    };
+    /**
+     * Apply func to every state in active. Parallel runs split a
+     * snapshot of the set across the workers. No pass activates states
+     * of the set it walks: the unary passes, the only ones reading the
+     * cell they write, buffer their writes in a CellAccumulator.
+     */
+    private void forEachActiveState(BitSet active, final Function<Integer, Void> func) {
+        if (parallelStates()) {
+            final int[] states = new int[active.cardinality()];
+            int idx = 0;
+            for (int state = active.nextSetBit(0); state >= 0; state = active.nextSetBit(state + 1)) {
+                states[idx++] = state;
+            }
+            int activeBlockSize = Math.max(1,
+                    (states.length + op.trainOp.blockNum - 1) / op.trainOp.blockNum);
+            parallelizer.parallelizer(0, states.length, new Function<Integer, Void>() {
+                @Nullable
+                public Void apply(@Nullable Integer idx) {
+                    return func.apply(states[idx]);
+                }
+            }, activeBlockSize);
+        } else {
+            for (int state = active.nextSetBit(0); state >= 0; state = active.nextSetBit(state + 1)) {
+                func.apply(state);
+            }
+        }
+    }
 
-                    if (op.trainOp.parallel) {
-                        parallelizer.parallelizer(0, numStates, binaryFunc, blockSize);
-                    } else {
-                        for (int state = 0; state < numStates; state++) {
-                            binaryFunc.apply(state);
-                        }
-                    }
+    /**
+     * Bound the splits of cell (start, end) at which each state of its
+     * left children can combine, into minSplit and maxSplit at the state,
+     * and return the chart splits at which at least one of them can.
+     */
+    private BitSet leftSplitRanges(StanfordCompositionalInsideOutsideScore s,
+                                   int start, int end,
+                                   int[] minSplit, int[] maxSplit) {
+        BitSet seen = new BitSet(numStates);
+        BitSet usable = new BitSet(end);
+        for (int split = start + 1; split < end; split++) {
+            if (!s.isChartSplit(start, end, split)) {
+                continue;
+            }
+            BitSet active = s.iScore.getActiveStates(start, split);
+            for (int state = active.nextSetBit(0); state >= 0; state = active.nextSetBit(state + 1)) {
+                if (!seen.get(state)) {
+                    core.leftSplitRange(state, end,
+                            s.narrowRExtent[start], s.wideRExtent[start],
+                            s.narrowLExtent[end], s.wideLExtent[end],
+                            minSplit, maxSplit);
+                    seen.set(state);
                 }
-            }   // end for start
-        }   // end for diff
+                if (minSplit[state] <= split && split <= maxSplit[state]) {
+                    usable.set(split);
+                }
+            }
+        }
+        return usable;
+    }
+
+    /**
+     * Bound the splits of cell (start, end) at which each state of its
+     * right children can combine, into minSplit and maxSplit at the state.
+     */
+    private void rightSplitRanges(StanfordCompositionalInsideOutsideScore s,
+                                  int start, int end,
+                                  int[] minSplit, int[] maxSplit) {
+        BitSet seen = new BitSet(numStates);
+        for (int split = start + 1; split < end; split++) {
+            if (!s.isChartSplit(start, end, split)) {
+                continue;
+            }
+            BitSet active = s.iScore.getActiveStates(split, end);
+            for (int state = active.nextSetBit(0); state >= 0; state = active.nextSetBit(state + 1)) {
+                if (!seen.get(state)) {
+                    core.rightSplitRange(state, start,
+                            s.narrowRExtent[start], s.wideRExtent[start],
+                            s.narrowLExtent[end], s.wideLExtent[end],
+                            minSplit, maxSplit);
+                    seen.set(state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cell (start, end) of a chart as the core reads it. With extents,
+     * a state whose extents rule out point, the end of the cell they do
+     * not fix, reads as zero without touching the chart.
+     */
+    private static class ChartCell implements ChartCore.Cell {
+        private final IChart chart;
+        private final int start;
+        private final int end;
+        private final int[] lo;
+        private final int[] hi;
+        private final int point;
+
+        ChartCell(IChart chart, int start, int end) {
+            this(chart, start, end, null, null, 0);
+        }
+
+        ChartCell(IChart chart, int start, int end, int[] lo, int[] hi, int point) {
+            this.chart = chart;
+            this.start = start;
+            this.end = end;
+            this.lo = lo;
+            this.hi = hi;
+            this.point = point;
+        }
+
+        public double get(int state) {
+            if (lo != null && (point < lo[state] || point > hi[state])) {
+                return 0;
+            }
+            return chart.getScore(start, end, state);
+        }
     }
 
+    /**
+     * Inside cell (start, split) as a left child, whose states
+     * must be able to start at start and end at split.
+     */
+    private static ChartCore.Cell insideLeftChild(StanfordCompositionalInsideOutsideScore s,
+                                                  int start, int split) {
+        return new ChartCell(s.iScore, start, split,
+                s.narrowRExtent[start], s.wideRExtent[start], split);
+    }
+
+    /**
+     * Inside cell (split, end) as a right child, whose states
+     * must be able to start at split and end at end.
+     */
+    private static ChartCore.Cell insideRightChild(StanfordCompositionalInsideOutsideScore s,
+                                                   int split, int end) {
+        return new ChartCell(s.iScore, split, end,
+                s.wideLExtent[end], s.narrowLExtent[end], split);
+    }
+
+    /**
+     * Sink of the core adding to the outside score of cell (start, end).
+     */
+    private static ChartCore.Sink outsideSink(final StanfordCompositionalInsideOutsideScore s,
+                                              final int start, final int end) {
+        return new ChartCore.Sink() {
+            public void add(int state, double value, int rule) {
+                s.addToScore(s.oScore, value, start, end, state);
+            }
+        };
+    }
+
+    /**
+     * Sink of the core adding to acc, for local accumulation.
+     */
+    private static ChartCore.Sink sinkOf(final CellAccumulator acc) {
+        return new ChartCore.Sink() {
+            public void add(int state, double value, int rule) {
+                acc.add(state, value);
+            }
+        };
+    }
+
+    /**
+     * Write the reduced contributions of acc to the inside score,
+     * inside split score and their compositional sums of
+     * cell (start, end, split).
+     */
+    private void flushInsideCell(StanfordCompositionalInsideOutsideScore s,
+                                 CellAccumulator acc,
+                                 int start, int end, int split) {
+        acc.reduce();
+        acc.addTo(s.iSplitSpanStateScore, start, end, split);
+        acc.addTo(s.iScore, start, end);
+        s.compISplitScore.add(acc.getTotal(), start, end, split);
+        s.compIScore.add(acc.getTotal(), start, end);
+    }
+
+    /**
+     * Record the span (start, end) in the extents of every state with
+     * a non-zero inside score there. Must run once the inside score of
+     * the cell is final, before any larger span reads the extents.
+     */
+    private void updateExtents(StanfordCompositionalInsideOutsideScore s,
+                               int start, int end) {
+        final int[] narrowRExtent_start = s.narrowRExtent[start];
+        final int[] wideRExtent_start = s.wideRExtent[start];
+        final int[] narrowLExtent_end = s.narrowLExtent[end];
+        final int[] wideLExtent_end = s.wideLExtent[end];
+
+        BitSet active = s.iScore.getActiveStates(start, end);
+        for (int state = active.nextSetBit(0); state >= 0; state = active.nextSetBit(state + 1)) {
+            if (end < narrowRExtent_start[state]) {
+                narrowRExtent_start[state] = end;
+            }
+            if (end > wideRExtent_start[state]) {
+                wideRExtent_start[state] = end;
+            }
+            if (start > narrowLExtent_end[state]) {
+                narrowLExtent_end[state] = start;
+            }
+            if (start < wideLExtent_end[state]) {
+                wideLExtent_end[state] = start;
+            }
+        }
+    }
 
     /**
      * Compute inside and outside score for the sentence.
@@ -892,22 +1170,25 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
         int idx = s.sentence.getIndex();
         int sz = s.sentence.size();
 
-        log.info("Starting inside score computation:{}::{}", idx, sz);
-        doLexScores(s);
-
-        doInsideScores(s);
-        log.info("Computed inside score computation:{}::{}", idx, sz);
-
-        log.info("Start outside score computation:{}::{}", idx, sz);
-        doOutsideScores2(s);
-        log.info("Computed outside score computation:{}::{}", idx, sz);
+        try {
+            log.info("Starting inside score computation:{}::{}", idx, sz);
+            doLexScores(s);
 
+            doInsideScores(s);
+            log.info("Computed inside score computation:{}::{}", idx, sz);
 
-        log.info("Start mu score computation:{}::{}", idx, sz);
-        doMuScore(s);
-        log.info("Computed mu score computation:{}::{}", idx, sz);
+            log.info("Start outside and mu score computation:{}::{}", idx, sz);
+            doOutsideAndMuScores(s);
+            log.info("Computed outside and mu score computation:{}::{}", idx, sz);
 
-        s.postProcess();
+            s.postProcess();
+        } catch (RuntimeException e) {
+            // The derivatives never get the score to release
+            s.releaseOffHeap();
+            throw e;
+        } finally {
+            s.releaseArena();
+        }
 
         log.info("Compositional Score for sentence#{}:: {} => {}",
                 idx, sz, s.getSentenceScore());
@@ -930,56 +1211,122 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
         }
     }
 
+    /**
+     * Run the inside pass alone, enough for the sentence score.
+     * The score is inside only: split level storage exists only for the
+     * cells being filled and cells are dropped once consumed, so it takes
+     * O(n^2 d) memory rather than the O(n^3 d) of a full score.
+     */
     public AbstractInsideOutsideScore getInsideScore(final Sentence sentence, final boolean addEOS) {
         final StanfordCompositionalInsideOutsideScore s =
                 new StanfordCompositionalInsideOutsideScore(
-                        sentence, op.modelOp.dimensions, numStates, addEOS);
+                        sentence, op.modelOp.dimensions, numStates,
+                        addEOS, op.grammarOp.chartType, null, true,
+                        op.modelOp.singlePrecision, getOffHeapSpace(sentence));
+        s.maxSpanWidth = op.grammarOp.maxSpanWidth;
 
         int idx = s.sentence.getIndex();
         int sz = s.sentence.size();
-        log.info("Starting inside score computation:{}::{}", idx, sz);
-        doLexScores(s);
-        doInsideScores(s);
-        log.info("Computed inside score computation:{}::{}", idx, sz);
-        s.postProcess();
+        try {
+            log.info("Starting inside score computation:{}::{}", idx, sz);
+            doLexScores(s);
+            doInsideScores(s);
+            log.info("Computed inside score computation:{}::{}", idx, sz);
+            s.postProcess();
+        } finally {
+            // postProcess has given them back unless a pass threw
+            s.releaseOffHeap();
+            s.releaseArena();
+        }
         return s;
     }
 
+    /**
+     * Best parse of the sentence by max-product over the chart of the
+     * inside pass. The composition energies depend on the phrases, which
+     * the inside pass averages over all the derivations, so the decoder
+     * rides on the streaming inside only pass and skips the outside and
+     * mu passes.
+     *
+     * @return debinarized best tree with its log score set,
+     * null if the sentence has no parse
+     */
+    public Tree parse(final Sentence sentence) {
+        final StanfordCompositionalInsideOutsideScore s =
+                new StanfordCompositionalInsideOutsideScore(
+                        sentence, op.modelOp.dimensions, numStates,
+                        true, op.grammarOp.chartType, null, true,
+                        op.modelOp.singlePrecision, getOffHeapSpace(sentence));
+        s.maxSpanWidth = op.grammarOp.maxSpanWidth;
+        s.semiringChart = new SemiringChart(cg,
+                SemiringFactory.getSemiring(SemiringFactory.SemiringType.MAX_PRODUCT), s.length);
+
+        int idx = s.sentence.getIndex();
+        int sz = s.sentence.size();
+        final int goal = stateIndex.indexOf(goalStr);
+        Tree tree;
+        double score;
+        try {
+            log.info("Starting viterbi parse:{}::{}", idx, sz);
+            doLexScores(s);
+            doInsideScores(s);
+
+            tree = s.semiringChart.getBestTree(goal, s.getSentence(), stateIndex);
+            score = s.semiringChart.getLogScore(goal);
+            s.postProcess();
+        } finally {
+            // postProcess has given them back unless a pass threw
+            s.releaseOffHeap();
+            s.releaseArena();
+        }
+        if (tree == null) {
+            log.error("No parse for sentence#{}: {}", idx, sentence);
+            return null;
+        }
+
+        tree = new BoundaryRemover().transformTree(tree);
+        tree = new Debinarizer(false).transformTree(tree);
+        tree.setScore(score);
+        log.info("Viterbi parse for sentence#{}:: {} => {}", idx, sz, score);
+        return tree;
+    }
+
     public double getQScore(StanfordCompositionalInsideOutsideScore score) {
         int length = score.length;
-        double p_W = score.compIScore[0][length];
+        double p_W = score.compIScore.get(0, length);
         double qScore = 0;
-        INDArray[][] phraseMatrix = new INDArray[length][length + 1];
-
+        SpanVectors phraseMatrix = new SpanVectors(
+                new SpanIndex(length), model.getDimensions(), false, score.singlePrecision);
         Sentence sentence = score.getSentence();
+        ProjectionCache projections = new ProjectionCache(model, phraseMatrix,
+                sentence.getWordIndexes());
+
+        VocabularyTables tables = model.getVocabularyTables();
+        double[] vector = new double[model.getDimensions()];
         for (int start = 0; start < length; start++) {
             int end = start + 1;
-            phraseMatrix[start][end] = Nd4j.zeros(model.getDimensions(), 1);
-            phraseMatrix[start][end] =
-                    phraseMatrix[start][end].add(model.word2vec(sentence.get(start)));
-            qScore += model.energy(phraseMatrix[start][end]) * score.compositionalMu[start][end][start];
+            VocabularyTables.Entry leaf = tables.get(sentence.get(start).getIndex());
+            phraseMatrix.set(leaf.getEmbedding(), start, end);
+            qScore += leaf.getEnergy()
+                    * score.compositionalMu.get(start, end, start);
         }
 
         for (int diff = 2; diff < length + 1; diff++) {
             for (int start = 0; start < length + 1 - diff; start++) {
                 int end = start + diff;
-                phraseMatrix[start][end] = Nd4j.zeros(model.getDimensions(), 1);
                 for (int split = start + 1; split < end; split++) {
-                    INDArray child1 = phraseMatrix[start][split];
-                    INDArray child2 = phraseMatrix[split][end];
-                    INDArray compVector =
-                            model.compose(child1, child2);
-                    phraseMatrix[start][end] =
-                            phraseMatrix[start][end]
-                                    .add(compVector.mul(
-                                            score.compISplitScore[start][end][split]));
-                    qScore += model.energy(compVector, child1, child2)
-                            * score.compositionalMu[start][end][split];
+                    if (!score.isChartSplit(start, end, split)) {
+                        continue;
+                    }
+                    projections.compose(start, end, split, vector);
+                    phraseMatrix.addScaled(vector,
+                            score.compISplitScore.get(start, end, split), start, end);
+                    qScore += model.energy(vector)
+                            * score.compositionalMu.get(start, end, split);
                 }
 
-                if (score.compIScore[start][end] != 0) {
-                    phraseMatrix[start][end] =
-                            phraseMatrix[start][end].div(score.compIScore[start][end]);
+                if (score.compIScore.get(start, end) != 0) {
+                    phraseMatrix.divide(score.compIScore.get(start, end), start, end);
                 }
             }
         }
@@ -987,6 +1334,21 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
     }
 
 
+    /**
+     * Chart arena of the calling thread, null unless charts are reused.
+     */
+    private ChartArena getChartArena() {
+        return op.grammarOp.reuseCharts ? chartArena.get() : null;
+    }
+
+    /**
+     * Off heap storage for the sentence, null if it is kept on the heap.
+     */
+    private OffHeapSpace getOffHeapSpace(Sentence sentence) {
+        return offHeapSpace != null && sentence.size() >= op.grammarOp.offHeapLength ?
+                offHeapSpace : null;
+    }
+
     public int getNumStates() {
         return numStates;
     }
@@ -1001,7 +1363,10 @@ public class StanfordCompositionalGrammar extends AbstractGrammar {
     public AbstractInsideOutsideScore getScore(Sentence sentence) {
         final StanfordCompositionalInsideOutsideScore score =
                 new StanfordCompositionalInsideOutsideScore(
-                        sentence, op.modelOp.dimensions, numStates);
+                        sentence, op.modelOp.dimensions, numStates,
+                        true, op.grammarOp.chartType, getChartArena(), false,
+                        op.modelOp.singlePrecision, getOffHeapSpace(sentence));
+        score.maxSpanWidth = op.grammarOp.maxSpanWidth;
         computeInsideOutsideProb(score);
         return score;
     }
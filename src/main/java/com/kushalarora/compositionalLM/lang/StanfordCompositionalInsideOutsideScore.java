@@ -1,68 +1,172 @@
 package com.kushalarora.compositionalLM.lang;
 
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.chart.IChart;
+import com.kushalarora.compositionalLM.chart.OffHeapChart;
+import com.kushalarora.compositionalLM.chart.OffHeapDoubles;
+import com.kushalarora.compositionalLM.chart.OffHeapSpace;
+import com.kushalarora.compositionalLM.chart.SpanIndex;
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
+import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.ProjectionCache;
 import com.kushalarora.compositionalLM.optimizer.IIndexed;
-import edu.stanford.nlp.parser.lexparser.BinaryRule;
 import edu.stanford.nlp.parser.lexparser.Lexicon;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.factory.Nd4j;
 import org.ujmp.core.SparseMatrix;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
 
 @Slf4j
 public class StanfordCompositionalInsideOutsideScore extends AbstractInsideOutsideScore {
+    private static final double LN_2 = Math.log(2);
+
     // Averaged representation of phrases in sentence
-    protected  INDArray[][] phraseMatrix;
+    protected  SpanVectors phraseMatrix;
 
     // composition matrix for all possible phrases
     // contains multiple representation for each
     // phrase originating from different split
-    protected  INDArray[][][] compositionMatrix;
+    protected  SpanVectors compositionMatrix;
+
+    // energy of composing (start, end) from
+    // (start, split), (split, end)
+    protected  SpanScalars compositionEnergy;
+
+    // W_L, W_R projections of phraseMatrix. Not serialized, a cached
+    // copy would carry the model along and be bound to a stale one.
+    protected transient ProjectionCache projections;
 
     // extended mu to included compositional score
-    protected  double[][][] compositionalMu;
+    protected  SpanScalars compositionalMu;
 
     // extended inside score with compositional score
-    protected  double[][] compIScore;
-
-    protected  double[][][] compISplitScore;
+    protected  SpanScalars compIScore;
+
+    protected  SpanScalars compISplitScore;
+
+    // Chart scores are kept in scaled probability space.
+    // The inside scores of cell (start, end), i.e. iScore,
+    // iSplitSpanStateScore, compIScore and compISplitScore,
+    // are stored divided by 2^iScale[start][end].
+    // Outside scores of cell (start, end) are stored divided by
+    // 2^(iScale[0][length] - iScale[start][end]) so that inside times
+    // outside, and so the mu scores, share the scale of the sentence
+    // score compIScore[0][length].
+    protected  int[][] iScale;
+
+    // Fine states the coarse pass allows in each cell, null
+    // if there is no coarse pruning.
+    protected transient BitSet[][] allowedStates;
+
+    // Splits of each cell some binary rule can use by the extents of
+    // its children, filled in by the inside pass for the outside pass.
+    protected transient BitSet[][] usableSplits;
+
+    // Inside mass pruning dropped from each cell, as a fraction
+    // of the cell's mass before pruning, and the number of states
+    // it dropped there.
+    @Getter
+    protected double[][] prunedMass;
+    @Getter
+    protected int[][] numPruned;
 
     // inside scores
-    // start idx, end idx, state -> logProb (ragged; null for end <= start)
-    protected  SparseMatrix iScore;
+    // start idx, end idx, state -> prob
+    protected  IChart iScore;
 
     // outside scores
-    // start idx, end idx, state -> logProb
-    protected  SparseMatrix oScore;
+    // start idx, end idx, state -> prob
+    protected  IChart oScore;
 
-    protected  SparseMatrix iSplitSpanStateScore;
+    // start idx, end idx, split idx, state -> prob
+    protected  IChart iSplitSpanStateScore;
 
     protected  SparseMatrix muScore;
 
+    // Span extents of each state over the cells filled so far, as in
+    // Stanford's ExhaustivePCFGParser.
+    // narrowRExtent[start][state]: smallest end with iScore(start, end, state) > 0
+    // wideRExtent[start][state]: largest such end
+    // narrowLExtent[end][state]: largest start with iScore(start, end, state) > 0
+    // wideLExtent[end][state]: smallest such start
+    protected  int[][] narrowRExtent;
+    protected  int[][] wideRExtent;
+    protected  int[][] narrowLExtent;
+    protected  int[][] wideLExtent;
+
+    // Arena the charts above were borrowed from, if any
+    private transient ChartArena arena;
+
+    // Only the inside pass runs on this score. The split level rows
+    // (compositionMatrix, compositionEnergy, compISplitScore and the
+    // iSplitSpanStateScore cells) then only exist while their cell is
+    // being filled, on a diagonal SpanIndex, and the state scores of a
+    // cell are dropped once every span it is a child of is done.
     @Getter
-    protected Sentence sentence;
+    protected boolean insideOnly;
 
+    // End of the cell whose split rows the diagonal
+    // index of an inside only score holds, by start
+    private int[] openEnd;
+
+    // Widest span built from every split, 0 for no bound. Wider
+    // spans are only filled along the right branching spine.
     @Getter
-    protected int length;
+    protected int maxSpanWidth;
 
+    // Phrase and composition vectors and dense state charts are
+    // kept in floats. The sentence totals compIScore and
+    // compISplitScore, which the derivatives divide by, the
+    // energies and mu stay double.
     @Getter
-    protected int numStates;
+    protected boolean singlePrecision;
+
+    // compositionMatrix and iSplitSpanStateScore, the
+    // O(n^3) stores, live outside the Java heap
+    @Getter
+    protected boolean offHeap;
+
+    // Where the off heap stores came from and go back to,
+    // and the store of iSplitSpanStateScore
+    private transient OffHeapSpace offHeapSpace;
+    private transient OffHeapDoubles splitStateStore;
 
-    Set<BinaryRule> binaryRuleSet;
+    // End of the last word, the boundary symbol follows it.
+    // Unlike length it is not changed by postProcess.
+    private int wordsEnd;
 
+    // Semiring chart filled along with the inside pass,
+    // max-product when parsing
+    protected transient SemiringChart semiringChart;
 
+    @Getter
+    protected Sentence sentence;
+
+    @Getter
+    protected int length;
 
+    @Getter
+    protected int numStates;
 
     public StanfordCompositionalInsideOutsideScore(Sentence sentence,
                                                    int dimensions,
                                                    int numStates,
-                                                   boolean addEOS) {
-        super(sentence.size(), numStates);
-
+                                                   boolean addEOS,
+                                                   ChartFactory.ChartType chartType,
+                                                   ChartArena arena,
+                                                   boolean insideOnly,
+                                                   boolean singlePrecision,
+                                                   OffHeapSpace offHeap) {
+        // The state level SparseMatrix charts of the base
+        // class are replaced by the IChart ones below.
+        super(sentence.size(), numStates, false);
+        this.insideOnly = insideOnly;
+        this.singlePrecision = singlePrecision;
+        this.offHeap = offHeap != null;
+        offHeapSpace = offHeap;
 
         this.sentence = new Sentence(sentence.getIndex());
         this.sentence.addAll(sentence);
@@ -70,45 +174,104 @@ public class StanfordCompositionalInsideOutsideScore extends AbstractInsideOutsi
             this.sentence.add(new Word(Lexicon.BOUNDARY, sentence.size()));
         }
         length = this.sentence.size();
+        wordsEnd = length - 1;
         log.info("Creating Compositional matrices for length {}: {}", length, sentence.getIndex());
         int dim = dimensions;
 
-        phraseMatrix = new INDArray[length][length + 1];
-
-        compositionMatrix = new INDArray[length][length + 1][];
-        for (int start = 0; start < length; start++) {
-            for (int end = start + 1; end <= length; end++) {
-                phraseMatrix[start][end] = Nd4j.zeros(dim, 1);
-                compositionMatrix[start][end] = new INDArray[length];
-                for (int split = start; split < end; split++) {
-                    compositionMatrix[start][end][split] = Nd4j.zeros(dim, 1);
-                }
-            }
+        SpanIndex index = new SpanIndex(length);
+        SpanIndex splitIndex = insideOnly ? new SpanIndex(length, true) : index;
+
+        phraseMatrix = new SpanVectors(index, dim, false, singlePrecision);
+        compositionMatrix = offHeap != null ?
+                new SpanVectors(splitIndex, dim, true, offHeap.allocate()) :
+                new SpanVectors(splitIndex, dim, true, singlePrecision);
+        compISplitScore = new SpanScalars(splitIndex, true);
+        compIScore = new SpanScalars(index, false);
+        iScale = new int[length][length + 1];
+        prunedMass = new double[length][length + 1];
+        numPruned = new int[length][length + 1];
+
+        if (insideOnly) {
+            openEnd = new int[length];
+            compositionEnergy = new SpanScalars(splitIndex, true);
+            iScore = ChartFactory.getSpanChart(chartType, length, numStates, singlePrecision);
+            iSplitSpanStateScore = getSplitSpanChart(chartType, numStates, singlePrecision, offHeap);
+            allocateExtents(numStates);
+            return;
         }
 
-        compositionalMu = new double[length][length + 1][];
-        for (int start = 0; start < length; start++) {
-            for (int end = start + 1; end <= length; end++) {
-                compositionalMu[start][end] = new double[length];
-            }
+        compositionalMu = new SpanScalars(index, true);
+
+        if (arena != null && offHeap == null
+                && arena.isSinglePrecision() == singlePrecision
+                && arena.acquire(length)) {
+            this.arena = arena;
+            iScore = arena.iScore;
+            oScore = arena.oScore;
+            iSplitSpanStateScore = arena.iSplitSpanStateScore;
+            compositionEnergy = arena.compositionEnergy;
+            narrowRExtent = arena.narrowRExtent;
+            wideRExtent = arena.wideRExtent;
+            narrowLExtent = arena.narrowLExtent;
+            wideLExtent = arena.wideLExtent;
+            return;
         }
 
-        compIScore = new double[length][length + 1];
+        compositionEnergy = new SpanScalars(index, true);
 
-        compISplitScore = new double[length][length + 1][];
-        for (int start = 0; start < length; start++) {
-            for (int end = start + 1; end <= length; end++) {
-                compISplitScore[start][end] = new double[length];
-            }
-        }
+        iScore = ChartFactory.getSpanChart(chartType, length, numStates, singlePrecision);
 
-        iScore = SparseMatrix.Factory.zeros(length, length + 1, numStates);
+        oScore = ChartFactory.getSpanChart(chartType, length, numStates, singlePrecision);
 
-        oScore = SparseMatrix.Factory.zeros(length, length + 1, numStates);
+        iSplitSpanStateScore = getSplitSpanChart(chartType, numStates, singlePrecision, offHeap);
 
-        iSplitSpanStateScore = SparseMatrix.Factory.zeros(length, length + 1, length, numStates);
+        allocateExtents(numStates);
+    }
 
-        binaryRuleSet = Collections.synchronizedSet(new HashSet<BinaryRule>());
+    public StanfordCompositionalInsideOutsideScore(Sentence sentence,
+                                                   int dimensions,
+                                                   int numStates,
+                                                   boolean addEOS,
+                                                   ChartFactory.ChartType chartType,
+                                                   ChartArena arena,
+                                                   boolean insideOnly,
+                                                   boolean singlePrecision) {
+        this(sentence, dimensions, numStates, addEOS, chartType,
+                arena, insideOnly, singlePrecision, null);
+    }
+
+    public StanfordCompositionalInsideOutsideScore(Sentence sentence,
+                                                   int dimensions,
+                                                   int numStates,
+                                                   boolean addEOS,
+                                                   ChartFactory.ChartType chartType,
+                                                   ChartArena arena,
+                                                   boolean insideOnly) {
+        this(sentence, dimensions, numStates, addEOS, chartType, arena, insideOnly, false);
+    }
+
+    public StanfordCompositionalInsideOutsideScore(Sentence sentence,
+                                                   int dimensions,
+                                                   int numStates,
+                                                   boolean addEOS,
+                                                   ChartFactory.ChartType chartType,
+                                                   ChartArena arena) {
+        this(sentence, dimensions, numStates, addEOS, chartType, arena, false);
+    }
+
+    public StanfordCompositionalInsideOutsideScore(Sentence sentence,
+                                                   int dimensions,
+                                                   int numStates,
+                                                   boolean addEOS,
+                                                   ChartFactory.ChartType chartType) {
+        this(sentence, dimensions, numStates, addEOS, chartType, null);
+    }
+
+    public StanfordCompositionalInsideOutsideScore(Sentence sentence,
+                                                   int dimensions,
+                                                   int numStates,
+                                                   boolean addEOS) {
+        this(sentence, dimensions, numStates, addEOS, ChartFactory.ChartType.SPARSE);
     }
 
     public StanfordCompositionalInsideOutsideScore(Sentence sentence,
@@ -117,40 +280,283 @@ public class StanfordCompositionalInsideOutsideScore extends AbstractInsideOutsi
         this(sentence, dimensions, numStates, true);
     }
 
-        public double[][] getCompIScores() {
+    private IChart getSplitSpanChart(ChartFactory.ChartType chartType, int numStates,
+                                     boolean singlePrecision, OffHeapSpace offHeap) {
+        if (offHeap != null) {
+            splitStateStore = offHeap.allocate();
+            return new OffHeapChart(numStates, length, true, splitStateStore);
+        }
+        return ChartFactory.getSplitSpanChart(chartType, length, numStates, singlePrecision);
+    }
+
+    private void allocateExtents(int numStates) {
+        narrowRExtent = new int[length + 1][numStates];
+        wideRExtent = new int[length + 1][numStates];
+        narrowLExtent = new int[length + 1][numStates];
+        wideLExtent = new int[length + 1][numStates];
+        for (int loc = 0; loc <= length; loc++) {
+            Arrays.fill(narrowRExtent[loc], length + 1);
+            Arrays.fill(wideRExtent[loc], -1);
+            Arrays.fill(narrowLExtent[loc], -1);
+            Arrays.fill(wideLExtent[loc], length + 1);
+        }
+    }
+
+    /**
+     * Hand the split level rows of start to cell (start, end) of an
+     * inside only score, zeroing what the previous cell at start left
+     * there, if it does not hold them yet. A no-op for full scores,
+     * which have rows for every cell.
+     */
+    protected void beginCell(int start, int end) {
+        if (!insideOnly || openEnd[start] == end) {
+            return;
+        }
+        compositionMatrix.clearCell(start, end);
+        compositionEnergy.clearCell(start, end);
+        compISplitScore.clearCell(start, end);
+        openEnd[start] = end;
+    }
+
+    /**
+     * Drop the split level state scores of cell (start, end) of an
+     * inside only score once its phrase and compIScore are final.
+     */
+    protected void endCell(int start, int end) {
+        if (!insideOnly) {
+            return;
+        }
+        for (int split = start; split < end; split++) {
+            iSplitSpanStateScore.clearCell(start, end, split);
+        }
+    }
+
+    /**
+     * Drop the state scores and projections of cell (start, end)
+     * of an inside only score, which no span left to fill is built from.
+     * compIScore, iScale and the phrase of the cell are kept.
+     */
+    protected void releaseCell(int start, int end) {
+        iScore.clearCell(start, end);
+        if (projections != null) {
+            projections.release(start, end);
+        }
+    }
+
+    /**
+     * Whether cell (start, end) is filled. With maxSpanWidth K every span
+     * of at most K words is, and of the wider ones only the spans ending
+     * at the last word, which make up the right branching fallback, and
+     * the full span with the boundary symbol.
+     */
+    public boolean isChartCell(int start, int end) {
+        return maxSpanWidth <= 0 || end - start <= maxSpanWidth
+                || end == wordsEnd || (start == 0 && end == wordsEnd + 1);
+    }
+
+    /**
+     * Whether (start, end) is built from (start, split) and (split, end).
+     * A span wider than maxSpanWidth ending at the last word only takes a
+     * left child of at most maxSpanWidth words, its right child being the
+     * rest of the spine, so it costs O(K) rather than O(n). The full span
+     * with the boundary symbol only joins the words and the boundary.
+     * A chart split always has chart cells as children.
+     */
+    public boolean isChartSplit(int start, int end, int split) {
+        if (maxSpanWidth <= 0 || end - start <= maxSpanWidth) {
+            return true;
+        }
+        if (end == wordsEnd) {
+            return split - start <= maxSpanWidth;
+        }
+        return start == 0 && end == wordsEnd + 1 && split == wordsEnd;
+    }
+
+    /**
+     * Whether a binary rule can build (start, end) at split, true
+     * until the inside pass has filled cell (start, end).
+     */
+    public boolean isUsableSplit(int start, int end, int split) {
+        return usableSplits == null || usableSplits[start][end] == null
+                || usableSplits[start][end].get(split);
+    }
+
+    public SpanScalars getCompIScores() {
         return compIScore;
     }
 
-    public double[][][] getCompISplitScore() {
+    public SpanScalars getCompISplitScore() {
         return compISplitScore;
     }
 
-    public double[][][] getCompMuScores() {
+    public SpanScalars getCompMuScores() {
         return compositionalMu;
     }
 
-    public INDArray[][][] getCompositionMatrix() {
+    public SpanVectors getCompositionMatrix() {
         return compositionMatrix;
     }
 
-    public INDArray[][] getPhraseMatrix() {
+    public SpanVectors getPhraseMatrix() {
         return phraseMatrix;
     }
 
-    public SparseMatrix getInsideScores() {
+    /**
+     * Projection cache over phraseMatrix, shared by the
+     * chart passes and the derivatives of this sentence.
+     * Leaves are projected through the model's vocabulary tables.
+     */
+    public synchronized ProjectionCache getProjectionCache(Model model) {
+        if (projections == null || projections.getModel() != model) {
+            projections = new ProjectionCache(model, phraseMatrix,
+                    sentence.getWordIndexes());
+        }
+        return projections;
+    }
+
+    public IChart getInsideChart() {
         return iScore;
     }
 
-    public SparseMatrix getOutsideScores() {
+    public IChart getOutsideChart() {
         return oScore;
     }
 
+    public IChart getInsideSplitSpanStateChart() {
+        return iSplitSpanStateScore;
+    }
+
     public SparseMatrix getMuScores() {
         return muScore;
     }
 
+    public int[][] getInsideScale() {
+        return iScale;
+    }
+
+    /**
+     * Factor taking the product of the scaled inside scores of
+     * (start, split) and (split, end) to the scale of (start, end).
+     * The same factor takes a scaled outside score of (start, end) times
+     * a scaled inside score of one child to the outside scale of the
+     * other child.
+     */
+    public double scaleFactor(int start, int end, int split) {
+        return Math.scalb(1.0,
+                iScale[start][split] + iScale[split][end] - iScale[start][end]);
+    }
+
+    /**
+     * Renormalize the inside scores of cell (start, end) so that its
+     * total compIScore lies in [1, 2) and record the power of two taken
+     * out in iScale. Scaling by a power of two is exact, so ratios within
+     * the cell are unchanged.
+     */
+    protected void rescaleInsideCell(int start, int end) {
+        double total = compIScore.get(start, end);
+        if (total == 0 || Double.isInfinite(total) || Double.isNaN(total)) {
+            return;
+        }
+
+        int exponent = Math.getExponent(total);
+        if (exponent == 0) {
+            return;
+        }
+
+        double factor = Math.scalb(1.0, -exponent);
+        iScore.scaleCell(factor, start, end);
+        compIScore.set(compIScore.get(start, end) * factor, start, end);
+        compISplitScore.scaleCell(factor, start, end);
+        for (int split = start; split < end; split++) {
+            iSplitSpanStateScore.scaleCell(factor, start, end, split);
+        }
+        iScale[start][end] += exponent;
+    }
+
+    /**
+     * Drop the states of cell (start, end) whose inside score is below
+     * beam times the best one in the cell or, if allowed is not null,
+     * which are not in allowed, together with their split level scores,
+     * and total the cell again over the states that are left, so the
+     * phrase is only averaged over those.
+     * Must run before the cell is rescaled.
+     */
+    protected void pruneInsideCell(int start, int end, double beam, BitSet allowed) {
+        // setScore to zero updates the live set
+        BitSet states = (BitSet) iScore.getActiveStates(start, end).clone();
+        double max = 0;
+        for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+            max = Math.max(max, iScore.getScore(start, end, state));
+        }
+
+        double threshold = beam * max;
+        double pruned = 0;
+        int count = 0;
+        for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+            double iS = iScore.getScore(start, end, state);
+            if (iS >= threshold && (allowed == null || allowed.get(state))) {
+                continue;
+            }
+            pruned += iS;
+            count++;
+            iScore.setScore(0, start, end, state);
+            for (int split = start + 1; split < end; split++) {
+                if (iSplitSpanStateScore.getScore(start, end, split, state) != 0) {
+                    iSplitSpanStateScore.setScore(0, start, end, split, state);
+                }
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        double total = compIScore.get(start, end);
+        compIScore.set(0, start, end);
+        states = iScore.getActiveStates(start, end);
+        for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+            compIScore.add(iScore.getScore(start, end, state), start, end);
+        }
+        for (int split = start + 1; split < end; split++) {
+            compISplitScore.set(0, start, end, split);
+            states = iSplitSpanStateScore.getActiveStates(start, end, split);
+            for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+                compISplitScore.add(
+                        iSplitSpanStateScore.getScore(start, end, split, state),
+                        start, end, split);
+            }
+        }
+        prunedMass[start][end] = total > 0 ? pruned / total : 0;
+        numPruned[start][end] = count;
+    }
+
+    /**
+     * Number of cell states pruning dropped over the sentence.
+     */
+    public int getTotalPruned() {
+        int total = 0;
+        for (int[] row : numPruned) {
+            for (int count : row) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Largest fraction of a cell's inside mass pruning dropped.
+     */
+    public double getMaxPrunedMass() {
+        double max = 0;
+        for (double[] row : prunedMass) {
+            for (double mass : row) {
+                max = Math.max(max, mass);
+            }
+        }
+        return max;
+    }
+
     public double getSentenceScore() {
-        double score = compIScore[0][length];
+        double score = compIScore.get(0, length);
         if (score == 0) {
             log.error("Score is 0 for sentence : {}", sentence);
             return -100;
@@ -164,22 +570,44 @@ public class StanfordCompositionalInsideOutsideScore extends AbstractInsideOutsi
             log.error("Score is negative for sentence: {}", sentence);
             return -100;
         }
-        return Math.log(score);
+        return Math.log(score) + iScale[0][length] * LN_2;
+    }
+
+    public double getScore(IChart chart, int start, int end, int state) {
+        return chart.getScore(start, end, state);
     }
 
-    public double getScore(SparseMatrix matrix, long... indexes) {
-        return matrix.getAsDouble(indexes);
+    public double getScore(IChart chart, int start, int end, int split, int state) {
+        return chart.getScore(start, end, split, state);
     }
 
-    protected synchronized void setScore(SparseMatrix matrix, double value, long... indexes) {
-        matrix.setAsDouble(value, indexes);
+    protected synchronized void setScore(IChart chart, double value, int start, int end, int state) {
+        chart.setScore(value, start, end, state);
     }
 
-    protected synchronized void addToScore(SparseMatrix matrix, double value, long... indexes) {
-        setScore(matrix, value + getScore(matrix, indexes), indexes);
+    protected synchronized void addToScore(IChart chart, double value, int start, int end, int state) {
+        chart.addToScore(value, start, end, state);
+    }
+
+    protected synchronized void addToScore(IChart chart, double value, int start, int end, int split, int state) {
+        chart.addToScore(value, start, end, split, state);
     }
 
     public void postProcess() {
+        // mu scores share the scale of the full span, bring them
+        // to the scale of the span without the boundary symbol,
+        // which is what they are normalized by from here on.
+        int fullLength = length;
+        int newLength = sentence.getSize() - 1;
+        if (compositionalMu != null && newLength > 0 && iScale[0][fullLength] != iScale[0][newLength]) {
+            double factor = Math.scalb(1.0,
+                    iScale[0][fullLength] - iScale[0][newLength]);
+            for (int start = 0; start < fullLength; start++) {
+                for (int end = start + 1; end <= fullLength; end++) {
+                    compositionalMu.scaleCell(factor, start, end);
+                }
+            }
+        }
 
         Sentence newSentence = new Sentence(sentence.getIndex());
         for (int i = 0; i < sentence.getSize() - 1; i++) {
@@ -187,10 +615,68 @@ public class StanfordCompositionalInsideOutsideScore extends AbstractInsideOutsi
         }
         this.sentence = newSentence;
         this.length = sentence.getSize();
+        if (splitStateStore != null) {
+            releaseOffHeap(splitStateStore);
+            splitStateStore = null;
+        }
         iScore = null;
         oScore = null;
         iSplitSpanStateScore = null;
         muScore = null;
+        allowedStates = null;
+        usableSplits = null;
+        compositionEnergy = null;
+        narrowRExtent = null;
+        wideRExtent = null;
+        narrowLExtent = null;
+        wideLExtent = null;
+        if (insideOnly) {
+            // Only the sentence score is left to read
+            phraseMatrix = null;
+            releaseOffHeap();
+            compositionMatrix = null;
+            compISplitScore = null;
+            projections = null;
+        }
+        releaseArena();
+    }
+
+    /**
+     * Hand the off heap stores back once the derivatives no longer need
+     * them, postProcess does so for an inside only score, the grammar
+     * also does once a pass has thrown. An off heap score is unusable
+     * for derivatives afterwards, an on heap one keeps its compositions.
+     */
+    public void releaseOffHeap() {
+        if (splitStateStore != null) {
+            releaseOffHeap(splitStateStore);
+            splitStateStore = null;
+        }
+        if (compositionMatrix != null && compositionMatrix.getOffHeapValues() != null) {
+            releaseOffHeap(compositionMatrix.getOffHeapValues());
+            compositionMatrix = null;
+        }
+    }
+
+    // A deserialized copy has its own stores, closed rather than pooled
+    private void releaseOffHeap(OffHeapDoubles store) {
+        if (offHeapSpace != null) {
+            offHeapSpace.release(store);
+        } else {
+            store.close();
+        }
+    }
+
+    /**
+     * Give the borrowed arena back, if any. postProcess does so, the
+     * grammar also does once a pass has thrown so the thread's arena
+     * is not left lent to an abandoned score.
+     */
+    public void releaseArena() {
+        if (arena != null) {
+            arena.release();
+            arena = null;
+        }
     }
 
     public IIndexed get(int index) {
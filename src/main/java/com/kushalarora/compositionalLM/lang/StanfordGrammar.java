@@ -1,11 +1,16 @@
 package com.kushalarora.compositionalLM.lang;
 
 import com.google.common.base.Function;
+import com.kushalarora.compositionalLM.chart.ISemiring;
+import com.kushalarora.compositionalLM.chart.SemiringFactory;
 import com.kushalarora.compositionalLM.options.Options;
 import com.kushalarora.compositionalLM.utils.Parallelizer;
 
+import org.ujmp.core.SparseMatrix;
+
 import edu.stanford.nlp.ling.HasContext;
 import edu.stanford.nlp.parser.lexparser.*;
+import edu.stanford.nlp.trees.Tree;
 import edu.stanford.nlp.util.Index;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
@@ -14,7 +19,6 @@ import java.util.*;
 
 import static com.kushalarora.compositionalLM.utils.ObjectSizeFetcher.getSize;
 import static java.lang.Math.exp;
-import static java.lang.Math.log;
 
 import javax.annotation.Nullable;
 
@@ -50,6 +54,8 @@ public class StanfordGrammar extends AbstractGrammar {
     protected final BinaryGrammar bg;
     protected final UnaryGrammar ug;
     protected final Lexicon lex;
+    protected final CompiledGrammar cg;
+    protected final ChartCore core;
 
     protected final int numStates;
     protected final boolean[] isTag;
@@ -70,6 +76,9 @@ public class StanfordGrammar extends AbstractGrammar {
         ug = model.ug;
         lex = model.lex;
         numStates = model.stateIndex.size();
+        cg = new CompiledGrammar(bg, ug, numStates);
+        core = cg.getChartCore(
+                SemiringFactory.getSemiring(SemiringFactory.SemiringType.SUM_PRODUCT));
 
         isTag = new boolean[numStates];
         // tag index is smaller, so we fill by iterating over the tag index
@@ -215,6 +224,23 @@ public class StanfordGrammar extends AbstractGrammar {
             } // end if ! assignedSomeTag
 
 
+            // A parentNode might connect to the span via
+            // different intermediate tags, so adding to
+            // previous instead of overwriting
+            final ChartCore.Sink unarySink = new ChartCore.Sink() {
+                public void add(int parentState, double tot, int rule) {
+                    s.addToScore(s.iScore, tot, startFinal, endFinal, parentState);
+
+                    // in case of leaf nodes there is no node, hence
+                    // we keeping the value of split at start
+                    s.addToScore(s.iSplitSpanStateScore, tot, startFinal, endFinal, startFinal, parentState);
+
+                    s.addToScore(s.iSpanSplitScore, tot, startFinal, endFinal, startFinal);
+
+                    s.addToScore(s.iSpanScore, tot, startFinal, endFinal);
+                }
+            };
+
             Function<Integer, Void> unaryFunc = new Function<Integer, Void>() {
                 @Nullable
                 public Void apply(@Nullable Integer state)
@@ -226,34 +252,8 @@ public class StanfordGrammar extends AbstractGrammar {
                     if (iS == 0) {
                         return null;
                     }
-                    iS = log(iS);
-
 
-                    UnaryRule[] unaries = ug.closedRulesByChild(state);
-                    for (UnaryRule ur : unaries) {
-                        int parentState = ur.parent;
-                        float pS = ur.score;
-                        double tot = exp(iS + pS);
-                        // A parentNode might connect to the span via
-                        // different intermediate tags, so adding to
-                        // previous instead of overwriting
-
-                        // iScore_start_end[parentState] += tot;
-                        s.addToScore(s.iScore, tot, startFinal, endFinal, parentState);
-
-                        // in case of leaf nodes there is no node, hence
-                        // we keeping the value of split at start
-                        s.addToScore(s.iSplitSpanStateScore, tot, startFinal, endFinal, startFinal, parentState);
-
-                        s.addToScore(s.iSpanSplitScore, tot, startFinal, endFinal, startFinal);
-
-                        s.addToScore(s.iSpanScore, tot, startFinal, endFinal);
-
-//                        iSplitSpanStateScore[start][end][start][parentState] += tot;
-//                        iSpanSplitScore[start][end][start] += tot;
-//                        iSpanScore[start][end] += tot;
-
-                    }   // end for unary rules
+                    core.insideUnary(state, iS, true, unarySink);
                     return null;
                 }
             };
@@ -296,198 +296,102 @@ public class StanfordGrammar extends AbstractGrammar {
     private void doInsideChartCell(final StanfordInsideOutsideScore s, final int start, final int end) {
         log.debug("Doing iScore for span {} - {}", start, end);
         final boolean[][] stateSplit = new boolean[numStates][s.length];
-        final Set<BinaryRule> binaryRuleSet = new HashSet<BinaryRule>();
-
-        Function<Integer, Void> leftStatFunc = new Function<Integer, Void>()
-        {
-            @Nullable
-            public Void apply(@Nullable Integer leftState)
-            {
-                BinaryRule[] leftRules = bg.splitRulesWithLC(leftState);
-                for (BinaryRule rule : leftRules) {
 
-                    int rightState = rule.rightChild;
-                    int parentState = rule.parent;
+        // Right children and what their parents add
+        // to, for each split of the span
+        final ChartCore.Cell[] rights = new ChartCore.Cell[end];
+        final ChartCore.Sink[] sinks = new ChartCore.Sink[end];
+        for (int sp = start + 1; sp < end; sp++) {
+            final int split = sp;
+            rights[split] = new ScoreCell(s, s.iScore, split, end);
+            sinks[split] = new ChartCore.Sink() {
+                public void add(int parentState, double tot, int rule) {
+                    stateSplit[parentState][split] = true;
 
-                    // This binary split might be able to cover the span depending upon children's coverage.
-                    float pS = rule.score;
-
-
-                    // calculate iScore for state by summing over split
-                    // and iSpanSplitScore by summing over states
-                    // Stops one short of end as last span should be
-                    // (start, end - 1), (end - 1, end)
-                    for (int split = start + 1; split < end; split++) {
-
-//                        double lS = iScore[start][split][leftState];
-                        double lS = s.getScore(s.iScore, start, split, leftState);
-
-                        if (lS == 0f) {
-                            continue;
-                        }
-                        lS = log(lS);
-
-//                        double rS = iScore[split][end][rightState];
-                        double rS = s.getScore(s.iScore, split, end, rightState);
-                        if (rS == 0f) {
-                            continue;
-                        }
-                        rS = log(rS);
-
-                        synchronized(this) {
-                            binaryRuleSet.add(rule);
-                        }
-                        stateSplit[parentState][split] = true;
-
-                        double tot = exp(pS + lS + rS);
-
-                        // in left child
 //                        iScore[start][end][parentState] += tot;
-                        s.addToScore(s.iScore, tot, start, end, parentState);
+                    s.addToScore(s.iScore, tot, start, end, parentState);
 
-                        // Marginalizing over parentState and retaining
-                        // split index
+                    // Marginalizing over parentState and retaining
+                    // split index
 //                        iSpanSplitScore[start][end][split] += tot;
-                        s.addToScore(s.iSpanSplitScore, tot, start, end, split);
+                    s.addToScore(s.iSpanSplitScore, tot, start, end, split);
 
 //                        iSplitSpanStateScore[start][end][split][parentState] += tot;
-                        s.addToScore(s.iSplitSpanStateScore, tot, start, end, split, parentState);
+                    s.addToScore(s.iSplitSpanStateScore, tot, start, end, split, parentState);
 
 //                       iSpanScore[start][end] += tot;
-                        s.addToScore(s.iSpanScore, tot, start, end);
-                    } // for split point
-                } // end for leftRules
-                return null;
-            }
-        };
-        if (op.trainOp.parallel)
-        {
-            parallelizer.parallelizer(0, numStates, leftStatFunc);
-        } else {
-            for (int leftState = 0; leftState < numStates; leftState++) {
-                leftStatFunc.apply(leftState);
-            }
+                    s.addToScore(s.iSpanScore, tot, start, end);
+                }
+            };
         }
 
-
-        Function<Integer, Void> rightStateFunc = new Function<Integer, Void>()
+        // Every binary rule is keyed by its left child exactly
+        // once, so no rule is counted twice.
+        Function<Integer, Void> leftStatFunc = new Function<Integer, Void>()
         {
             @Nullable
-            public Void apply(@Nullable Integer rightState)
+            public Void apply(@Nullable Integer leftState)
             {
-                BinaryRule[] rightRules = bg.splitRulesWithRC(rightState);
-                for (BinaryRule rule : rightRules) {
-
-                    // Rule already processed by left state loop
-                    synchronized(this)
-                    {
-                        if (binaryRuleSet.contains(rule))
-                        {
-                            log.debug("Rule {} already processed by left child loop.Skipping", rule);
-                            continue;
-                        }
-                    }
-
-                    int leftState = rule.leftChild;
-                    int parentState = rule.parent;
-
-                    // This binary split might be able to cover the span depending upon children's coverage.
-                    float pS = rule.score;
-
-
-                    // calculate iScore for state by summing over split
-                    // and iSpanSplitScore by summing over states
-                    // Stops one short of end as last span should be
-                    // (start, end - 1), (end - 1, end)
-                    for (int split = start + 1; split < end; split++) {
+                // calculate iScore for state by summing over split
+                // and iSpanSplitScore by summing over states
+                // Stops one short of end as last span should be
+                // (start, end - 1), (end - 1, end)
+                for (int split = start + 1; split < end; split++) {
 
 //                        double lS = iScore[start][split][leftState];
-                        double lS = s.getScore(s.iScore, start, split, leftState);
-                        if (lS == 0f) {
-                            continue;
-                        }
-                        lS = log(lS);
+                    double lS = s.getScore(s.iScore, start, split, leftState);
 
-//                        double rS = iScore[split][end][rightState];
-                        double rS = s.getScore(s.iScore, split, end, rightState);
-                        if (rS == 0f) {
-                            continue;
-                        }
-                        rS = log(rS);
-
-                        synchronized(this) {
-                            binaryRuleSet.add(rule);
-                        }
-                        stateSplit[parentState][split] = true;
-
-                        double tot = exp(pS + lS + rS);
-                        // right child
-//                        iScore[start][end][parentState] += tot;
-                        s.addToScore(s.iScore, tot, start, end, parentState);
-
-                        // Marginalizing over parentState and retaining
-                        // split index
-                        //iSpanSplitScore[start][end][split] += tot;
-                        s.addToScore(s.iSpanSplitScore, tot, start, end, split);
-
-//                        iSplitSpanStateScore[start][end][split][parentState] += tot;
-                        s.addToScore(s.iSplitSpanStateScore, tot, start, end, split, parentState);
-
-//                       iSpanScore[start][end] += tot;
-                        s.addToScore(s.iSpanScore, tot, start, end);
+                    if (lS == 0f) {
+                        continue;
+                    }
 
-                    } // for split point
-                } // end for rightRules
+                    core.insideBinary(leftState, lS, rights[split], 1, sinks[split]);
+                } // for split point
                 return null;
             }
         };
-
-        if (op.trainOp.parallel) {
-            parallelizer.parallelizer(0, numStates, rightStateFunc);
+        if (op.trainOp.parallel)
+        {
+            parallelizer.parallelizer(0, numStates, leftStatFunc);
         } else {
-            for (int rightState = 0; rightState < numStates; rightState++) {
-                rightStateFunc.apply(rightState);
+            for (int leftState = 0; leftState < numStates; leftState++) {
+                leftStatFunc.apply(leftState);
             }
         }
 
         Function<Integer, Void> unaryFunc = new Function<Integer, Void>()
         {
             @Nullable
-            public Void apply(@Nullable Integer state)
+            public Void apply(@Nullable final Integer state)
             {
                 //                double iS = iScore[start][end][state];
                 double iS = s.getScore(s.iScore, start, end, state);
                 if (iS == 0f) {
                     return null;
                 }
-                iS = log(iS);
-
-                UnaryRule[] unaries = ug.closedRulesByChild(state);
-                for (UnaryRule ur : unaries) {
 
-                    int parentState = ur.parent;
-                    float pS = ur.score;
-                    double tot = exp(iS + pS);
+                core.insideUnary(state, iS, true, new ChartCore.Sink() {
+                    public void add(int parentState, double tot, int rule) {
 //                    iScore[start][end][parentState] += tot;
-                    s.addToScore(s.iScore, tot, start, end, parentState);
+                        s.addToScore(s.iScore, tot, start, end, parentState);
 //                    iSpanScore[start][end] += tot;
-                    s.addToScore(s.iSpanScore, tot, start, end);
+                        s.addToScore(s.iSpanScore, tot, start, end);
 
 
-                    // We are marginalizing over all states and this state
-                    // spans (start,end) and should be marginalized for all
-                    // splits
-                    for (int split = start + 1; split < end; split++) {
-                        if (stateSplit[state][split]) {
+                        // We are marginalizing over all states and this state
+                        // spans (start,end) and should be marginalized for all
+                        // splits
+                        for (int split = start + 1; split < end; split++) {
+                            if (stateSplit[state][split]) {
 //                            iSpanSplitScore[start][end][split] += tot;
-                            s.addToScore(s.iSpanSplitScore, tot, start, end, split);
+                                s.addToScore(s.iSpanSplitScore, tot, start, end, split);
 
 //                            iSplitSpanStateScore[start][end][split][parentState] += tot;
-                            s.addToScore(s.iSplitSpanStateScore, tot, start, end, split, parentState);
+                                s.addToScore(s.iSplitSpanStateScore, tot, start, end, split, parentState);
+                            }
                         }
                     }
-
-                } // for UnaryRule r
+                });
                 return null;
             }
         };
@@ -532,11 +436,10 @@ public class StanfordGrammar extends AbstractGrammar {
 
                 log.debug("Doing oScore for span ({}, {})", start, end);
                 // do unaries
+                // As this is unary rule and parent span is same as child,
+                // so consider the whole sentence to be parent ending with end
+                ChartCore.Sink unarySink = outsideSink(s, start, end, end);
                 for (int parentState = 0; parentState < numStates; parentState++) {
-                    // As this is unary rule and parent span is same as child,
-                    // so consider the whole sentence to be parent ending with end
-                    int parent = end;
-
                     // if current parentState's outside score is zero,
                     // child's would be zero as well
 //                        double oS = oScore[start][end][parentState];
@@ -545,118 +448,36 @@ public class StanfordGrammar extends AbstractGrammar {
                     if (oS == 0f) {
                         continue;
                     }
-                    oS = log(oS);
-
-                    UnaryRule[] rules = ug.closedRulesByParent(parentState);
-                    for (UnaryRule ur : rules) {
-                        double pS = ur.score;
-                        int childState = ur.child;
-                        double tot = exp(oS + pS);
-                        log.debug("Adding unary rule {} to outside score for Start: {}, End: {}"
-                                , ur, start, end);
-
-//                            oScore[start][end][childState] += tot;
-//                            oSpanWParentScore[start][end][parent] += tot;
-//                            oSpanStateScoreWParent[start][end][parent][childState] += tot;
-
-                        s.addToScore(s.oScore, tot, start, end, childState);
-                        s.addToScore(s.oSpanWParentScore, tot, start, end, parent);
-                        s.addToScore(s.oSpanStateScoreWParent, tot, start, end, parent, childState);
-                    }   // end for unary rule iter
+
+                    core.outsideUnary(parentState, oS, unarySink);
                 }   // end for parentState
 
 
                 // do binaries
+                ChartCore.Cell parents = new ScoreCell(s, s.oScore, start, end);
 
                 // Outside score with left child not expanded
-                for (int leftState = 0; leftState < numStates; leftState++) {
+                for (int split = start + 1; split < end; split++) {
                     // Left span starts at start and ends at split.
                     // The parent ends at end and is stored, the parent
                     // begins at start
-                    int lStart = start;
-                    int lParent = end;
-                    BinaryRule[] rules = bg.splitRulesWithLC(leftState);
-                    for (BinaryRule br : rules) {
-                        int rightState = br.rightChild;
-                        int parentState = br.parent;
-                        // If paren't outside score is zero, so will be
-                        // the child's
-                        double oS = s.getScore(s.oScore, start, end, parentState);
-                        if (oS == 0f) {
-                            continue;
-                        }
-                        oS = log(oS);
-
-                        double pS = br.score;
-
-
-                        for (int split = start + 1; split < end; split++) {
-                            // left span ends at end.
-                            int lEnd = split;
-
-                            // iScore of the right child.
-                            // If the right child's iScore is zero, so
-                            // will be the oScore of left child.
-                            double rS = s.getScore(s.iScore, split, end, rightState);
-                            if (rS > 0f) {
-                                rS = log(rS);
-
-                                double totR = exp(pS + rS + oS);
-
-///                                    oScore[lStart][lEnd][leftState] += totR;
-//                                    oSpanWParentScore[lStart][lEnd][lParent] += totR;
-//                                    oSpanStateScoreWParent[lStart][lEnd][lParent][leftState] += totR;
-
-                                s.addToScore(s.oScore, totR, lStart, lEnd, leftState);
-                                s.addToScore(s.oSpanWParentScore, totR, lStart, lEnd, lParent);
-                                s.addToScore(s.oSpanStateScoreWParent, totR, lStart, lEnd, lParent, leftState);
-                            }
-                        }   // end for split
-                    }   // end for binary rule iter
-                }   // end for leftState
+                    ChartCore.Cell right = new ScoreCell(s, s.iScore, split, end);
+                    ChartCore.Sink leftSink = outsideSink(s, start, split, end);
+                    for (int leftState = 0; leftState < numStates; leftState++) {
+                        core.outsideToLeft(leftState, parents, right, 1, leftSink);
+                    }   // end for leftState
+                }   // end for split
 
                 // Outside score with right child not expanded
-                for (int rightState = 0; rightState < numStates; rightState++) {
+                for (int split = start + 1; split < end; split++) {
                     // for right span, the span spans (split, end) with parents left endpoint
                     // stored in start, with right endpoint being end.
-                    int rEnd = end;
-                    int rParent = start;
-
-                    BinaryRule[] rules = bg.splitRulesWithRC(rightState);
-                    for (BinaryRule br : rules) {
-                        int parentState = br.parent;
-                        int leftState = br.leftChild;
-                        //  if oScore of parent is zero, so is child's.
-                        double oS = s.getScore(s.oScore, start, end, parentState);
-                        if (oS == 0f) {
-                            continue;
-                        }
-                        oS = log(oS);
-
-                        double pS = br.score;
-
-                        for (int split = start + 1; split < end; split++) {
-                            // the left endpoint of  right span is split.
-                            int rStart = split;
-
-                            // If iScore of the left span is zero, so is the
-                            // oScore of left span
-                            double lS = s.getScore(s.iScore, start, split, leftState);
-                            if (lS > 0f) {
-                                lS = log(lS);
-                                double totL = exp(pS + lS + oS);
-
-
-//                                    oScore[rStart][rEnd][rightState] += totL;
-//                                    oSpanWParentScore[rStart][rEnd][rParent] += totL;
-//                                    oSpanStateScoreWParent[rStart][rEnd][rParent][rightState] += totL;
-                                s.addToScore(s.oScore, totL, rStart, rEnd, rightState);
-                                s.addToScore(s.oSpanWParentScore, totL, rStart, rEnd, rParent);
-                                s.addToScore(s.oSpanStateScoreWParent, totL, rStart, rEnd, rParent, rightState);
-                            }
-                        }   // end for split
-                    }   // end for binary rules iter
-                }   // end for right state
+                    ChartCore.Cell left = new ScoreCell(s, s.iScore, start, split);
+                    ChartCore.Sink rightSink = outsideSink(s, split, end, start);
+                    for (int rightState = 0; rightState < numStates; rightState++) {
+                        core.outsideToRight(rightState, parents, left, 1, rightSink);
+                    }   // end for right state
+                }   // end for split
             }   // end for start
         }   // end for end
     }   // end doOutsideScores
@@ -688,15 +509,14 @@ public class StanfordGrammar extends AbstractGrammar {
                 final int endFinal = start + diff;
                 final int startFinal = start;
 
+                // As this is unary rule and parent span is same as child,
+                // so consider the whole sentence to be parent ending with end
+                final ChartCore.Sink unarySink = outsideSink(s, startFinal, endFinal, endFinal);
                 Function<Integer, Void> unaryFunc = new Function<Integer, Void>()
                 {
                     @Nullable
                     public Void apply(@Nullable Integer parentState)
                     {
-                        // As this is unary rule and parent span is same as child,
-                        // so consider the whole sentence to be parent ending with end
-                        int parent = endFinal;
-
                         // if current parentState's outside score is zero,
                         // child's would be zero as well
 //                        double oS = oScore[start][end][parentState];
@@ -705,24 +525,8 @@ public class StanfordGrammar extends AbstractGrammar {
                         if (oS == 0f) {
                             return null;
                         }
-                        oS = log(oS);
-
-                        UnaryRule[] rules = ug.closedRulesByParent(parentState);
-                        for (UnaryRule ur : rules) {
-                            double pS = ur.score;
-                            int childState = ur.child;
-                            double tot = exp(oS + pS);
-                            log.debug("Adding unary rule {} to outside score for Start: {}, End: {}"
-                                    , ur, startFinal, endFinal);
-
-//                            oScore[start][end][childState] += tot;
-//                            oSpanWParentScore[start][end][parent] += tot;
-//                            oSpanStateScoreWParent[start][end][parent][childState] += tot;
-
-                            s.addToScore(s.oScore, tot, startFinal, endFinal, childState);
-                            s.addToScore(s.oSpanWParentScore, tot, startFinal, endFinal, parent);
-                            s.addToScore(s.oSpanStateScoreWParent, tot, startFinal, endFinal, parent, childState);
-                        }   // end for unary rule iter
+
+                        core.outsideUnary(parentState, oS, unarySink);
                         return null;
                     }
                 };
@@ -739,6 +543,20 @@ public class StanfordGrammar extends AbstractGrammar {
                 }
 
 
+                // Children of each split and what their outside scores add to,
+                // the left child (start, split) with its parent ending at end
+                // and the right child (split, end) with its parent starting at start
+                final ChartCore.Cell[] lefts = new ChartCore.Cell[endFinal];
+                final ChartCore.Cell[] rights = new ChartCore.Cell[endFinal];
+                final ChartCore.Sink[] leftSinks = new ChartCore.Sink[endFinal];
+                final ChartCore.Sink[] rightSinks = new ChartCore.Sink[endFinal];
+                for (int split = startFinal + 1; split < endFinal; split++) {
+                    lefts[split] = new ScoreCell(s, s.iScore, startFinal, split);
+                    rights[split] = new ScoreCell(s, s.iScore, split, endFinal);
+                    leftSinks[split] = outsideSink(s, startFinal, split, endFinal);
+                    rightSinks[split] = outsideSink(s, split, endFinal, startFinal);
+                }
+
                 Function<Integer, Void> binaryFunc = new Function<Integer, Void>()
                 {
                     @Nullable
@@ -750,52 +568,11 @@ public class StanfordGrammar extends AbstractGrammar {
                         if (oS == 0f) {
                             return null;
                         }
-                        oS = log(oS);
-
-                        List<BinaryRule> rules = bg.ruleListByParent(parentState);
-                        for (BinaryRule br : rules) {
-                            int leftState = br.leftChild;
-                            int rightState = br.rightChild;
-
-                            double pS = br.score;
-
-                            for (int split = startFinal + 1; split < endFinal; split++) {
-                                int lStart = startFinal, lEnd = split, lParent = endFinal;
-                                int rStart = split, rEnd = endFinal, rParent = startFinal;
-
-                                double rS = s.getScore(s.iScore, split, endFinal, rightState);
-                                if (rS > 0f) {
-                                    rS = log(rS);
 
-                                    double totR = exp(pS + rS + oS);
-
-//                                    oScore[lStart][lEnd][leftState] += totR;
-//                                    oSpanWParentScore[lStart][lEnd][lParent] += totR;
-//                                    oSpanStateScoreWParent[lStart][lEnd][lParent][leftState] += totR;
-
-                                    s.addToScore(s.oScore, totR, lStart, lEnd, leftState);
-                                    s.addToScore(s.oSpanWParentScore, totR, lStart, lEnd, lParent);
-                                    s.addToScore(s.oSpanStateScoreWParent, totR, lStart, lEnd, lParent, leftState);
-                                } // end if rs > 0
-
-
-                                // If iScore of the left span is zero, so is the
-                                // oScore of left span
-                                double lS = s.getScore(s.iScore, startFinal, split, leftState);
-                                if (lS > 0f) {
-                                    lS = log(lS);
-                                    double totL = exp(pS + lS + oS);
-
-//                                    oScore[rStart][rEnd][rightState] += totL;
-//                                    oSpanWParentScore[rStart][rEnd][rParent] += totL;
-//                                    oSpanStateScoreWParent[rStart][rEnd][rParent][rightState] += totL;
-                                    s.addToScore(s.oScore, totL, rStart, rEnd, rightState);
-                                    s.addToScore(s.oSpanWParentScore, totL, rStart, rEnd, rParent);
-                                    s.addToScore(s.oSpanStateScoreWParent, totL, rStart, rEnd, rParent, rightState);
-
-                                }   // end if ls > 0
-                            }   // end for split
-                        }
+                        for (int split = startFinal + 1; split < endFinal; split++) {
+                            core.outsideBinary(parentState, oS, lefts[split], rights[split],
+                                    1, leftSinks[split], rightSinks[split]);
+                        }   // end for split
                         return null;
                     }
                 };
@@ -837,18 +614,15 @@ public class StanfordGrammar extends AbstractGrammar {
                     if (iS == 0) {
                         return null;
                     }
-                    iS = log(iS);
 
                     double oS = s.getScore(s.oScore, startFinal, endFinal, state);
 
                     if (oS == 0f) {
                         return null;
                     }
-                    oS = log(oS);
-
 
                     double tot;
-                    tot = exp(iS + oS);
+                    tot = core.mu(iS, oS);
                     s.addToScore(s.muScore, tot, startFinal, endFinal, state);
 
 
@@ -865,7 +639,6 @@ public class StanfordGrammar extends AbstractGrammar {
                     if (iSplitSpanStateScore == 0) {
                         return null;
                     }
-                    iSplitSpanStateScore = log(iSplitSpanStateScore);
 
                     // Takes care of parents of span (parentBegin, end)
                     for (int parentBegin = 0; parentBegin < startFinal; parentBegin++) {
@@ -878,8 +651,7 @@ public class StanfordGrammar extends AbstractGrammar {
                         if (oScoreWParent == 0f) {
                             continue;
                         }
-                        oScoreWParent = log(oScoreWParent);
-                        tot = exp(oScoreWParent + iSplitSpanStateScore);
+                        tot = core.mu(iSplitSpanStateScore, oScoreWParent);
                         s.addToScore(
                                 s.muSpanSplitScoreWParent, tot, startFinal, endFinal, splitFinal, parentBegin);
 
@@ -896,8 +668,7 @@ public class StanfordGrammar extends AbstractGrammar {
                         if (oScoreWParent == 0f) {
                             continue;
                         }
-                        oScoreWParent = log(oScoreWParent);
-                        tot = exp(oScoreWParent + iSplitSpanStateScore);
+                        tot = core.mu(iSplitSpanStateScore, oScoreWParent);
 
                         s.addToScore(s.muSpanSplitScoreWParent, tot, startFinal, endFinal, splitFinal, parentEnd);
                     }
@@ -934,18 +705,16 @@ public class StanfordGrammar extends AbstractGrammar {
                         {
                             return null;
                         }
-                        oS = log(oS);
 
                         double iS = s.getScore(s.iScore, startFinal, endFinal, state);
                         if (iS == 0)
                         {
                             return null;
                         }
-                        iS = log(iS);
 
                         double tot;
 
-                        tot = exp(oS + iS);
+                        tot = core.mu(iS, oS);
                         s.addToScore(s.muScore, tot, startFinal, endFinal, state);
 
                         log.debug("muScore[{}][{}][{}] = {}",
@@ -961,7 +730,6 @@ public class StanfordGrammar extends AbstractGrammar {
                             {
                                 continue;
                             }
-                            iSplitSpanStateScore = log(iSplitSpanStateScore);
 
                             // Takes care of parents of span (parentBegin, end)
                             for (int parentBegin = 0; parentBegin < startFinal; parentBegin++)
@@ -976,9 +744,8 @@ public class StanfordGrammar extends AbstractGrammar {
                                 {
                                     continue;
                                 }
-                                oScoreWParent = log(oScoreWParent);
 
-                                tot = exp(oScoreWParent + iSplitSpanStateScore);
+                                tot = core.mu(iSplitSpanStateScore, oScoreWParent);
                                 s.addToScore(s.muSpanSplitScoreWParent, tot, startFinal, endFinal, split, parentBegin);
                                 log.debug("muSpanSplitScoreWParent[{}][{}][{}][{}] = {}",
                                           startFinal, endFinal, split, parentBegin, tot);
@@ -995,9 +762,8 @@ public class StanfordGrammar extends AbstractGrammar {
                                 {
                                     continue;
                                 }
-                                oStateScoreWParent = log(oStateScoreWParent);
 
-                                tot = exp(oStateScoreWParent + iSplitSpanStateScore);
+                                tot = core.mu(iSplitSpanStateScore, oStateScoreWParent);
                                 s.addToScore(s.muSpanSplitScoreWParent, tot, startFinal, endFinal, split, parentEnd);
                                 log.debug("muSpanSplitScoreWParent[{}][{}][{}][{}] = {}",
                                           startFinal, endFinal, split, parentEnd, tot);
@@ -1065,6 +831,152 @@ public class StanfordGrammar extends AbstractGrammar {
     }
 
 
+    /**
+     * Cell (start, end) of matrix as the core reads it.
+     */
+    private static class ScoreCell implements ChartCore.Cell {
+        private final StanfordInsideOutsideScore s;
+        private final SparseMatrix matrix;
+        private final int start;
+        private final int end;
+
+        ScoreCell(StanfordInsideOutsideScore s, SparseMatrix matrix, int start, int end) {
+            this.s = s;
+            this.matrix = matrix;
+            this.start = start;
+            this.end = end;
+        }
+
+        public double get(int state) {
+            return s.getScore(matrix, start, end, state);
+        }
+    }
+
+    /**
+     * Sink of the core adding to the outside scores of cell
+     * (start, end), the other end of its parent being parent.
+     */
+    private static ChartCore.Sink outsideSink(final StanfordInsideOutsideScore s,
+                                              final int start, final int end,
+                                              final int parent) {
+        return new ChartCore.Sink() {
+            public void add(int state, double tot, int rule) {
+//                oScore[start][end][state] += tot;
+//                oSpanWParentScore[start][end][parent] += tot;
+//                oSpanStateScoreWParent[start][end][parent][state] += tot;
+                s.addToScore(s.oScore, tot, start, end, state);
+                s.addToScore(s.oSpanWParentScore, tot, start, end, parent);
+                s.addToScore(s.oSpanStateScoreWParent, tot, start, end, parent, state);
+            }
+        };
+    }
+
+    /**
+     * Semiring chart of the sentence, boundary symbol appended, filled
+     * from the lexicon and the grammar rules alone, with the same spans
+     * as doInsideScores.
+     */
+    public SemiringChart getSemiringChart(Sentence sentence, ISemiring semiring) {
+        Sentence words = new Sentence(sentence.getIndex());
+        words.addAll(sentence);
+        words.add(new Word(Lexicon.BOUNDARY, sentence.size()));
+        int length = words.size();
+
+        SemiringChart chart = new SemiringChart(cg, semiring, length);
+        for (int start = 0; start < length; start++) {
+            doLexCell(chart, words, start);
+        }
+        for (int diff = 2; diff <= length; diff++) {
+            for (int start = 0; start < ((diff == length) ? 1 : length - diff); start++) {
+                chart.doCell(start, start + diff);
+            }
+        }
+        return chart;
+    }
+
+    /**
+     * Tags of the word at start scored by P(word|tag) as in doLexScores,
+     * every tag the lexicon does not rule out if it lists none.
+     */
+    private void doLexCell(SemiringChart chart, Sentence sentence, int start) {
+        int word = wordIndex.indexOf(sentence.get(start).getSignature());
+        String wordContextStr = null;
+        if (sentence.get(start) instanceof HasContext) {
+            wordContextStr = ((HasContext) sentence.get(start)).originalText();
+            if ("".equals(wordContextStr))
+                wordContextStr = null;
+        }
+
+        List<Integer> tags = new ArrayList<Integer>();
+        List<Double> lexScores = new ArrayList<Double>();
+        for (Iterator<IntTaggedWord> taggingI = lex.ruleIteratorByWord(word, start, wordContextStr);
+             taggingI.hasNext(); ) {
+            IntTaggedWord tagging = taggingI.next();
+            double lexScore = lex.score(tagging, start,
+                    wordIndex.get(tagging.word), wordContextStr);
+            if (lexScore > Double.NEGATIVE_INFINITY) {
+                tags.add(stateIndex.indexOf(tagIndex.get(tagging.tag)));
+                lexScores.add(lexScore);
+            }
+        }
+
+        if (tags.isEmpty()) {
+            for (int state = 0; state < numStates; state++) {
+                if (!isTag[state]) {
+                    continue;
+                }
+                double lexScore = lex.score(new IntTaggedWord(word,
+                                tagIndex.indexOf(stateIndex.get(state))),
+                        start, wordIndex.get(word), wordContextStr);
+                if (lexScore > Double.NEGATIVE_INFINITY) {
+                    tags.add(state);
+                    lexScores.add(lexScore);
+                }
+            }
+        }
+
+        int[] tagArr = new int[tags.size()];
+        double[] scoreArr = new double[tags.size()];
+        for (int i = 0; i < tagArr.length; i++) {
+            tagArr[i] = tags.get(i);
+            scoreArr[i] = lexScores.get(i);
+        }
+        chart.doLexCell(start, tagArr, scoreArr);
+    }
+
+    /**
+     * Log score of the sentence under semiringType, the inside
+     * log probability for sum-product and log-sum-exp and the best
+     * parse's for max-product.
+     */
+    public double getLogScore(Sentence sentence, SemiringFactory.SemiringType semiringType) {
+        SemiringChart chart = getSemiringChart(sentence,
+                SemiringFactory.getSemiring(semiringType));
+        return chart.getLogScore(stateIndex.indexOf(goalStr));
+    }
+
+    /**
+     * Viterbi parse of the sentence, null if there is none.
+     */
+    public Tree parse(Sentence sentence) {
+        SemiringChart chart = getSemiringChart(sentence,
+                SemiringFactory.getSemiring(SemiringFactory.SemiringType.MAX_PRODUCT));
+        Sentence words = new Sentence(sentence.getIndex());
+        words.addAll(sentence);
+        words.add(new Word(Lexicon.BOUNDARY, sentence.size()));
+
+        int goal = stateIndex.indexOf(goalStr);
+        Tree tree = chart.getBestTree(goal, words, stateIndex);
+        if (tree == null) {
+            log.error("No parse for sentence#{}: {}", sentence.getIndex(), sentence);
+            return null;
+        }
+        tree = new BoundaryRemover().transformTree(tree);
+        tree = new Debinarizer(false).transformTree(tree);
+        tree.setScore(chart.getLogScore(goal));
+        return tree;
+    }
+
     public int getNumStates() {
         return numStates;
     }
@@ -14,10 +14,12 @@ import com.kushalarora.compositionalLM.optimizer.AbstractOptimizer;
 import com.kushalarora.compositionalLM.optimizer.OptimizerFactory;
 import com.kushalarora.compositionalLM.options.ArgParser;
 import com.kushalarora.compositionalLM.options.Options;
+import com.kushalarora.compositionalLM.utils.MemoryBudget;
 import com.kushalarora.compositionalLM.utils.Parallelizer;
 import com.kushalarora.compositionalLM.utils.Visualization;
 import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.io.RuntimeIOException;
+import edu.stanford.nlp.trees.Tree;
 import edu.stanford.nlp.util.IntTuple;
 import lombok.Getter;
 import lombok.SneakyThrows;
@@ -30,6 +32,7 @@ import org.nd4j.linalg.factory.Nd4j;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -47,6 +50,9 @@ public class CompositionalLM {
     private final DocumentProcessorFactory docProcessorFactory;
     private final Model model;
     private Parallelizer parallelizer;
+    // built on first use, the model may be loaded later
+    private volatile MemoryEstimator memoryEstimator;
+    private final MemoryBudget memoryBudget;
 
     public CompositionalLM(StanfordCompositionalGrammar grammar, Options op, Model model,
                            Parallelizer parallelizer)
@@ -57,6 +63,7 @@ public class CompositionalLM {
         docProcessorFactory = new DocumentProcessorFactory(
                                 op, new TokenizerFactory( op, grammar));
         this.parallelizer = parallelizer;
+        memoryBudget = new MemoryBudget(op.trainOp.memoryBudget * 1024 * 1024);
     }
 
     @SneakyThrows
@@ -89,11 +96,29 @@ public class CompositionalLM {
             }
         }
 
+        // Bytes of the scores a heap cache keeps, held against
+        // the budget until the cache is cleared
+        final boolean heapCache = isHeapCache();
+        final Map<Sentence, Long> cachedBytes = new ConcurrentHashMap<Sentence, Long>();
+        // Scores with off heap stores a heap cache keeps, released
+        // when it is cleared. Any other score is released once used.
+        final Set<StanfordCompositionalInsideOutsideScore> offHeapScores =
+                Collections.newSetFromMap(
+                        new ConcurrentHashMap<StanfordCompositionalInsideOutsideScore, Boolean>());
         final CacheWrapper<Sentence, StanfordCompositionalInsideOutsideScore> trainCache =
                 CacheFactory.getCache(op, new Function<Sentence, StanfordCompositionalInsideOutsideScore>() {
                     @Nullable
                     public StanfordCompositionalInsideOutsideScore apply(@Nullable Sentence sentence) {
-                        return (StanfordCompositionalInsideOutsideScore)grammar.getScore(sentence);
+                        StanfordCompositionalInsideOutsideScore score =
+                                (StanfordCompositionalInsideOutsideScore) grammar.getScore(sentence);
+                        long bytes = getMemoryEstimator().getScoreBytes(sentence.size(), false);
+                        if (heapCache && cachedBytes.put(sentence, bytes) == null) {
+                            memoryBudget.hold(bytes);
+                        }
+                        if (heapCache && score.isOffHeap()) {
+                            offHeapScores.add(score);
+                        }
+                        return score;
                     }
                 });
 
@@ -106,7 +131,22 @@ public class CompositionalLM {
                             // train scorer
                             // TODO:: QScore;
                             public Double apply(Sentence sentence) {
-                                return grammar.getQScore(trainCache.get(sentence));
+                                long bytes = cachedBytes.containsKey(sentence) ?
+                                        0 : getMemoryEstimator().getScoreBytes(sentence.size(), false);
+                                return withBudget(sentence, bytes,
+                                        new Function<Sentence, Double>() {
+                                            public Double apply(Sentence sentence) {
+                                                StanfordCompositionalInsideOutsideScore score =
+                                                        trainCache.get(sentence);
+                                                try {
+                                                    return grammar.getQScore(score);
+                                                } finally {
+                                                    if (!heapCache) {
+                                                        score.releaseOffHeap();
+                                                    }
+                                                }
+                                            }
+                                        }, null);
                             }
                         },
                         new Function<Sentence, Double>() {
@@ -117,17 +157,34 @@ public class CompositionalLM {
                                         validIndexToDistListIdxMapping
                                                 .get(sentence.getIndex());
                                 Sentence distSentence = validDistSentList.get(distListIdx);
-                                return crossEntropySent(sentence, distSentence);
+                                return crossEntropySentWithBudget(null, sentence, distSentence);
                             }
                         },
                         new Function<Sentence, Derivatives>() {
                             @Nullable
                             // derivative calculator
                             public Derivatives apply(@Nullable Sentence sentence) {
-                                Derivatives derivatives = new Derivatives(op,
-                                        model, trainCache.get(sentence));
-                                derivatives.calcDerivative();
-                                return derivatives;
+                                long bytes = getMemoryEstimator().getTrainingBytes(sentence.size());
+                                if (cachedBytes.containsKey(sentence)) {
+                                    bytes -= getMemoryEstimator().getScoreBytes(sentence.size(), false);
+                                }
+                                return withBudget(sentence, bytes,
+                                        new Function<Sentence, Derivatives>() {
+                                            public Derivatives apply(Sentence sentence) {
+                                                StanfordCompositionalInsideOutsideScore score =
+                                                        trainCache.get(sentence);
+                                                try {
+                                                    Derivatives derivatives =
+                                                            new Derivatives(op, model, score);
+                                                    derivatives.calcDerivative();
+                                                    return derivatives;
+                                                } finally {
+                                                    if (!heapCache) {
+                                                        score.releaseOffHeap();
+                                                    }
+                                                }
+                                            }
+                                        }, null);
                             }
                         },
                         new Function<IntTuple, Void>() {
@@ -147,6 +204,13 @@ public class CompositionalLM {
         // TODO: Add early stopping logic.
         while (EMIter < op.trainOp.maxEMEpochs) {
             trainCache.clear();
+            for (Sentence sentence : cachedBytes.keySet()) {
+                memoryBudget.drop(cachedBytes.remove(sentence));
+            }
+            for (StanfordCompositionalInsideOutsideScore score : offHeapScores) {
+                score.releaseOffHeap();
+            }
+            offHeapScores.clear();
             // Fit training data with validation on validation file.
             optimizer.fit(trainSentList, validSentList);
             double bestEMIterTillNow = optimizer.getBestValidationScore();
@@ -202,16 +266,67 @@ public class CompositionalLM {
         saveModelSerialized(op.modelOp.outFilename);
     }
 
-    public void parse() {
-       /* for (String filename : op.testOp.parseFiles) {
-            DocumentIterator docProcessor = docProcessorFactory
-                    .getDocumentIterator(filename);
-            for (Sentence sentence : docProcessor) {
-                compGrammar.parse(sentence);
-            }
+    public void parse() throws IOException, ExecutionException, InterruptedException {
+        final PrintWriter writer = new PrintWriter(new File(op.testOp.outputFile), "UTF-8");
+        DocumentProcessorWrapper<Sentence> documentProcessor =
+                docProcessorFactory.getDocumentProcessor();
+        for (String parseFile : op.testOp.parseFiles) {
+            long epochParseFileTime = System.currentTimeMillis();
+            Iterator<Sentence> parseIter = documentProcessor.getIterator(parseFile);
 
-        }*/
+            while (parseIter.hasNext()) {
+                final List<Sentence> parseList = new ArrayList<Sentence>();
+
+                for (int idx = 0; idx < op.testOp.testBatchSize && parseIter.hasNext(); idx++) {
+                    parseList.add(parseIter.next());
+                }
+
+                int parseBatchSize = parseList.size();
+
+                Function<Integer, Tree> parseFunc = new Function<Integer, Tree>() {
+                    @Nullable
+                    public Tree apply(@Nullable Integer integer) {
+                        Sentence sentence = parseList.get(integer);
+                        return withBudget(sentence,
+                                getMemoryEstimator().getScoreBytes(sentence.size(), true),
+                                new Function<Sentence, Tree>() {
+                                    public Tree apply(Sentence sentence) {
+                                        return grammar.parse(sentence);
+                                    }
+                                }, null);
+                    }
+                };
+
+                // Trees are written in the order of the sentences
+                List<Tree> trees = new ArrayList<Tree>();
+                if (op.trainOp.parallel) {
+                    List<Future<List<Tree>>> parseFutures =
+                            parallelizer.parallelizer(0, parseBatchSize, parseFunc);
 
+                    for (Future<List<Tree>> future : parseFutures) {
+                        trees.addAll(future.get());
+                    }
+                } else {
+                    for (int i = 0; i < parseBatchSize; i++) {
+                        trees.add(parseFunc.apply(i));
+                    }
+                }
+
+                for (int i = 0; i < parseBatchSize; i++) {
+                    Tree tree = trees.get(i);
+                    writer.println(parseList.get(i));
+                    if (tree == null) {
+                        writer.println("(())");
+                        continue;
+                    }
+                    writer.println(String.format("logProb: %.4f", tree.score()));
+                    writer.println(tree);
+                }
+            }
+            log.info("$Parsing$:: Parsed file {}, time: {}",
+                    parseFile, System.currentTimeMillis() - epochParseFileTime);
+        }
+        writer.close();
     }
 
     public void nbestList() {
@@ -247,34 +362,46 @@ public class CompositionalLM {
                 Function<Integer, Double> testFunc = new Function<Integer, Double>() {
                     @Nullable
                     public Double apply(@Nullable Integer integer) {
-                        StanfordCompositionalInsideOutsideScore score =
-                                (StanfordCompositionalInsideOutsideScore)
-                                        grammar.getInsideScore(testList.get(integer), true);
-                        Sentence sentence = score.getSentence();
-                        Double logP = score.getSentenceScore();
-                        log.info(String.format("Length: %d, logProp: %.4f", sentence.size(), logP));
-                        synchronized (writer) {
-                            writer.println(sentence);
-                            writer.println(String.format("Length: %d, logProp: %.4f", sentence.size(), logP));
-                        }
-                        return logP;
+                        Sentence testSentence = testList.get(integer);
+                        return withBudget(testSentence,
+                                getMemoryEstimator().getScoreBytes(testSentence.size(), true),
+                                new Function<Sentence, Double>() {
+                                    public Double apply(Sentence testSentence) {
+                                        StanfordCompositionalInsideOutsideScore score =
+                                                (StanfordCompositionalInsideOutsideScore)
+                                                        grammar.getInsideScore(testSentence, true);
+                                        Sentence sentence = score.getSentence();
+                                        Double logP = score.getSentenceScore();
+                                        log.info(String.format("Length: %d, logProp: %.4f", sentence.size(), logP));
+                                        synchronized (writer) {
+                                            writer.println(sentence);
+                                            writer.println(String.format("Length: %d, logProp: %.4f", sentence.size(), logP));
+                                        }
+                                        return logP;
+                                    }
+                                }, null);
                     }
                 };
 
+                // null for a sentence that was skipped
                 if (op.trainOp.parallel) {
                     List<Future<List<Double>>> testScoreFutures =
                             parallelizer.parallelizer(0, testBatchSize, testFunc);
 
                     for (Future<List<Double>> future : testScoreFutures) {
                         List<Double> scoreList = future.get();
-                        for (double score : scoreList) {
-                            logScoreFile += score;
+                        for (Double score : scoreList) {
+                            if (score != null) {
+                                logScoreFile += score;
+                            }
                         }
                     }
                 } else {
                     for (int i = 0; i < testBatchSize; i++) {
-                        double score = testFunc.apply(i);
-                        logScoreFile += score;
+                        Double score = testFunc.apply(i);
+                        if (score != null) {
+                            logScoreFile += score;
+                        }
                     }
                 }
             }
@@ -314,13 +441,15 @@ public class CompositionalLM {
                 }
 
                 double contEntropyScore = 0;
+                // sentences scored, a skipped one is null
+                int contEntropyCount = 0;
                 int testBatchSize = testList.size();
                 Function<Integer, Double> testFunc = new Function<Integer, Double>() {
                     @Nullable
                     public Double apply(@Nullable Integer i) {
-                        return crossEntropySent(writer,
-                                                testList.get(i),
-                                                testDistList.get(i));
+                        return crossEntropySentWithBudget(writer,
+                                                          testList.get(i),
+                                                          testDistList.get(i));
                     }
                 };
 
@@ -330,18 +459,24 @@ public class CompositionalLM {
 
                     for (Future<List<Double>> future : testScoreFutures) {
                         List<Double> scoreList = future.get();
-                        for (double score : scoreList) {
-                            contEntropyScore += score;
+                        for (Double score : scoreList) {
+                            if (score != null) {
+                                contEntropyScore += score;
+                                contEntropyCount++;
+                            }
                         }
                     }
                 } else {
                     for (int j = 0; j < testBatchSize; j++) {
-                        double score = testFunc.apply(j);
-                        contEntropyScore += score;
+                        Double score = testFunc.apply(j);
+                        if (score != null) {
+                            contEntropyScore += score;
+                            contEntropyCount++;
+                        }
                     }
                 }
                 logScoreFile += contEntropyScore;
-                logSentCount += testBatchSize;
+                logSentCount += contEntropyCount;
             }
 
             double estimatedTestfileTime = System.currentTimeMillis() - epochTestfileTime;
@@ -386,6 +521,81 @@ public class CompositionalLM {
         return crossEntropySent(null, sentence, distSentence);
     }
 
+    /**
+     * Contrastive entropy of the sentence once the memory budget admits
+     * it. Its two inside passes run one after the other, so it needs as
+     * much as the longer of the sentence and its distortion.
+     *
+     * @return null if the sentence was skipped
+     */
+    private Double crossEntropySentWithBudget(final PrintWriter writer, final Sentence sentence,
+                                              final Sentence distSentence) {
+        int maxSize = Math.max(sentence.size(), distSentence.size());
+        return withBudget(sentence,
+                getMemoryEstimator().getScoreBytes(maxSize, true),
+                new Function<Sentence, Double>() {
+                    public Double apply(Sentence sentence) {
+                        return crossEntropySent(writer, sentence, distSentence);
+                    }
+                }, null);
+    }
+
+    /**
+     * Whether the cache keeps scores on this heap, and so
+     * takes from the memory budget while they are cached.
+     */
+    private boolean isHeapCache() {
+        switch (op.cacheOp.cacheType) {
+            case GUAVA:
+            case EHCACHE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private MemoryEstimator getMemoryEstimator() {
+        if (memoryEstimator == null) {
+            synchronized (this) {
+                if (memoryEstimator == null) {
+                    memoryEstimator = new MemoryEstimator(model.getDimensions(),
+                            grammar.getNumStates(), model.getVocabSize(),
+                            op.grammarOp.maxSpanWidth, op.modelOp.singlePrecision,
+                            op.grammarOp.offHeapLength, op.trainOp.adjointGradients);
+                }
+            }
+        }
+        return memoryEstimator;
+    }
+
+    /**
+     * Apply func to the sentence once the memory budget admits the
+     * estimated bytes for it, waiting if need be. A sentence the heap
+     * could never hold is skipped and gets rejected instead.
+     */
+    private <R> R withBudget(Sentence sentence, long bytes,
+                             Function<Sentence, R> func, R rejected) {
+        try {
+            if (memoryBudget.isEnabled() && bytes > memoryBudget.getBudget()) {
+                log.warn("Sentence#{}[{}] needs about {} MB, more than the budget. Running it alone",
+                        sentence.getIndex(), sentence.size(), bytes >> 20);
+            }
+            if (!memoryBudget.acquire(bytes)) {
+                log.error("Skipping sentence#{}[{}], needs about {} MB, more than the heap",
+                        sentence.getIndex(), sentence.size(), bytes >> 20);
+                return rejected;
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        try {
+            return func.apply(sentence);
+        } finally {
+            memoryBudget.release(bytes);
+        }
+    }
+
 
 
         @SneakyThrows
@@ -504,6 +714,10 @@ public class CompositionalLM {
         } else if (type.equals(Options.FileType.SERIALIZED)) {
             model = loadModelSerialized(filename);
         }
+        if (model != null) {
+            // the saved model may be of the other precision
+            model.getParams().convertPrecision(op.modelOp.singlePrecision);
+        }
         return model;
     }
 
@@ -4,6 +4,7 @@ import com.kushalarora.compositionalLM.lang.GrammarFactory;
 import com.kushalarora.compositionalLM.lang.IGrammar;
 import com.kushalarora.compositionalLM.lang.Word;
 import com.kushalarora.compositionalLM.options.Options;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -28,6 +29,50 @@ public class Model implements Serializable {
     private ActivationFunction g;
     private GrammarFactory.GrammarType grammarType;
 
+    // W_L, W_R halves of the W they were split from,
+    // at the parameter version they were split at
+    @Getter(AccessLevel.NONE)
+    private transient INDArray wL;
+    @Getter(AccessLevel.NONE)
+    private transient INDArray wR;
+    @Getter(AccessLevel.NONE)
+    private transient INDArray wSplit;
+    @Getter(AccessLevel.NONE)
+    private transient int wSplitVersion;
+
+    // W_L, W_R and u as plain arrays for the VectorKernels path,
+    // with the W and u and the version they were copied from
+    private static class KernelParams {
+        final INDArray W;
+        final INDArray u;
+        final int version;
+        final double[] wL;
+        final double[] wR;
+        final double[] uVec;
+
+        KernelParams(INDArray W, INDArray u, int version, int dimensions) {
+            this.W = W;
+            this.u = u;
+            this.version = version;
+            wL = new double[dimensions * dimensions];
+            wR = new double[dimensions * dimensions];
+            uVec = new double[dimensions];
+            for (int row = 0; row < dimensions; row++) {
+                for (int col = 0; col < dimensions; col++) {
+                    wL[row * dimensions + col] = W.getDouble(row, col);
+                    wR[row * dimensions + col] = W.getDouble(row, dimensions + col);
+                }
+                uVec[row] = u.getDouble(row);
+            }
+        }
+    }
+
+    @Getter(AccessLevel.NONE)
+    private transient volatile KernelParams kernelParams;
+
+    @Getter(AccessLevel.NONE)
+    private transient volatile VocabularyTables vocabularyTables;
+
     public Model(@NonNull Options op,
                  @NonNull int dimensions,
                  @NonNull int vocabSize,
@@ -99,6 +144,209 @@ public class Model implements Serializable {
     }
 
 
+    /**
+     * Split W into [W_L W_R], once per W.
+     */
+    private synchronized INDArray[] getWHalves() {
+        INDArray W = params.getW();
+        // W is updated in place, so the version tells if it changed
+        int version = params.getVersion();
+        if (W != wSplit || version != wSplitVersion) {
+            int[] left = new int[dimensions];
+            int[] right = new int[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                left[i] = i;
+                right[i] = dimensions + i;
+            }
+            wL = W.getColumns(left);
+            wR = W.getColumns(right);
+            wSplit = W;
+            wSplitVersion = version;
+        }
+        return new INDArray[]{wL, wR};
+    }
+
+    /**
+     * @param child left child embedding. d dimension column vector.
+     * @return W_L * child, its share of W * [child; child2].
+     */
+    public INDArray projectLeft(@NonNull INDArray child) {
+        return getWHalves()[0].mmul(child);
+    }
+
+    /**
+     * @param child right child embedding. d dimension column vector.
+     * @return W_R * child, its share of W * [child1; child].
+     */
+    public INDArray projectRight(@NonNull INDArray child) {
+        return getWHalves()[1].mmul(child);
+    }
+
+    /**
+     * Compose parent node from the projections of its children,
+     * W_L * child1 and W_R * child2 where W = [W_L W_R].
+     *
+     * @see ProjectionCache
+     */
+    public INDArray composeProjected(@NonNull INDArray leftProjection,
+                                     @NonNull INDArray rightProjection) {
+        return f.apply(leftProjection.add(rightProjection));
+    }
+
+    public INDArray composeDerivativeProjected(@NonNull INDArray leftProjection,
+                                               @NonNull INDArray rightProjection) {
+        return f.applyDerivative(leftProjection.add(rightProjection));
+    }
+
+    private KernelParams getKernelParams() {
+        KernelParams kp = kernelParams;
+        INDArray W = params.getW();
+        INDArray u = params.getU();
+        int version = params.getVersion();
+        if (kp == null || kp.W != W || kp.u != u || kp.version != version) {
+            // Racing threads copy the same values, either one may win.
+            kp = new KernelParams(W, u, version, dimensions);
+            kernelParams = kp;
+        }
+        return kp;
+    }
+
+    /**
+     * Per word leaf values at the current parameters,
+     * replaced by empty tables once they change.
+     */
+    public VocabularyTables getVocabularyTables() {
+        VocabularyTables tables = vocabularyTables;
+        int version = params.getVersion();
+        if (tables == null || tables.getVersion() != version) {
+            tables = new VocabularyTables(this, version);
+            vocabularyTables = tables;
+        }
+        return tables;
+    }
+
+    /**
+     * Embedding of the word copied into out.
+     */
+    public void word2vec(@NonNull Word word, double[] out) {
+        INDArray vector = word2vec(word);
+        for (int i = 0; i < dimensions; i++) {
+            out[i] = vector.getDouble(i);
+        }
+    }
+
+    /**
+     * out = W_L * child. out must not be child.
+     */
+    public void projectLeft(double[] child, double[] out) {
+        VectorKernels.matVec(getKernelParams().wL, child, out, dimensions);
+    }
+
+    /**
+     * out = W_R * child. out must not be child.
+     */
+    public void projectRight(double[] child, double[] out) {
+        VectorKernels.matVec(getKernelParams().wR, child, out, dimensions);
+    }
+
+    /**
+     * out += W_L^T * delta, delta pulled back through
+     * {@link #projectLeft(double[], double[])}. out must not be delta.
+     */
+    public void backProjectLeft(double[] delta, double[] out) {
+        VectorKernels.addMatTVec(getKernelParams().wL, delta, out, dimensions);
+    }
+
+    /**
+     * out += W_R^T * delta, delta pulled back through
+     * {@link #projectRight(double[], double[])}. out must not be delta.
+     */
+    public void backProjectRight(double[] delta, double[] out) {
+        VectorKernels.addMatTVec(getKernelParams().wR, delta, out, dimensions);
+    }
+
+    /**
+     * out += scale * u
+     */
+    public void addScaledU(double scale, double[] out) {
+        VectorKernels.addScaled(getKernelParams().uVec, 0, scale, out, 0, dimensions);
+    }
+
+    /**
+     * out = f(leftProjection + rightProjection), as
+     * {@link #composeProjected(INDArray, INDArray)}.
+     */
+    public void composeProjected(double[] leftProjection, double[] rightProjection,
+                                 double[] out) {
+        VectorKernels.Activation activation = VectorKernels.Activation.of(f);
+        if (activation == null) {
+            copy(composeProjected(column(leftProjection), column(rightProjection)), out);
+            return;
+        }
+        VectorKernels.addApply(activation, leftProjection, rightProjection, out, dimensions);
+    }
+
+    /**
+     * out = f'(leftProjection + rightProjection), as
+     * {@link #composeDerivativeProjected(INDArray, INDArray)}.
+     */
+    public void composeDerivativeProjected(double[] leftProjection, double[] rightProjection,
+                                           double[] out) {
+        VectorKernels.Activation activation = VectorKernels.Activation.of(f);
+        if (activation == null) {
+            copy(composeDerivativeProjected(
+                    column(leftProjection), column(rightProjection)), out);
+            return;
+        }
+        VectorKernels.addDerivative(activation, leftProjection, rightProjection, out, dimensions);
+    }
+
+    /**
+     * out = f(W * [child1; child2]), as {@link #compose(INDArray, INDArray)}.
+     * scratch is a d long buffer, none of the arrays may be the same.
+     */
+    public void compose(double[] child1, double[] child2, double[] scratch, double[] out) {
+        projectLeft(child1, scratch);
+        projectRight(child2, out);
+        composeProjected(scratch, out, out);
+    }
+
+    /**
+     * g(u * node), as {@link #energy(INDArray)}.
+     */
+    public double energy(double[] node) {
+        VectorKernels.Activation activation = VectorKernels.Activation.of(g);
+        if (activation == null) {
+            return energy(column(node));
+        }
+        return activation.apply(VectorKernels.dot(getKernelParams().uVec, node, dimensions));
+    }
+
+    /**
+     * g'(u * node), as {@link #energyDerivative(INDArray)}.
+     */
+    public double energyDerivative(double[] node) {
+        VectorKernels.Activation activation = VectorKernels.Activation.of(g);
+        if (activation == null) {
+            return energyDerivative(column(node));
+        }
+        return activation.derivative(VectorKernels.dot(getKernelParams().uVec, node, dimensions));
+    }
+
+    private INDArray column(double[] vector) {
+        INDArray column = Nd4j.zeros(dimensions, 1);
+        for (int i = 0; i < dimensions; i++) {
+            column.putScalar(i, vector[i]);
+        }
+        return column;
+    }
+
+    private void copy(INDArray vector, double[] out) {
+        for (int i = 0; i < dimensions; i++) {
+            out[i] = vector.getDouble(i);
+        }
+    }
+
     public INDArray composeDerivative(@NonNull INDArray child1, @NonNull INDArray child2) {
         if (!child1.isColumnVector() || !child2.isColumnVector()) {
             throw new IllegalArgumentException("Child1 and Child2 should be column vectors");
@@ -6,17 +6,25 @@ import com.kushalarora.compositionalLM.derivatives.Derivatives;
 import com.kushalarora.compositionalLM.derivatives.IDerivatives;
 import com.kushalarora.compositionalLM.lang.Sentence;
 import com.kushalarora.compositionalLM.options.Options;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.math3.random.JDKRandomGenerator;
 import org.apache.commons.math3.random.RandomGenerator;
+import org.nd4j.linalg.api.buffer.DataBuffer;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 
 
 /**
  * Created by karora on 7/14/15.
+ *
+ * All parameters live in one row vector theta = [W u X], each in
+ * column major order, and W, u and X are views into it. Updates are
+ * done in place, so a step allocates no new parameter arrays and
+ * anything that works on the whole model, e.g. a checkpoint, can take
+ * theta as one buffer.
  */
 
 @Getter
@@ -24,23 +32,115 @@ import org.nd4j.linalg.factory.Nd4j;
 @Slf4j
 public class Parameters implements IParameter<Sentence> {
     private final Options op;
+    @Setter(AccessLevel.NONE)
+    private INDArray theta;
     private INDArray W;
     private INDArray u;
     private INDArray X;
     private final int dimensions;
     private final int vocabSize;
 
+    // Bumped on every change of the values, for
+    // copies of them cached elsewhere, e.g. in Model
+    @Setter(AccessLevel.NONE)
+    private transient volatile int version;
+
     public Parameters(Options op, int dimensions, int vocabSize) {
         RandomGenerator rng = new JDKRandomGenerator();
         rng.setSeed(2204);
         this.dimensions = dimensions;
         this.vocabSize = vocabSize;
-        W = Nd4j.rand(dimensions, 2 * dimensions, -1, 1, rng);      // d X 2d matrix
-        u = Nd4j.rand(1, dimensions, -1, 1, rng);                   // row vector with d entries
-        X = Nd4j.rand(dimensions, vocabSize, -1, 1, rng);           // d X V matrix
+        setNd4jPrecision(op.modelOp.singlePrecision);
+        theta = Nd4j.zeros(1, size(dimensions, vocabSize));
+        createViews();
+        W.assign(Nd4j.rand(dimensions, 2 * dimensions, -1, 1, rng));      // d X 2d matrix
+        u.assign(Nd4j.rand(1, dimensions, -1, 1, rng));                   // row vector with d entries
+        X.assign(Nd4j.rand(dimensions, vocabSize, -1, 1, rng));           // d X V matrix
         this.op = op;
     }
 
+    /**
+     * Number of entries of theta.
+     */
+    public static int size(int dimensions, int vocabSize) {
+        return 2 * dimensions * dimensions + dimensions + dimensions * vocabSize;
+    }
+
+    private void createViews() {
+        int uOffset = 2 * dimensions * dimensions;
+        int xOffset = uOffset + dimensions;
+        W = Nd4j.create(theta.data(), new int[]{dimensions, 2 * dimensions}, 0);
+        u = Nd4j.create(theta.data(), new int[]{1, dimensions}, uOffset);
+        X = Nd4j.create(theta.data(), new int[]{dimensions, vocabSize}, xOffset);
+    }
+
+    /**
+     * Copy values into theta, W, u and X keep viewing it.
+     */
+    public void setTheta(INDArray theta) {
+        this.theta.assign(theta);
+        version++;
+    }
+
+    /**
+     * Copy values into the W view of theta.
+     */
+    public void setW(INDArray W) {
+        this.W.assign(W);
+        version++;
+    }
+
+    /**
+     * Copy values into the u view of theta.
+     */
+    public void setU(INDArray u) {
+        this.u.assign(u);
+        version++;
+    }
+
+    /**
+     * Copy values into the X view of theta.
+     */
+    public void setX(INDArray X) {
+        this.X.assign(X);
+        version++;
+    }
+
+    /**
+     * Make nd4j create float or double arrays. The setting is global
+     * and arrays of the two types cannot be multiplied together, so
+     * every model of the process must share it.
+     */
+    public static void setNd4jPrecision(boolean singlePrecision) {
+        Nd4j.dtype = singlePrecision ? DataBuffer.FLOAT : DataBuffer.DOUBLE;
+    }
+
+    /**
+     * Switch nd4j to the given precision and convert W, u and X to
+     * it, for a model saved in the other one.
+     */
+    public void convertPrecision(boolean singlePrecision) {
+        setNd4jPrecision(singlePrecision);
+        theta = convert(theta);
+        createViews();
+        version++;
+    }
+
+    private static INDArray convert(INDArray array) {
+        int length = array.length();
+        if (Nd4j.dtype == DataBuffer.FLOAT) {
+            float[] data = new float[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = array.getFloat(i);
+            }
+            return Nd4j.create(data, array.shape());
+        }
+        double[] data = new double[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = array.getDouble(i);
+        }
+        return Nd4j.create(data, array.shape());
+    }
 
     @Override
     public boolean equals(Object o) {
@@ -81,21 +181,22 @@ public class Parameters implements IParameter<Sentence> {
                     parameters.vocabSize + ") " +
                     "are not of same size");
         }
-        W = parameters.W;
-        u = parameters.u;
-        X = parameters.X;
+        W.assign(parameters.W);
+        u.assign(parameters.u);
+        X.assign(parameters.X);
+        version++;
     }
 
     public void update(IDerivatives<Sentence> derivatives) {
         Derivatives dq = (Derivatives) derivatives;
         log.info("old W =\n {}", W);
         log.info("dW =\n {}", dq.getDqdw().getDQdW());
-        W = W.add(dq.getDqdw().getDQdW());
+        W.addi(dq.getDqdw().getDQdW());
         log.info("new W =\n {}", W);
 
         log.info("old u = \n {}", u);
         log.info("du = \n {}", dq.getDqdu().getDQdu());
-        u = u.add(dq.getDqdu().getDQdu());
+        u.addi(dq.getDqdu().getDQdu());
         log.info("new u = \n {}", u);
 
         log.info("old X = \n {}", X);
@@ -105,15 +206,14 @@ public class Parameters implements IParameter<Sentence> {
                 ((Map<Integer, INDArray>)dq.getDqdxw().getIndexToxMap()).entrySet()) {
             Integer key = entry.getKey();
             INDArray value = entry.getValue();
-            X.putColumn(key, value.add(X.getColumn(key)));
+            X.getColumn(key).addi(value);
         }
 
         double l2term = op.trainOp.l2term;
         if (l2term != 0) {
-            u = u.sub(u.mul(l2term));
-            W = W.sub(W.mul(l2term));
-            X = X.sub(X.mul(l2term));
+            theta.muli(1 - l2term);
         }
+        version++;
 
 /*
         X = X.subRowVector(X.mean(0));
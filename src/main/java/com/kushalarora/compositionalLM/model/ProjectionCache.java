@@ -0,0 +1,189 @@
+package com.kushalarora.compositionalLM.model;
+
+import com.kushalarora.compositionalLM.chart.SpanIndex;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Projections of the phrases of one chart by the two halves of
+ * W = [W_L W_R]. As W * [c_1; c_2] = W_L * c_1 + W_R * c_2, a phrase is
+ * multiplied by W_L once as a left child and by W_R once as a right child
+ * and the result is reused for every split it takes part in, so composing
+ * a split costs O(d) instead of O(d^2).
+ *
+ * Projections are computed on first use, so the phrase must be final
+ * by then. They are kept as plain arrays and composed with the model's
+ * VectorKernels into a buffer of the caller. Given the words of the
+ * leaves, the projections of a leaf are taken from the model's
+ * VocabularyTables instead.
+ *
+ * The phrases are those of scoring time. Once the parameters change,
+ * e.g. for a cached score reused in a later epoch, every projection is
+ * taken anew from the stored phrases, leaves included, so that all the
+ * compositions use the same W.
+ */
+public class ProjectionCache implements Serializable {
+    private final Model model;
+    private final SpanVectors phraseMatrix;
+    private final SpanIndex index;
+    private final int dim;
+    // word index of leaf (start, start + 1), null to project leaves too
+    private final int[] leafWords;
+
+    // tables of the parameters at creation, used for
+    // the leaves as long as they are still current
+    private final transient VocabularyTables tables;
+    // parameter version the projections below are for
+    private volatile int version;
+
+    // W_L * X(start, end), W_R * X(start, end) by packed cell
+    private final double[][] leftProjection;
+    private final double[][] rightProjection;
+
+    public ProjectionCache(Model model, SpanVectors phraseMatrix) {
+        this(model, phraseMatrix, null);
+    }
+
+    /**
+     * @param leafWords word index of each leaf, whose phrase
+     *                  must be the embedding of the word
+     */
+    public ProjectionCache(Model model, SpanVectors phraseMatrix, int[] leafWords) {
+        this.model = model;
+        this.leafWords = leafWords;
+        this.phraseMatrix = phraseMatrix;
+        index = phraseMatrix.getIndex();
+        dim = phraseMatrix.getDim();
+
+        leftProjection = new double[index.getNumCells()][];
+        rightProjection = new double[index.getNumCells()][];
+        version = model.getParams().getVersion();
+        tables = leafWords != null ? model.getVocabularyTables() : null;
+    }
+
+    /**
+     * Model the phrases are projected with.
+     */
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * Drop the projections taken with parameters that have changed.
+     */
+    private void checkVersion() {
+        int current = model.getParams().getVersion();
+        if (current != version) {
+            synchronized (this) {
+                if (current != version) {
+                    Arrays.fill(leftProjection, null);
+                    Arrays.fill(rightProjection, null);
+                    version = current;
+                }
+            }
+        }
+    }
+
+    private boolean isTableLeaf(int start, int end) {
+        return leafWords != null && end == start + 1 && tables.getVersion() == version;
+    }
+
+    /**
+     * W_L * X(start, end), the phrase projected as a left child.
+     */
+    public double[] getLeftProjection(int start, int end) {
+        checkVersion();
+        if (isTableLeaf(start, end)) {
+            return tables.get(leafWords[start]).getLeftProjection();
+        }
+        int cell = index.cell(start, end);
+        double[] projection = leftProjection[cell];
+        if (projection == null) {
+            // Racing threads compute the same value, either one may win.
+            double[] phrase = new double[dim];
+            phraseMatrix.get(start, end, phrase);
+            projection = new double[dim];
+            model.projectLeft(phrase, projection);
+            leftProjection[cell] = projection;
+        }
+        return projection;
+    }
+
+    /**
+     * W_R * X(start, end), the phrase projected as a right child.
+     */
+    public double[] getRightProjection(int start, int end) {
+        checkVersion();
+        if (isTableLeaf(start, end)) {
+            return tables.get(leafWords[start]).getRightProjection();
+        }
+        int cell = index.cell(start, end);
+        double[] projection = rightProjection[cell];
+        if (projection == null) {
+            double[] phrase = new double[dim];
+            phraseMatrix.get(start, end, phrase);
+            projection = new double[dim];
+            model.projectRight(phrase, projection);
+            rightProjection[cell] = projection;
+        }
+        return projection;
+    }
+
+    /**
+     * Drop the projections of X(start, end) once
+     * no span still to be composed needs them.
+     */
+    public void release(int start, int end) {
+        int cell = index.cell(start, end);
+        leftProjection[cell] = null;
+        rightProjection[cell] = null;
+    }
+
+    /**
+     * out = model.compose(X(start, split), X(split, end))
+     */
+    public void compose(int start, int end, int split, double[] out) {
+        model.composeProjected(
+                getLeftProjection(start, split),
+                getRightProjection(split, end), out);
+    }
+
+    /**
+     * out = model.composeDerivative(X(start, split), X(split, end))
+     */
+    public void composeDerivative(int start, int end, int split, double[] out) {
+        model.composeDerivativeProjected(
+                getLeftProjection(start, split),
+                getRightProjection(split, end), out);
+    }
+
+    /**
+     * Same as model.compose(X(start, split), X(split, end)).
+     */
+    public INDArray compose(int start, int end, int split) {
+        double[] composition = new double[dim];
+        compose(start, end, split, composition);
+        return column(composition);
+    }
+
+    /**
+     * Same as model.composeDerivative(X(start, split), X(split, end)).
+     */
+    public INDArray composeDerivative(int start, int end, int split) {
+        double[] derivative = new double[dim];
+        composeDerivative(start, end, split, derivative);
+        return column(derivative);
+    }
+
+    private INDArray column(double[] vector) {
+        INDArray column = Nd4j.zeros(dim, 1);
+        for (int i = 0; i < dim; i++) {
+            column.putScalar(i, vector[i]);
+        }
+        return column;
+    }
+}
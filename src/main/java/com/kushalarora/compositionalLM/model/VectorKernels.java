@@ -0,0 +1,133 @@
+package com.kushalarora.compositionalLM.model;
+
+import org.apache.commons.math3.util.FastMath;
+import org.nd4j.linalg.api.activation.ActivationFunction;
+import org.nd4j.linalg.api.activation.Linear;
+import org.nd4j.linalg.api.activation.Tanh;
+
+/**
+ * Loops over plain double[] vectors of the model's dimension, for the
+ * per split composition and energy work. At d = 15..25 an nd4j call costs
+ * more in INDArray objects, shape checks and JNI than in arithmetic;
+ * these write into buffers the caller owns and allocate nothing.
+ *
+ * Matrices are row major d x d arrays.
+ */
+public final class VectorKernels {
+    private VectorKernels() {
+    }
+
+    /**
+     * Element wise activation with the semantics of the nd4j
+     * ActivationFunction it stands for, including its derivative.
+     */
+    public enum Activation {
+        // nd4j's Tanh derivative is 1 - x of the pre activation x
+        TANH {
+            public double apply(double x) {
+                return FastMath.tanh(x);
+            }
+
+            public double derivative(double x) {
+                return 1 - x;
+            }
+        },
+        LINEAR {
+            public double apply(double x) {
+                return x;
+            }
+
+            public double derivative(double x) {
+                return 1;
+            }
+        };
+
+        public abstract double apply(double x);
+
+        public abstract double derivative(double x);
+
+        /**
+         * Kernel of the nd4j activation, null if there is none.
+         */
+        public static Activation of(ActivationFunction function) {
+            if (function instanceof Tanh) {
+                return TANH;
+            } else if (function instanceof Linear) {
+                return LINEAR;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * a[aOffset .. aOffset + n) . b[0 .. n)
+     */
+    public static double dot(double[] a, int aOffset, double[] b, int n) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[aOffset + i] * b[i];
+            s1 += a[aOffset + i + 1] * b[i + 1];
+            s2 += a[aOffset + i + 2] * b[i + 2];
+            s3 += a[aOffset + i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[aOffset + i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public static double dot(double[] a, double[] b, int n) {
+        return dot(a, 0, b, n);
+    }
+
+    /**
+     * out = m * x, m a row major n x n matrix.
+     * out must not be x.
+     */
+    public static void matVec(double[] m, double[] x, double[] out, int n) {
+        for (int row = 0; row < n; row++) {
+            out[row] = dot(m, row * n, x, n);
+        }
+    }
+
+    /**
+     * out += m^T * x, m a row major n x n matrix.
+     * out must not be x.
+     */
+    public static void addMatTVec(double[] m, double[] x, double[] out, int n) {
+        for (int row = 0; row < n; row++) {
+            addScaled(m, row * n, x[row], out, 0, n);
+        }
+    }
+
+    /**
+     * out[outOffset .. outOffset + n) += scale * x[xOffset .. xOffset + n)
+     */
+    public static void addScaled(double[] x, int xOffset, double scale,
+                                 double[] out, int outOffset, int n) {
+        for (int i = 0; i < n; i++) {
+            out[outOffset + i] += scale * x[xOffset + i];
+        }
+    }
+
+    /**
+     * out = activation(a + b)
+     */
+    public static void addApply(Activation activation, double[] a, double[] b,
+                                double[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            out[i] = activation.apply(a[i] + b[i]);
+        }
+    }
+
+    /**
+     * out = activation'(a + b)
+     */
+    public static void addDerivative(Activation activation, double[] a, double[] b,
+                                     double[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            out[i] = activation.derivative(a[i] + b[i]);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.kushalarora.compositionalLM.model;
+
+import lombok.Getter;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import static java.lang.Math.exp;
+
+/**
+ * Values of a leaf that depend on nothing but the parameters and the
+ * word: its embedding x_w, energy g(u * x_w), zeta exp(-g(u * x_w)) and
+ * the projections W_L * x_w and W_R * x_w it enters the first level of
+ * composition with. An entry is computed the first time its word is
+ * looked up and is then shared by every occurrence of the word in every
+ * sentence, until the parameters change and Model hands out new tables.
+ *
+ * Entries are immutable, their arrays must not be written to.
+ */
+public class VocabularyTables {
+    @Getter
+    private final int version;
+    private final Model model;
+    private final Entry[] entries;
+
+    public static class Entry {
+        @Getter
+        private final double[] embedding;
+        @Getter
+        private final double energy;
+        @Getter
+        private final double zeta;
+        @Getter
+        private final double[] leftProjection;
+        @Getter
+        private final double[] rightProjection;
+
+        private Entry(Model model, int index) {
+            int dim = model.getDimensions();
+            INDArray X = model.getParams().getX();
+            embedding = new double[dim];
+            for (int i = 0; i < dim; i++) {
+                embedding[i] = X.getDouble(i, index);
+            }
+            energy = model.energy(embedding);
+            zeta = exp(-energy);
+            leftProjection = new double[dim];
+            model.projectLeft(embedding, leftProjection);
+            rightProjection = new double[dim];
+            model.projectRight(embedding, rightProjection);
+        }
+    }
+
+    /**
+     * @param model   model the entries are computed with
+     * @param version parameter version of the model they are valid for
+     */
+    VocabularyTables(Model model, int version) {
+        this.model = model;
+        this.version = version;
+        entries = new Entry[model.getVocabSize()];
+    }
+
+    /**
+     * Entry of the word with the given index.
+     */
+    public Entry get(int index) {
+        if (index < 0 || index >= entries.length) {
+            throw new RuntimeException(String.format("Word index must be between 0 to %d. " +
+                    "Word::Index %d", entries.length, index));
+        }
+        Entry entry = entries[index];
+        if (entry == null) {
+            // Racing threads compute the same entry, either one may win.
+            entry = new Entry(model, index);
+            entries[index] = entry;
+        }
+        return entry;
+    }
+}
@@ -1,7 +1,6 @@
 package com.kushalarora.compositionalLM.optimizer;
 
 import com.google.common.base.Function;
-import com.google.common.util.concurrent.AtomicDouble;
 import com.kushalarora.compositionalLM.derivatives.IDerivatives;
 import com.kushalarora.compositionalLM.options.Options;
 import com.kushalarora.compositionalLM.utils.Parallelizer;
@@ -58,31 +57,53 @@ public abstract class AbstractOptimizer<T extends IIndexedSized, D extends IDeri
         dvAcc.clear();
     }
 
-    private double getValidationScore(final List<T> validList) throws ExecutionException, InterruptedException {
-        int validBatchSize = validList.size();
-        double validBatchScore = 0;
-        Function<Integer, Double> validFunc = new Function<Integer, Double>() {
-            @Nullable
-            public Double apply(@Nullable Integer integer) {
-                return getValidationScore(validList.get(integer));
+    /**
+     * Scores of a batch summed over the samples that were scored. A
+     * sample skipped by admission control has a null score and is left
+     * out of both the total and the count.
+     */
+    public static class BatchScore {
+        @Getter
+        private double total;
+        @Getter
+        private int count;
+
+        void add(Double score) {
+            if (score != null) {
+                total += score;
+                count++;
             }
-        };
+        }
+    }
+
+    private BatchScore getBatchScore(final List<T> list, final Function<Integer, Double> func)
+            throws ExecutionException, InterruptedException {
+        int batchSize = list.size();
+        BatchScore batchScore = new BatchScore();
         if (op.trainOp.parallel) {
-            List<Future<List<Double>>> validScoreFutures =
-                    parallelizer.parallelizer(0, validBatchSize, validFunc);
+            List<Future<List<Double>>> futures =
+                    parallelizer.parallelizer(0, batchSize, func);
 
-            for (Future<List<Double>> future : validScoreFutures) {
-                List<Double> scoreList = future.get();
-                for (double score : scoreList) {
-                    validBatchScore += score;
+            for (Future<List<Double>> future : futures) {
+                for (Double score : future.get()) {
+                    batchScore.add(score);
                 }
             }
         } else {
-            for (int i = 0; i < validBatchSize; i++) {
-                validBatchScore += validFunc.apply(i);
+            for (int i = 0; i < batchSize; i++) {
+                batchScore.add(func.apply(i));
             }
         }
-        return validBatchScore;
+        return batchScore;
+    }
+
+    private BatchScore getValidationScore(final List<T> validList) throws ExecutionException, InterruptedException {
+        return getBatchScore(validList, new Function<Integer, Double>() {
+            @Nullable
+            public Double apply(@Nullable Integer integer) {
+                return getValidationScore(validList.get(integer));
+            }
+        });
     }
 
     private void fitBatch(final List<T> trainList)
@@ -99,58 +120,50 @@ public abstract class AbstractOptimizer<T extends IIndexedSized, D extends IDeri
                     }
                 };
 
+        int numFitted = 0;
         if (op.trainOp.parallel) {
             List<Future<List<D>>> futures =
                     parallelizer.parallelizer(0, batchSize, fitRoutine);
 
             for (Future<List<D>> future : futures) {
                 for (D derivative : future.get()) {
-                    derivativeAcc(derivative);
+                    // null for a sentence that was skipped
+                    if (derivative != null) {
+                        derivativeAcc(derivative);
+                        numFitted++;
+                    }
                 }
             }
         } else {
             for (int i = 0; i < batchSize; i++) {
                 D derivative = fitRoutine.apply(i);
-                derivativeAcc(derivative);
+                if (derivative != null) {
+                    derivativeAcc(derivative);
+                    numFitted++;
+                }
             }
         }
 
-        // update param for this batch
+        if (numFitted == 0) {
+            log.warn("Every sentence of the batch was skipped, no update");
+            return;
+        }
+
+        // update param for this batch, averaged over the sentences fitted
         D dAcc = getAccumulatedDerivative();
-        dAcc.mul(1.0 / batchSize);
+        dAcc.mul(1.0 / numFitted);
         updateParams(dAcc);
     }
 
 
-    public double getTrainBatchScore(final List<T> trainList)
+    public BatchScore getTrainBatchScore(final List<T> trainList)
             throws ExecutionException, InterruptedException {
-        int batchSize = trainList.size();
-        AtomicDouble atomicDouble = new AtomicDouble(0);
-        Function<Integer, Double> scoreRountine =
-                new Function<Integer, Double>() {
-                    @Nullable
-                    public Double apply(@Nullable Integer integer) {
-                        return getTrainScore(trainList.get(integer));
-                    }
-                };
-
-        if (op.trainOp.parallel) {
-            List<Future<List<Double>>> futures =
-                    parallelizer.parallelizer(0, batchSize, scoreRountine);
-
-            for (Future<List<Double>> future : futures) {
-                for (Double score : future.get()) {
-                    atomicDouble.addAndGet(score);
-                }
-            }
-        } else {
-            for (int i = 0; i < batchSize; i++) {
-                Double score = scoreRountine.apply(i);
-                atomicDouble.addAndGet(score);
+        return getBatchScore(trainList, new Function<Integer, Double>() {
+            @Nullable
+            public Double apply(@Nullable Integer integer) {
+                return getTrainScore(trainList.get(integer));
             }
-        }
-
-        return atomicDouble.get();
+        });
     }
 
     public void fit(final List<T> trainFileList, final List<T> validSet)
@@ -175,16 +188,15 @@ public abstract class AbstractOptimizer<T extends IIndexedSized, D extends IDeri
                     T data = trainIter.next();
                     trainList.add(data);
                 }
-                int trainBatchSize = trainList.size();
-
                 // train batch
                 fitBatch(trainList);
-                double trainBatchScore = getTrainBatchScore(trainList);
-                cumlTrainingScore += trainBatchScore;
-                cumlTrainingBatchSize += trainBatchSize;
+                BatchScore trainBatchScore = getTrainBatchScore(trainList);
+                cumlTrainingScore += trainBatchScore.getTotal();
+                cumlTrainingBatchSize += trainBatchScore.getCount();
                 long estimatedTime = System.currentTimeMillis() - batchStartTime;
                 log.info("$Training$ Ending epoch#: {}, batch#: {}, time: {} => {}",
-                        epoch, trainBatchIdx, estimatedTime, trainBatchScore / trainBatchSize);
+                        epoch, trainBatchIdx, estimatedTime,
+                        trainBatchScore.getTotal() / trainBatchScore.getCount());
 
                 // this iteration done
                 iter += 1;
@@ -207,9 +219,9 @@ public abstract class AbstractOptimizer<T extends IIndexedSized, D extends IDeri
                             validList.add(validIter.next());
                         }
 
-                        int validBatchSize = validList.size();
-                        cumlValidScore += getValidationScore(validList);
-                        cumlValidSize += validBatchSize;
+                        BatchScore validBatchScore = getValidationScore(validList);
+                        cumlValidScore += validBatchScore.getTotal();
+                        cumlValidSize += validBatchScore.getCount();
                         validBatchIdx++;
                     }
 
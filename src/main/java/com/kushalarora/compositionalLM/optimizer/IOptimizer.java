@@ -22,9 +22,15 @@ public interface IOptimizer<T extends IIndexedSized, D extends IDerivatives> {
 
     public void flushDerivaiveAcc();
 
-    public double getValidationScore(T data);
-
-    public double getTrainScore(T data);
+    /**
+     * @return null if the sample was skipped
+     */
+    public Double getValidationScore(T data);
+
+    /**
+     * @return null if the sample was skipped
+     */
+    public Double getTrainScore(T data);
 
     public void saveModel(int iter, int epoch);
 }
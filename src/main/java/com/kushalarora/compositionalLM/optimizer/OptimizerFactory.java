@@ -59,11 +59,11 @@ public class OptimizerFactory {
                         return model.getParams();
                     }
 
-                    public double getValidationScore(T data) {
+                    public Double getValidationScore(T data) {
                         return validScorer.apply(data);
                     }
 
-                    public double getTrainScore(T data) {
+                    public Double getTrainScore(T data) {
                         return trainScorer.apply(data);
                     }
 
@@ -82,11 +82,11 @@ public class OptimizerFactory {
                         return model.getParams();
                     }
 
-                    public double getValidationScore(T data) {
+                    public Double getValidationScore(T data) {
                         return validScorer.apply(data);
                     }
 
-                    public double getTrainScore(T data) {
+                    public Double getTrainScore(T data) {
                         return trainScorer.apply(data);
                     }
                     public void saveModel(int iter, int epoch) {
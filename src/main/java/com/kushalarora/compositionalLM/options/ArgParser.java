@@ -1,5 +1,6 @@
 package com.kushalarora.compositionalLM.options;
 
+import com.kushalarora.compositionalLM.chart.ChartFactory;
 import com.kushalarora.compositionalLM.documentprocessor.DocumentProcessorFactory;
 import com.kushalarora.compositionalLM.lang.GrammarFactory;
 import com.kushalarora.compositionalLM.utils.ArgUtils;
@@ -122,6 +123,57 @@ public class ArgParser {
                 op.grammarOp.grammarType = GrammarFactory.GrammarType.fromString(grammars[0]);
                 argIndex++;
 
+            } else if (args[argIndex].equalsIgnoreCase("-chartType")) {
+                String[] chartTypes = ArgUtils.getStringFromArg(args, argIndex);
+                if (chartTypes.length != 1) {
+                    throw new RuntimeException("You can specify only one chartType");
+                }
+                op.grammarOp.chartType = ChartFactory.ChartType.fromString(chartTypes[0]);
+                argIndex++;
+
+            } else if (args[argIndex].equalsIgnoreCase("-reuseCharts")) {
+                op.grammarOp.reuseCharts = true;
+
+            } else if (args[argIndex].equalsIgnoreCase("-beamThreshold")) {
+                String[] beams = ArgUtils.getStringFromArg(args, argIndex);
+                if (beams.length != 1) {
+                    throw new RuntimeException("You can specify only one beamThreshold");
+                }
+                op.grammarOp.beamThreshold = Double.parseDouble(beams[0]);
+                argIndex++;
+
+            } else if (args[argIndex].equalsIgnoreCase("-coarseThreshold")) {
+                String[] thresholds = ArgUtils.getStringFromArg(args, argIndex);
+                if (thresholds.length != 1) {
+                    throw new RuntimeException("You can specify only one coarseThreshold");
+                }
+                op.grammarOp.coarseThreshold = Double.parseDouble(thresholds[0]);
+                argIndex++;
+
+            } else if (args[argIndex].equalsIgnoreCase("-maxSpanWidth")) {
+                String[] widths = ArgUtils.getStringFromArg(args, argIndex);
+                if (widths.length != 1) {
+                    throw new RuntimeException("You can specify only one maxSpanWidth");
+                }
+                op.grammarOp.maxSpanWidth = Integer.parseInt(widths[0]);
+                argIndex++;
+
+            } else if (args[argIndex].equalsIgnoreCase("-offHeapLength")) {
+                String[] lengths = ArgUtils.getStringFromArg(args, argIndex);
+                if (lengths.length != 1) {
+                    throw new RuntimeException("You can specify only one offHeapLength");
+                }
+                op.grammarOp.offHeapLength = Integer.parseInt(lengths[0]);
+                argIndex++;
+
+            } else if (args[argIndex].equalsIgnoreCase("-offHeapDir")) {
+                String[] dirs = ArgUtils.getStringFromArg(args, argIndex);
+                if (dirs.length != 1) {
+                    throw new RuntimeException("You can specify only one offHeapDir");
+                }
+                op.grammarOp.offHeapDir = dirs[0];
+                argIndex++;
+
             } else if (args[argIndex].equalsIgnoreCase("-dimension")) {
                 String[] dimensions = ArgUtils.getStringFromArg(args, argIndex);
                 if (dimensions.length > 1) {
@@ -129,6 +181,8 @@ public class ArgParser {
                 }
                 op.modelOp.dimensions = Integer.parseInt(dimensions[0]);
                 argIndex++;
+            } else if (args[argIndex].equalsIgnoreCase("-singlePrecision")) {
+                op.modelOp.singlePrecision = true;
             } else if (args[argIndex].equalsIgnoreCase("-lowercase")) {
                 op.grammarOp.lowerCase = true;
             } else if (args[argIndex].equalsIgnoreCase("-parallel")) {
@@ -142,6 +196,19 @@ public class ArgParser {
                     op.trainOp.nThreads = Integer.parseInt(numThreads[0]);
                     argIndex++;
                 }
+            } else if (args[argIndex].equalsIgnoreCase("-lockFree")) {
+                op.trainOp.lockFree = true;
+            } else if (args[argIndex].equalsIgnoreCase("-parallelCells")) {
+                op.trainOp.parallelCells = true;
+            } else if (args[argIndex].equalsIgnoreCase("-memoryBudget")) {
+                String[] budgets = ArgUtils.getStringFromArg(args, argIndex);
+                if (budgets.length != 1) {
+                    throw new RuntimeException("You can specify only one memoryBudget");
+                }
+                op.trainOp.memoryBudget = Long.parseLong(budgets[0]);
+                argIndex++;
+            } else if (args[argIndex].equalsIgnoreCase("-forwardGradients")) {
+                op.trainOp.adjointGradients = false;
             } else if (args[argIndex].equalsIgnoreCase("-nlDelim")) {
                 op.grammarOp.newLineDelimiter = true;
             }   else if (args[argIndex].equalsIgnoreCase("-docType")) {
@@ -1,5 +1,6 @@
 package com.kushalarora.compositionalLM.options;
 
+import com.kushalarora.compositionalLM.chart.ChartFactory;
 import com.kushalarora.compositionalLM.lang.GrammarFactory;
 import com.kushalarora.compositionalLM.lang.TokenizerFactory;
 import lombok.ToString;
@@ -25,6 +26,29 @@ public class GrammarOptions implements Serializable {
     public boolean lowerCase;
     public boolean newLineDelimiter;
 
+    public ChartFactory.ChartType chartType;
+
+    public boolean reuseCharts;
+
+    // Cell states with inside score below beamThreshold times
+    // the best of the cell are pruned, 0 turns pruning off.
+    public double beamThreshold;
+
+    // Fine states whose base category has coarse pass posterior
+    // below coarseThreshold are pruned, 0 turns pruning off.
+    public double coarseThreshold;
+
+    // Spans wider than maxSpanWidth are only built right branching,
+    // from a left child of at most maxSpanWidth words. 0 is unbounded.
+    public int maxSpanWidth;
+
+    // Sentences of at least offHeapLength words keep their split
+    // level chart and composition vectors off the Java heap, 0 never
+    // does. They go to a memory mapped scratch file in offHeapDir,
+    // or to direct buffers if it is not set.
+    public int offHeapLength;
+
+    public String offHeapDir;
 
     public GrammarOptions(Configuration config) {
         maxLength = config.getInt("maxLength",
@@ -47,6 +71,22 @@ public class GrammarOptions implements Serializable {
 
         newLineDelimiter = config.getBoolean("nlDelim", false);
 
+        chartType =
+                ChartFactory.ChartType.fromString(
+                        config.getString("chartType", "sparse"));
+
+        reuseCharts = config.getBoolean("reuseCharts", false);
+
+        beamThreshold = config.getDouble("beamThreshold", 0);
+
+        coarseThreshold = config.getDouble("coarseThreshold", 0);
+
+        maxSpanWidth = config.getInt("maxSpanWidth", 0);
+
+        offHeapLength = config.getInt("offHeapLength", 0);
+
+        offHeapDir = config.getString("offHeapDir", null);
+
 
     }
 }
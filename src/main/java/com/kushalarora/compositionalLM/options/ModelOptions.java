@@ -15,6 +15,9 @@ public class ModelOptions implements Serializable {
     public Options.FileType inType;
     public String inFilename;
     public int dimensions;
+    // float rather than double parameters, phrase
+    // vectors and dense charts
+    public boolean singlePrecision;
 
 
     public ModelOptions(Configuration config) {
@@ -33,5 +36,8 @@ public class ModelOptions implements Serializable {
 
         dimensions =
                 config.getInt("dimensions", 10);
+
+        singlePrecision =
+                config.getBoolean("singlePrecision", false);
     }
 }
@@ -28,6 +28,8 @@ public class TrainOptions implements Serializable {
     public int validationFreq;
     public double learningRate;
     public boolean parallel;
+    public boolean lockFree;
+    public boolean parallelCells;
     public int nThreads;
     public OptimizerFactory.OptimizerType optimizer;
     public int validBatchSize;
@@ -35,6 +37,12 @@ public class TrainOptions implements Serializable {
     public String visualizationFilename;
     public int blockNum;
     public double l2term;
+    // Heap in MB the sentences in flight may take by their
+    // estimated size, 0 turns admission control off.
+    public long memoryBudget;
+    // Gradients by a reverse pass over the chart rather
+    // than by dXdW and dXdXw carried up every span.
+    public boolean adjointGradients;
 
     public TrainOptions(Configuration config) throws IOException {
         trainFiles =
@@ -55,6 +63,10 @@ public class TrainOptions implements Serializable {
                 config.getInt("validationFreq", 5);
         parallel =
                 config.getBoolean("parallel", false);
+        lockFree =
+                config.getBoolean("lockFree", false);
+        parallelCells =
+                config.getBoolean("parallelCells", false);
         nThreads =
                 config.getInt("nThreads", 0);
 
@@ -67,6 +79,10 @@ public class TrainOptions implements Serializable {
 
         l2term = config.getDouble("l2term", 0);
 
+        memoryBudget = config.getLong("memoryBudget", 0);
+
+        adjointGradients = config.getBoolean("adjointGradients", true);
+
         List<String> trainList = Lists.newArrayList(trainFiles);
         trainList.addAll(getFilesFromDir(
                 config.getString("trainDir", null),
@@ -0,0 +1,112 @@
+package com.kushalarora.compositionalLM.utils;
+
+import lombok.Getter;
+
+/**
+ * Admission control of sentences by their estimated memory. A sentence
+ * is admitted once its estimate fits in what the budget has left next to
+ * the sentences already in flight, and waits until then. One that is
+ * larger than the whole budget but fits in the heap runs on its own, once
+ * everything in flight is done. One larger than the heap is rejected.
+ *
+ * Callers must release what they acquired, in a finally block. Results
+ * that outlive their sentence, such as scores kept in a heap cache, are
+ * held until they are dropped and count against the budget meanwhile.
+ */
+public class MemoryBudget {
+    @Getter
+    private final long budget;
+    @Getter
+    private final long heap;
+
+    @Getter
+    private long inFlight;
+    @Getter
+    private int numInFlight;
+    // held by results that outlive their sentence
+    @Getter
+    private long resident;
+
+    // A sentence larger than the budget is running
+    // or waiting to run alone
+    private int numExclusive;
+
+    /**
+     * @param budget bytes the sentences in flight may take together,
+     *               0 turns admission control off
+     */
+    public MemoryBudget(long budget) {
+        this(budget, Runtime.getRuntime().maxMemory());
+    }
+
+    public MemoryBudget(long budget, long heap) {
+        this.budget = budget;
+        this.heap = heap;
+    }
+
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Wait until a sentence estimated at bytes may run.
+     *
+     * @return false if it never may, in which case it must be skipped
+     * and not released
+     */
+    public synchronized boolean acquire(long bytes) throws InterruptedException {
+        if (!isEnabled()) {
+            return true;
+        }
+        if (bytes > heap) {
+            return false;
+        }
+
+        if (bytes > budget) {
+            numExclusive++;
+            while (numInFlight > 0) {
+                wait();
+            }
+        } else {
+            while (numExclusive > 0 ||
+                    (numInFlight > 0 && inFlight + resident + bytes > budget)) {
+                wait();
+            }
+        }
+        inFlight += bytes;
+        numInFlight++;
+        return true;
+    }
+
+    public synchronized void release(long bytes) {
+        if (!isEnabled()) {
+            return;
+        }
+        inFlight -= bytes;
+        numInFlight--;
+        if (bytes > budget) {
+            numExclusive--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Count bytes kept after their sentence was released until they
+     * are dropped. A sentence alone is still admitted whatever is held,
+     * so holding never blocks the caller.
+     */
+    public synchronized void hold(long bytes) {
+        if (!isEnabled()) {
+            return;
+        }
+        resident += bytes;
+    }
+
+    public synchronized void drop(long bytes) {
+        if (!isEnabled()) {
+            return;
+        }
+        resident -= bytes;
+        notifyAll();
+    }
+}
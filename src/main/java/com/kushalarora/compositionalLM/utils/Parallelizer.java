@@ -33,8 +33,8 @@ public class Parallelizer {
                                                   final Function<Integer, D> parallizableFunc,
                                                   final int blockSize) {
         int length = end - start;
-        // Contains one extra block. Do something about it.
-        int blockNum = length / blockSize;
+        // Round up so the trailing partial block is not dropped.
+        int blockNum = (length + blockSize - 1) / blockSize;
 
         if (blockNum < 1) {
            /* log.error("blockNum is zero. " +
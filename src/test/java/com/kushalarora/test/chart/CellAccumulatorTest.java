@@ -0,0 +1,80 @@
+package com.kushalarora.test.chart;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.kushalarora.compositionalLM.chart.CellAccumulator;
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.chart.IChart;
+import com.kushalarora.compositionalLM.options.Options;
+import com.kushalarora.compositionalLM.utils.Parallelizer;
+
+public class CellAccumulatorTest {
+    private static final int NUM_STATES = 10;
+    private static final int NUM_ITEMS = 1000;
+
+    private static Options op;
+    private Parallelizer parallelizer;
+    private CellAccumulator acc;
+
+    @BeforeClass
+    public static void setUpClass() throws ConfigurationException {
+        op = new Options();
+    }
+
+    @Before
+    public void setUp() {
+        parallelizer = new Parallelizer(op, 7);
+        acc = new CellAccumulator(NUM_STATES);
+    }
+
+    private Function<Integer, Void> adder() {
+        return new Function<Integer, Void>() {
+            @Nullable
+            public Void apply(@Nullable Integer item) {
+                acc.add(item % NUM_STATES, 1);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testParallelReduce() {
+        parallelizer.parallelizer(0, NUM_ITEMS, adder());
+        acc.reduce();
+        for (int state = 0; state < NUM_STATES; state++) {
+            Assert.assertEquals(NUM_ITEMS / NUM_STATES, acc.getScore(state), 0);
+        }
+        Assert.assertEquals(NUM_ITEMS, acc.getTotal(), 0);
+    }
+
+    @Test
+    public void testReduceResetsPartials() {
+        parallelizer.parallelizer(0, NUM_ITEMS, adder());
+        acc.reduce();
+        acc.add(3.5);
+        acc.reduce();
+        Assert.assertEquals(0, acc.getScore(0), 0);
+        Assert.assertEquals(3.5, acc.getTotal(), 0);
+    }
+
+    @Test
+    public void testAddTo() {
+        IChart chart = ChartFactory.getSpanChart(ChartFactory.ChartType.DENSE, 3, NUM_STATES);
+        chart.addToScore(1, 0, 2, 4);
+        acc.add(4, 2);
+        acc.add(7, 5);
+        acc.reduce();
+        acc.addTo(chart, 0, 2);
+        Assert.assertEquals(3, chart.getScore(0, 2, 4), 0);
+        Assert.assertEquals(5, chart.getScore(0, 2, 7), 0);
+        Assert.assertEquals(0, chart.getScore(0, 2, 1), 0);
+        Assert.assertEquals(7, acc.getTotal(), 0);
+    }
+}
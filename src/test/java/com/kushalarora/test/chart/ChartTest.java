@@ -0,0 +1,407 @@
+package com.kushalarora.test.chart;
+
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.chart.IChart;
+import com.kushalarora.compositionalLM.chart.OffHeapChart;
+import com.kushalarora.compositionalLM.chart.OffHeapDoubles;
+import com.kushalarora.compositionalLM.chart.OffHeapSpace;
+import com.kushalarora.compositionalLM.chart.SpanIndex;
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
+import org.junit.Test;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChartTest {
+    private static final int LENGTH = 4;
+    private static final int NUM_STATES = 100;
+
+    private void checkSpanChart(ChartFactory.ChartType type, boolean singlePrecision) {
+        IChart chart = ChartFactory.getSpanChart(type, LENGTH, NUM_STATES, singlePrecision);
+        assertEquals(0, chart.getScore(1, 3, 7), 0);
+        assertTrue(chart.getActiveStates(1, 3).isEmpty());
+
+        chart.setScore(0.5, 1, 3, 7);
+        chart.addToScore(0.25, 1, 3, 7);
+        chart.addToScore(2, 1, 3, 42);
+        assertEquals(0.75, chart.getScore(1, 3, 7), 0);
+        assertEquals(2, chart.getScore(1, 3, 42), 0);
+        assertEquals(0, chart.getScore(0, 3, 7), 0);
+
+        BitSet expected = new BitSet();
+        expected.set(7);
+        expected.set(42);
+        assertEquals(expected, chart.getActiveStates(1, 3));
+        assertTrue(chart.getActiveStates(0, 3).isEmpty());
+
+        chart.setScore(0, 1, 3, 42);
+        expected.clear(42);
+        assertEquals(expected, chart.getActiveStates(1, 3));
+
+        chart.clear();
+        assertEquals(0, chart.getScore(1, 3, 7), 0);
+        assertTrue(chart.getActiveStates(1, 3).isEmpty());
+    }
+
+    private void checkSplitSpanChart(ChartFactory.ChartType type, boolean singlePrecision) {
+        IChart chart = ChartFactory.getSplitSpanChart(type, LENGTH, NUM_STATES, singlePrecision);
+        chart.addToScore(1, 0, 4, 2, 99);
+        chart.addToScore(1, 0, 4, 2, 99);
+        chart.addToScore(3, 0, 4, 3, 0);
+        assertEquals(2, chart.getScore(0, 4, 2, 99), 0);
+        assertEquals(3, chart.getScore(0, 4, 3, 0), 0);
+        assertEquals(0, chart.getScore(0, 4, 1, 99), 0);
+
+        assertEquals(1, chart.getActiveStates(0, 4, 2).cardinality());
+        assertTrue(chart.getActiveStates(0, 4, 2).get(99));
+        assertTrue(chart.getActiveStates(0, 4, 3).get(0));
+        assertTrue(chart.getActiveStates(0, 4, 1).isEmpty());
+    }
+
+    private void checkScaleCell(ChartFactory.ChartType type, boolean singlePrecision) {
+        IChart chart = ChartFactory.getSplitSpanChart(type, LENGTH, NUM_STATES, singlePrecision);
+        chart.setScore(3, 0, 4, 2, 5);
+        chart.setScore(0.5, 0, 4, 2, 9);
+        chart.setScore(3, 0, 4, 1, 5);
+        chart.scaleCell(0.25, 0, 4, 2);
+        assertEquals(0.75, chart.getScore(0, 4, 2, 5), 0);
+        assertEquals(0.125, chart.getScore(0, 4, 2, 9), 0);
+        // other splits of the span are left alone
+        assertEquals(3, chart.getScore(0, 4, 1, 5), 0);
+        assertEquals(2, chart.getActiveStates(0, 4, 2).cardinality());
+    }
+
+    private void checkClearCell(ChartFactory.ChartType type, boolean singlePrecision) {
+        IChart chart = ChartFactory.getSplitSpanChart(type, LENGTH, NUM_STATES, singlePrecision);
+        chart.setScore(3, 0, 4, 2, 5);
+        chart.setScore(1, 0, 4, 1, 5);
+        chart.clearCell(0, 4, 2);
+        assertEquals(0, chart.getScore(0, 4, 2, 5), 0);
+        assertTrue(chart.getActiveStates(0, 4, 2).isEmpty());
+        assertEquals(1, chart.getScore(0, 4, 1, 5), 0);
+
+        // A cleared cell can be written again
+        chart.addToScore(2, 0, 4, 2, 7);
+        assertEquals(2, chart.getScore(0, 4, 2, 7), 0);
+        assertEquals(0, chart.getScore(0, 4, 2, 5), 0);
+
+        IChart spanChart = ChartFactory.getSpanChart(type, LENGTH, NUM_STATES, singlePrecision);
+        spanChart.setScore(3, 1, 3, 5);
+        spanChart.clearCell(1, 3);
+        assertEquals(0, spanChart.getScore(1, 3, 5), 0);
+        assertTrue(spanChart.getActiveStates(1, 3).isEmpty());
+    }
+
+    // Every cell and split of a long sentence holds a distinct
+    // score, all exact in single precision
+    private void checkFullChart(ChartFactory.ChartType type, boolean singlePrecision) {
+        checkFullChart(ChartFactory.getSplitSpanChart(type, 30, NUM_STATES, singlePrecision), 30);
+    }
+
+    private void checkFullChart(IChart chart, int length) {
+        for (int start = 0; start < length; start++) {
+            for (int end = start + 1; end <= length; end++) {
+                for (int split = start; split < end; split++) {
+                    for (int state = 0; state < NUM_STATES; state += 7) {
+                        chart.setScore(1 + start + 31 * (end + 31 * (split + 31 * state)),
+                                start, end, split, state);
+                    }
+                }
+            }
+        }
+        for (int start = 0; start < length; start++) {
+            for (int end = start + 1; end <= length; end++) {
+                for (int split = start; split < end; split++) {
+                    assertEquals(15, chart.getActiveStates(start, end, split).cardinality());
+                    for (int state = 0; state < NUM_STATES; state += 7) {
+                        assertEquals(1 + start + 31 * (end + 31 * (split + 31 * state)),
+                                chart.getScore(start, end, split, state), 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChartTypeFromString() {
+        assertEquals(ChartFactory.ChartType.DENSE, ChartFactory.ChartType.fromString("Dense"));
+        try {
+            ChartFactory.ChartType.fromString("dence");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("dence"));
+            assertTrue(e.getMessage().contains("sparse, dense"));
+        }
+    }
+
+    @Test
+    public void testSpanIndex() {
+        SpanIndex index = new SpanIndex(LENGTH);
+        assertEquals(LENGTH * (LENGTH + 1) / 2, index.getNumCells());
+        assertEquals(LENGTH * (LENGTH + 1) * (LENGTH + 2) / 6, index.getNumSplits());
+
+        // Cells and splits are numbered densely, in order
+        int cell = 0;
+        int split = 0;
+        for (int start = 0; start < LENGTH; start++) {
+            for (int end = start + 1; end <= LENGTH; end++) {
+                assertEquals(cell++, index.cell(start, end));
+                for (int sp = start; sp < end; sp++) {
+                    assertEquals(split++, index.split(start, end, sp));
+                }
+            }
+        }
+
+        // A diagonal index gives each start one row of splits
+        SpanIndex diagonal = new SpanIndex(LENGTH, true);
+        assertEquals(LENGTH * LENGTH, diagonal.getNumSplits());
+        assertEquals(LENGTH + 1, diagonal.split(1, 3, 2));
+        assertEquals(LENGTH + 1, diagonal.split(1, 4, 2));
+    }
+
+    @Test
+    public void testSpanScalars() {
+        SpanScalars scalars = new SpanScalars(new SpanIndex(LENGTH), true);
+        scalars.set(2, 0, 4, 1);
+        scalars.add(1, 0, 4, 1);
+        scalars.set(5, 0, 4, 3);
+        scalars.set(7, 1, 4, 3);
+        scalars.scaleCell(0.5, 0, 4);
+        assertEquals(1.5, scalars.get(0, 4, 1), 0);
+        assertEquals(2.5, scalars.get(0, 4, 3), 0);
+        assertEquals(7, scalars.get(1, 4, 3), 0);
+
+        scalars.clearCell(0, 4);
+        assertEquals(0, scalars.get(0, 4, 3), 0);
+        assertEquals(7, scalars.get(1, 4, 3), 0);
+    }
+
+    @Test
+    public void testSpanVectors() {
+        SpanVectors vectors = new SpanVectors(new SpanIndex(LENGTH), 3, false);
+        assertEquals(0, vectors.get(1, 3).sum(Integer.MAX_VALUE).getDouble(0), 0);
+
+        vectors.set(Nd4j.create(new double[]{1, 2, 3}, new int[]{3, 1}), 1, 3);
+        vectors.addScaled(Nd4j.ones(3, 1), 2, 1, 3);
+        vectors.divide(3, 1, 3);
+        assertEquals(1, vectors.get(1, 3).getDouble(0), 0);
+        assertEquals(5.0 / 3, vectors.get(1, 3).getDouble(2), 1e-12);
+        // neighbouring cells are untouched
+        assertEquals(0, vectors.get(1, 4).sum(Integer.MAX_VALUE).getDouble(0), 0);
+        assertEquals(0, vectors.get(1, 2).sum(Integer.MAX_VALUE).getDouble(0), 0);
+
+        vectors.clearCell(1, 3);
+        assertEquals(0, vectors.get(1, 3).sum(Integer.MAX_VALUE).getDouble(0), 0);
+    }
+
+    @Test
+    public void testOffHeapChart() throws Exception {
+        checkFullChart(new OffHeapChart(NUM_STATES, 30, true, new OffHeapDoubles(null)), 30);
+
+        File dir = Files.createTempDirectory("chart").toFile();
+        checkFullChart(new OffHeapChart(NUM_STATES, 30, true, new OffHeapDoubles(dir)), 30);
+        // the scratch file is gone once mapped
+        assertEquals(0, dir.listFiles().length);
+        dir.delete();
+    }
+
+    @Test
+    public void testOffHeapChartSlots() {
+        OffHeapDoubles store = new OffHeapDoubles(null);
+        IChart chart = new OffHeapChart(NUM_STATES, LENGTH, true, store);
+        chart.setScore(3, 0, 4, 2, 5);
+        chart.addToScore(1, 0, 4, 2, 5);
+        chart.setScore(1, 0, 4, 1, 7);
+        assertEquals(4, chart.getScore(0, 4, 2, 5), 0);
+        long capacity = store.capacity();
+
+        // a cleared cell's slot is zeroed and taken by the next new cell
+        chart.clearCell(0, 4, 2);
+        assertEquals(0, chart.getScore(0, 4, 2, 5), 0);
+        assertTrue(chart.getActiveStates(0, 4, 2).isEmpty());
+        chart.addToScore(2, 1, 4, 3, 9);
+        assertEquals(0, chart.getScore(1, 4, 3, 5), 0);
+        assertEquals(2, chart.getScore(1, 4, 3, 9), 0);
+        assertEquals(1, chart.getScore(0, 4, 1, 7), 0);
+        assertEquals(capacity, store.capacity());
+
+        chart.clear();
+        assertEquals(0, chart.getScore(1, 4, 3, 9), 0);
+        assertEquals(0, chart.getScore(0, 4, 1, 7), 0);
+    }
+
+    @Test
+    public void testOffHeapDoubles() throws Exception {
+        OffHeapDoubles store = new OffHeapDoubles(null, 10);
+        long capacity = store.capacity();
+        store.set(capacity - 1, 2.5);
+        store.ensureCapacity(capacity + 1);
+        assertEquals(2 * capacity, store.capacity());
+        store.set(capacity, 1.5);
+        assertEquals(0, store.get(capacity + 1), 0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(store);
+        out.close();
+        OffHeapDoubles copy = (OffHeapDoubles) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(store.capacity(), copy.capacity());
+        assertEquals(2.5, copy.get(capacity - 1), 0);
+        assertEquals(1.5, copy.get(capacity), 0);
+
+        store.clear(capacity - 1, capacity + 1);
+        assertEquals(0, store.get(capacity - 1), 0);
+        assertEquals(0, store.get(capacity), 0);
+    }
+
+    @Test
+    public void testOffHeapDoublesReuse() throws Exception {
+        File dir = Files.createTempDirectory("chart").toFile();
+        OffHeapSpace space = new OffHeapSpace(dir);
+        OffHeapDoubles store = space.allocate();
+        store.ensureCapacity(10);
+        store.set(9, 2.5);
+        long capacity = store.capacity();
+
+        // handed back zeroed with its slabs, and taken by the next allocate
+        space.release(store);
+        assertEquals(1, space.getNumPooled());
+        assertSame(store, space.allocate());
+        assertEquals(0, space.getNumPooled());
+        assertEquals(capacity, store.capacity());
+        assertEquals(0, store.get(9), 0);
+
+        // a thread keeps two, the third store is closed
+        OffHeapDoubles other = space.allocate();
+        OffHeapDoubles third = space.allocate();
+        third.ensureCapacity(10);
+        space.release(store);
+        space.release(other);
+        space.release(third);
+        assertEquals(2, space.getNumPooled());
+        assertEquals(0, third.capacity());
+
+        // a closed store grows anew
+        third.ensureCapacity(10);
+        assertEquals(0, third.get(9), 0);
+        third.close();
+        dir.delete();
+    }
+
+    @Test
+    public void testOffHeapSpanVectors() {
+        SpanVectors vectors = new SpanVectors(
+                new SpanIndex(LENGTH), 3, true, new OffHeapDoubles(null));
+        vectors.set(Nd4j.create(new double[]{1, 2, 3}, new int[]{3, 1}), 0, 4, 2);
+        vectors.add(Nd4j.ones(3, 1), 0, 4, 2);
+        assertEquals(2, vectors.get(0, 4, 2).getDouble(0), 0);
+        assertEquals(4, vectors.get(0, 4, 2).getDouble(2), 0);
+        assertEquals(0, vectors.get(0, 4, 1).sum(Integer.MAX_VALUE).getDouble(0), 0);
+
+        vectors.clearCell(0, 4);
+        assertEquals(0, vectors.get(0, 4, 2).sum(Integer.MAX_VALUE).getDouble(0), 0);
+    }
+
+    @Test
+    public void testFloatSpanVectors() {
+        SpanVectors vectors = new SpanVectors(new SpanIndex(LENGTH), 3, true, true);
+        vectors.set(Nd4j.create(new double[]{1, 2, 3}, new int[]{3, 1}), 0, 4, 2);
+        vectors.add(Nd4j.ones(3, 1), 0, 4, 2);
+        vectors.set(Nd4j.create(new double[]{0.1, 0.1, 0.1}, new int[]{3, 1}), 0, 4, 3);
+        assertEquals(4, vectors.get(0, 4, 2).getDouble(2), 0);
+        // values are rounded to float
+        assertEquals((float) 0.1, vectors.get(0, 4, 3).getDouble(0), 0);
+        assertEquals(0, vectors.get(0, 4, 1).sum(Integer.MAX_VALUE).getDouble(0), 0);
+
+        vectors.clearCell(0, 4);
+        assertEquals(0, vectors.get(0, 4, 2).sum(Integer.MAX_VALUE).getDouble(0), 0);
+    }
+
+    @Test
+    public void testDenseFullChart() {
+        checkFullChart(ChartFactory.ChartType.DENSE, false);
+    }
+
+    @Test
+    public void testSparseFullChart() {
+        checkFullChart(ChartFactory.ChartType.SPARSE, false);
+    }
+
+    @Test
+    public void testDenseSpanChart() {
+        checkSpanChart(ChartFactory.ChartType.DENSE, false);
+    }
+
+    @Test
+    public void testSparseSpanChart() {
+        checkSpanChart(ChartFactory.ChartType.SPARSE, false);
+    }
+
+    @Test
+    public void testDenseSplitSpanChart() {
+        checkSplitSpanChart(ChartFactory.ChartType.DENSE, false);
+    }
+
+    @Test
+    public void testSparseSplitSpanChart() {
+        checkSplitSpanChart(ChartFactory.ChartType.SPARSE, false);
+    }
+
+    @Test
+    public void testDenseScaleCell() {
+        checkScaleCell(ChartFactory.ChartType.DENSE, false);
+    }
+
+    @Test
+    public void testSparseScaleCell() {
+        checkScaleCell(ChartFactory.ChartType.SPARSE, false);
+    }
+
+    @Test
+    public void testDenseClearCell() {
+        checkClearCell(ChartFactory.ChartType.DENSE, false);
+    }
+
+    @Test
+    public void testSparseClearCell() {
+        checkClearCell(ChartFactory.ChartType.SPARSE, false);
+    }
+
+    @Test
+    public void testFloatFullChart() {
+        checkFullChart(ChartFactory.ChartType.DENSE, true);
+    }
+
+    @Test
+    public void testFloatSpanChart() {
+        checkSpanChart(ChartFactory.ChartType.DENSE, true);
+    }
+
+    @Test
+    public void testFloatSplitSpanChart() {
+        checkSplitSpanChart(ChartFactory.ChartType.DENSE, true);
+    }
+
+    @Test
+    public void testFloatScaleCell() {
+        checkScaleCell(ChartFactory.ChartType.DENSE, true);
+    }
+
+    @Test
+    public void testFloatClearCell() {
+        checkClearCell(ChartFactory.ChartType.DENSE, true);
+    }
+}
@@ -1,22 +1,30 @@
 package com.kushalarora.test.derivatives;
 
+import com.kushalarora.compositionalLM.chart.SpanIndex;
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
 import com.kushalarora.compositionalLM.lang.Sentence;
 import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.lang.Word;
 import com.kushalarora.compositionalLM.model.CompositionalInsideOutsideScore;
 import com.kushalarora.compositionalLM.model.Model;
 import com.kushalarora.compositionalLM.model.Parameters;
+import com.kushalarora.compositionalLM.model.ProjectionCache;
 
 import com.kushalarora.compositionalLM.options.Options;
 import org.apache.commons.configuration.ConfigurationException;
 import org.junit.BeforeClass;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -47,39 +55,35 @@ public class AbstractDerivativeTest {
         }
         length = defaultSentence.size();
 
-        INDArray[][][] dummyCompMatrix = new INDArray[length][length + 1][];
-        INDArray[][] phraseMatrix = new INDArray[length][length + 1];
-        double[][][] compMu = new double[length][length + 1][];
+        SpanIndex spans = new SpanIndex(length);
+        SpanVectors dummyCompMatrix = new SpanVectors(spans, dim, true);
+        SpanVectors phraseMatrix = new SpanVectors(spans, dim, false);
+        SpanScalars compMu = new SpanScalars(spans, true);
 
-        double [][][] compISplitScore = new double[length][length + 1][];
-        double [][] compIScore = new double[length][length + 1];
+        SpanScalars compISplitScore = new SpanScalars(spans, true);
+        SpanScalars compIScore = new SpanScalars(spans, false);
 
 
         for (int start = 0; start < length; start++) {
-            for (int end = 0; end <= length; end++) {
-                dummyCompMatrix[start][end] = new INDArray[length];
-                compMu[start][end] = new double[length];
-                compISplitScore[start][end] = new double[length];
-
-                phraseMatrix[start][end] = Nd4j.ones(dim, 1);
+            for (int end = start + 1; end <= length; end++) {
+                phraseMatrix.set(Nd4j.ones(dim, 1), start, end);
                 for (int split = start + 1; split < end; split++) {
-                    dummyCompMatrix[start][end][split] = Nd4j.ones(dim, 1);
+                    dummyCompMatrix.set(Nd4j.ones(dim, 1), start, end, split);
                 }
             }
         }
 
         for (int idx = 0; idx < length; idx++) {
-            compMu[idx][idx + 1][idx] = 1.0f;
-            compISplitScore[idx][idx + 1][idx] = 1.0f;
-            compIScore[idx][idx + 1] = 1.0f;
+            compMu.set(1.0f, idx, idx + 1, idx);
+            compISplitScore.set(1.0f, idx, idx + 1, idx);
         }
 
         for (int start = 0; start < length; start++) {
-            for (int end = 0; end <= length; end++) {
-                compIScore[start][end] = end - start - 1;
+            for (int end = start + 1; end <= length; end++) {
+                compIScore.set(end - start - 1, start, end);
                 for (int split = start + 1; split < end; split++) {
-                    compMu[start][end][split] = 1.0f;
-                    compISplitScore[start][end][split] = 1.0f;
+                    compMu.set(1.0f, start, end, split);
+                    compISplitScore.set(1.0f, start, end, split);
                 }
             }
         }
@@ -112,6 +116,9 @@ public class AbstractDerivativeTest {
                 (INDArray) any(), (INDArray) any(), (INDArray) any()))
                 .thenReturn(1.0d);
 
+        when(model.energyDerivative((double[]) any()))
+                .thenReturn(1.0d);
+
         when(model.getDimensions())
                 .thenReturn(dim);
 
@@ -121,9 +128,38 @@ public class AbstractDerivativeTest {
         when(model.getParams())
                 .thenReturn(params);
 
+        ProjectionCache projections = new ProjectionCache(model, phraseMatrix);
+        when(cScorer.getProjectionCache(model))
+                .thenReturn(projections);
+
         // return all ones as composition derivative
         when(model.composeDerivative((INDArray) any(), (INDArray) any()))
                 .thenReturn(Nd4j.ones(dim, 1));
 
+        when(model.composeDerivativeProjected((INDArray) any(), (INDArray) any()))
+                .thenReturn(Nd4j.ones(dim, 1));
+
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                Arrays.fill((double[]) invocation.getArguments()[2], 1);
+                return null;
+            }
+        }).when(model).composeDerivativeProjected(
+                (double[]) any(), (double[]) any(), (double[]) any());
+
+    }
+
+    /**
+     * Have model.getParams() hand out W and u, e.g. mocks, in place of
+     * those of params. A null keeps the one of params.
+     */
+    protected static void stubParams(INDArray W, INDArray u) {
+        Parameters stub = mock(Parameters.class);
+        when(stub.getW()).thenReturn(W != null ? W : params.getW());
+        when(stub.getU()).thenReturn(u != null ? u : params.getU());
+        when(stub.getX()).thenReturn(params.getX());
+        when(stub.getDimensions()).thenReturn(dim);
+        when(stub.getVocabSize()).thenReturn(V);
+        when(model.getParams()).thenReturn(stub);
     }
 }
@@ -0,0 +1,223 @@
+package com.kushalarora.test.derivatives;
+
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.derivatives.ChartAdjoint;
+import com.kushalarora.compositionalLM.derivatives.Derivatives;
+import com.kushalarora.compositionalLM.derivatives.dQdu;
+import com.kushalarora.compositionalLM.lang.GrammarFactory;
+import com.kushalarora.compositionalLM.lang.Sentence;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalGrammar;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.lang.Word;
+import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.Parameters;
+import com.kushalarora.compositionalLM.options.Options;
+import com.kushalarora.compositionalLM.utils.Parallelizer;
+import com.kushalarora.test.lang.GrammarFixture;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.nd4j.linalg.api.activation.ActivationFunction;
+import org.nd4j.linalg.api.activation.Activations;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.ops.factory.ElementWiseOpFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the reverse pass against central differences of Q with the
+ * inside weights and \mu of the chart held fixed, the objective both
+ * the forward and the reverse derivatives differentiate.
+ */
+public class ChartAdjointTest {
+    private static final int DIM = 3;
+    // Q is large next to its gradient, a smaller step loses the
+    // difference to rounding
+    private static final double EPS = 1e-3;
+    private static LexicalizedParser lp;
+
+    private Options op;
+    private Model model;
+    private Sentence sentence;
+    private StanfordCompositionalInsideOutsideScore score;
+
+    /**
+     * tanh with its true derivative 1 - tanh^2, nd4j's takes 1 - x.
+     */
+    private static class ExactTanh implements ActivationFunction {
+        public INDArray apply(INDArray input) {
+            INDArray output = input.dup();
+            for (int i = 0; i < output.length(); i++) {
+                output.putScalar(i, Math.tanh(input.getDouble(i)));
+            }
+            return output;
+        }
+
+        public INDArray applyDerivative(INDArray input) {
+            INDArray output = input.dup();
+            for (int i = 0; i < output.length(); i++) {
+                double tanh = Math.tanh(input.getDouble(i));
+                output.putScalar(i, 1 - tanh * tanh);
+            }
+            return output;
+        }
+
+        public ElementWiseOpFactory transformFactory() {
+            return null;
+        }
+
+        public String type() {
+            return "exacttanh";
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        lp = GrammarFixture.getParser();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        op = new Options();
+        op.modelOp.dimensions = DIM;
+        op.grammarOp.chartType = ChartFactory.ChartType.DENSE;
+        op.trainOp.parallel = false;
+        model = new Model(op, DIM, lp.wordIndex.size(),
+                GrammarFactory.GrammarType.STANFORD_GRAMMAR,
+                new ExactTanh(), Activations.linear());
+        StanfordCompositionalGrammar grammar =
+                new StanfordCompositionalGrammar(op, lp, model, new Parallelizer(op, 1));
+
+        // "the" twice, its derivative sums both leaves
+        String[] words = {"the", "dog", "saw", "the", "cat"};
+        sentence = GrammarFixture.sentence(grammar, words);
+        score = (StanfordCompositionalInsideOutsideScore) grammar.getScore(sentence);
+    }
+
+    /**
+     * \sum{start}{end}{split} \mu(start, end, split) * E(start, end, split) / Z
+     * recomputed from the current parameters.
+     */
+    private double frozenQ() {
+        int length = sentence.size();
+        SpanScalars mu = score.getCompMuScores();
+        SpanScalars iScore = score.getCompIScores();
+        SpanScalars iSplitScore = score.getCompISplitScore();
+        INDArray[][] phrase = new INDArray[length + 1][length + 1];
+
+        double q = 0;
+        for (int start = 0; start < length; start++) {
+            phrase[start][start + 1] = model.word2vec((Word) sentence.get(start));
+            q += mu.get(start, start + 1, start) * model.energy(phrase[start][start + 1]);
+        }
+        for (int diff = 2; diff <= length; diff++) {
+            for (int start = 0; start + diff <= length; start++) {
+                int end = start + diff;
+                INDArray sum = null;
+                for (int split = start + 1; split < end; split++) {
+                    INDArray composition =
+                            model.compose(phrase[start][split], phrase[split][end]);
+                    q += mu.get(start, end, split) * model.energy(composition);
+                    INDArray weighted = composition.mul(iSplitScore.get(start, end, split));
+                    sum = sum == null ? weighted : sum.add(weighted);
+                }
+                double norm = iScore.get(start, end);
+                phrase[start][end] = norm != 0 ? sum.div(norm) : sum;
+            }
+        }
+        return q / iScore.get(0, length);
+    }
+
+    private double centralDifference(int thetaIndex) {
+        Parameters params = model.getParams();
+        INDArray theta = params.getTheta().dup();
+        INDArray perturbed = theta.dup();
+        double value = theta.getDouble(thetaIndex);
+
+        perturbed.putScalar(thetaIndex, value + EPS);
+        params.setTheta(perturbed);
+        double plus = frozenQ();
+
+        perturbed.putScalar(thetaIndex, value - EPS);
+        params.setTheta(perturbed);
+        double minus = frozenQ();
+
+        params.setTheta(theta);
+        return (plus - minus) / (2 * EPS);
+    }
+
+    private static void assertClose(String what, double expected, double actual) {
+        assertEquals(what, expected, actual, 1e-3 * Math.abs(expected) + 1e-10);
+    }
+
+    @Test
+    public void testFiniteDifferences() {
+        ChartAdjoint adjoint = new ChartAdjoint(model, score);
+        double Z = score.getCompIScores().get(0, sentence.size());
+        assertTrue(Z > 0);
+
+        // theta = [W u X], column major
+        double[] dQdW = adjoint.getDQdW();
+        for (int i = 0; i < DIM; i++) {
+            for (int j = 0; j < 2 * DIM; j++) {
+                assertClose("dQdW " + i + "," + j,
+                        centralDifference(j * DIM + i), dQdW[2 * DIM * i + j] / Z);
+            }
+        }
+
+        double[] dQdu = adjoint.getDQdu();
+        for (int i = 0; i < DIM; i++) {
+            assertClose("dQdu " + i, centralDifference(2 * DIM * DIM + i), dQdu[i] / Z);
+        }
+
+        double[][] dQdX = adjoint.getDQdX();
+        int the = sentence.get(0).getIndex();
+        assertEquals(the, sentence.get(3).getIndex());
+        for (int position = 0; position < sentence.size(); position++) {
+            int index = sentence.get(position).getIndex();
+            for (int i = 0; i < DIM; i++) {
+                double expected = dQdX[position][i];
+                if (index == the) {
+                    expected = dQdX[0][i] + dQdX[3][i];
+                }
+                assertClose("dQdX " + position + "," + i,
+                        centralDifference(2 * DIM * DIM + DIM + index * DIM + i), expected / Z);
+            }
+        }
+    }
+
+    @Test
+    public void testDerivatives() {
+        op.trainOp.adjointGradients = true;
+        Derivatives derivatives = new Derivatives(op, model, score);
+        derivatives.calcDerivative();
+
+        ChartAdjoint adjoint = new ChartAdjoint(model, score);
+        double Z = score.getCompIScores().get(0, sentence.size());
+
+        // dQdu is the same sum either way
+        dQdu<Sentence> forward = new dQdu<Sentence>(DIM, sentence, op);
+        forward.calcDerivative(model, score);
+        for (int i = 0; i < DIM; i++) {
+            assertClose("dQdu " + i, forward.getDQdu().getDouble(i),
+                    derivatives.getDqdu().getDQdu().getDouble(i));
+        }
+
+        for (int i = 0; i < DIM; i++) {
+            for (int j = 0; j < 2 * DIM; j++) {
+                assertClose("dQdW " + i + "," + j, adjoint.getDQdW()[2 * DIM * i + j] / Z,
+                        derivatives.getDqdw().getDQdW().getDouble(i, j));
+            }
+        }
+
+        int the = sentence.get(0).getIndex();
+        INDArray dQdXthe = (INDArray) derivatives.getDqdxw().getIndexToxMap().get(the);
+        for (int i = 0; i < DIM; i++) {
+            assertClose("dQdX " + i, (adjoint.getDQdX()[0][i] + adjoint.getDQdX()[3][i]) / Z,
+                    dQdXthe.getDouble(i));
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.kushalarora.test.derivatives;
 
+import com.kushalarora.compositionalLM.chart.SpanScalars;
 import com.kushalarora.compositionalLM.derivatives.dQdW;
 import com.kushalarora.compositionalLM.derivatives.dXdW;
 import com.kushalarora.compositionalLM.options.Options;
@@ -31,13 +32,11 @@ public class dQdWTest extends AbstractDerivativeTest {
         when(W.mmul((INDArray)any()))
                 .thenReturn(Nd4j.ones(dim, 1));
 
-        params.setW(W);
-
         INDArray  u = mock(INDArray.class);
         when(u.mmul((INDArray)any()))
                 .thenReturn(Nd4j.ones(1));
 
-        params.setU(u);
+        stubParams(W, u);
 
         op = new Options();
         op.trainOp.parallel = true;
@@ -82,8 +81,8 @@ public class dQdWTest extends AbstractDerivativeTest {
                 }
             }
         }
-        double[][] compIScore = cScorer.getCompIScores();
-        truedW = truedW.div(compIScore[0][length]);
+        SpanScalars compIScore = cScorer.getCompIScores();
+        truedW = truedW.div(compIScore.get(0, length));
 
         assertEquals(dim*dim*2,
                 truedW.eq(dqdw.getDQdW())
@@ -1,5 +1,6 @@
 package com.kushalarora.test.derivatives;
 
+import com.kushalarora.compositionalLM.chart.SpanScalars;
 import com.kushalarora.compositionalLM.derivatives.dQdXw;
 import com.kushalarora.compositionalLM.derivatives.dXdXw;
 import com.kushalarora.compositionalLM.lang.Word;
@@ -44,13 +45,11 @@ public class dQdXwTest extends AbstractDerivativeTest {
         when(W.mmul((INDArray) any()))
                 .thenReturn(Nd4j.eye(dim));
 
-        params.setW(W);
-
         INDArray  u = mock(INDArray.class);
         when(u.mmul((INDArray)any()))
                 .thenReturn(Nd4j.ones(dim));
 
-       params.setU(u);
+        stubParams(W, u);
     }
 
     @Test
@@ -76,7 +75,7 @@ public class dQdXwTest extends AbstractDerivativeTest {
 
         INDArray ones = Nd4j.ones(dim, 1);
 
-        double[][] compIScore = cScorer.getCompIScores();
+        SpanScalars compIScore = cScorer.getCompIScores();
 
         for (int idx = 0; idx < length; idx++) {
             INDArray truedQdxwi = Nd4j.ones(dim, 1);
@@ -89,7 +88,7 @@ public class dQdXwTest extends AbstractDerivativeTest {
                 }
             }
 
-            truedQdxwi = truedQdxwi.div(compIScore[0][length]);
+            truedQdxwi = truedQdxwi.div(compIScore.get(0, length));
             Map<Integer, INDArray> indexToxMap = dqdxw.getIndexToxMap();
             List<Word> sentence = defaultSentence;
             assertEquals(dim ,
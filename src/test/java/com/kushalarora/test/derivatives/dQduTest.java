@@ -1,5 +1,7 @@
 package com.kushalarora.test.derivatives;
 
+import com.kushalarora.compositionalLM.chart.SpanScalars;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
 import com.kushalarora.compositionalLM.derivatives.dQdu;
 import com.kushalarora.compositionalLM.options.Options;
 
@@ -40,11 +42,11 @@ public class dQduTest extends AbstractDerivativeTest {
 
         INDArray trueArray = Nd4j.zeros(dim, 1);
 
-        INDArray[][] phraseMatrix = cScorer.getPhraseMatrix();
-        INDArray[][][] compMatrix = cScorer.getCompositionMatrix();
+        SpanVectors phraseMatrix = cScorer.getPhraseMatrix();
+        SpanVectors compMatrix = cScorer.getCompositionMatrix();
 
         for (int idx = 0; idx < length; idx++) {
-            trueArray = trueArray.add(phraseMatrix[idx][idx + 1]);
+            trueArray = trueArray.add(phraseMatrix.get(idx, idx + 1));
         }
 
 
@@ -52,13 +54,13 @@ public class dQduTest extends AbstractDerivativeTest {
             for (int start = 0; start + diff < length; start++) {
                 int end = start + diff;
                 for (int split = start + 1; split < end; split++) {
-                    trueArray = trueArray.add(compMatrix[start][end][split]);
+                    trueArray = trueArray.add(compMatrix.get(start, end, split));
                 }
             }
         }
 
-        double[][] compIScore = cScorer.getCompIScores();
-        trueArray = trueArray.div(compIScore[0][length]);
+        SpanScalars compIScore = cScorer.getCompIScores();
+        trueArray = trueArray.div(compIScore.get(0, length));
 
         assertEquals(dim,
                 trueArray.eq(dQdu.getDQdu()).sum(Integer.MAX_VALUE).getFloat(0),
@@ -30,7 +30,7 @@ public class dXdWTest extends AbstractDerivativeTest {
         when(W.mmul((INDArray)any()))
                 .thenReturn(Nd4j.ones(dim, 1));
 
-        params.setW(W);
+        stubParams(W, null);
     }
 
     @Before
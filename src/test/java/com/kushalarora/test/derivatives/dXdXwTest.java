@@ -30,7 +30,7 @@ public class dXdXwTest extends AbstractDerivativeTest {
         when(W.mmul((INDArray) any()))
                 .thenReturn(Nd4j.eye(dim));
 
-        params.setW(W);
+        stubParams(W, null);
 
         op = new Options();
         op.trainOp.parallel = true;
@@ -0,0 +1,91 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.lang.Sentence;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalGrammar;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.options.Options;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static com.kushalarora.test.lang.GrammarFixture.compositionalGrammar;
+import static com.kushalarora.test.lang.GrammarFixture.sentence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BeamPruningTest {
+    private static Options op;
+    private static StanfordCompositionalGrammar grammar;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        op = new Options();
+        op.modelOp.dimensions = 5;
+        grammar = compositionalGrammar(op);
+    }
+
+    @After
+    public void tearDown() {
+        op.grammarOp.beamThreshold = 0;
+        op.grammarOp.coarseThreshold = 0;
+        op.grammarOp.maxSpanWidth = 0;
+    }
+
+    private static StanfordCompositionalInsideOutsideScore insideScore(Sentence sentence) {
+        return (StanfordCompositionalInsideOutsideScore) grammar.getInsideScore(sentence, true);
+    }
+
+    @Test
+    public void testBeam() {
+        Sentence sentence = sentence(grammar, "This", "is", "just", "a", "test", ".");
+
+        StanfordCompositionalInsideOutsideScore full = insideScore(sentence);
+        assertEquals(0, full.getTotalPruned());
+        assertEquals(0, full.getMaxPrunedMass(), 0);
+
+        op.grammarOp.beamThreshold = 1e-3;
+        StanfordCompositionalInsideOutsideScore pruned = insideScore(sentence);
+        assertTrue(pruned.getTotalPruned() > 0);
+        assertTrue(pruned.getMaxPrunedMass() > 0);
+        assertTrue(pruned.getMaxPrunedMass() < 1);
+
+        // Pruning only ever drops derivations
+        assertTrue(pruned.getSentenceScore() <= full.getSentenceScore());
+        assertTrue(pruned.getSentenceScore() > Double.NEGATIVE_INFINITY);
+    }
+
+    @Test
+    public void testCoarse() {
+        Sentence sentence = sentence(grammar, "This", "is", "just", "a", "test", ".");
+        StanfordCompositionalInsideOutsideScore full = insideScore(sentence);
+
+        op.grammarOp.coarseThreshold = 1e-3;
+        StanfordCompositionalInsideOutsideScore pruned = insideScore(sentence);
+        assertTrue(pruned.getTotalPruned() > 0);
+        assertTrue(pruned.getSentenceScore() <= full.getSentenceScore());
+        assertTrue(pruned.getSentenceScore() > Double.NEGATIVE_INFINITY);
+    }
+
+    @Test
+    public void testMaxSpanWidth() {
+        Sentence sentence = sentence(grammar, "This", "is", "just", "a", "test", ".");
+        StanfordCompositionalInsideOutsideScore full = insideScore(sentence);
+
+        // No span is wider than the bound
+        op.grammarOp.maxSpanWidth = sentence.size();
+        assertEquals(full.getSentenceScore(), insideScore(sentence).getSentenceScore(), 0);
+
+        op.grammarOp.maxSpanWidth = 2;
+        StanfordCompositionalInsideOutsideScore bounded = insideScore(sentence);
+        assertTrue(bounded.isChartCell(1, 3));
+        assertTrue(bounded.isChartCell(1, 6));
+        assertTrue(!bounded.isChartCell(1, 4));
+        assertTrue(bounded.isChartSplit(1, 6, 3));
+        assertTrue(!bounded.isChartSplit(1, 6, 4));
+
+        // The right branching fallback keeps a parse
+        assertTrue(bounded.getSentenceScore() <= full.getSentenceScore());
+        assertTrue(bounded.getSentenceScore() > Double.NEGATIVE_INFINITY);
+        assertTrue(bounded.getSentenceScore() != -100);
+    }
+}
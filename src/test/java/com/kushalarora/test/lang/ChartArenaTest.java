@@ -0,0 +1,114 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.chart.IChart;
+import com.kushalarora.compositionalLM.lang.ChartArena;
+import com.kushalarora.compositionalLM.lang.Sentence;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.lang.Word;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChartArenaTest {
+    private static final int NUM_STATES = 10;
+    private static final int DIMENSIONS = 5;
+
+    private static Sentence sentence(int length) {
+        Sentence sentence = new Sentence(0);
+        for (int i = 0; i < length; i++) {
+            sentence.add(new Word("w" + i, i));
+        }
+        return sentence;
+    }
+
+    private void checkReuse(ChartFactory.ChartType type) {
+        ChartArena arena = new ChartArena(type, 6, NUM_STATES);
+
+        StanfordCompositionalInsideOutsideScore s1 =
+                new StanfordCompositionalInsideOutsideScore(
+                        sentence(4), DIMENSIONS, NUM_STATES, true, type, arena);
+        assertTrue(arena.isInUse());
+        s1.getInsideChart().setScore(1, 0, 5, 3);
+        s1.getInsideSplitSpanStateChart().setScore(1, 0, 5, 2, 3);
+
+        // Arena is lent to one score at a time
+        StanfordCompositionalInsideOutsideScore s2 =
+                new StanfordCompositionalInsideOutsideScore(
+                        sentence(4), DIMENSIONS, NUM_STATES, true, type, arena);
+        s2.getInsideChart().setScore(2, 0, 5, 3);
+        assertEquals(1, s1.getInsideChart().getScore(0, 5, 3), 0);
+
+        IChart iScore = s1.getInsideChart();
+        s1.postProcess();
+        assertFalse(arena.isInUse());
+
+        StanfordCompositionalInsideOutsideScore s3 =
+                new StanfordCompositionalInsideOutsideScore(
+                        sentence(3), DIMENSIONS, NUM_STATES, true, type, arena);
+        assertSame(iScore, s3.getInsideChart());
+        assertEquals(0, s3.getInsideChart().getScore(0, 5, 3), 0);
+        assertTrue(s3.getInsideChart().getActiveStates(0, 5).isEmpty());
+        assertEquals(0, s3.getInsideSplitSpanStateChart().getScore(0, 5, 2, 3), 0);
+        s3.postProcess();
+    }
+
+    private void checkTooLong(ChartFactory.ChartType type) {
+        ChartArena arena = new ChartArena(type, 4, NUM_STATES);
+
+        // 4 words and the boundary symbol do not fit
+        StanfordCompositionalInsideOutsideScore s =
+                new StanfordCompositionalInsideOutsideScore(
+                        sentence(4), DIMENSIONS, NUM_STATES, true, type, arena);
+        assertFalse(arena.isInUse());
+        s.getInsideChart().setScore(1, 0, 5, 3);
+        assertEquals(1, s.getInsideChart().getScore(0, 5, 3), 0);
+    }
+
+    @Test
+    public void testReleaseWithoutPostProcess() {
+        ChartArena arena = new ChartArena(ChartFactory.ChartType.DENSE, 6, NUM_STATES);
+        StanfordCompositionalInsideOutsideScore s =
+                new StanfordCompositionalInsideOutsideScore(sentence(4), DIMENSIONS,
+                        NUM_STATES, true, ChartFactory.ChartType.DENSE, arena);
+        assertTrue(arena.isInUse());
+
+        // as after a pass that threw
+        s.releaseArena();
+        assertFalse(arena.isInUse());
+        s.releaseArena();
+
+        StanfordCompositionalInsideOutsideScore next =
+                new StanfordCompositionalInsideOutsideScore(sentence(4), DIMENSIONS,
+                        NUM_STATES, true, ChartFactory.ChartType.DENSE, arena);
+        assertTrue(arena.isInUse());
+        // postProcess of the abandoned score does not release the new lease
+        s.postProcess();
+        assertTrue(arena.isInUse());
+        next.postProcess();
+        assertFalse(arena.isInUse());
+    }
+
+    @Test
+    public void testDenseReuse() {
+        checkReuse(ChartFactory.ChartType.DENSE);
+    }
+
+    @Test
+    public void testSparseReuse() {
+        checkReuse(ChartFactory.ChartType.SPARSE);
+    }
+
+    @Test
+    public void testDenseTooLong() {
+        checkTooLong(ChartFactory.ChartType.DENSE);
+    }
+
+    @Test
+    public void testSparseTooLong() {
+        checkTooLong(ChartFactory.ChartType.SPARSE);
+    }
+}
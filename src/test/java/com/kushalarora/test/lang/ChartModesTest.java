@@ -0,0 +1,61 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalGrammar;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.options.Options;
+import org.junit.Test;
+
+import static com.kushalarora.test.lang.GrammarFixture.compositionalGrammar;
+import static com.kushalarora.test.lang.GrammarFixture.sentence;
+import static java.lang.Math.abs;
+import static org.junit.Assert.assertEquals;
+
+public class ChartModesTest {
+    private static StanfordCompositionalGrammar grammar(boolean lockFree, boolean parallel,
+                                                        boolean parallelCells)
+            throws Exception {
+        Options op = new Options();
+        op.modelOp.dimensions = 5;
+        op.grammarOp.chartType = ChartFactory.ChartType.DENSE;
+        op.trainOp.lockFree = lockFree;
+        op.trainOp.parallel = parallel;
+        op.trainOp.parallelCells = parallelCells;
+        return compositionalGrammar(op);
+    }
+
+    private static void checkSameScores(StanfordCompositionalGrammar expectedGrammar,
+                                        StanfordCompositionalGrammar actualGrammar,
+                                        String... words) {
+        StanfordCompositionalInsideOutsideScore expected =
+                (StanfordCompositionalInsideOutsideScore)
+                        expectedGrammar.getScore(sentence(expectedGrammar, words));
+        StanfordCompositionalInsideOutsideScore actual =
+                (StanfordCompositionalInsideOutsideScore)
+                        actualGrammar.getScore(sentence(actualGrammar, words));
+
+        // Only the order of the sums differs between the modes
+        assertEquals(expected.getSentenceScore(), actual.getSentenceScore(),
+                1e-10 * abs(expected.getSentenceScore()));
+        double expectedQ = expectedGrammar.getQScore(expected);
+        assertEquals(expectedQ, actualGrammar.getQScore(actual), 1e-8 * abs(expectedQ));
+    }
+
+    @Test
+    public void testLockFree() throws Exception {
+        checkSameScores(grammar(false, false, false), grammar(true, false, false),
+                "This", "is", "just", "a", "test", ".");
+    }
+
+    @Test
+    public void testParallelStates() throws Exception {
+        checkSameScores(grammar(false, false, false), grammar(false, true, false),
+                "This", "is", "just", "a", "test", ".");
+    }
+
+    @Test
+    public void testParallelCells() throws Exception {
+        checkSameScores(grammar(false, false, false), grammar(false, true, true),
+                "This", "is", "just", "a", "test", ".");
+    }
+}
@@ -0,0 +1,97 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.lang.CoarseGrammar;
+import com.kushalarora.compositionalLM.lang.CompiledGrammar;
+import edu.stanford.nlp.parser.lexparser.IntTaggedWord;
+import edu.stanford.nlp.parser.lexparser.Lexicon;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.trees.TreebankLanguagePack;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoarseGrammarTest {
+    private static LexicalizedParser lp;
+    private static CompiledGrammar cg;
+    private static CoarseGrammar coarseGrammar;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        lp = GrammarFixture.getParser();
+        cg = new CompiledGrammar(lp.bg, lp.ug, lp.stateIndex.size());
+        coarseGrammar = new CoarseGrammar(cg, lp.stateIndex, lp.treebankLanguagePack());
+    }
+
+    /**
+     * Tags of each word and the boundary symbol, closed under unaries
+     * as the leaf cells of the inside pass are.
+     */
+    private static BitSet[] leaves(String... words) {
+        BitSet[] leaves = new BitSet[words.length + 1];
+        for (int i = 0; i <= words.length; i++) {
+            String word = i < words.length ? words[i] : Lexicon.BOUNDARY;
+            leaves[i] = new BitSet();
+            Iterator<IntTaggedWord> taggingI =
+                    lp.lex.ruleIteratorByWord(lp.wordIndex.indexOf(word), i, null);
+            while (taggingI.hasNext()) {
+                leaves[i].set(lp.stateIndex.indexOf(lp.tagIndex.get(taggingI.next().tag)));
+            }
+            BitSet tags = (BitSet) leaves[i].clone();
+            for (int tag = tags.nextSetBit(0); tag >= 0; tag = tags.nextSetBit(tag + 1)) {
+                for (int r = cg.unaryByChild.offsets[tag]; r < cg.unaryByChild.offsets[tag + 1]; r++) {
+                    leaves[i].set(cg.unaryByChild.parent[r]);
+                }
+            }
+        }
+        return leaves;
+    }
+
+    @Test
+    public void testProjection() {
+        TreebankLanguagePack tlp = lp.treebankLanguagePack();
+        int np = coarseGrammar.getCoarseState(lp.stateIndex.indexOf("NP"));
+        for (int state = 0; state < lp.stateIndex.size(); state++) {
+            String label = lp.stateIndex.get(state);
+            assertEquals(tlp.basicCategory(label).equals("NP"),
+                    coarseGrammar.getCoarseState(state) == np);
+        }
+        assertTrue(coarseGrammar.getNumCoarseStates() < lp.stateIndex.size());
+    }
+
+    @Test
+    public void testAllowedStates() {
+        BitSet[] leaves = leaves("the", "cat", "sat", "on", "the", "mat", ".");
+        int length = leaves.length;
+        int goal = lp.stateIndex.indexOf(lp.treebankLanguagePack().startSymbol());
+
+        BitSet[][] loose = coarseGrammar.getAllowedStates(leaves, goal, 1e-8);
+        BitSet[][] tight = coarseGrammar.getAllowedStates(leaves, goal, 1e-2);
+        assertNotNull(loose);
+        assertNotNull(tight);
+        assertTrue(loose[0][length].get(goal));
+        assertTrue(tight[0][length].get(goal));
+
+        // A higher threshold only ever allows fewer states
+        int numLoose = 0;
+        int numTight = 0;
+        for (int start = 0; start < length; start++) {
+            for (int end = start + 2; end <= length; end++) {
+                if (loose[start][end] == null) {
+                    continue;
+                }
+                BitSet extra = (BitSet) tight[start][end].clone();
+                extra.andNot(loose[start][end]);
+                assertTrue(extra.isEmpty());
+                numLoose += loose[start][end].cardinality();
+                numTight += tight[start][end].cardinality();
+            }
+        }
+        assertTrue(numTight < numLoose);
+    }
+}
@@ -0,0 +1,99 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.lang.CompiledGrammar;
+import edu.stanford.nlp.parser.lexparser.BinaryRule;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.parser.lexparser.UnaryRule;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledGrammarTest {
+    private static LexicalizedParser lp;
+    private static CompiledGrammar cg;
+    private static int numStates;
+
+    @BeforeClass
+    public static void setUpClass() {
+        lp = GrammarFixture.getParser();
+        numStates = lp.stateIndex.size();
+        cg = new CompiledGrammar(lp.bg, lp.ug, numStates);
+    }
+
+    // Rules deserialized with the grammar carry a cached hash code,
+    // so compare them by (parent, left, right) instead.
+    private static long key(int parent, int leftChild, int rightChild) {
+        return ((long) parent * numStates + leftChild) * numStates + rightChild;
+    }
+
+    private static Set<Long> stanfordBinaryRules() {
+        Set<Long> rules = new HashSet<Long>();
+        for (int state = 0; state < numStates; state++) {
+            for (BinaryRule rule : lp.bg.ruleListByParent(state)) {
+                rules.add(key(rule.parent, rule.leftChild, rule.rightChild));
+            }
+        }
+        return rules;
+    }
+
+    private void checkBinaryTable(CompiledGrammar.BinaryTable table, int[] key) {
+        assertEquals(numStates + 1, table.offsets.length);
+        assertEquals(0, table.offsets[0]);
+        assertEquals(table.size(), table.offsets[numStates]);
+
+        Set<Long> expected = stanfordBinaryRules();
+        assertEquals(expected.size(), table.size());
+
+        Set<Long> seen = new HashSet<Long>();
+        for (int state = 0; state < numStates; state++) {
+            for (int r = table.offsets[state]; r < table.offsets[state + 1]; r++) {
+                assertEquals(state, key[r]);
+                long rule = key(table.parent[r], table.leftChild[r], table.rightChild[r]);
+                assertTrue(expected.contains(rule));
+                // Each rule exactly once
+                assertTrue(seen.add(rule));
+                assertEquals(Math.exp(table.score[r]), table.prob[r], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryByLeft() {
+        checkBinaryTable(cg.binaryByLeft, cg.binaryByLeft.leftChild);
+    }
+
+    @Test
+    public void testBinaryByRight() {
+        checkBinaryTable(cg.binaryByRight, cg.binaryByRight.rightChild);
+    }
+
+    @Test
+    public void testBinaryByParent() {
+        checkBinaryTable(cg.binaryByParent, cg.binaryByParent.parent);
+    }
+
+    @Test
+    public void testUnaryTables() {
+        for (int state = 0; state < numStates; state++) {
+            UnaryRule[] byChild = lp.ug.closedRulesByChild(state);
+            assertEquals(byChild.length,
+                    cg.unaryByChild.offsets[state + 1] - cg.unaryByChild.offsets[state]);
+            for (int r = cg.unaryByChild.offsets[state]; r < cg.unaryByChild.offsets[state + 1]; r++) {
+                assertEquals(state, cg.unaryByChild.child[r]);
+            }
+
+            UnaryRule[] byParent = lp.ug.closedRulesByParent(state);
+            assertEquals(byParent.length,
+                    cg.unaryByParent.offsets[state + 1] - cg.unaryByParent.offsets[state]);
+            for (int r = cg.unaryByParent.offsets[state]; r < cg.unaryByParent.offsets[state + 1]; r++) {
+                assertEquals(state, cg.unaryByParent.parent[r]);
+                assertEquals(Math.exp(cg.unaryByParent.score[r]), cg.unaryByParent.prob[r], 1e-12);
+            }
+        }
+    }
+}
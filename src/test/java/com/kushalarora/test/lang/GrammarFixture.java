@@ -0,0 +1,48 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.lang.IGrammar;
+import com.kushalarora.compositionalLM.lang.Sentence;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalGrammar;
+import com.kushalarora.compositionalLM.options.Options;
+import com.kushalarora.compositionalLM.utils.Parallelizer;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Grammar and sentences shared by the tests that run on the English
+ * PCFG. The parser is loaded once and shared by every test class.
+ */
+public class GrammarFixture {
+    public static final String GRAMMAR_RELATIVE_FILE_PATH = "src/resources/englishPCFG.ser.gz";
+    private static LexicalizedParser lp;
+
+    private GrammarFixture() {
+    }
+
+    public static synchronized LexicalizedParser getParser() {
+        if (lp == null) {
+            lp = LexicalizedParser.loadModel(
+                    FileUtils.getFile(GRAMMAR_RELATIVE_FILE_PATH).getAbsolutePath());
+        }
+        return lp;
+    }
+
+    /**
+     * Compositional grammar over the shared parser, serial unless op
+     * says otherwise.
+     */
+    public static StanfordCompositionalGrammar compositionalGrammar(Options op) {
+        return new StanfordCompositionalGrammar(op, getParser(), new Parallelizer(op, 1));
+    }
+
+    /**
+     * Sentence of words as tokenized by grammar.
+     */
+    public static Sentence sentence(IGrammar grammar, String... words) {
+        Sentence sentence = new Sentence(0);
+        for (int i = 0; i < words.length; i++) {
+            sentence.add(grammar.getToken(words[i], i));
+        }
+        return sentence;
+    }
+}
@@ -0,0 +1,93 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalGrammar;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.options.Options;
+import org.junit.Test;
+
+import java.nio.file.Files;
+
+import static com.kushalarora.test.lang.GrammarFixture.compositionalGrammar;
+import static com.kushalarora.test.lang.GrammarFixture.sentence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapScoreTest {
+    private static StanfordCompositionalGrammar grammar(int offHeapLength, String offHeapDir)
+            throws Exception {
+        Options op = new Options();
+        op.modelOp.dimensions = 5;
+        op.grammarOp.chartType = ChartFactory.ChartType.DENSE;
+        op.grammarOp.reuseCharts = true;
+        op.grammarOp.offHeapLength = offHeapLength;
+        op.grammarOp.offHeapDir = offHeapDir;
+        return compositionalGrammar(op);
+    }
+
+    private static void checkSameScores(StanfordCompositionalGrammar onHeap,
+                                        StanfordCompositionalGrammar offHeap,
+                                        String... words) {
+        StanfordCompositionalInsideOutsideScore expected =
+                (StanfordCompositionalInsideOutsideScore) onHeap.getScore(sentence(onHeap, words));
+        StanfordCompositionalInsideOutsideScore actual =
+                (StanfordCompositionalInsideOutsideScore) offHeap.getScore(sentence(offHeap, words));
+        assertFalse(expected.isOffHeap());
+        assertTrue(actual.isOffHeap());
+        assertEquals(expected.getSentenceScore(), actual.getSentenceScore(), 0);
+        assertEquals(onHeap.getQScore(expected), offHeap.getQScore(actual), 0);
+
+        StanfordCompositionalInsideOutsideScore inside =
+                (StanfordCompositionalInsideOutsideScore)
+                        offHeap.getInsideScore(sentence(offHeap, words), true);
+        assertTrue(inside.isOffHeap());
+        assertEquals(expected.getSentenceScore(), inside.getSentenceScore(), 0);
+    }
+
+    @Test
+    public void testDirectBuffers() throws Exception {
+        checkSameScores(grammar(0, null), grammar(4, null),
+                "This", "is", "just", "a", "test", ".");
+    }
+
+    @Test
+    public void testScratchFile() throws Exception {
+        String dir = Files.createTempDirectory("chart").toString();
+        checkSameScores(grammar(0, null), grammar(4, dir),
+                "This", "is", "just", "a", "test", ".");
+    }
+
+    @Test
+    public void testStoresReused() throws Exception {
+        StanfordCompositionalGrammar grammar = grammar(4, null);
+        String[] words = {"This", "is", "just", "a", "test", "."};
+        StanfordCompositionalInsideOutsideScore first =
+                (StanfordCompositionalInsideOutsideScore) grammar.getScore(sentence(grammar, words));
+        double qScore = grammar.getQScore(first);
+        first.releaseOffHeap();
+        assertNull(first.getCompositionMatrix());
+
+        // The second sentence runs on the zeroed stores of the first
+        StanfordCompositionalInsideOutsideScore second =
+                (StanfordCompositionalInsideOutsideScore) grammar.getScore(sentence(grammar, words));
+        assertEquals(first.getSentenceScore(), second.getSentenceScore(), 0);
+        assertEquals(qScore, grammar.getQScore(second), 0);
+        second.releaseOffHeap();
+    }
+
+    @Test
+    public void testShortSentenceOnHeap() throws Exception {
+        StanfordCompositionalGrammar grammar = grammar(4, null);
+        StanfordCompositionalInsideOutsideScore score =
+                (StanfordCompositionalInsideOutsideScore)
+                        grammar.getScore(sentence(grammar, "a", "test", "."));
+        assertFalse(score.isOffHeap());
+
+        // Nothing to give back, the derivatives can still run
+        score.releaseOffHeap();
+        assertNotNull(score.getCompositionMatrix());
+    }
+}
@@ -0,0 +1,105 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.chart.SemiringFactory.SemiringType;
+import com.kushalarora.compositionalLM.lang.Sentence;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalGrammar;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.lang.StanfordGrammar;
+import com.kushalarora.compositionalLM.lang.StanfordInsideOutsideScore;
+import com.kushalarora.compositionalLM.options.Options;
+import edu.stanford.nlp.ling.Label;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.trees.Tree;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.kushalarora.test.lang.GrammarFixture.compositionalGrammar;
+import static com.kushalarora.test.lang.GrammarFixture.getParser;
+import static com.kushalarora.test.lang.GrammarFixture.sentence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SemiringChartTest {
+    private static StanfordCompositionalGrammar grammar;
+    private static StanfordGrammar pcfg;
+    private static int goal;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Options op = new Options();
+        op.modelOp.dimensions = 5;
+        LexicalizedParser lp = getParser();
+        grammar = compositionalGrammar(op);
+        pcfg = new StanfordGrammar(op, lp);
+        goal = lp.stateIndex.indexOf(lp.treebankLanguagePack().startSymbol());
+    }
+
+    private static List<String> yield(Tree tree) {
+        List<String> yield = new ArrayList<String>();
+        for (Label label : tree.yield()) {
+            yield.add(label.value());
+        }
+        return yield;
+    }
+
+    @Test
+    public void testParse() {
+        String[] words = {"This", "is", "just", "a", "test", "."};
+        Sentence sentence = sentence(grammar, words);
+        Tree tree = grammar.parse(sentence);
+        assertNotNull(tree);
+
+        // Boundary symbol is removed
+        assertEquals(Arrays.asList(words), yield(tree));
+
+        // The best derivation is one of the terms of the inside score
+        // of the full span, boundary symbol included.
+        StanfordCompositionalInsideOutsideScore score =
+                (StanfordCompositionalInsideOutsideScore)
+                        grammar.getInsideScore(sentence, true);
+        int length = words.length + 1;
+        double insideScore = Math.log(score.getCompIScores().get(0, length))
+                + score.getInsideScale()[0][length] * Math.log(2);
+        assertTrue(tree.score() <= insideScore);
+        assertTrue(tree.score() > Double.NEGATIVE_INFINITY);
+    }
+
+    @Test
+    public void testSemirings() {
+        Sentence sentence = sentence(grammar, "This", "is", "just", "a", "test", ".");
+        double sum = pcfg.getLogScore(sentence, SemiringType.SUM_PRODUCT);
+        double logSum = pcfg.getLogScore(sentence, SemiringType.LOG_SUM_EXP);
+        double max = pcfg.getLogScore(sentence, SemiringType.MAX_PRODUCT);
+
+        // Same inside score whichever space it is summed in
+        assertEquals(sum, logSum, 1e-8 * Math.abs(sum));
+        assertTrue(max > Double.NEGATIVE_INFINITY);
+        assertTrue(max <= logSum);
+
+        Tree tree = pcfg.parse(sentence);
+        assertNotNull(tree);
+        assertEquals(Arrays.asList("This", "is", "just", "a", "test", "."), yield(tree));
+        assertEquals(max, tree.score(), 0);
+    }
+
+    @Test
+    public void testInsidePassOnCore() {
+        Sentence sentence = sentence(grammar, "This", "is", "just", "a", "test", ".");
+        StanfordInsideOutsideScore score =
+                new StanfordInsideOutsideScore(sentence, pcfg.getNumStates());
+        pcfg.doLexScores(score);
+        pcfg.doInsideScores(score);
+
+        // The training pass and the sum-product chart run the same
+        // rule loops, they only differ in how unary chains are walked.
+        double inside = Math.log(score.getScore(score.getInsideScores(),
+                0, sentence.size() + 1, goal));
+        double chart = pcfg.getLogScore(sentence, SemiringType.SUM_PRODUCT);
+        assertEquals(chart, inside, 1e-5 * Math.abs(chart));
+    }
+}
@@ -0,0 +1,69 @@
+package com.kushalarora.test.lang;
+
+import com.kushalarora.compositionalLM.chart.ChartFactory;
+import com.kushalarora.compositionalLM.lang.Sentence;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalGrammar;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.model.Parameters;
+import com.kushalarora.compositionalLM.options.Options;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static com.kushalarora.test.lang.GrammarFixture.compositionalGrammar;
+import static com.kushalarora.test.lang.GrammarFixture.sentence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SinglePrecisionTest {
+    @AfterClass
+    public static void tearDownClass() {
+        Parameters.setNd4jPrecision(false);
+    }
+
+    private static double[] scores(boolean singlePrecision, String... words) throws Exception {
+        Options op = new Options();
+        op.modelOp.dimensions = 5;
+        op.grammarOp.chartType = ChartFactory.ChartType.DENSE;
+        op.modelOp.singlePrecision = singlePrecision;
+        StanfordCompositionalGrammar grammar = compositionalGrammar(op);
+        assertEquals(singlePrecision ? DataBuffer.FLOAT : DataBuffer.DOUBLE, Nd4j.dtype);
+
+        Sentence sentence = sentence(grammar, words);
+        StanfordCompositionalInsideOutsideScore full =
+                (StanfordCompositionalInsideOutsideScore) grammar.getScore(sentence);
+        StanfordCompositionalInsideOutsideScore inside =
+                (StanfordCompositionalInsideOutsideScore) grammar.getInsideScore(sentence, true);
+        assertEquals(singlePrecision, full.isSinglePrecision());
+        return new double[]{full.getSentenceScore(), inside.getSentenceScore(),
+                grammar.getQScore(full)};
+    }
+
+    @Test
+    public void testScoresMatchDouble() throws Exception {
+        String[] words = {"This", "is", "just", "a", "test", "."};
+        double[] doubles = scores(false, words);
+        double[] floats = scores(true, words);
+        for (int i = 0; i < doubles.length; i++) {
+            assertTrue(floats[i] > Double.NEGATIVE_INFINITY);
+            assertEquals(doubles[i], floats[i], 1e-4 * Math.abs(doubles[i]));
+        }
+    }
+
+    @Test
+    public void testConvertPrecision() throws Exception {
+        Options op = new Options();
+        Parameters params = new Parameters(op, 3, 4);
+        double w = params.getW().getDouble(1);
+
+        params.convertPrecision(true);
+        assertEquals(DataBuffer.FLOAT, Nd4j.dtype);
+        assertEquals(w, params.getW().getDouble(1), 1e-6);
+        assertEquals(6, params.getW().columns());
+
+        params.convertPrecision(false);
+        assertEquals(DataBuffer.DOUBLE, Nd4j.dtype);
+        assertEquals((float) w, params.getW().getDouble(1), 0);
+    }
+}
@@ -2,7 +2,11 @@ package com.kushalarora.test.model;
 
 import com.kushalarora.compositionalLM.lang.GrammarFactory;
 import com.kushalarora.compositionalLM.lang.IGrammar;
+import com.kushalarora.compositionalLM.lang.Sentence;
+import com.kushalarora.compositionalLM.lang.StanfordCompositionalInsideOutsideScore;
+import com.kushalarora.compositionalLM.lang.Word;
 import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.ProjectionCache;
 import com.kushalarora.compositionalLM.options.Options;
 import com.kushalarora.compositionalLM.utils.Parallelizer;
 import lombok.val;
@@ -14,7 +18,13 @@ import org.nd4j.linalg.api.activation.Activations;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.nd4j.linalg.ops.transforms.Transforms.identity;
 import static org.nd4j.linalg.ops.transforms.Transforms.sigmoid;
@@ -38,6 +48,29 @@ public class ModelTest {
                 Activations.linear());
     }
 
+    @Test
+    public void testProjectionCacheNotSerialized() throws Exception {
+        Sentence sentence = new Sentence(0);
+        for (int i = 0; i < 3; i++) {
+            sentence.add(new Word("w" + i, i));
+        }
+        StanfordCompositionalInsideOutsideScore score =
+                new StanfordCompositionalInsideOutsideScore(sentence, 10, 5);
+        ProjectionCache projections = score.getProjectionCache(model);
+        assertSame(projections, score.getProjectionCache(model));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(score);
+        out.close();
+        StanfordCompositionalInsideOutsideScore copy =
+                (StanfordCompositionalInsideOutsideScore) new ObjectInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        // Rebuilt against the model of the caller
+        assertSame(model, copy.getProjectionCache(model).getModel());
+    }
+
     @Test
     public void testCompose() {
         val child1Vec = Nd4j.rand(10, 1);
@@ -58,6 +91,77 @@ public class ModelTest {
                 modelParentVec);
     }
 
+    @Test
+    public void testComposeProjected() {
+        val child1Vec = Nd4j.rand(10, 1);
+        val child2Vec = Nd4j.rand(10, 1);
+        INDArray trueParentVec = model.compose(child1Vec, child2Vec);
+        INDArray projectedParentVec = model.composeProjected(
+                model.projectLeft(child1Vec), model.projectRight(child2Vec));
+
+        assertTrue(projectedParentVec.isColumnVector());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(trueParentVec.getDouble(i), projectedParentVec.getDouble(i), 1e-6);
+        }
+    }
+
+    private static double[] toArray(INDArray vector) {
+        double[] array = new double[vector.length()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = vector.getDouble(i);
+        }
+        return array;
+    }
+
+    private static void assertKernelsMatch(Model model) {
+        val child1Vec = Nd4j.rand(10, 1);
+        val child2Vec = Nd4j.rand(10, 1);
+        INDArray trueParentVec = model.compose(child1Vec, child2Vec);
+        INDArray trueDerivative = model.composeDerivative(child1Vec, child2Vec);
+
+        double[] left = new double[10];
+        double[] right = new double[10];
+        double[] parent = new double[10];
+        double[] derivative = new double[10];
+        model.projectLeft(toArray(child1Vec), left);
+        model.projectRight(toArray(child2Vec), right);
+        model.composeProjected(left, right, parent);
+        model.composeDerivativeProjected(left, right, derivative);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(trueParentVec.getDouble(i), parent[i], 1e-6);
+            // nd4j's derivatives are of the pre activation, not bounded
+            assertEquals(trueDerivative.getDouble(i), derivative[i],
+                    1e-6 * Math.max(1, Math.abs(derivative[i])));
+        }
+
+        double[] scratch = new double[10];
+        double[] composed = new double[10];
+        model.compose(toArray(child1Vec), toArray(child2Vec), scratch, composed);
+        assertEquals(parent[3], composed[3], 0);
+
+        INDArray parentVec = Nd4j.create(parent, new int[]{10, 1});
+        assertEquals(model.energy(parentVec), model.energy(parent), 1e-9);
+        assertEquals(model.energyDerivative(parentVec), model.energyDerivative(parent), 1e-9);
+    }
+
+    @Test
+    public void testComposeKernels() throws ConfigurationException {
+        Options op = new Options();
+        op.grammarOp.grammarType = GrammarFactory.GrammarType.STANFORD_GRAMMAR;
+        Model tanhModel = new Model(op,
+                10, model.getVocabSize(),
+                op.grammarOp.grammarType,
+                Activations.tanh(),
+                Activations.linear());
+        assertKernelsMatch(tanhModel);
+    }
+
+    @Test
+    public void testComposeKernelsFallback() {
+        // sigmoid has no kernel, the INDArray path is taken
+        assertKernelsMatch(model);
+    }
+
     @Test
     public void testLeafEnergy() {
         val vec = Nd4j.rand(10, 1);
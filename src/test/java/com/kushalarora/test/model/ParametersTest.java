@@ -0,0 +1,115 @@
+package com.kushalarora.test.model;
+
+import com.kushalarora.compositionalLM.derivatives.Derivatives;
+import com.kushalarora.compositionalLM.lang.GrammarFactory;
+import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.Parameters;
+import com.kushalarora.compositionalLM.options.Options;
+import org.apache.commons.configuration.ConfigurationException;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.activation.Activations;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class ParametersTest {
+    private static final int DIM = 3;
+    private static final int V = 4;
+
+    private Options op;
+    private Model model;
+    private Parameters params;
+
+    @Before
+    public void setUp() throws ConfigurationException {
+        op = new Options();
+        model = new Model(op, DIM, V,
+                GrammarFactory.GrammarType.STANFORD_GRAMMAR,
+                Activations.tanh(),
+                Activations.linear());
+        params = model.getParams();
+    }
+
+    @Test
+    public void testViewsOfTheta() {
+        INDArray theta = params.getTheta();
+        assertEquals(Parameters.size(DIM, V), theta.length());
+        assertSame(theta.data(), params.getW().data());
+        assertSame(theta.data(), params.getU().data());
+        assertSame(theta.data(), params.getX().data());
+
+        // theta = [W u X], column major
+        assertEquals(params.getW().getDouble(1, 4), theta.getDouble(4 * DIM + 1), 0);
+        assertEquals(params.getU().getDouble(2), theta.getDouble(2 * DIM * DIM + 2), 0);
+        assertEquals(params.getX().getDouble(2, 3),
+                theta.getDouble(2 * DIM * DIM + DIM + 3 * DIM + 2), 0);
+    }
+
+    @Test
+    public void testSettersCopyIntoTheta() {
+        INDArray theta = params.getTheta();
+        INDArray W = params.getW();
+        int version = params.getVersion();
+
+        params.setW(Nd4j.ones(DIM, 2 * DIM).mul(2));
+        params.setU(Nd4j.ones(1, DIM).mul(3));
+        assertSame(W, params.getW());
+        assertEquals(2, theta.getDouble(4 * DIM + 1), 0);
+        assertEquals(3, theta.getDouble(2 * DIM * DIM + 2), 0);
+        assertNotEquals(version, params.getVersion());
+
+        INDArray copy = theta.dup();
+        copy.putScalar(0, 5);
+        params.setTheta(copy);
+        assertSame(theta, params.getTheta());
+        assertEquals(5, W.getDouble(0, 0), 0);
+    }
+
+    @Test
+    public void testUpdateInPlace() throws ConfigurationException {
+        op.trainOp.l2term = 0;
+        INDArray theta = params.getTheta();
+        INDArray W = params.getW();
+        INDArray X = params.getX();
+        double w = W.getDouble(2, 5);
+        double u = params.getU().getDouble(1);
+        double x = X.getDouble(1, 2);
+        double xOther = X.getDouble(1, 3);
+        double[] node = new double[]{1, 1, 1};
+        double energy = model.energy(node);
+        int version = params.getVersion();
+
+        Derivatives dq = new Derivatives(model, op);
+        dq.getDqdw().getDQdW().addi(Nd4j.ones(DIM, 2 * DIM));
+        dq.getDqdu().getDQdu().addi(Nd4j.ones(DIM, 1).mul(2));
+        dq.getDqdxw().getIndexToxMap().put(2, Nd4j.ones(DIM, 1).mul(3));
+        params.update(dq);
+
+        assertSame(theta, params.getTheta());
+        assertSame(W, params.getW());
+        assertEquals(w + 1, W.getDouble(2, 5), 1e-12);
+        assertEquals(u + 2, params.getU().getDouble(1), 1e-12);
+        assertEquals(x + 3, X.getDouble(1, 2), 1e-12);
+        assertEquals(xOther, X.getDouble(1, 3), 0);
+        assertEquals(w + 1, theta.getDouble(5 * DIM + 2), 1e-12);
+        assertNotEquals(version, params.getVersion());
+
+        // the model sees the new u
+        assertEquals(energy + 2 * DIM, model.energy(node), 1e-9);
+    }
+
+    @Test
+    public void testL2InPlace() throws ConfigurationException {
+        op.trainOp.l2term = 0.5;
+        double w = params.getW().getDouble(0, 1);
+        double x = params.getX().getDouble(2, 0);
+
+        params.update(new Derivatives(model, op));
+        assertEquals(w / 2, params.getW().getDouble(0, 1), 1e-12);
+        assertEquals(x / 2, params.getX().getDouble(2, 0), 1e-12);
+    }
+}
@@ -0,0 +1,145 @@
+package com.kushalarora.test.model;
+
+import com.kushalarora.compositionalLM.chart.SpanIndex;
+import com.kushalarora.compositionalLM.chart.SpanVectors;
+import com.kushalarora.compositionalLM.derivatives.Derivatives;
+import com.kushalarora.compositionalLM.lang.GrammarFactory;
+import com.kushalarora.compositionalLM.lang.Word;
+import com.kushalarora.compositionalLM.model.Model;
+import com.kushalarora.compositionalLM.model.ProjectionCache;
+import com.kushalarora.compositionalLM.model.VocabularyTables;
+import com.kushalarora.compositionalLM.options.Options;
+import org.apache.commons.configuration.ConfigurationException;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.activation.Activations;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class VocabularyTablesTest {
+    private static final int DIM = 4;
+    private static final int V = 6;
+
+    private Options op;
+    private Model model;
+
+    @Before
+    public void setUp() throws ConfigurationException {
+        op = new Options();
+        op.trainOp.l2term = 0;
+        model = new Model(op, DIM, V,
+                GrammarFactory.GrammarType.STANFORD_GRAMMAR,
+                Activations.tanh(),
+                Activations.linear());
+    }
+
+    private void assertEntry(int index, VocabularyTables.Entry entry) {
+        double[] embedding = new double[DIM];
+        model.word2vec(new Word("w", index), embedding);
+        double[] left = new double[DIM];
+        double[] right = new double[DIM];
+        model.projectLeft(embedding, left);
+        model.projectRight(embedding, right);
+
+        assertArrayEquals(embedding, entry.getEmbedding(), 0);
+        assertEquals(model.energy(embedding), entry.getEnergy(), 0);
+        assertEquals(Math.exp(-model.energy(embedding)), entry.getZeta(), 0);
+        assertArrayEquals(left, entry.getLeftProjection(), 0);
+        assertArrayEquals(right, entry.getRightProjection(), 0);
+    }
+
+    @Test
+    public void testEntries() {
+        VocabularyTables tables = model.getVocabularyTables();
+        assertSame(tables, model.getVocabularyTables());
+        for (int index = 0; index < V; index++) {
+            assertEntry(index, tables.get(index));
+            assertSame(tables.get(index), tables.get(index));
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testOutOfRange() {
+        model.getVocabularyTables().get(V);
+    }
+
+    @Test
+    public void testRefreshedOnUpdate() {
+        VocabularyTables tables = model.getVocabularyTables();
+        double energy = tables.get(2).getEnergy();
+
+        Derivatives dq = new Derivatives(model, op);
+        dq.getDqdu().getDQdu().addi(Nd4j.ones(DIM, 1));
+        model.getParams().update(dq);
+
+        VocabularyTables updated = model.getVocabularyTables();
+        assertNotSame(tables, updated);
+        assertEntry(2, updated.get(2));
+        double sum = 0;
+        for (double x : updated.get(2).getEmbedding()) {
+            sum += x;
+        }
+        assertEquals(energy + sum, updated.get(2).getEnergy(), 1e-12);
+    }
+
+    @Test
+    public void testLeafProjections() {
+        int[] words = new int[]{3, 1, 3};
+        SpanIndex index = new SpanIndex(words.length);
+        SpanVectors phraseMatrix = new SpanVectors(index, DIM, false);
+        double[] embedding = new double[DIM];
+        for (int start = 0; start < words.length; start++) {
+            model.word2vec(new Word("w", words[start]), embedding);
+            phraseMatrix.set(embedding, start, start + 1);
+        }
+
+        ProjectionCache projected = new ProjectionCache(model, phraseMatrix);
+        ProjectionCache looked = new ProjectionCache(model, phraseMatrix, words);
+        assertSame(looked.getLeftProjection(0, 1), looked.getLeftProjection(2, 3));
+        double[] expected = new double[DIM];
+        double[] actual = new double[DIM];
+        for (int start = 0; start + 1 < words.length; start++) {
+            projected.compose(start, start + 2, start + 1, expected);
+            looked.compose(start, start + 2, start + 1, actual);
+            assertArrayEquals(expected, actual, 0);
+        }
+    }
+
+    @Test
+    public void testLeafProjectionsAfterUpdate() {
+        int[] words = new int[]{3, 1, 3};
+        SpanIndex index = new SpanIndex(words.length);
+        SpanVectors phraseMatrix = new SpanVectors(index, DIM, false);
+        double[] embedding = new double[DIM];
+        for (int start = 0; start < words.length; start++) {
+            model.word2vec(new Word("w", words[start]), embedding);
+            phraseMatrix.set(embedding, start, start + 1);
+        }
+        ProjectionCache looked = new ProjectionCache(model, phraseMatrix, words);
+        double[] stale = looked.getLeftProjection(0, 1);
+
+        Derivatives dq = new Derivatives(model, op);
+        dq.getDqdw().getDQdW().addi(Nd4j.ones(DIM, 2 * DIM));
+        dq.getDqdxw().getIndexToxMap().put(3, Nd4j.ones(DIM, 1));
+        model.getParams().update(dq);
+
+        // The leaf keeps its phrase of scoring time, projected by the new W
+        double[] phrase = new double[DIM];
+        double[] expected = new double[DIM];
+        phraseMatrix.get(0, 1, phrase);
+        model.projectLeft(phrase, expected);
+        double[] actual = looked.getLeftProjection(0, 1);
+        assertArrayEquals(expected, actual, 1e-12);
+        assertNotSame(stale, actual);
+
+        ProjectionCache projected = new ProjectionCache(model, phraseMatrix);
+        double[] composed = new double[DIM];
+        projected.compose(0, 2, 1, expected);
+        looked.compose(0, 2, 1, composed);
+        assertArrayEquals(expected, composed, 1e-12);
+    }
+}
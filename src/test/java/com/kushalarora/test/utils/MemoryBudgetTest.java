@@ -0,0 +1,167 @@
+package com.kushalarora.test.utils;
+
+import com.kushalarora.compositionalLM.lang.MemoryEstimator;
+import com.kushalarora.compositionalLM.utils.MemoryBudget;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void testDisabled() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(0, 100);
+        assertFalse(budget.isEnabled());
+        assertTrue(budget.acquire(1000));
+        budget.release(1000);
+        assertEquals(0, budget.getNumInFlight());
+    }
+
+    @Test
+    public void testReject() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(10, 100);
+        assertFalse(budget.acquire(101));
+        assertEquals(0, budget.getNumInFlight());
+    }
+
+    @Test
+    public void testDefer() throws InterruptedException {
+        final MemoryBudget budget = new MemoryBudget(10, 100);
+        assertTrue(budget.acquire(6));
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    budget.acquire(6);
+                    admitted.countDown();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        waiter.start();
+
+        // 6 + 6 is over the budget
+        assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        budget.release(6);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(6, budget.getInFlight());
+        budget.release(6);
+    }
+
+    @Test
+    public void testAlone() throws InterruptedException {
+        final MemoryBudget budget = new MemoryBudget(10, 100);
+        // Nothing in flight, over the budget but under the heap
+        assertTrue(budget.acquire(50));
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    budget.acquire(1);
+                    admitted.countDown();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        waiter.start();
+
+        assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        budget.release(50);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        budget.release(1);
+        assertEquals(0, budget.getInFlight());
+    }
+
+    @Test
+    public void testResident() throws InterruptedException {
+        final MemoryBudget budget = new MemoryBudget(10, 100);
+        // A cached score outlives its sentence
+        assertTrue(budget.acquire(4));
+        budget.release(4);
+        budget.hold(4);
+        assertEquals(4, budget.getResident());
+
+        assertTrue(budget.acquire(4));
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    budget.acquire(4);
+                    admitted.countDown();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        waiter.start();
+
+        // 4 held + 4 + 4 is over the budget, 4 + 4 is not
+        assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        budget.drop(4);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        budget.release(4);
+        budget.release(4);
+
+        // Alone, a sentence is admitted whatever is held
+        budget.hold(8);
+        assertTrue(budget.acquire(8));
+        budget.release(8);
+        budget.drop(8);
+        assertEquals(0, budget.getResident());
+    }
+
+    @Test
+    public void testEstimator() {
+        MemoryEstimator estimator = new MemoryEstimator(10, 1000, 100, 0);
+        assertEquals(15, estimator.numWordCells(5));
+        assertEquals(4 * 5 * 6 / 6, estimator.numWordSplits(5));
+        assertTrue(estimator.getScoreBytes(20, false) > estimator.getScoreBytes(10, false));
+        assertTrue(estimator.getScoreBytes(20, true) < estimator.getScoreBytes(20, false));
+        assertTrue(estimator.getTrainingBytes(20) > estimator.getScoreBytes(20, false));
+
+        // Spans of width 1 and 2, and the 3 wider ones ending at the last word
+        MemoryEstimator bounded = new MemoryEstimator(10, 1000, 100, 2);
+        assertEquals(5 + 4 + 3, bounded.numWordCells(5));
+        assertEquals(4 + 3 * 2, bounded.numWordSplits(5));
+        assertTrue(bounded.getScoreBytes(40, false) < estimator.getScoreBytes(40, false));
+
+        // Vectors and state charts dominate, floats about halve them
+        MemoryEstimator single = new MemoryEstimator(10, 1000, 100, 0, true);
+        assertTrue(single.getScoreBytes(40, false) < 0.6 * estimator.getScoreBytes(40, false));
+        assertTrue(single.getScoreBytes(40, false) > 0.4 * estimator.getScoreBytes(40, false));
+
+        // Off heap sentences only count the slots of the split level chart
+        MemoryEstimator offHeap = new MemoryEstimator(10, 1000, 100, 0, false, 30);
+        assertTrue(offHeap.isOffHeap(40));
+        assertFalse(offHeap.isOffHeap(20));
+        assertEquals(estimator.getScoreBytes(20, false), offHeap.getScoreBytes(20, false));
+        assertTrue(offHeap.getScoreBytes(40, false) < 0.2 * estimator.getScoreBytes(40, false));
+    }
+
+    @Test
+    public void testEstimatorGradients() {
+        MemoryEstimator forward = new MemoryEstimator(10, 1000, 100, 0, false, 0, false);
+        MemoryEstimator adjoint = new MemoryEstimator(10, 1000, 100, 0, false, 0, true);
+        assertFalse(forward.isAdjointGradients());
+        assertTrue(adjoint.isAdjointGradients());
+        assertEquals(forward.getScoreBytes(20, false), adjoint.getScoreBytes(20, false));
+
+        // Split level tables of vectors and matrices against
+        // split scalars and a vector per cell
+        assertTrue(adjoint.getDerivativeBytes(20) < 0.01 * forward.getDerivativeBytes(20));
+        double forwardGrowth = (double) forward.getDerivativeBytes(40) / forward.getDerivativeBytes(20);
+        double adjointGrowth = (double) adjoint.getDerivativeBytes(40) / adjoint.getDerivativeBytes(20);
+        assertTrue(adjointGrowth > 1);
+        assertTrue(adjointGrowth < forwardGrowth);
+        assertTrue(adjoint.getTrainingBytes(40) < forward.getTrainingBytes(40));
+    }
+}